@@ -0,0 +1,82 @@
+package com.example.peanut;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+/**
+ * {@link ConnectivitySource} backed by the default-network callback, so offline state is known
+ * up front instead of being discovered by a request timing out.
+ */
+public class AndroidConnectivitySource implements ConnectivitySource {
+
+    private static final String TAG = "AndroidConnectivity";
+
+    private final ConnectivityManager connectivityManager;
+    private volatile boolean online;
+    private volatile Listener listener;
+
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            update(hasInternet(capabilities));
+        }
+
+        @Override
+        public void onLost(Network network) {
+            update(false);
+        }
+    };
+
+    public AndroidConnectivitySource(Context context) {
+        connectivityManager = context.getSystemService(ConnectivityManager.class);
+        Network active = connectivityManager.getActiveNetwork();
+        online = active != null && hasInternet(connectivityManager.getNetworkCapabilities(active));
+        try {
+            connectivityManager.registerDefaultNetworkCallback(networkCallback);
+        } catch (RuntimeException e) {
+            // Too many callbacks registered or missing permission; assume online so requests still go out
+            Log.e(TAG, "Failed to register network callback: " + e.getMessage(), e);
+            online = true;
+        }
+    }
+
+    private static boolean hasInternet(NetworkCapabilities capabilities) {
+        return capabilities != null
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+    }
+
+    private void update(boolean nowOnline) {
+        if (nowOnline == online) {
+            return;
+        }
+        online = nowOnline;
+        Log.d(TAG, "Connectivity changed: online=" + nowOnline);
+        Listener current = listener;
+        if (current != null) {
+            current.onConnectivityChanged(nowOnline);
+        }
+    }
+
+    @Override
+    public boolean isOnline() {
+        return online;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void close() {
+        try {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Network callback was not registered: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.peanut;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * {@link SpeechInput} backed by the platform {@link SpeechRecognizer}.
+ */
+public class AndroidSpeechInput implements SpeechInput {
+
+    private static final String TAG = "AndroidSpeechInput";
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final Intent speechRecognizerIntent;
+    private SpeechRecognizer speechRecognizer;
+    private Listener listener;
+
+    public AndroidSpeechInput(Context context, Handler mainHandler) {
+        this.context = context.getApplicationContext();
+        this.mainHandler = mainHandler;
+
+        speechRecognizerIntent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, Locale.getDefault().toLanguageTag());
+        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE, this.context.getPackageName());
+        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, 1);
+        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, true); // Lets TurnController answer early
+
+        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_POSSIBLY_COMPLETE_SILENCE_LENGTH_MILLIS, 2000L);
+        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_COMPLETE_SILENCE_LENGTH_MILLIS, 2000L);
+
+        mainHandler.post(() -> {
+            try {
+                speechRecognizer = SpeechRecognizer.createSpeechRecognizer(this.context);
+                speechRecognizer.setRecognitionListener(new RecognitionListener() {
+                    @Override
+                    public void onReadyForSpeech(Bundle params) {
+                        EventLog.record(EventLog.STT_READY);
+                        if (listener != null) listener.onReadyForSpeech();
+                    }
+                    @Override
+                    public void onBeginningOfSpeech() { EventLog.record(EventLog.STT_BEGIN_SPEECH); }
+                    @Override
+                    public void onRmsChanged(float rmsdB) { }
+                    @Override
+                    public void onBufferReceived(byte[] buffer) { }
+                    @Override
+                    public void onEndOfSpeech() { EventLog.record(EventLog.STT_END_SPEECH); }
+
+                    @Override
+                    public void onError(int error) {
+                        if (listener != null) listener.onError(error);
+                    }
+
+                    @Override
+                    public void onResults(Bundle results) {
+                        ArrayList<String> matches = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+                        String transcript = matches != null && !matches.isEmpty() ? matches.get(0) : null;
+                        if (listener != null) listener.onResults(transcript);
+                    }
+
+                    @Override
+                    public void onPartialResults(Bundle partialResults) {
+                        ArrayList<String> matches = partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+                        if (listener != null && matches != null && !matches.isEmpty()) {
+                            listener.onPartialResults(matches.get(0));
+                        }
+                    }
+                    @Override
+                    public void onEvent(int eventType, Bundle params) { }
+                });
+                Log.d(TAG, "SpeechRecognizer initialized on main thread.");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to initialize SpeechRecognizer on main thread: " + e.getMessage(), e);
+                Toast.makeText(this.context, "Speech recognition engine failed to initialize.", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setLocale(Locale locale) {
+        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, locale.toLanguageTag());
+    }
+
+    @Override
+    public void startListening() {
+        if (speechRecognizer == null) {
+            Log.e(TAG, "SpeechRecognizer is null when trying to start listening.");
+            throw new IllegalStateException("Speech input is not ready.");
+        }
+        EventLog.record(EventLog.STT_START_LISTENING);
+        speechRecognizer.startListening(speechRecognizerIntent);
+    }
+
+    @Override
+    public void cancel() {
+        if (speechRecognizer != null) {
+            speechRecognizer.cancel();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (speechRecognizer != null) {
+            speechRecognizer.destroy();
+            speechRecognizer = null;
+            Log.d(TAG, "SpeechRecognizer destroyed");
+        }
+    }
+}
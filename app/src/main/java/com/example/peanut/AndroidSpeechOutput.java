@@ -0,0 +1,134 @@
+package com.example.peanut;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.Locale;
+
+/**
+ * {@link SpeechOutput} backed by the platform {@link TextToSpeech} engine.
+ */
+public class AndroidSpeechOutput implements SpeechOutput {
+
+    private static final String TAG = "AndroidSpeechOutput";
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final TextToSpeech textToSpeech;
+    private volatile boolean isTtsInitialized = false;
+    private volatile Locale locale = Locale.US;
+    private volatile Listener listener;
+
+    public AndroidSpeechOutput(Context context, Handler mainHandler) {
+        this.context = context.getApplicationContext();
+        this.mainHandler = mainHandler;
+        textToSpeech = new TextToSpeech(this.context, this::onInit);
+    }
+
+    private void onInit(int status) {
+        if (status == TextToSpeech.SUCCESS) {
+            int result = textToSpeech.setLanguage(locale);
+            if (result == TextToSpeech.LANG_MISSING_DATA || result == TextToSpeech.LANG_NOT_SUPPORTED) {
+                Log.e(TAG, "TTS Language not supported or data missing during init. Result: " + result);
+                showToast("Peanut's voice language not supported.");
+                isTtsInitialized = false;
+                Intent installIntent = new Intent();
+                installIntent.setAction(TextToSpeech.Engine.ACTION_INSTALL_TTS_DATA);
+                installIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                context.startActivity(installIntent);
+            } else {
+                Log.d(TAG, "TTS Initialized successfully. Language set result: " + result);
+                textToSpeech.setOnUtteranceProgressListener(new UtteranceProgressListener() {
+                    @Override
+                    public void onStart(String utteranceId) {
+                        Listener current = listener;
+                        if (current != null) current.onStart(utteranceId);
+                    }
+
+                    @Override
+                    public void onDone(String utteranceId) {
+                        Listener current = listener;
+                        if (current != null) current.onDone(utteranceId);
+                    }
+
+                    @Override
+                    public void onError(String utteranceId) {
+                        Listener current = listener;
+                        if (current != null) current.onError(utteranceId);
+                    }
+
+                    @Override
+                    public void onStop(String utteranceId, boolean interrupted) {
+                        EventLog.record(EventLog.TTS_STOP, 0, interrupted ? 1 : 0);
+                    }
+                });
+                isTtsInitialized = true;
+            }
+        } else {
+            Log.e(TAG, "TTS Initialization failed! Status: " + status);
+            showToast("Peanut's voice engine failed to initialize.");
+            isTtsInitialized = false;
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setLocale(Locale locale) {
+        this.locale = locale;
+        if (isTtsInitialized) {
+            int result = textToSpeech.setLanguage(locale);
+            if (result == TextToSpeech.LANG_MISSING_DATA || result == TextToSpeech.LANG_NOT_SUPPORTED) {
+                Log.e(TAG, "TTS language " + locale + " not supported or data missing. Result: " + result);
+                showToast("Peanut's voice is not available in this language.");
+            }
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return isTtsInitialized;
+    }
+
+    @Override
+    public void speak(String text, String utteranceId) {
+        if (textToSpeech.isSpeaking()) {
+            textToSpeech.stop();
+        }
+
+        int langAvailability = textToSpeech.isLanguageAvailable(locale);
+        if (langAvailability >= TextToSpeech.LANG_AVAILABLE) {
+            Bundle params = new Bundle();
+            params.putString(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+            textToSpeech.speak(text, TextToSpeech.QUEUE_FLUSH, params, utteranceId);
+        } else {
+            Log.e(TAG, "TTS language not available to speak (Availability code: " + langAvailability + ")");
+            showToast("Peanut cannot speak due to language issues.");
+        }
+    }
+
+    @Override
+    public void stop() {
+        textToSpeech.stop();
+    }
+
+    @Override
+    public void shutdown() {
+        textToSpeech.stop();
+        textToSpeech.shutdown();
+        Log.d(TAG, "TTS shut down");
+    }
+
+    private void showToast(String message) {
+        mainHandler.post(() -> Toast.makeText(context, message, Toast.LENGTH_SHORT).show());
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.peanut;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Feeds the microphone to a {@link WakeWordSpotter} on its own thread while Peanut is idle, and
+ * tells the listener on the main thread when it hears the wake word. Templates are WAV files in
+ * files/wakeword/, recorded with {@link #requestEnrollment()}.
+ *
+ * The recognizer and this source never hold the microphone together: the service stops spotting
+ * before it starts a conversation and starts again once the conversation is over.
+ */
+public class AndroidWakeWordSource {
+
+    private static final String TAG = "AndroidWakeWordSource";
+    private static final int READ_SAMPLES = 320;                                 // 20 ms per read
+    private static final int ENROLL_SAMPLES = WakeWordSpotter.SAMPLE_RATE * 3 / 2; // 1.5 s per template
+    private static final long JOIN_MILLIS = 500;
+
+    public interface Listener {
+        void onWakeWord();
+    }
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final Listener listener;
+    private final File dir;
+    private final WakeWordSpotter spotter = new WakeWordSpotter();
+
+    // Written on the main thread; read by describe() from dumpsys
+    private volatile Thread thread;
+    private AudioRecord record;
+
+    // Set by dumpsys, taken by the audio thread
+    private volatile boolean enrollRequested;
+
+    public AndroidWakeWordSource(Context context, Handler mainHandler, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.mainHandler = mainHandler;
+        this.listener = listener;
+        this.dir = new File(this.context.getFilesDir(), "wakeword");
+    }
+
+    /** Enrolls the saved templates. Runs on the io backend, before the first {@link #start()}. */
+    public void loadTemplates() {
+        PeanutExecutors.checkNotMainThread("Wake word template load");
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".wav"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try {
+                if (!spotter.addTemplate(WavFile.read(file, WakeWordSpotter.SAMPLE_RATE))) {
+                    Log.w(TAG, "Skipped wake word template " + file.getName());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unreadable wake word template " + file.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean hasTemplates() {
+        return spotter.templateCount() > 0;
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    // --- Lifecycle (main thread) ---
+
+    /** Opens the microphone and starts spotting; does nothing if already running or not allowed to record. */
+    public void start() {
+        if (thread != null) {
+            return;
+        }
+        if (context.checkSelfPermission(Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "No RECORD_AUDIO permission; wake word spotting is off.");
+            return;
+        }
+        int minBuffer = AudioRecord.getMinBufferSize(WakeWordSpotter.SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        try {
+            record = new AudioRecord(MediaRecorder.AudioSource.VOICE_RECOGNITION, WakeWordSpotter.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, Math.max(minBuffer, READ_SAMPLES * 2 * 8));
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Cannot open the microphone: " + e.getMessage(), e);
+            record = null;
+            return;
+        }
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "AudioRecord failed to initialize");
+            record.release();
+            record = null;
+            return;
+        }
+        AudioRecord recording = record;
+        thread = new Thread(() -> spot(recording), "peanut-wakeword");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        recording.startRecording();
+        thread.start();
+        Log.d(TAG, "Listening for the wake word with " + spotter.templateCount() + " templates");
+    }
+
+    /** Stops spotting and releases the microphone. */
+    public void stop() {
+        Thread running = thread;
+        if (running == null) {
+            return;
+        }
+        thread = null;
+        running.interrupt();
+        record.stop(); // Unblocks read()
+        try {
+            running.join(JOIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        record.release();
+        record = null;
+    }
+
+    /**
+     * Records 1.5 s as another template the next time this source has the microphone: right away
+     * if it is spotting, otherwise from the next {@link #start()}, which the caller makes once no
+     * conversation holds the microphone.
+     */
+    public void requestEnrollment() {
+        enrollRequested = true;
+    }
+
+    public boolean isEnrollmentPending() {
+        return enrollRequested;
+    }
+
+    // --- Audio Thread ---
+
+    private void spot(AudioRecord recording) {
+        Thread self = Thread.currentThread();
+        short[] buffer = new short[READ_SAMPLES];
+        short[] enrollment = null;
+        int enrolled = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            int read = recording.read(buffer, 0, buffer.length);
+            if (read <= 0) {
+                if (read < 0) {
+                    Log.e(TAG, "AudioRecord read failed: " + read);
+                }
+                break;
+            }
+            if (enrollRequested) {
+                if (enrollment == null) {
+                    enrollment = new short[ENROLL_SAMPLES];
+                    enrolled = 0;
+                }
+                int take = Math.min(read, ENROLL_SAMPLES - enrolled);
+                System.arraycopy(buffer, 0, enrollment, enrolled, take);
+                enrolled += take;
+                if (enrolled == ENROLL_SAMPLES) {
+                    enrollRequested = false;
+                    finishEnrollment(enrollment);
+                    enrollment = null;
+                }
+                continue;
+            }
+            if (spotter.process(buffer, 0, read)) {
+                mainHandler.post(() -> {
+                    if (thread != self) {
+                        return; // Stopped meanwhile: a conversation already has the microphone
+                    }
+                    stop(); // The recognizer needs the microphone
+                    listener.onWakeWord();
+                });
+                break;
+            }
+        }
+        // Ended on its own (the microphone was taken, the record died): let start() open it again
+        mainHandler.post(() -> {
+            if (thread != self) {
+                return; // stop() already released it
+            }
+            thread = null;
+            record.release();
+            record = null;
+        });
+    }
+
+    // Audio thread: the spotter is only touched here once running; the file is written on the io backend
+    private void finishEnrollment(short[] pcm) {
+        if (!spotter.addTemplate(pcm)) {
+            Log.w(TAG, "Enrollment rejected: no clear wake word in the recording, or " + WakeWordSpotter.MAX_TEMPLATES + " templates already");
+            return;
+        }
+        PeanutExecutors.io().execute(() -> {
+            try {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                WavFile.write(new File(dir, "template-" + System.currentTimeMillis() + ".wav"), pcm, WakeWordSpotter.SAMPLE_RATE);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save the wake word template: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    public String describe() {
+        return spotter.describe() + (thread != null ? " listening" : " idle") + (enrollRequested ? " enrolling" : "");
+    }
+}
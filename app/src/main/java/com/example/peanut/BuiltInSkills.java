@@ -0,0 +1,429 @@
+package com.example.peanut;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Peanut's built-in skills, ported from the old intent switch in {@link ConversationManager}.
+ * Registration order is routing priority and matches the order of the original regex checks.
+ */
+public final class BuiltInSkills {
+
+    private BuiltInSkills() {
+    }
+
+    // --- Default (English) Trigger Phrases ---
+    static final String[] RECALL_PHRASES = {"what did you tell me about", "what did you say about", "remind me what you said about",
+            "what did we say about", "what did i ask about", "what did we talk about"};
+    static final String[] GREETING_PHRASES = {"hello", "hi", "hey", "greetings", "good morning", "good afternoon", "good evening"};
+    static final String[] HOW_ARE_YOU_PHRASES = {"how are you", "how you doing", "how's it going"};
+    static final String[] NAME_INQUIRY_PHRASES = {"what is your name", "who are you", "your name", "what do you call yourself"};
+    static final String[] SET_NAME_PHRASES = {"my name is", "i am called", "you can call me", "i'm"};
+    static final String[] JOKE_PHRASES = {"tell me a joke", "joke please", "make me laugh", "tell a funny story"};
+    static final String[] GOODBYE_PHRASES = {"goodbye", "bye", "see you later", "farewell", "i'm leaving", "i'm done", "exit"};
+    static final String[] THANK_YOU_PHRASES = {"thank you", "thanks", "i appreciate it", "cheers"};
+    static final String[] TIME_PHRASES = {"what time is it", "current time", "time now", "do you know the time"};
+    static final String[] WEATHER_PHRASES = {"weather", "forecast", "how's the weather", "temperature"};
+    static final String[] AFFIRMATION_PHRASES = {"yes", "yeah", "yep", "okay", "sure", "alright", "fine"};
+    static final String[] NEGATION_PHRASES = {"no", "nope", "not really", "nah"};
+    static final String[] SMALL_TALK_PHRASES = {"okay", "alright", "right", "hmm", "what about", "tell me more", "interesting"};
+
+    public static SkillRegistry.Builder registerAll(SkillRegistry.Builder builder) {
+        return registerAll(builder, null);
+    }
+
+    /**
+     * Registers the built-in skills with the trigger phrases of a locale pack: a skill's
+     * {@code [phrases:<name>]} section when the pack has one, the English defaults otherwise.
+     */
+    public static SkillRegistry.Builder registerAll(SkillRegistry.Builder builder, ResponseBank pack) {
+        return registerAll(builder, pack, GeminiApiClient::generateTextFromInput);
+    }
+
+    /** Same, with the fallback skill asking {@code ai} instead of Gemini, e.g. a fake in soak tests. */
+    public static SkillRegistry.Builder registerAll(SkillRegistry.Builder builder, ResponseBank pack, GeminiOutbox.Sender ai) {
+        final String[] setNamePhrases = phrases(pack, "set_name", SET_NAME_PHRASES);
+        final String[] recallPhrases = phrases(pack, "recall", RECALL_PHRASES);
+        return builder
+                .registerWithArgument("recall", ConversationManager.Intent.RECALL,
+                        recallPhrases,
+                        () -> new RecallSkill(recallPhrases))
+                .register("greeting", ConversationManager.Intent.GREETING,
+                        phrases(pack, "greeting", GREETING_PHRASES),
+                        GreetingSkill::new)
+                .register("how_are_you", ConversationManager.Intent.HOW_ARE_YOU,
+                        phrases(pack, "how_are_you", HOW_ARE_YOU_PHRASES),
+                        () -> new ResponseSkill(ResponseBank.HOW_ARE_YOU, null))
+                .register("name_inquiry", ConversationManager.Intent.NAME_INQUIRY,
+                        phrases(pack, "name_inquiry", NAME_INQUIRY_PHRASES),
+                        NameInquirySkill::new)
+                .registerWithArgument("set_name", ConversationManager.Intent.SET_MY_NAME,
+                        setNamePhrases,
+                        () -> new SetNameSkill(setNamePhrases))
+                .register("joke", ConversationManager.Intent.TELL_JOKE,
+                        phrases(pack, "joke", JOKE_PHRASES),
+                        () -> new ResponseSkill(ResponseBank.JOKE, ResponseBank.JOKE_FOLLOWUP))
+                .register("goodbye", ConversationManager.Intent.GOODBYE,
+                        phrases(pack, "goodbye", GOODBYE_PHRASES),
+                        () -> new ResponseSkill(ResponseBank.GOODBYE, null))
+                .register("thank_you", ConversationManager.Intent.THANK_YOU,
+                        phrases(pack, "thank_you", THANK_YOU_PHRASES),
+                        () -> new ResponseSkill(ResponseBank.THANK_YOU, null))
+                .register("time", ConversationManager.Intent.WHAT_TIME,
+                        phrases(pack, "time", TIME_PHRASES),
+                        () -> new ResponseSkill(ResponseBank.TIME, null))
+                .register("weather", ConversationManager.Intent.GET_WEATHER,
+                        phrases(pack, "weather", WEATHER_PHRASES),
+                        WeatherSkill::new)
+                .register("affirmation", ConversationManager.Intent.AFFIRMATION,
+                        phrases(pack, "affirmation", AFFIRMATION_PHRASES),
+                        AffirmationSkill::new)
+                .register("negation", ConversationManager.Intent.NEGATION,
+                        phrases(pack, "negation", NEGATION_PHRASES),
+                        () -> new ResponseSkill(ResponseBank.NEGATION, ResponseBank.NEGATION_FOLLOWUP))
+                .register("small_talk", ConversationManager.Intent.SMALL_TALK,
+                        phrases(pack, "small_talk", SMALL_TALK_PHRASES),
+                        () -> new ResponseSkill(ResponseBank.SMALL_TALK, null))
+                .fallback("gemini", ConversationManager.Intent.UNKNOWN, () -> new GeminiSkill(ai));
+    }
+
+    public static SkillRegistry createRegistry() {
+        return registerAll(new SkillRegistry.Builder()).build();
+    }
+
+    public static SkillRegistry createRegistry(ResponseBank pack) {
+        return registerAll(new SkillRegistry.Builder(), pack).build();
+    }
+
+    private static String[] phrases(ResponseBank pack, String skillName, String[] defaults) {
+        if (pack == null) {
+            return defaults;
+        }
+        String[] localized = pack.lines(ResponseBank.PHRASES_PREFIX + skillName);
+        return localized.length > 0 ? localized : defaults;
+    }
+
+    // --- Skills ---
+
+    /** Renders a random line from one response bank section, optionally followed by a line from a follow-up section. */
+    static final class ResponseSkill implements Skill {
+        private final String section;
+        private final String followUpSection;
+
+        ResponseSkill(String section, String followUpSection) {
+            this.section = section;
+            this.followUpSection = followUpSection;
+        }
+
+        @Override
+        public void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                           ConversationManager.ExternalAiResponseCallback callback) {
+            conversation.render(section, result.text);
+            if (followUpSection != null) {
+                result.text.append(' ');
+                conversation.render(followUpSection, result.text);
+            }
+        }
+    }
+
+    static final class GreetingSkill implements Skill {
+        @Override
+        public void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                           ConversationManager.ExternalAiResponseCallback callback) {
+            conversation.render(ResponseBank.GREETING, result.text);
+            if (!conversation.hasAskedForName() && conversation.getUserName().equals("there")) {
+                result.text.append(' ');
+                conversation.render(ResponseBank.GREETING_ASK_NAME, result.text);
+                conversation.setAskedForName(true);
+            }
+        }
+    }
+
+    static final class NameInquirySkill implements Skill {
+        @Override
+        public void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                           ConversationManager.ExternalAiResponseCallback callback) {
+            conversation.render(ResponseBank.NAME_INQUIRY, result.text);
+            conversation.setAskedForName(true);
+        }
+    }
+
+    static final class SetNameSkill implements Skill {
+        private final Matcher matcher;
+
+        // The name is the word right after whichever trigger phrase of the active locale matched
+        SetNameSkill(String[] triggerPhrases) {
+            StringBuilder alternatives = new StringBuilder();
+            for (String phrase : triggerPhrases) {
+                if (alternatives.length() > 0) {
+                    alternatives.append('|');
+                }
+                alternatives.append(Pattern.quote(phrase.toLowerCase(Locale.US)));
+            }
+            matcher = Pattern.compile("(?<![\\p{L}'])(?:" + alternatives + ")\\s+(\\p{L}+)").matcher("");
+        }
+
+        @Override
+        public void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                           ConversationManager.ExternalAiResponseCallback callback) {
+            if (matcher.reset(input).find()) {
+                String name = input.subSequence(matcher.start(1), matcher.end(1)).toString();
+                conversation.setUserName(name);
+                EventLog.record(EventLog.NAME_EXTRACTED, name.length());
+            }
+            conversation.render(ResponseBank.SET_NAME, result.text);
+            conversation.setAskedForName(true);
+        }
+    }
+
+    /**
+     * Answers "what did you tell me about X" from the conversation history instead of asking Gemini, which has no memory.
+     * The history lives on disk, so the search runs on the io backend and the answer comes back like a remote one.
+     */
+    static final class RecallSkill implements Skill {
+        static final int MAX_ANSWER_CHARS = 300;
+        private static final int MAX_HITS = 4;
+        private final Pattern pattern;
+        private final Matcher matcher; // Main thread only; the io backend matches with its own
+
+        // The topic is everything after whichever trigger phrase of the active locale matched
+        RecallSkill(String[] triggerPhrases) {
+            StringBuilder alternatives = new StringBuilder();
+            for (String phrase : triggerPhrases) {
+                if (alternatives.length() > 0) {
+                    alternatives.append('|');
+                }
+                alternatives.append(Pattern.quote(phrase.toLowerCase(Locale.US)));
+            }
+            pattern = Pattern.compile("(?<![\\p{L}'])(?:" + alternatives + ")\\s+(.+)");
+            matcher = pattern.matcher("");
+        }
+
+        @Override
+        public void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                           ConversationManager.ExternalAiResponseCallback callback) {
+            ConversationHistory history = conversation.history();
+            if (history == null || !matcher.reset(input).find()) {
+                conversation.render(ResponseBank.RECALL_NONE, result.text);
+                return;
+            }
+            String topic = input.subSequence(matcher.start(1), matcher.end(1)).toString();
+            // Rendered here: the response bank's random choice is not shared with other threads
+            StringBuilder found = new StringBuilder();
+            conversation.render(ResponseBank.RECALL_FOUND, found);
+            StringBuilder none = new StringBuilder();
+            conversation.render(ResponseBank.RECALL_NONE, none);
+            try {
+                PeanutExecutors.io().execute(() -> {
+                    String response = recall(history, topic, found, none.toString());
+                    conversation.onTurnThread(() -> {
+                        conversation.recordAsyncResponse(response);
+                        callback.onResponseReady(response, false);
+                    });
+                });
+                result.awaitingAsync = true; // Nothing to say until the search answers
+            } catch (RejectedExecutionException e) {
+                result.text.append(none);
+            }
+        }
+
+        // io backend
+        private String recall(ConversationHistory history, String topic, StringBuilder found, String none) {
+            List<ConversationHistory.Hit> hits = history.search(topic, MAX_HITS);
+            EventLog.record(EventLog.HISTORY_RECALL, hits.size(), topic.length());
+            Matcher earlierRecall = pattern.matcher("");
+            for (ConversationHistory.Hit hit : hits) {
+                if (earlierRecall.reset(hit.userText.toLowerCase(Locale.US)).find()) {
+                    continue; // An earlier recall; quoting it would nest "Earlier I told you"
+                }
+                String answer = hit.responseText;
+                return found.append(' ').append(answer, 0, Math.min(answer.length(), MAX_ANSWER_CHARS)).toString();
+            }
+            return none;
+        }
+    }
+
+    static final class AffirmationSkill implements Skill {
+        @Override
+        public void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                           ConversationManager.ExternalAiResponseCallback callback) {
+            conversation.render(ResponseBank.AFFIRMATION, result.text);
+            result.text.append(' ');
+            conversation.render(conversation.lastIntent == ConversationManager.Intent.TELL_JOKE
+                    ? ResponseBank.AFFIRMATION_AFTER_JOKE : ResponseBank.AFFIRMATION_FOLLOWUP, result.text);
+        }
+    }
+
+    /** Fetches (simulated) weather asynchronously, asking for the city first if none was given. */
+    static final class WeatherSkill implements Skill {
+        private static final Pattern LOCATION_PATTERN = Pattern.compile("weather (in|for|of|at)\\s+([a-zA-Z\\s]+)|([a-zA-Z\\s]+) weather");
+        // "what's the weather in london" also contains "s the weather"; the explicit form wins
+        private static final Pattern LOCATION_AFTER_PATTERN = Pattern.compile("weather (in|for|of|at)\\s+([a-zA-Z\\s]+)");
+        private final Matcher matcher = LOCATION_PATTERN.matcher("");
+        private final Matcher afterMatcher = LOCATION_AFTER_PATTERN.matcher("");
+
+        @Override
+        public void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                           ConversationManager.ExternalAiResponseCallback callback) {
+            String location = conversation.entities.get("location"); // Set when answering a clarification
+            if (location == null) {
+                location = extractLocation(conversation, input);
+            }
+            if (location != null && !location.isEmpty()) {
+                conversation.rememberLocation(location);
+                conversation.render(ResponseBank.WEATHER_FETCHING, result.text);
+                result.text.append(' ').append(location).append('.');
+                result.awaitingAsync = true;
+                fetchWeather(location, new WeatherCallback() {
+                    @Override
+                    public void onWeatherResult(String weatherInfo) {
+                        conversation.onTurnThread(() -> {
+                            conversation.recordAsyncResponse(weatherInfo);
+                            callback.onResponseReady(weatherInfo, false);
+                        });
+                    }
+
+                    @Override
+                    public void onWeatherError(String errorMessage) {
+                        String response = errorMessage + " Is there anything else I can help with?";
+                        conversation.onTurnThread(() -> {
+                            conversation.recordAsyncResponse(response);
+                            callback.onResponseReady(response, false);
+                        });
+                    }
+                });
+            } else {
+                conversation.render(ResponseBank.WEATHER_LOCATION_PROMPT, result.text);
+                conversation.setAwaitingClarification(true);
+                result.intent = ConversationManager.Intent.GET_WEATHER_CLARIFICATION;
+            }
+        }
+
+        private String extractLocation(ConversationManager conversation, CharSequence input) {
+            Matcher found = afterMatcher.reset(input).find() ? afterMatcher : matcher;
+            if (found == matcher && !matcher.reset(input).find()) {
+                return null;
+            }
+            int group = found.start(2) >= 0 ? 2 : 3;
+            if (found.start(group) < 0) {
+                return null;
+            }
+            String location = input.subSequence(found.start(group), found.end(group)).toString().trim();
+            conversation.entities.put("location", location);
+            EventLog.record(EventLog.LOCATION_EXTRACTED, location.length());
+            return location;
+        }
+    }
+
+    public interface WeatherCallback {
+        void onWeatherResult(String weatherInfo);
+        void onWeatherError(String errorMessage);
+    }
+
+    static final long SIMULATED_WEATHER_LATENCY_MILLIS = 1500;
+
+    // Answers on the weather backend after a simulated network delay; a full backend answers "busy" right away
+    public static void fetchWeather(String location, WeatherCallback callback) {
+        EventLog.record(EventLog.WEATHER_FETCH, location.length());
+        try {
+            PeanutExecutors.weather().schedule(() -> lookUpWeather(location, callback), SIMULATED_WEATHER_LATENCY_MILLIS);
+        } catch (RejectedExecutionException e) {
+            EventLog.record(EventLog.WEATHER_RESULT, 0);
+            callback.onWeatherError("I'm still checking another forecast. Please ask me again in a moment.");
+        }
+    }
+
+    private static void lookUpWeather(String location, WeatherCallback callback) {
+        if (location.toLowerCase(Locale.US).contains("maseru")) {
+            EventLog.record(EventLog.WEATHER_RESULT, 1);
+            callback.onWeatherResult("The weather in Maseru is currently clear with a temperature of 10 degrees Celsius. Perfect for a cool evening!");
+        } else if (location.toLowerCase(Locale.US).contains("london")) {
+            EventLog.record(EventLog.WEATHER_RESULT, 1);
+            callback.onWeatherResult("The weather in London is cloudy with a temperature of 15 degrees Celsius. Don't forget your umbrella!");
+        } else if (location.toLowerCase(Locale.US).contains("new york")) {
+            EventLog.record(EventLog.WEATHER_RESULT, 1);
+            callback.onWeatherResult("The weather in New York is partly cloudy with a temperature of 22 degrees Celsius. A pleasant day!");
+        }
+        else {
+            EventLog.record(EventLog.WEATHER_RESULT, 0);
+            callback.onWeatherError("I couldn't find the weather for " + location + ". My apologies!");
+        }
+    }
+
+    /** Delegates anything no other skill claimed to Gemini. */
+    static final class GeminiSkill implements Skill {
+        private static final int CONTEXT_CHARS = 500; // Of the earlier answer sent along as context
+        private final GeminiOutbox.Sender ai;
+
+        GeminiSkill(GeminiOutbox.Sender ai) {
+            this.ai = ai;
+        }
+
+        @Override
+        public void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                           ConversationManager.ExternalAiResponseCallback callback) {
+            conversation.render(ResponseBank.THINKING, result.text); // Immediate response while Gemini processes
+            result.intent = ConversationManager.Intent.EXTERNAL_AI_QUERY;
+            result.awaitingAsync = true;
+            // Set before the call so a fast callback's follow-up state is not overwritten afterwards
+            conversation.lastIntent = ConversationManager.Intent.EXTERNAL_AI_QUERY;
+            GeminiApiClient.GeminiResponseCallback answered = new GeminiApiClient.GeminiResponseCallback() {
+                @Override
+                public void onGeminiResponse(String response, boolean cached) {
+                    conversation.onTurnThread(() -> {
+                        // After Gemini responds, go back to small talk unless a specific follow-up is needed
+                        conversation.lastIntent = ConversationManager.Intent.SMALL_TALK;
+                        conversation.recordAsyncResponse(response);
+                        callback.onResponseReady(response, cached);
+                    });
+                }
+
+                @Override
+                public void onGeminiError(String error) {
+                    conversation.onTurnThread(() -> {
+                        conversation.lastIntent = ConversationManager.Intent.UNKNOWN; // Remain in UNKNOWN state
+                        conversation.recordAsyncResponse(error);
+                        callback.onResponseReady(error, false);
+                    });
+                }
+
+                @Override
+                public void onQueuedOffline() {
+                    conversation.onTurnThread(() -> {
+                        StringBuilder offline = new StringBuilder();
+                        conversation.render(ResponseBank.OFFLINE, offline);
+                        String response = offline.toString();
+                        conversation.lastIntent = ConversationManager.Intent.SMALL_TALK;
+                        conversation.recordAsyncResponse(response);
+                        callback.onResponseReady(response, false);
+                    });
+                }
+            };
+            String prompt = input.toString();
+            ConversationHistory history = conversation.history();
+            if (history == null) {
+                sendFromTurn(prompt, answered);
+                return;
+            }
+            // Gemini has no memory across requests; give it the newest earlier answer on the same words.
+            // The lookup reads the history from disk, so it runs on the io backend.
+            try {
+                PeanutExecutors.io().execute(() -> ai.send(prompt, history.contextFor(prompt, CONTEXT_CHARS), answered));
+            } catch (RejectedExecutionException e) {
+                sendFromTurn(prompt, answered);
+            }
+        }
+
+        // A cached or offline answer is handed to the gemini backend, which rejects rather than run it inside the turn
+        private void sendFromTurn(String prompt, GeminiApiClient.GeminiResponseCallback answered) {
+            try {
+                ai.send(prompt, null, answered);
+            } catch (RejectedExecutionException e) {
+                answered.onGeminiError(GeminiApiClient.BUSY_RESPONSE);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.peanut;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the answers to the clauses of one compound utterance and hands them out in speaking
+ * order: every local answer at once (in clause order, followed by the first remote clause's
+ * "fetching..." line), then each remote answer in clause order as soon as it and the remote answers
+ * before it have arrived. A goodbye clause is held back and said last.
+ *
+ * Remote clauses (weather, Gemini) run concurrently, so the whole turn takes as long as its slowest
+ * clause. Used on the main thread only.
+ */
+final class CompoundTurn {
+
+    private final String[] answers;
+    private final String[] interims;   // Immediate text of remote clauses
+    private final boolean[] remote;
+    private final boolean[] resolved;
+    private final ConversationManager.Intent[] intents;
+    private String goodbye;
+    private boolean localsDrained;
+    private int nextRemote;            // Next clause whose remote answer may be spoken
+
+    CompoundTurn(int clauses) {
+        answers = new String[clauses];
+        interims = new String[clauses];
+        remote = new boolean[clauses];
+        resolved = new boolean[clauses];
+        intents = new ConversationManager.Intent[clauses];
+    }
+
+    void local(int clause, ConversationManager.Intent intent, String answer) {
+        intents[clause] = intent;
+        answers[clause] = answer;
+        resolved[clause] = true;
+    }
+
+    void goodbye(int clause, String answer) {
+        intents[clause] = ConversationManager.Intent.GOODBYE;
+        resolved[clause] = true;
+        goodbye = answer;
+    }
+
+    /** The clause's answer arrives later through {@link #resolve}. */
+    void pending(int clause, ConversationManager.Intent intent, String interim) {
+        intents[clause] = intent;
+        interims[clause] = interim;
+        remote[clause] = true;
+    }
+
+    void resolve(int clause, String answer) {
+        answers[clause] = answer;
+        resolved[clause] = true;
+    }
+
+    /** The answers that can be spoken now, in order; each is returned once. */
+    List<String> drainReady() {
+        List<String> ready = new ArrayList<>(2);
+        if (!localsDrained) {
+            localsDrained = true;
+            StringBuilder first = new StringBuilder();
+            String interim = null;
+            for (int i = 0; i < answers.length; i++) {
+                if (remote[i]) {
+                    if (interim == null) {
+                        interim = interims[i];
+                    }
+                } else if (answers[i] != null && !answers[i].isEmpty()) {
+                    append(first, answers[i]);
+                }
+            }
+            if (interim != null && !interim.isEmpty() && !isRemoteReady(0)) {
+                append(first, interim); // Only worth saying while something is still on its way
+            }
+            if (first.length() > 0) {
+                ready.add(first.toString());
+            }
+        }
+        while (nextRemote < answers.length) {
+            if (!remote[nextRemote]) {
+                nextRemote++;
+            } else if (resolved[nextRemote]) {
+                ready.add(answers[nextRemote]);
+                nextRemote++;
+            } else {
+                break;
+            }
+        }
+        return ready;
+    }
+
+    // True when every remote clause from the given index on has already answered
+    private boolean isRemoteReady(int from) {
+        for (int i = from; i < answers.length; i++) {
+            if (remote[i] && !resolved[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** All answers have been handed out; only the goodbye, if any, is left. */
+    boolean isComplete() {
+        return localsDrained && nextRemote == answers.length;
+    }
+
+    /** The goodbye to end on, or null. */
+    String goodbye() {
+        return goodbye;
+    }
+
+    ConversationManager.Intent intentOf(int clause) {
+        return intents[clause];
+    }
+
+    private static void append(StringBuilder out, String text) {
+        if (out.length() > 0) {
+            out.append(' ');
+        }
+        out.append(text);
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.peanut;
+
+/**
+ * Where Peanut learns whether the network is usable. {@link AndroidConnectivitySource} is the
+ * device implementation; tests flip a fake.
+ */
+public interface ConnectivitySource {
+
+    interface Listener {
+        void onConnectivityChanged(boolean online);
+    }
+
+    boolean isOnline();
+
+    void setListener(Listener listener);
+
+    void close();
+}
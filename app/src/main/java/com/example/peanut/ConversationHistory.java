@@ -0,0 +1,771 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Every turn Peanut has had, kept on disk and searchable by words, so "what did you tell me about
+ * black holes?" can be answered locally and earlier answers can be given to Gemini as context.
+ *
+ * Turns are appended to {@code history.dat}, a memory-mapped file: header {@code [int magic "PNH1"]}
+ * followed by records {@code [int length][payload][int crc32]} and a zero length after the last one.
+ * An async answer (Gemini, weather) is stored with the question it answered. Each record carries a
+ * 128-bit signature of its trigrams so a search can skip most non-matching turns without decoding them.
+ *
+ * The index maps word trigrams to the blocks of turns containing them, one bit per block in a
+ * 64-bit mask. New turns go into an in-memory segment of {@link #BLOCKS} blocks of
+ * {@link #TURNS_PER_BLOCK} turns; when it is full it is written to {@code history-<id>.idx} and
+ * {@link #FANOUT} segments of the same level are merged into one of the next level with each block
+ * covering four times as many turns. Every segment has at most one mask per distinct trigram and
+ * each level holds fewer than {@link #FANOUT} segments, so the index grows with the vocabulary and
+ * the logarithm of the turns, not with the turns. Recent turns are located precisely; older ones in
+ * coarser blocks whose records are then checked against the query, by signature first.
+ *
+ * Appends and the skills' searches run on the io backend: a search reads mapped memory, which may
+ * fault pages in from disk, so it is kept off the main thread like the writes.
+ */
+public class ConversationHistory {
+
+    private static final String TAG = "ConversationHistory";
+
+    static final String DATA_FILE = "history.dat";
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int DATA_MAGIC = 0x504E4831;    // "PNH1"
+    private static final int SEGMENT_MAGIC = 0x504E4931; // "PNI1"
+    private static final int HEADER_BYTES = 4;
+    private static final int INITIAL_CAPACITY = 1 << 20;
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final int MAX_TEXT_CHARS = 4000;      // Same clip as the journal
+    private static final byte FLAG_FOLLOW_UP = 1;
+    private static final int SIGNATURE_OFFSET = 4 + 8 + 1; // Of the signature's two longs in a record
+
+    static final int BLOCKS = 64;         // Blocks per segment, one bit each in a trigram's mask
+    static final int TURNS_PER_BLOCK = 8; // At level 0; each level multiplies it by FANOUT
+    static final int FANOUT = 4;          // Segments of one level merged into one of the next
+
+    // Words too common to narrow a search
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "the", "of", "to", "in", "on", "at", "for", "and", "or", "is", "are", "was", "were",
+            "it", "its", "that", "this", "me", "my", "you", "your", "i", "we", "about", "what", "how", "did", "do"));
+
+    /** One matching turn. */
+    public static final class Hit {
+        public final long timestampMillis;
+        public final String userText;     // For a follow-up, the question it answered
+        public final String responseText;
+        public final boolean followUp;    // An async answer (Gemini, weather) rather than the immediate reply
+
+        Hit(long timestampMillis, String userText, String responseText, boolean followUp) {
+            this.timestampMillis = timestampMillis;
+            this.userText = userText;
+            this.responseText = responseText;
+            this.followUp = followUp;
+        }
+    }
+
+    // An immutable index segment covering the records in [from, to)
+    static final class Segment {
+        final long id;
+        final int level;
+        final long from;
+        final long to;
+        final long[] blockStarts; // BLOCKS entries
+        final int[] terms;        // Sorted trigrams
+        final long[] masks;       // Block mask per term
+
+        Segment(long id, int level, long from, long to, long[] blockStarts, int[] terms, long[] masks) {
+            this.id = id;
+            this.level = level;
+            this.from = from;
+            this.to = to;
+            this.blockStarts = blockStarts;
+            this.terms = terms;
+            this.masks = masks;
+        }
+
+        long mask(int term) {
+            int i = Arrays.binarySearch(terms, term);
+            return i >= 0 ? masks[i] : 0;
+        }
+
+        long blockEnd(int block) {
+            return block + 1 < BLOCKS ? blockStarts[block + 1] : to;
+        }
+    }
+
+    private final File directory;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long end;                 // Offset of the zero length after the last record
+
+    // The segment being filled
+    private long activeFrom;
+    private final long[] activeBlockStarts = new long[BLOCKS];
+    private int activeBlocks;
+    private int turnsInBlock;
+    private final Map<Integer, long[]> activeMasks = new HashMap<>();
+
+    private final List<Segment> segments = new ArrayList<>(); // Oldest first
+    private long nextSegmentId;
+    private String lastQuestion = "";
+
+    // Scratch, guarded by this
+    private final StringBuilder normalized = new StringBuilder(256);
+    private final CRC32 crc = new CRC32();
+    private final long[] signature = new long[2];
+    private byte[] scratch = new byte[1024];
+
+    // Stats, guarded by this
+    private long turns;
+    private long merges;
+    private long searches;
+    private final LatencySketch searchMicros = new LatencySketch();
+
+    public ConversationHistory(File directory) {
+        this.directory = directory;
+    }
+
+    // --- Opening ---
+
+    /** Maps the history and loads or rebuilds its index. Blocks; never call on the main thread. */
+    public synchronized void open() throws IOException {
+        PeanutExecutors.checkNotMainThread("History open");
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        file = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+        channel = file.getChannel();
+        long length = file.length();
+        remap(Math.max(INITIAL_CAPACITY, length));
+        if (length < HEADER_BYTES || map.getInt(0) != DATA_MAGIC) {
+            if (length > 0) {
+                Log.w(TAG, "Starting a new history; the old one is unreadable.");
+            }
+            map.putInt(0, DATA_MAGIC);
+            map.putInt(HEADER_BYTES, 0);
+            end = HEADER_BYTES;
+        } else {
+            end = scanEnd();
+        }
+        loadSegments();
+        // Index whatever the segments do not cover yet
+        startActive(segments.isEmpty() ? HEADER_BYTES : segments.get(segments.size() - 1).to);
+        long reindexed = 0;
+        for (long at = activeFrom; at < end; at = nextRecord(at)) {
+            indexRecord(at);
+            reindexed++;
+        }
+        Log.d(TAG, "History opened: " + end + " bytes, " + segments.size() + " segments, " + reindexed + " turns reindexed.");
+    }
+
+    private void remap(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("History is full");
+        }
+        file.setLength(capacity);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // Walks the records and returns where the intact ones end
+    private long scanEnd() {
+        long at = HEADER_BYTES;
+        while (true) {
+            int length = recordLength(at);
+            if (length <= 0 || crcOf(at + 4, length) != map.getInt((int) (at + 4 + length))) {
+                return at;
+            }
+            at += 8 + length;
+        }
+    }
+
+    private int recordLength(long at) {
+        if (at + 4 > map.capacity()) {
+            return 0;
+        }
+        int length = map.getInt((int) at);
+        return length > 0 && length <= MAX_RECORD_BYTES && at + 8 + length <= map.capacity() ? length : 0;
+    }
+
+    private long nextRecord(long at) {
+        return at + 8 + map.getInt((int) at);
+    }
+
+    private void loadSegments() {
+        List<Segment> found = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        for (File f : files != null ? files : new File[0]) {
+            try {
+                found.add(readSegment(f));
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Dropping unreadable index segment " + f.getName() + ": " + e.getMessage());
+                f.delete();
+            }
+        }
+        // A merge that died before deleting its sources leaves them overlapping the merged segment
+        Collections.sort(found, (a, b) -> a.from != b.from ? Long.compare(a.from, b.from) : Long.compare(b.to, a.to));
+        long expected = HEADER_BYTES;
+        for (Segment segment : found) {
+            nextSegmentId = Math.max(nextSegmentId, segment.id + 1);
+            if (segment.from == expected && segment.to <= end) {
+                segments.add(segment);
+                expected = segment.to;
+            } else {
+                segmentFile(segment.id).delete(); // Covered by a merged segment, or past the intact data
+            }
+        }
+    }
+
+    // --- Appending ---
+
+    /** Queues {@code turn} for the io backend. */
+    public void append(ConversationTurn turn) {
+        try {
+            PeanutExecutors.io().execute(() -> write(turn));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "io backend full; turn not added to history.");
+        }
+    }
+
+    synchronized void write(ConversationTurn turn) {
+        PeanutExecutors.checkNotMainThread("History append");
+        if (map == null) {
+            return; // Not open, or closed
+        }
+        boolean followUp = turn.isAsyncFollowUp();
+        String user = followUp ? lastQuestion : clip(turn.userText);
+        if (!followUp) {
+            lastQuestion = user;
+        }
+        byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+        String response = clip(turn.responseText);
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 1 + 16 + 4 + userBytes.length + 4 + responseBytes.length;
+        try {
+            if (end + 8 + length + 4 > map.capacity()) {
+                long capacity = map.capacity();
+                while (end + 8 + length + 4 > capacity) {
+                    capacity *= 2;
+                }
+                remap(capacity);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot grow history: " + e.getMessage(), e);
+            return;
+        }
+        ByteBuffer out = map.duplicate();
+        out.position((int) end + 4);
+        out.putLong(turn.timestampMillis);
+        out.put(followUp ? FLAG_FOLLOW_UP : 0);
+        normalize(user + ' ' + response, normalized);
+        signature(normalized, signature);
+        out.putLong(signature[0]);
+        out.putLong(signature[1]);
+        out.putInt(userBytes.length);
+        out.put(userBytes);
+        out.putInt(responseBytes.length);
+        out.put(responseBytes);
+        out.putInt(crcOf(end + 4, length));
+        out.putInt(0); // End marker
+        map.putInt((int) end, length);
+        long at = end;
+        end += 8 + length;
+        indexRecord(at);
+    }
+
+    private static String clip(String text) {
+        return text.length() > MAX_TEXT_CHARS ? text.substring(0, MAX_TEXT_CHARS) : text;
+    }
+
+    // --- Indexing ---
+
+    private void startActive(long from) {
+        activeFrom = from;
+        activeBlocks = 0;
+        turnsInBlock = 0;
+        activeMasks.clear();
+    }
+
+    private void indexRecord(long at) {
+        if (activeBlocks == 0 || turnsInBlock == TURNS_PER_BLOCK) {
+            if (activeBlocks == BLOCKS) {
+                seal(at);
+            }
+            activeBlockStarts[activeBlocks++] = at;
+            turnsInBlock = 0;
+        }
+        turnsInBlock++;
+        turns++;
+        long bit = 1L << (activeBlocks - 1);
+        normalize(textOf(at), normalized);
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            if (!isTrigram(normalized, i)) {
+                continue;
+            }
+            int term = trigram(normalized, i);
+            long[] mask = activeMasks.get(term);
+            if (mask == null) {
+                activeMasks.put(term, new long[] {bit});
+            } else {
+                mask[0] |= bit;
+            }
+        }
+    }
+
+    // Freezes the active segment, which ends where the record at {@code to} starts
+    private void seal(long to) {
+        int[] terms = new int[activeMasks.size()];
+        int n = 0;
+        for (Integer term : activeMasks.keySet()) {
+            terms[n++] = term;
+        }
+        Arrays.sort(terms);
+        long[] masks = new long[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            masks[i] = activeMasks.get(terms[i])[0];
+        }
+        Segment segment = new Segment(nextSegmentId++, 0, activeFrom, to, activeBlockStarts.clone(), terms, masks);
+        writeSegment(segment);
+        segments.add(segment);
+        startActive(to);
+        while (segments.size() >= FANOUT) {
+            int first = segments.size() - FANOUT;
+            int level = segments.get(first).level;
+            for (int i = first + 1; i < segments.size(); i++) {
+                if (segments.get(i).level != level) {
+                    return;
+                }
+            }
+            List<Segment> sources = new ArrayList<>(segments.subList(first, segments.size()));
+            Segment merged = merge(sources);
+            writeSegment(merged);
+            segments.subList(first, segments.size()).clear();
+            segments.add(merged);
+            for (Segment source : sources) {
+                segmentFile(source.id).delete();
+            }
+            merges++;
+        }
+    }
+
+    // FANOUT consecutive segments of one level into one of the next; each new block spans FANOUT old ones
+    private Segment merge(List<Segment> sources) {
+        int perSource = BLOCKS / FANOUT;
+        long[] blockStarts = new long[BLOCKS];
+        Map<Integer, long[]> merged = new HashMap<>();
+        for (int k = 0; k < FANOUT; k++) {
+            Segment source = sources.get(k);
+            for (int b = 0; b < perSource; b++) {
+                blockStarts[k * perSource + b] = source.blockStarts[b * FANOUT];
+            }
+            for (int i = 0; i < source.terms.length; i++) {
+                long folded = fold(source.masks[i]) << (k * perSource);
+                long[] mask = merged.get(source.terms[i]);
+                if (mask == null) {
+                    merged.put(source.terms[i], new long[] {folded});
+                } else {
+                    mask[0] |= folded;
+                }
+            }
+        }
+        int[] terms = new int[merged.size()];
+        int n = 0;
+        for (Integer term : merged.keySet()) {
+            terms[n++] = term;
+        }
+        Arrays.sort(terms);
+        long[] masks = new long[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            masks[i] = merged.get(terms[i])[0];
+        }
+        Segment first = sources.get(0);
+        return new Segment(nextSegmentId++, first.level + 1, first.from, sources.get(FANOUT - 1).to, blockStarts, terms, masks);
+    }
+
+    // One bit per group of FANOUT bits
+    private static long fold(long mask) {
+        long folded = 0;
+        for (int group = 0; group < BLOCKS / FANOUT; group++) {
+            if ((mask >>> (group * FANOUT) & ((1L << FANOUT) - 1)) != 0) {
+                folded |= 1L << group;
+            }
+        }
+        return folded;
+    }
+
+    // --- Segment Files ---
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format(Locale.ROOT, "%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private void writeSegment(Segment segment) {
+        EventLog.record(EventLog.HISTORY_SEGMENT, segment.level, segment.terms.length);
+        File target = segmentFile(segment.id);
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + segment.terms.length * 6);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(segment.level);
+            out.writeLong(segment.from);
+            out.writeLong(segment.to);
+            long previous = segment.from;
+            for (long start : segment.blockStarts) {
+                LatencySketch.writeVarint(out, start - previous);
+                previous = start;
+            }
+            LatencySketch.writeVarint(out, segment.terms.length);
+            long previousTerm = Integer.MIN_VALUE;
+            for (int i = 0; i < segment.terms.length; i++) {
+                LatencySketch.writeVarint(out, segment.terms[i] - previousTerm);
+                LatencySketch.writeVarint(out, segment.masks[i]);
+                previousTerm = segment.terms[i];
+            }
+            byte[] body = bytes.toByteArray();
+            CRC32 check = new CRC32();
+            check.update(body, 0, body.length);
+            try (FileOutputStream fos = new FileOutputStream(temp)) {
+                DataOutputStream file = new DataOutputStream(fos);
+                file.write(body);
+                file.writeInt((int) check.getValue());
+                file.flush();
+                fos.getFD().sync();
+            }
+            map.force(); // The records a segment points at are on disk before the segment is
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            // The segment still serves searches from memory; it is rebuilt from the records on the next open
+            Log.e(TAG, "Could not write index segment: " + e.getMessage(), e);
+        }
+    }
+
+    private Segment readSegment(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            in.readFully(bytes);
+        }
+        CRC32 check = new CRC32();
+        check.update(bytes, 0, bytes.length - 4);
+        if (bytes.length < 28 || ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt() != (int) check.getValue()) {
+            throw new IOException("bad checksum");
+        }
+        DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (in.readInt() != SEGMENT_MAGIC) {
+            throw new IOException("bad magic");
+        }
+        String name = f.getName();
+        long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        int level = in.readInt();
+        long from = in.readLong();
+        long to = in.readLong();
+        long[] blockStarts = new long[BLOCKS];
+        long previous = from;
+        for (int b = 0; b < BLOCKS; b++) {
+            previous += LatencySketch.readVarint(in);
+            blockStarts[b] = previous;
+        }
+        int count = (int) LatencySketch.readVarint(in);
+        int[] terms = new int[count];
+        long[] masks = new long[count];
+        long term = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            term += LatencySketch.readVarint(in);
+            terms[i] = (int) term;
+            masks[i] = LatencySketch.readVarint(in);
+        }
+        return new Segment(id, level, from, to, blockStarts, terms, masks);
+    }
+
+    // --- Searching ---
+
+    /**
+     * The newest turns (at most {@code limit}) whose question or answer contains every content word
+     * of {@code query} at a word start ("hole" finds "holes"). A question answered asynchronously is
+     * returned once, with its answer. Empty when the query has no content words.
+     */
+    public List<Hit> search(CharSequence query, int limit) {
+        return search(query, limit, false);
+    }
+
+    /** Same, only returning async answers (Gemini, weather). */
+    public synchronized List<Hit> search(CharSequence query, int limit, boolean followUpsOnly) {
+        PeanutExecutors.checkNotMainThread("History search");
+        List<Hit> hits = new ArrayList<>(limit);
+        if (map == null) {
+            return hits;
+        }
+        List<String> words = contentWords(query);
+        if (!words.isEmpty()) {
+            searchWords(words, limit, followUpsOnly, hits);
+        }
+        return hits;
+    }
+
+    private void searchWords(List<String> words, int limit, boolean followUpsOnly, List<Hit> hits) {
+        long start = System.nanoTime();
+        int[] terms = queryTrigrams(words);
+        long[] wanted = new long[2];
+        for (int term : terms) {
+            wanted[signatureBit(term) >>> 6] |= 1L << signatureBit(term);
+        }
+        Set<String> answered = new HashSet<>();
+        // The segment being filled holds the newest turns
+        long mask = -1L;
+        for (int term : terms) {
+            long[] m = activeMasks.get(term);
+            mask &= m != null ? m[0] : 0;
+        }
+        for (int b = activeBlocks - 1; b >= 0 && hits.size() < limit; b--) {
+            if ((mask & (1L << b)) != 0) {
+                verifyBlock(activeBlockStarts[b], b + 1 < activeBlocks ? activeBlockStarts[b + 1] : end,
+                        words, wanted, followUpsOnly, answered, hits, limit);
+            }
+        }
+        for (int s = segments.size() - 1; s >= 0 && hits.size() < limit; s--) {
+            Segment segment = segments.get(s);
+            mask = -1L;
+            for (int term : terms) {
+                mask &= segment.mask(term);
+            }
+            for (int b = BLOCKS - 1; b >= 0 && mask != 0 && hits.size() < limit; b--) {
+                if ((mask & (1L << b)) != 0) {
+                    verifyBlock(segment.blockStarts[b], segment.blockEnd(b), words, wanted, followUpsOnly, answered, hits, limit);
+                }
+            }
+        }
+        searches++;
+        searchMicros.record((System.nanoTime() - start) / 1000L);
+    }
+
+    // Checks the records of one block, newest first
+    private void verifyBlock(long from, long to, List<String> words, long[] wanted, boolean followUpsOnly,
+                             Set<String> answered, List<Hit> hits, int limit) {
+        List<Long> offsets = new ArrayList<>();
+        for (long at = from; at < to; at = nextRecord(at)) {
+            int signatureAt = (int) at + SIGNATURE_OFFSET;
+            if ((map.getLong(signatureAt) & wanted[0]) == wanted[0] && (map.getLong(signatureAt + 8) & wanted[1]) == wanted[1]) {
+                offsets.add(at);
+            }
+        }
+        for (int i = offsets.size() - 1; i >= 0 && hits.size() < limit; i--) {
+            Hit hit = decode(offsets.get(i));
+            if (followUpsOnly && !hit.followUp) {
+                continue;
+            }
+            normalize(hit.userText + ' ' + hit.responseText, normalized);
+            if (containsAll(normalized, words) && answered.add(hit.userText)) {
+                hits.add(hit); // A question's holding reply is older than its answer, so the answer wins
+            }
+        }
+    }
+
+    private static boolean containsAll(StringBuilder text, List<String> words) {
+        for (String word : words) {
+            if (text.indexOf(' ' + word) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The newest earlier async answer sharing the content words of {@code question} (all but one
+     * of them when there are three or more), phrased as context for a Gemini prompt, or null.
+     */
+    public synchronized String contextFor(CharSequence question, int maxChars) {
+        PeanutExecutors.checkNotMainThread("History context lookup");
+        List<String> words = contentWords(question);
+        List<Hit> hits = new ArrayList<>(1);
+        if (map == null || words.isEmpty()) {
+            return null;
+        }
+        searchWords(words, 1, true, hits);
+        // A follow-up question rarely repeats every word: "how high is the tallest mountain"
+        for (int skip = 0; hits.isEmpty() && words.size() >= 3 && skip < words.size(); skip++) {
+            List<String> fewer = new ArrayList<>(words);
+            fewer.remove(skip);
+            searchWords(fewer, 1, true, hits);
+        }
+        if (hits.isEmpty()) {
+            return null;
+        }
+        Hit hit = hits.get(0);
+        String answer = hit.responseText.length() > maxChars ? hit.responseText.substring(0, maxChars) : hit.responseText;
+        return "(Earlier the user asked \"" + hit.userText + "\" and you answered \"" + answer + "\".)";
+    }
+
+    // --- Records and Text ---
+
+    private Hit decode(long at) {
+        ByteBuffer in = map.duplicate();
+        in.position((int) at + 4);
+        long timestamp = in.getLong();
+        boolean followUp = in.get() == FLAG_FOLLOW_UP;
+        in.position(in.position() + 16); // Signature
+        String user = readString(in);
+        String response = readString(in);
+        return new Hit(timestamp, user, response, followUp);
+    }
+
+    private String textOf(long at) {
+        Hit hit = decode(at);
+        return hit.userText + ' ' + hit.responseText;
+    }
+
+    private String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        in.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int crcOf(long at, int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        ByteBuffer in = map.duplicate();
+        in.position((int) at);
+        in.get(scratch, 0, length);
+        crc.reset();
+        crc.update(scratch, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // Lowercase letters and digits, every other run of characters one space, with a leading space
+    static void normalize(CharSequence text, StringBuilder out) {
+        out.setLength(0);
+        out.append(' ');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                out.append(Character.toLowerCase(c));
+            } else if (out.charAt(out.length() - 1) != ' ') {
+                out.append(' ');
+            }
+        }
+    }
+
+    static List<String> contentWords(CharSequence query) {
+        StringBuilder text = new StringBuilder(query.length() + 1);
+        normalize(query, text);
+        List<String> words = new ArrayList<>();
+        for (String word : text.toString().trim().split(" ")) {
+            if (word.length() >= 2 && !STOP_WORDS.contains(word) && !words.contains(word)) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static int[] queryTrigrams(List<String> words) {
+        List<Integer> terms = new ArrayList<>();
+        StringBuilder padded = new StringBuilder();
+        for (String word : words) {
+            padded.setLength(0);
+            padded.append(' ').append(word);
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                terms.add(trigram(padded, i));
+            }
+        }
+        int[] result = new int[terms.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = terms.get(i);
+        }
+        return result;
+    }
+
+    // Trigrams start at a word start or inside a word, never span words
+    private static boolean isTrigram(CharSequence s, int i) {
+        return s.charAt(i + 1) != ' ' && s.charAt(i + 2) != ' ';
+    }
+
+    private static void signature(CharSequence normalized, long[] out) {
+        out[0] = 0;
+        out[1] = 0;
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            if (isTrigram(normalized, i)) {
+                int bit = signatureBit(trigram(normalized, i));
+                out[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    private static int signatureBit(int trigram) {
+        return (trigram * 0x9E3779B1) >>> 25;
+    }
+
+    private static int trigram(CharSequence s, int i) {
+        return (s.charAt(i) * 31 + s.charAt(i + 1)) * 31 + s.charAt(i + 2);
+    }
+
+    // --- Lifecycle and Stats ---
+
+    /** Bytes of index segments on disk. */
+    public synchronized long indexBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segmentFile(segment.id).length();
+        }
+        return bytes;
+    }
+
+    public synchronized long dataBytes() {
+        return end;
+    }
+
+    public synchronized void close() {
+        PeanutExecutors.checkNotMainThread("History close");
+        if (map == null) {
+            return;
+        }
+        map.force();
+        map = null;
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Closing history failed: " + e.getMessage());
+        }
+    }
+
+    public synchronized String describe() {
+        StringBuilder levels = new StringBuilder();
+        for (Segment segment : segments) {
+            levels.append(segment.level);
+        }
+        return "history: turns=" + turns + " dataBytes=" + end + " segments=" + segments.size() + " levels=" + levels
+                + " merges=" + merges + " activeTerms=" + activeMasks.size() + " searches=" + searches
+                + " searchP50Us=" + searchMicros.percentile(0.5) + " searchP99Us=" + searchMicros.percentile(0.99);
+    }
+}
@@ -0,0 +1,439 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of conversation turns and state changes, so a START_STICKY restart
+ * can pick up where the killed process left off.
+ *
+ * Layout on disk:
+ * <ul>
+ *   <li>{@code conversation.journal}: header (magic, generation) followed by records of the form
+ *   {@code [int length][payload][int crc32]}.</li>
+ *   <li>{@code conversation.snapshot}: the same record format holding a single full-state record,
+ *   replaced atomically via rename.</li>
+ * </ul>
+ * Appends are queued from the caller's thread and written by a single background writer that
+ * fsyncs once per drained batch. Every {@link #COMPACT_EVERY} records the writer folds the journal
+ * into a new snapshot, so replay work on {@link #restore()} stays bounded no matter how long the
+ * conversation runs. A truncated or corrupt tail is detected by length/CRC and cut off.
+ */
+public class ConversationJournal {
+
+    private static final String TAG = "ConversationJournal";
+
+    static final String JOURNAL_FILE = "conversation.journal";
+    static final String SNAPSHOT_FILE = "conversation.snapshot";
+    private static final String SNAPSHOT_TEMP_FILE = "conversation.snapshot.tmp";
+
+    private static final int JOURNAL_MAGIC = 0x504E4A31; // "PNJ1"
+    private static final int SNAPSHOT_MAGIC = 0x504E5331; // "PNS1"
+    private static final int HEADER_BYTES = 12;          // magic (int) + generation (long)
+
+    private static final byte TYPE_TURN = 1;
+    private static final byte TYPE_STATE = 2;
+    private static final byte TYPE_SNAPSHOT = 3;
+
+    // Upper bound for one record payload (a full snapshot included); anything larger is treated as corruption.
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    // writeUTF is limited to 64KB of modified UTF-8, so long answers are clipped before journaling.
+    private static final int MAX_TEXT_CHARS = 4000;
+
+    public static final int MAX_RECENT_TURNS = 20;
+    public static final int COMPACT_EVERY = 64;
+
+    /** Restorable conversation state. Only the last {@link #MAX_RECENT_TURNS} turns are kept. */
+    public static final class State {
+        public String userName = "there";
+        public boolean askedForName = false;
+        public String lastIntent = ConversationManager.Intent.UNKNOWN.name();
+        public final ArrayDeque<ConversationTurn> recentTurns = new ArrayDeque<>();
+
+        void addTurn(ConversationTurn turn) {
+            recentTurns.addLast(turn);
+            while (recentTurns.size() > MAX_RECENT_TURNS) {
+                recentTurns.removeFirst();
+            }
+        }
+    }
+
+    private final File directory;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "peanut-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    // Owned by the writer thread after restore()
+    private State mirror = new State();
+    private long generation = 0;
+    private int recordsSinceSnapshot = 0;
+    private FileOutputStream journalOut;
+    private boolean closed = false;
+
+    public ConversationJournal(File directory) {
+        this.directory = directory;
+    }
+
+    // --- Restore ---
+
+    /**
+     * Loads the snapshot and replays the journal on top of it. Must be called once before any append.
+     * A journal tail that is truncated or fails its checksum is cut off at the last good record.
+     */
+    public synchronized State restore() {
+        PeanutExecutors.checkNotMainThread("Journal restore");
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Cannot create journal directory " + directory);
+        }
+        State state = new State();
+        long snapshotGeneration = readSnapshot(state);
+        File journalFile = new File(directory, JOURNAL_FILE);
+        long goodLength = replayJournal(journalFile, snapshotGeneration, state);
+
+        generation = snapshotGeneration;
+        mirror = copyOf(state);
+        try {
+            if (goodLength < 0) {
+                // Missing, unreadable or stale journal: start a fresh one for the snapshot's generation.
+                journalOut = openFreshJournal(journalFile, generation);
+                recordsSinceSnapshot = 0;
+            } else {
+                try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                    if (raf.length() != goodLength) {
+                        Log.w(TAG, "Truncating corrupt journal tail: " + raf.length() + " -> " + goodLength + " bytes");
+                        raf.setLength(goodLength);
+                        raf.getFD().sync();
+                    }
+                }
+                journalOut = new FileOutputStream(journalFile, true);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open journal for appending: " + e.getMessage(), e);
+            journalOut = null;
+        }
+        return state;
+    }
+
+    private long readSnapshot(State state) {
+        File snapshotFile = new File(directory, SNAPSHOT_FILE);
+        if (!snapshotFile.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                Log.w(TAG, "Ignoring snapshot with bad magic.");
+                return 0;
+            }
+            long snapshotGeneration = in.readLong();
+            byte[] payload = readRecord(in);
+            if (payload == null) {
+                Log.w(TAG, "Ignoring corrupt snapshot.");
+                return 0;
+            }
+            apply(payload, state);
+            return snapshotGeneration;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable snapshot: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** @return the byte length of the valid journal prefix, or -1 if the journal must be recreated. */
+    private long replayJournal(File journalFile, long expectedGeneration, State state) {
+        if (!journalFile.exists() || journalFile.length() < HEADER_BYTES) {
+            return -1;
+        }
+        int replayed = 0;
+        long goodLength = HEADER_BYTES;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readLong() != expectedGeneration) {
+                // Either garbage or a journal already folded into the current snapshot.
+                return -1;
+            }
+            while (true) {
+                byte[] payload = readRecord(in);
+                if (payload == null) {
+                    break;
+                }
+                apply(payload, state);
+                goodLength += 8 + payload.length;
+                replayed++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Journal replay stopped early: " + e.getMessage());
+        }
+        recordsSinceSnapshot = replayed;
+        return goodLength;
+    }
+
+    /** Reads one length-prefixed, checksummed record. Returns null at EOF or on a torn/corrupt record. */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_BYTES) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        try {
+            in.readFully(payload);
+            int storedCrc = in.readInt();
+            if (storedCrc != crc(payload)) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        return payload;
+    }
+
+    // --- Appending ---
+
+    public void appendTurn(ConversationTurn turn) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 2 * (turn.userText.length() + turn.responseText.length()));
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TYPE_TURN);
+            out.writeLong(turn.timestampMillis);
+            out.writeUTF(clip(turn.userText));
+            out.writeUTF(clip(turn.responseText));
+            enqueue(bytes.toByteArray());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to encode turn: " + e.getMessage());
+        }
+    }
+
+    public void appendState(String userName, boolean askedForName, String lastIntent) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TYPE_STATE);
+            out.writeUTF(clip(userName));
+            out.writeBoolean(askedForName);
+            out.writeUTF(lastIntent);
+            enqueue(bytes.toByteArray());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to encode state: " + e.getMessage());
+        }
+    }
+
+    private void enqueue(byte[] payload) {
+        pending.add(payload);
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::drain);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                drainScheduled.set(false);
+                Log.w(TAG, "Journal closed; dropping record.");
+            }
+        }
+    }
+
+    // Runs on the writer thread: write everything queued so far, then fsync once.
+    private void drain() {
+        drainScheduled.set(false);
+        List<byte[]> batch = new ArrayList<>();
+        byte[] payload;
+        while ((payload = pending.poll()) != null) {
+            batch.add(payload);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (journalOut == null || closed) {
+                return;
+            }
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(journalOut, 8192));
+                for (byte[] record : batch) {
+                    out.writeInt(record.length);
+                    out.write(record);
+                    out.writeInt(crc(record));
+                    apply(record, mirror);
+                }
+                out.flush();
+                journalOut.getFD().sync();
+                recordsSinceSnapshot += batch.size();
+            } catch (IOException e) {
+                Log.e(TAG, "Journal write failed: " + e.getMessage(), e);
+                return;
+            }
+            if (recordsSinceSnapshot >= COMPACT_EVERY) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Writes the writer's mirror of the state as a new snapshot, then starts an empty journal.
+     * The journal header carries the snapshot generation, so if the process dies between the
+     * rename and the journal reset, the stale journal is ignored instead of being replayed twice.
+     */
+    private void compact() {
+        long nextGeneration = generation + 1;
+        File temp = new File(directory, SNAPSHOT_TEMP_FILE);
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            byte[] payload = encodeSnapshot(mirror);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(nextGeneration);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt(crc(payload));
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Snapshot write failed: " + e.getMessage(), e);
+            return;
+        }
+        if (!temp.renameTo(new File(directory, SNAPSHOT_FILE))) {
+            Log.e(TAG, "Snapshot rename failed.");
+            return;
+        }
+        generation = nextGeneration;
+        try {
+            journalOut.close();
+            journalOut = openFreshJournal(new File(directory, JOURNAL_FILE), generation);
+            recordsSinceSnapshot = 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to reset journal after snapshot: " + e.getMessage(), e);
+            journalOut = null;
+        }
+    }
+
+    private static FileOutputStream openFreshJournal(File journalFile, long generation) throws IOException {
+        FileOutputStream fos = new FileOutputStream(journalFile, false);
+        DataOutputStream out = new DataOutputStream(fos);
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeLong(generation);
+        out.flush();
+        fos.getFD().sync();
+        return fos;
+    }
+
+    /** Blocks until everything appended so far is on disk. */
+    public void flush() {
+        PeanutExecutors.checkNotMainThread("Journal flush");
+        try {
+            Future<?> done = writer.submit(this::drain);
+            done.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Log.w(TAG, "Journal flush did not complete: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        flush();
+        writer.shutdown();
+        synchronized (this) {
+            closed = true;
+            if (journalOut != null) {
+                try {
+                    journalOut.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing journal: " + e.getMessage());
+                }
+                journalOut = null;
+            }
+        }
+    }
+
+    // --- Encoding ---
+
+    private static byte[] encodeSnapshot(State state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_SNAPSHOT);
+        out.writeUTF(state.userName);
+        out.writeBoolean(state.askedForName);
+        out.writeUTF(state.lastIntent);
+        out.writeInt(state.recentTurns.size());
+        for (ConversationTurn turn : state.recentTurns) {
+            out.writeLong(turn.timestampMillis);
+            out.writeUTF(turn.userText);
+            out.writeUTF(turn.responseText);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void apply(byte[] payload, State state) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_TURN:
+                state.addTurn(new ConversationTurn(in.readLong(), in.readUTF(), in.readUTF()));
+                break;
+            case TYPE_STATE:
+                state.userName = in.readUTF();
+                state.askedForName = in.readBoolean();
+                state.lastIntent = in.readUTF();
+                break;
+            case TYPE_SNAPSHOT:
+                state.userName = in.readUTF();
+                state.askedForName = in.readBoolean();
+                state.lastIntent = in.readUTF();
+                state.recentTurns.clear();
+                int turns = in.readInt();
+                for (int i = 0; i < turns; i++) {
+                    state.addTurn(new ConversationTurn(in.readLong(), in.readUTF(), in.readUTF()));
+                }
+                break;
+            default:
+                Log.w(TAG, "Skipping unknown journal record type " + type);
+                break;
+        }
+    }
+
+    private static State copyOf(State source) {
+        State copy = new State();
+        copy.userName = source.userName;
+        copy.askedForName = source.askedForName;
+        copy.lastIntent = source.lastIntent;
+        copy.recentTurns.addAll(source.recentTurns);
+        return copy;
+    }
+
+    private static String clip(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.length() > MAX_TEXT_CHARS ? text.substring(0, MAX_TEXT_CHARS) : text;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
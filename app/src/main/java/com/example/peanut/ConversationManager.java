@@ -2,18 +2,19 @@
 
 package com.example.peanut;
 
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,10 +29,23 @@ public class ConversationManager {
     public Map<String, String> entities = new HashMap<>(); // Stores extracted entities (e.g., "location" for weather)
     private boolean awaitingClarification = false; // Flag if Peanut is waiting for specific info
     private boolean askedForName = false; // To track if Peanut has asked for the user's name
+    private final ArrayDeque<ConversationTurn> recentTurns = new ArrayDeque<>(); // Bounded turn history
+
+    // --- Persistence ---
+    private UserProfileStore profile; // Optional; remembers the user across sessions when set
+    private ConversationJournal journal; // Optional; survives START_STICKY restarts when set
+    private volatile ConversationHistory history; // Optional; every turn, searchable, when set
+    private String journaledUserName;
+    private boolean journaledAskedForName;
+    private Intent journaledLastIntent;
+
+    // --- Threading ---
+    private volatile Executor turnExecutor = Runnable::run; // Direct until a TurnController takes the turns
 
     // Callback for Gemini responses to be sent back to PeanutService
     public interface ExternalAiResponseCallback {
-        void onResponseReady(String response);
+        // fromCache: a remote answer served from a cache rather than fetched, for the turn's metrics
+        void onResponseReady(String response, boolean fromCache);
     }
 
     // --- Intent Enumeration ---
@@ -50,106 +64,40 @@ public class ConversationManager {
         UNKNOWN,
         SMALL_TALK,
         AFFIRMATION,
-        NEGATION
-    }
-
-    // --- Response Banks for Variety --- (Keep the same as before for humanity improvements)
-    private final List<String> greetings = Arrays.asList(
-            "Hello there, %s! How can I assist you today?",
-            "Hi, %s! It's great to hear from you. What's on your mind?",
-            "Greetings, %s! Ready to help. What can I do?",
-            "Hey %s! Good to connect. How can I be of service?"
-    );
-
-    private final List<String> howAreYouResponses = Arrays.asList(
-            "I'm doing wonderfully, thank you for asking! And how are you feeling today?",
-            "As an AI, I don't experience emotions, but I'm fully operational and ready to assist! How about yourself, %s?",
-            "All my systems are running smoothly! Thanks for checking in. How's your day progressing, %s?",
-            "I'm in top digital shape! What about you, %s? Anything I can do to make your day better?"
-    );
-
-    private final List<String> nameInquiryResponses = Arrays.asList(
-            "My name is Peanut, and I'm here to help you. What name should I call you by?",
-            "I'm Peanut, your digital assistant! It's lovely to meet you. And you are?",
-            "You can simply call me Peanut. May I know your name, %s?",
-            "I am Peanut. What's your name, if you don't mind me asking?"
-    );
-
-    private final List<String> setNameConfirmation = Arrays.asList(
-            "It's a pleasure to finally meet you, %s! I'll remember that.",
-            "Got it, %s! Nice to put a name to the voice. How can I help you?",
-            "Hello, %s! I've updated your name in my memory.",
-            "Wonderful, %s! Now that I know your name, what's next?"
-    );
-
-    private final List<String> jokeResponses = Arrays.asList(
-            "Why don't scientists trust atoms? Because they make up everything! chuckled %s",
-            "What do you call a fake noodle? An impasta! Haha, %s.",
-            "Why did the scarecrow win an award? Because he was outstanding in his field!",
-            "I told my wife she was drawing her eyebrows too high. She looked surprised. (Hope that made you smile, %s!)",
-            "Why don't skeletons fight each other? They don't have the guts! Get it, %s?"
-    );
-
-    private final List<String> goodbyeResponses = Arrays.asList(
-            "Goodbye, %s! It was a pleasure assisting you. Have a fantastic day!",
-            "See you later, %s! Don't hesitate to call if you need anything.",
-            "Farewell for now, %s! I'll be here when you return.",
-            "Until next time, %s! Take care."
-    );
-
-    private final List<String> thankYouResponses = Arrays.asList(
-            "You're absolutely welcome, %s! I'm always happy to help.",
-            "Anytime, %s! It's what I'm here for.",
-            "Glad I could assist, %s. Is there anything else on your mind?",
-            "No problem at all, %s! Happy to be of service."
-    );
-
-    private final List<String> timeResponses = Arrays.asList(
-            "The current time is %s. Hope that helps!",
-            "It's %s right now. Anything else you'd like to know?",
-            "Right now it's %s. Is there anything else I can tell you?"
-    );
-
-    private final List<String> weatherLocationPrompt = Arrays.asList(
-            "I can tell you the weather, %s! Which city are you interested in?",
-            "For weather information, I need a specific city. Where would you like to know about?",
-            "Please tell me the city name for the weather forecast. I'm ready to look it up!"
-    );
-
-    private final List<String> understandingFailureResponses = Arrays.asList(
-            "I'm not quite sure I grasped that, %s. Could you try rephrasing?",
-            "My apologies, I didn't catch that clearly. Could you say it a different way, %s?",
-            "Hmm, I'm a bit confused. Can you elaborate on what you mean, %s?",
-            "I'm still learning, %s. Could you give me more context or be more specific?",
-            "I think I missed something there. Can you tell me again, %s?",
-            "I'm sorry, I don't understand that request. Perhaps you could ask in a different way?"
-    );
-
-    private final List<String> smallTalkResponses = Arrays.asList(
-            "That's interesting. What else is on your mind, %s?",
-            "I see. Is there anything specific you'd like me to do or discuss, %s?",
-            "Okay, %s. I'm here if you have more questions.",
-            "I'm always ready for a new task, %s. What would you like to do?",
-            "Thinking about anything exciting, %s?",
-            "Tell me more, %s! Or perhaps you have a question for me?"
-    );
-
-    private final List<String> affirmationResponses = Arrays.asList(
-            "Great!",
-            "Alright then!",
-            "Understood!",
-            "Perfect!"
-    );
-
-    private final List<String> negationResponses = Arrays.asList(
-            "Okay, no problem.",
-            "Understood. Anything else?",
-            "Alright. How can I help then?",
-            "No worries."
-    );
+        NEGATION,
+        SKILL, // Handled by a plugged-in skill without a dedicated intent
+        RECALL
+    }
+
+    // --- Response Banks for Variety --- (loaded lazily from the active locale pack)
+    private volatile ResponseBank responses;
+
+    // --- Skills --- (routing table built once per locale pack; skills are created on first use)
+    private volatile SkillRegistry skills;
+    private volatile int weatherRoute;
+
+    private static final Pattern PLAIN_WORDS_PATTERN = Pattern.compile("[a-zA-Z\\s]+");
+
+    // --- Per-Session Scratch State --- (reused every turn so local intents don't allocate)
+    private final Matcher plainWordsMatcher = PLAIN_WORDS_PATTERN.matcher("");
+    private final StringBuilder inputBuilder = new StringBuilder(128); // Lowercased, trimmed input of the current turn
+    private final TurnResult turnResult = new TurnResult();
+
+    // The time string only changes once a minute, so format it at most once a minute.
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a", Locale.US);
+    private final Date timeDate = new Date();
+    private long cachedTimeMinute = Long.MIN_VALUE;
+    private String cachedTime = "";
 
     // --- Constructor ---
-    public ConversationManager() {
+    public ConversationManager(ResponseBank responses) {
+        this(responses, BuiltInSkills.createRegistry());
+    }
+
+    public ConversationManager(ResponseBank responses, SkillRegistry skills) {
+        this.responses = responses;
+        this.skills = skills;
+        this.weatherRoute = skills.routeOf(Intent.GET_WEATHER);
         GeminiApiClient.initialize(); // Initialize Gemini client when ConversationManager is created
     }
 
@@ -157,266 +105,288 @@ public class ConversationManager {
      * Processes user input and generates a conversational response based on intent and context.
      * For UNKNOWN intents, it delegates to an external AI and returns an "awaiting" message.
      *
-     * @param userInput The lowercased, trimmed speech from the user.
+     * @param userInput The speech from the user; it is lowercased and trimmed here.
      * @param callback Optional callback for asynchronous responses (e.g., from external AI or weather API).
      * @return An immediate response string. If an async operation is triggered, this string
      * will be an intermediate message (e.g., "thinking...") and the final response
      * will come via the callback.
      */
     public String getResponse(String userInput, ExternalAiResponseCallback callback) {
+        return processTurn(userInput, callback).text.toString();
+    }
+
+    /**
+     * Same as {@link #getResponse} but fills the session's preallocated {@link TurnResult} instead of
+     * returning a new String. The result is only valid until the next turn. For local intents this
+     * path reuses the session's matchers, builders and time formatter, so the only steady-state
+     * allocation is the turn recorded in the history.
+     */
+    public TurnResult processTurn(CharSequence rawInput, ExternalAiResponseCallback callback) {
+        long turnStartNanos = System.nanoTime();
+        CharSequence userInput = normalizeInput(rawInput);
+        TurnResult result = turnResult;
+        result.reset();
+        StringBuilder out = result.text;
+        EventLog.record(EventLog.TURN_START, userInput.length());
         // Reset entities and clarification status at the beginning of each turn
-        entities.clear();
+        if (!entities.isEmpty()) {
+            entities.clear();
+        }
         boolean wasAwaitingClarification = awaitingClarification;
         awaitingClarification = false;
 
-        Intent currentIntent = recognizeIntent(userInput);
-
-        String immediateResponse = "";
+        int route = skills.route(userInput);
+        EventLog.record(EventLog.TURN_INTENT, skills.intentOf(route).ordinal(), (System.nanoTime() - turnStartNanos) / 1000L);
 
         // --- Dialogue Management: Handle Clarification first ---
         if (wasAwaitingClarification && lastIntent == Intent.GET_WEATHER_CLARIFICATION) {
-            if (extractLocationFromFallback(userInput)) {
-                currentIntent = Intent.GET_WEATHER; // Now we have the location, proceed
+            if (route == SkillRegistry.NO_ROUTE && extractLocationFromFallback(userInput)) {
+                route = weatherRoute; // Now we have the location, proceed
             } else {
-                immediateResponse = String.format(randomChoice(understandingFailureResponses), userName) + " I'm still waiting for the city name for the weather.";
+                render(ResponseBank.UNDERSTANDING_FAILURE, out);
+                out.append(' ');
+                render(ResponseBank.WEATHER_STILL_WAITING, out);
                 awaitingClarification = true;
                 lastIntent = Intent.GET_WEATHER_CLARIFICATION;
-                return immediateResponse; // Exit early
+                result.intent = lastIntent;
+                recordTurn(userInput, out);
+                return result; // Exit early
             }
         }
 
-        // --- Intent-based Response Generation ---
-        switch (currentIntent) {
-            case GREETING:
-                immediateResponse = String.format(randomChoice(greetings), userName);
-                if (!askedForName && userName.equals("there")) {
-                    immediateResponse += " By the way, what name should I use to call you?";
-                    askedForName = true;
-                }
-                break;
-            case HOW_ARE_YOU:
-                immediateResponse = String.format(randomChoice(howAreYouResponses), userName);
-                break;
-            case NAME_INQUIRY:
-                immediateResponse = String.format(randomChoice(nameInquiryResponses), userName);
-                askedForName = true;
-                break;
-            case SET_MY_NAME:
-                immediateResponse = String.format(randomChoice(setNameConfirmation), userName);
-                askedForName = true;
-                break;
-            case TELL_JOKE:
-                immediateResponse = String.format(randomChoice(jokeResponses), userName);
-                immediateResponse += " Did that make you smile? What else can I do for you?";
-                break;
-            case GOODBYE:
-                immediateResponse = String.format(randomChoice(goodbyeResponses), userName);
-                break;
-            case THANK_YOU:
-                immediateResponse = String.format(randomChoice(thankYouResponses), userName);
-                break;
-            case WHAT_TIME:
-                immediateResponse = String.format(randomChoice(timeResponses), getCurrentTime());
-                break;
-            case GET_WEATHER:
-                String location = entities.get("location");
-                if (location != null && !location.isEmpty()) {
-                    immediateResponse = "Ok, fetching the weather for " + location + ".";
-                    // Trigger actual weather fetch asynchronously
-                    fetchWeather(location, new WeatherCallback() {
-                        @Override
-                        public void onWeatherResult(String weatherInfo) {
-                            callback.onResponseReady(weatherInfo);
-                        }
-
-                        @Override
-                        public void onWeatherError(String errorMessage) {
-                            callback.onResponseReady(errorMessage + " Is there anything else I can help with?");
-                        }
-                    });
-                } else {
-                    immediateResponse = String.format(randomChoice(weatherLocationPrompt), userName);
-                    awaitingClarification = true;
-                    currentIntent = Intent.GET_WEATHER_CLARIFICATION;
-                }
-                break;
-            case AFFIRMATION:
-                immediateResponse = randomChoice(affirmationResponses);
-                if (lastIntent == Intent.TELL_JOKE) {
-                    immediateResponse += " Glad to hear it! Anything else?";
-                } else {
-                    immediateResponse += " How can I proceed?";
-                }
-                break;
-            case NEGATION:
-                immediateResponse = randomChoice(negationResponses);
-                immediateResponse += " What would you like to do instead?";
-                break;
-            case SMALL_TALK:
-                immediateResponse = String.format(randomChoice(smallTalkResponses), userName);
-                break;
-            case UNKNOWN:
-            default:
-                // When intent is UNKNOWN, delegate to Gemini
-                immediateResponse = "Hmm, let me think about that for a moment..."; // Immediate response while Gemini processes
-                lastIntent = Intent.EXTERNAL_AI_QUERY; // Set intent to signify awaiting external AI
-                Log.d(TAG, "Delegating UNKNOWN query to Gemini: " + userInput);
-
-                // Call Gemini API asynchronously
-                GeminiApiClient.generateTextFromInput(userInput, new GeminiApiClient.GeminiResponseCallback() {
-                    @Override
-                    public void onGeminiResponse(String response) {
-                        // Pass the Gemini's response back via the callback
-                        callback.onResponseReady(response);
-                        // After Gemini responds, reset lastIntent to UNKNOWN or SMALL_TALK if no specific follow-up needed
-                        lastIntent = Intent.SMALL_TALK; // Or another appropriate post-Gemini state
-                    }
-
-                    @Override
-                    public void onGeminiError(String error) {
-                        // Pass the error message back via the callback
-                        callback.onResponseReady(error);
-                        lastIntent = Intent.UNKNOWN; // Remain in UNKNOWN state
-                    }
-                });
-                break;
-        }
+        // --- Skill-based Response Generation ---
+        result.intent = skills.intentOf(route);
+        skills.skill(route).handle(this, userInput, result, callback);
 
-        // Only update lastIntent if it's not an EXTERNAL_AI_QUERY,
-        // as EXTERNAL_AI_QUERY state will be managed by its callback
-        if (currentIntent != Intent.UNKNOWN || lastIntent != Intent.EXTERNAL_AI_QUERY) {
-            lastIntent = currentIntent;
+        // EXTERNAL_AI_QUERY is set by the delegating skill itself and then managed by its callback
+        if (result.intent != Intent.EXTERNAL_AI_QUERY) {
+            lastIntent = result.intent;
         }
 
-        return immediateResponse; // Return the immediate response
+        recordTurn(userInput, out);
+        EventLog.record(EventLog.TURN_RESPONSE, out.length(), (System.nanoTime() - turnStartNanos) / 1000L);
+        return result;
+    }
+
+    // Lowercases and trims into the reused input builder
+    private CharSequence normalizeInput(CharSequence rawInput) {
+        int start = 0;
+        int end = rawInput.length();
+        while (start < end && Character.isWhitespace(rawInput.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(rawInput.charAt(end - 1))) end--;
+        inputBuilder.setLength(0);
+        for (int i = start; i < end; i++) {
+            inputBuilder.append(Character.toLowerCase(rawInput.charAt(i)));
+        }
+        return inputBuilder;
     }
 
     /**
-     * Determines the user's intent from their input.
-     * (Keep this method the same as the previous "humanity" update)
+     * Determines the user's intent from their input by routing it through the skill registry.
      */
-    public Intent recognizeIntent(String userInput) {
-        if (userInput.matches(".*\\b(hello|hi|hey|greetings|good morning|good afternoon|good evening)\\b.*")) {
-            return Intent.GREETING;
-        }
-        if (userInput.matches(".*\\b(how are you|how you doing|how's it going)\\b.*")) {
-            return Intent.HOW_ARE_YOU;
-        }
-        if (userInput.matches(".*\\b(what is your name|who are you|your name|what do you call yourself)\\b.*")) {
-            return Intent.NAME_INQUIRY;
-        }
-        if (userInput.matches(".*\\b(my name is|i am called|you can call me|i'm)\\s+([a-zA-Z]+).*")) {
-            Pattern pattern = Pattern.compile("my name is\\s+([a-zA-Z]+)|i am called\\s+([a-zA-Z]+)|you can call me\\s+([a-zA-Z]+)|i'm\\s+([a-zA-Z]+)");
-            Matcher matcher = pattern.matcher(userInput);
-            if (matcher.find()) {
-                String name = null;
-                for (int i = 1; i <= matcher.groupCount(); i++) {
-                    if (matcher.group(i) != null) {
-                        name = matcher.group(i);
-                        break;
-                    }
-                }
-                if (name != null) {
-                    this.userName = name.trim();
-                    Log.d(TAG, "Extracted user name: " + userName);
-                }
+    public Intent recognizeIntent(CharSequence userInput) {
+        return skills.intentOf(skills.route(userInput));
+    }
+
+    private boolean extractLocationFromFallback(CharSequence userInput) {
+        if (userInput.length() > 2) {
+            if (plainWordsMatcher.reset(userInput).matches()) {
+                String location = userInput.toString().trim();
+                entities.put("location", location);
+                EventLog.record(EventLog.LOCATION_EXTRACTED, location.length());
+                return true;
             }
-            return Intent.SET_MY_NAME;
-        }
-        if (userInput.matches(".*\\b(tell me a joke|joke please|make me laugh|tell a funny story)\\b.*")) {
-            return Intent.TELL_JOKE;
-        }
-        if (userInput.matches(".*\\b(goodbye|bye|see you later|farewell|i'm leaving|i'm done|exit)\\b.*")) {
-            return Intent.GOODBYE;
-        }
-        if (userInput.matches(".*\\b(thank you|thanks|i appreciate it|cheers)\\b.*")) {
-            return Intent.THANK_YOU;
-        }
-        if (userInput.matches(".*\\b(what time is it|current time|time now|do you know the time)\\b.*")) {
-            return Intent.WHAT_TIME;
-        }
-        if (userInput.matches(".*\\b(weather|forecast|how's the weather|temperature)\\b.*")) {
-            extractWeatherLocation(userInput);
-            return Intent.GET_WEATHER;
-        }
-        if (userInput.matches(".*\\b(yes|yeah|yep|okay|sure|alright|fine)\\b.*")) {
-            return Intent.AFFIRMATION;
         }
-        if (userInput.matches(".*\\b(no|nope|not really|nah)\\b.*")) {
-            return Intent.NEGATION;
-        }
-        if (userInput.matches(".*\\b(okay|alright|right|hmm|what about|tell me more|interesting)\\b.*")) {
-            return Intent.SMALL_TALK;
+        return false;
+    }
+
+    private String getCurrentTime() {
+        long now = System.currentTimeMillis();
+        long minute = now / 60_000L;
+        if (minute != cachedTimeMinute) {
+            timeFormat.setTimeZone(TimeZone.getDefault()); // Picks up time zone changes once a minute
+            timeDate.setTime(now);
+            cachedTime = timeFormat.format(timeDate);
+            cachedTimeMinute = minute;
         }
-        return Intent.UNKNOWN;
+        return cachedTime;
+    }
+
+    // Appends a random template of the given bank section, filled with the user's name and the current time
+    void render(String section, StringBuilder out) {
+        ResponseBank.Template template = responses.choose(section, random);
+        template.render(out, userName, section.equals(ResponseBank.TIME) ? getCurrentTime() : "");
+    }
+
+    /** Re-reads the response bank; blocks on the read, so call it off the main thread. */
+    public void reloadResponses() {
+        responses.reload();
     }
 
-    private void extractWeatherLocation(String userInput) {
-        Pattern pattern = Pattern.compile("weather (in|for|of|at)\\s+([a-zA-Z\\s]+)|([a-zA-Z\\s]+) weather");
-        Matcher matcher = pattern.matcher(userInput);
-        if (matcher.find()) {
-            String location = matcher.group(2);
-            if (location == null) {
-                location = matcher.group(3);
+    public void resetConversation() {
+        userName = knownUserName();
+        lastIntent = Intent.UNKNOWN;
+        entities.clear();
+        awaitingClarification = false;
+        askedForName = false;
+        journalStateIfChanged();
+        Log.d(TAG, "Conversation state reset.");
+    }
+
+    // --- Persistence ---
+
+    /**
+     * Restores state recovered from the journal and starts journaling subsequent turns to it.
+     */
+    public void attachJournal(ConversationJournal journal, ConversationJournal.State restored) {
+        if (restored != null) {
+            userName = restored.userName;
+            askedForName = restored.askedForName;
+            try {
+                lastIntent = Intent.valueOf(restored.lastIntent);
+            } catch (IllegalArgumentException e) {
+                lastIntent = Intent.UNKNOWN;
+            }
+            // A query that was in flight when the process died will never be answered.
+            if (lastIntent == Intent.EXTERNAL_AI_QUERY) {
+                lastIntent = Intent.UNKNOWN;
             }
-            if (location != null) {
-                entities.put("location", location.trim());
-                Log.d(TAG, "Extracted location from weather intent: " + location.trim());
+            synchronized (recentTurns) {
+                recentTurns.clear();
+                recentTurns.addAll(restored.recentTurns);
             }
         }
+        journaledUserName = userName;
+        journaledAskedForName = askedForName;
+        journaledLastIntent = lastIntent;
+        this.journal = journal;
     }
 
-    private boolean extractLocationFromFallback(String userInput) {
-        if (userInput.length() > 2 && recognizeIntent(userInput) == Intent.UNKNOWN) {
-            if (userInput.matches("[a-zA-Z\\s]+")) {
-                entities.put("location", userInput.trim());
-                Log.d(TAG, "Extracted fallback location during clarification: " + userInput.trim());
-                return true;
-            }
+    /** Uses {@code profile} for the user's name from now on, and saves names and locations to it. */
+    public void attachProfile(UserProfileStore profile) {
+        this.profile = profile;
+        String name = profile.getName();
+        if (name != null && userName.equals("there")) {
+            userName = name;
         }
-        return false;
     }
 
-    private String getCurrentTime() {
-        SimpleDateFormat sdf = new SimpleDateFormat("h:mm a", Locale.US);
-        return sdf.format(new Date());
+    /**
+     * Async answers (Gemini, weather, recall) are handed to {@code turnExecutor} before they touch
+     * the conversation state, so they never race a turn. {@link TurnController} sets its main executor.
+     */
+    public void setTurnExecutor(Executor turnExecutor) {
+        this.turnExecutor = turnExecutor;
     }
 
-    public interface WeatherCallback {
-        void onWeatherResult(String weatherInfo);
-        void onWeatherError(String errorMessage);
+    /** Adds every turn from now on to {@code history} and lets skills search it. */
+    public void attachHistory(ConversationHistory history) {
+        this.history = history;
     }
 
-    public void fetchWeather(String location, WeatherCallback callback) {
-        Log.d(TAG, "Simulating weather fetch for: " + location);
-        new Handler(Looper.getMainLooper()).postDelayed(() -> {
-            if (location.toLowerCase(Locale.US).contains("maseru")) {
-                callback.onWeatherResult("The weather in Maseru is currently clear with a temperature of 10 degrees Celsius. Perfect for a cool evening!");
-            } else if (location.toLowerCase(Locale.US).contains("london")) {
-                callback.onWeatherResult("The weather in London is cloudy with a temperature of 15 degrees Celsius. Don't forget your umbrella!");
-            } else if (location.toLowerCase(Locale.US).contains("new york")) {
-                callback.onWeatherResult("The weather in New York is partly cloudy with a temperature of 22 degrees Celsius. A pleasant day!");
-            }
-            else {
-                callback.onWeatherError("I couldn't find the weather for " + location + ". My apologies!");
-            }
-        }, 1500);
+    // The name from the profile if the user ever told us, "there" otherwise
+    private String knownUserName() {
+        String name = profile != null ? profile.getName() : null;
+        return name != null ? name : "there";
     }
 
-    private String randomChoice(List<String> list) {
-        if (list == null || list.isEmpty()) {
-            return "I don't have a response for that right now.";
+    public List<ConversationTurn> getRecentTurns() {
+        synchronized (recentTurns) {
+            return new ArrayList<>(recentTurns);
         }
-        return list.get(random.nextInt(list.size()));
     }
 
-    public void resetConversation() {
-        userName = "there";
-        lastIntent = Intent.UNKNOWN;
-        entities.clear();
+    public String getUserName() {
+        return userName;
+    }
+
+    // --- State Access for Skills ---
+
+    void setUserName(String userName) {
+        this.userName = userName;
+        if (profile != null) {
+            profile.setName(userName);
+        }
+    }
+
+    /** The searchable history of every turn, or null when none is attached. */
+    ConversationHistory history() {
+        return history;
+    }
+
+    void rememberLocation(String location) {
+        if (profile != null) {
+            profile.recordLocation(location);
+        }
+    }
+
+    boolean hasAskedForName() {
+        return askedForName;
+    }
+
+    void setAskedForName(boolean askedForName) {
+        this.askedForName = askedForName;
+    }
+
+    void setAwaitingClarification(boolean awaitingClarification) {
+        this.awaitingClarification = awaitingClarification;
+    }
+
+    // Skills' callbacks arrive on backend threads; they update state and answer from here
+    void onTurnThread(Runnable task) {
+        turnExecutor.execute(task);
+    }
+
+    /** Records an answer delivered asynchronously by a skill (Gemini, weather) in the history; call on the turn thread. */
+    public void recordAsyncResponse(String response) {
+        recordTurn("", response);
+    }
+
+    public SkillRegistry getSkills() {
+        return skills;
+    }
+
+    /**
+     * Switches to another locale pack: its responses and a registry built from its trigger
+     * phrases. The user's name and the turn history carry over; a pending clarification does not,
+     * since its question was asked in the old language. Call on the thread that runs turns.
+     */
+    public void usePack(ResponseBank responses, SkillRegistry skills) {
+        this.skills = skills;
+        this.weatherRoute = skills.routeOf(Intent.GET_WEATHER);
+        this.responses = responses;
         awaitingClarification = false;
-        askedForName = false;
-        Log.d(TAG, "Conversation state reset.");
+        entities.clear();
+    }
+
+    private void recordTurn(CharSequence userText, CharSequence responseText) {
+        ConversationTurn turn = new ConversationTurn(System.currentTimeMillis(), userText.toString(), responseText.toString());
+        synchronized (recentTurns) {
+            recentTurns.addLast(turn);
+            while (recentTurns.size() > ConversationJournal.MAX_RECENT_TURNS) {
+                recentTurns.removeFirst();
+            }
+        }
+        if (journal != null) {
+            journal.appendTurn(turn);
+        }
+        ConversationHistory history = this.history;
+        if (history != null) {
+            history.append(turn);
+        }
+        journalStateIfChanged();
+    }
+
+    private void journalStateIfChanged() {
+        if (journal == null) {
+            return;
+        }
+        if (!userName.equals(journaledUserName) || askedForName != journaledAskedForName || lastIntent != journaledLastIntent) {
+            journaledUserName = userName;
+            journaledAskedForName = askedForName;
+            journaledLastIntent = lastIntent;
+            journal.appendState(userName, askedForName, lastIntent.name());
+        }
     }
 
     public boolean isGoodbyeResponse(String response) {
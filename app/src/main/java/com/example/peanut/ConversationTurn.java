@@ -0,0 +1,22 @@
+package com.example.peanut;
+
+/**
+ * One exchange in the conversation: what the user said and what Peanut answered.
+ * Asynchronous follow-ups (Gemini or weather results) are stored with an empty user text.
+ */
+public final class ConversationTurn {
+
+    public final long timestampMillis;
+    public final String userText;
+    public final String responseText;
+
+    public ConversationTurn(long timestampMillis, String userText, String responseText) {
+        this.timestampMillis = timestampMillis;
+        this.userText = userText != null ? userText : "";
+        this.responseText = responseText != null ? responseText : "";
+    }
+
+    public boolean isAsyncFollowUp() {
+        return userText.isEmpty();
+    }
+}
@@ -0,0 +1,227 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low-overhead structured event log for the hot paths of the service.
+ *
+ * Each event is a fixed-size record (event code, timestamp, two numeric arguments) written
+ * into preallocated parallel arrays used as a ring buffer, so {@link #record} never allocates
+ * and never builds strings. Text is only rendered when the buffer is dumped, either through
+ * {@code adb shell dumpsys activity service com.example.peanut/.PeanutService} or when an
+ * error calls {@link #dumpToLogcat}.
+ */
+public final class EventLog {
+
+    private static final String TAG = "EventLog";
+
+    // Must stay a power of two so the write cursor can be masked instead of divided.
+    public static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    // Number of trailing events written to logcat when an error triggers a dump.
+    public static final int ERROR_DUMP_EVENTS = 64;
+
+    // --- Event Codes ---
+    public static final int SERVICE_CREATE = 1;
+    public static final int SERVICE_START_COMMAND = 2;   // a0 = action code
+    public static final int SERVICE_DESTROY = 3;
+    public static final int TTS_SPEAK = 10;              // a0 = utterance code, a1 = text length
+    public static final int TTS_START = 11;              // a0 = utterance code
+    public static final int TTS_DONE = 12;               // a0 = utterance code
+    public static final int TTS_STOP = 13;               // a0 = utterance code, a1 = interrupted (0/1)
+    public static final int TTS_ERROR = 14;              // a0 = utterance code
+    public static final int STT_START_LISTENING = 20;
+    public static final int STT_READY = 21;
+    public static final int STT_BEGIN_SPEECH = 22;
+    public static final int STT_END_SPEECH = 23;
+    public static final int STT_RESULTS = 24;            // a0 = transcript length
+    public static final int STT_ERROR = 25;              // a0 = SpeechRecognizer error code
+    public static final int TURN_START = 30;             // a0 = input length
+    public static final int TURN_INTENT = 31;            // a0 = intent ordinal, a1 = recognition time (us)
+    public static final int TURN_RESPONSE = 32;          // a0 = response length, a1 = turn time (us)
+    public static final int TURN_ASYNC_RESPONSE = 33;    // a0 = response length
+    public static final int NAME_EXTRACTED = 34;         // a0 = name length
+    public static final int LOCATION_EXTRACTED = 35;     // a0 = location length
+    public static final int WEATHER_FETCH = 40;          // a0 = location length
+    public static final int WEATHER_RESULT = 41;         // a0 = 1 on success, 0 on error
+    public static final int GEMINI_REQUEST = 50;         // a0 = prompt length
+    public static final int GEMINI_RESPONSE = 51;        // a0 = response length, a1 = latency (ms)
+    public static final int GEMINI_EMPTY = 52;           // a1 = latency (ms)
+    public static final int GEMINI_ERROR = 53;           // a0 = route ordinal, a1 = latency (ms)
+    public static final int GEMINI_QUEUED = 54;          // a0 = priority ordinal, a1 = queue depth
+    public static final int GEMINI_DISPATCH = 55;        // a0 = priority ordinal, a1 = queue wait (ms)
+    public static final int GEMINI_RATE_LIMITED = 56;    // a0 = attempt, a1 = backoff (ms)
+    public static final int GEMINI_ROUTE = 57;           // a0 = ModelRouter.Route ordinal, a1 = prompt words
+    public static final int GEMINI_NORMALIZED = 58;      // a0 = raw prompt tokens, a1 = tokens saved
+    public static final int GEMINI_CACHE_HIT = 59;       // a0 = answer length
+    public static final int OUTBOX_ENQUEUE = 60;         // a0 = prompt length, a1 = pending count
+    public static final int OUTBOX_SEND = 61;            // a0 = prompt length, a1 = pending count
+    public static final int LOCALE_SWITCH = 70;          // a0 = pack load time (us), a1 = heap delta (KB)
+    public static final int PROFILE_LOAD = 71;           // a0 = load time (us), a1 = bytes read
+    public static final int PROFILE_FLUSH = 72;          // a0 = writes coalesced into this flush, a1 = write time (us)
+    public static final int MAIN_THREAD_IO = 73;         // a0 = main thread I/O count so far
+    public static final int EARLY_COMMIT = 74;           // a0 = Intent ordinal, a1 = partials seen
+    public static final int EARLY_COMMIT_MISS = 75;      // a0 = committed Intent ordinal, a1 = final Intent ordinal
+    public static final int TURN_COMPOUND = 76;          // a0 = clause count
+    public static final int METRICS_APPEND = 77;         // a0 = rollups appended, a1 = file size (KB)
+    public static final int METRICS_COMPACT = 78;        // a0 = rollups kept, a1 = file size (KB)
+    public static final int STT_RETRY = 79;              // a0 = error code, a1 = backoff (ms)
+    public static final int STT_RECREATE = 80;           // a0 = error code (-1 = never became ready), a1 = recreations so far
+    public static final int STT_READY_GAP = 81;          // a0 = TTS done to onReadyForSpeech (us)
+    public static final int HISTORY_RECALL = 82;         // a0 = hits, a1 = topic length
+    public static final int HISTORY_SEGMENT = 83;        // a0 = segment level, a1 = trigrams in it
+    public static final int WAKE_WORD = 84;              // a0 = match score, a1 = template index
+    public static final int WAKE_WORD_ENROLL = 85;       // a0 = template frames, a1 = templates now
+
+    // --- Ring Buffer Storage ---
+    private static final int[] codes = new int[CAPACITY];
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final long[] firstArgs = new long[CAPACITY];
+    private static final long[] secondArgs = new long[CAPACITY];
+    private static final AtomicLong cursor = new AtomicLong();
+
+    // Anchors used to turn monotonic timestamps back into wall-clock time at dump time.
+    private static final long BASE_NANOS = System.nanoTime();
+    private static final long BASE_WALL_MILLIS = System.currentTimeMillis();
+
+    private EventLog() {
+    }
+
+    public static void record(int code) {
+        record(code, 0L, 0L);
+    }
+
+    public static void record(int code, long a0) {
+        record(code, a0, 0L);
+    }
+
+    /**
+     * Appends one event. Safe to call from any thread; never allocates. A slot is claimed with a
+     * single atomic increment, so a concurrent dump may observe a half-written record, which is
+     * acceptable for a diagnostic buffer.
+     */
+    public static void record(int code, long a0, long a1) {
+        int slot = (int) (cursor.getAndIncrement() & MASK);
+        timestamps[slot] = System.nanoTime();
+        firstArgs[slot] = a0;
+        secondArgs[slot] = a1;
+        codes[slot] = code;
+    }
+
+    /** Total number of events recorded since process start, including overwritten ones. */
+    public static long count() {
+        return cursor.get();
+    }
+
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            codes[i] = 0;
+        }
+        cursor.set(0);
+    }
+
+    /** Renders the most recent {@code maxEvents} events, oldest first. */
+    public static void dump(PrintWriter writer, int maxEvents) {
+        long end = cursor.get();
+        long available = Math.min(end, CAPACITY);
+        long start = end - Math.min(available, Math.max(0, maxEvents));
+        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        writer.println("EventLog: " + (end - start) + " of " + end + " events (capacity " + CAPACITY + ")");
+        for (long i = start; i < end; i++) {
+            int slot = (int) (i & MASK);
+            int code = codes[slot];
+            if (code == 0) {
+                continue;
+            }
+            long wallMillis = BASE_WALL_MILLIS + (timestamps[slot] - BASE_NANOS) / 1_000_000L;
+            writer.println(sdf.format(new Date(wallMillis)) + "  " + describe(code, firstArgs[slot], secondArgs[slot]));
+        }
+        writer.flush();
+    }
+
+    public static void dump(PrintWriter writer) {
+        dump(writer, CAPACITY);
+    }
+
+    /** Writes the tail of the buffer to logcat. Intended for error paths, not steady state. */
+    public static void dumpToLogcat(String reason) {
+        StringWriter out = new StringWriter();
+        dump(new PrintWriter(out), ERROR_DUMP_EVENTS);
+        Log.w(TAG, "Dump triggered by: " + reason);
+        for (String line : out.toString().split("\n")) {
+            Log.w(TAG, line);
+        }
+    }
+
+    static String describe(int code, long a0, long a1) {
+        switch (code) {
+            case SERVICE_CREATE: return "service create";
+            case SERVICE_START_COMMAND: return "service start command action=" + a0;
+            case SERVICE_DESTROY: return "service destroy";
+            case TTS_SPEAK: return "tts speak utterance=" + a0 + " chars=" + a1;
+            case TTS_START: return "tts start utterance=" + a0;
+            case TTS_DONE: return "tts done utterance=" + a0;
+            case TTS_STOP: return "tts stop utterance=" + a0 + " interrupted=" + (a1 != 0);
+            case TTS_ERROR: return "tts error utterance=" + a0;
+            case STT_START_LISTENING: return "stt start listening";
+            case STT_READY: return "stt ready for speech";
+            case STT_BEGIN_SPEECH: return "stt beginning of speech";
+            case STT_END_SPEECH: return "stt end of speech";
+            case STT_RESULTS: return "stt results chars=" + a0;
+            case STT_ERROR: return "stt error code=" + a0;
+            case TURN_START: return "turn start chars=" + a0;
+            case TURN_INTENT: return "turn intent=" + intentName(a0) + " recognizeUs=" + a1;
+            case TURN_RESPONSE: return "turn response chars=" + a0 + " turnUs=" + a1;
+            case TURN_ASYNC_RESPONSE: return "turn async response chars=" + a0;
+            case NAME_EXTRACTED: return "name extracted chars=" + a0;
+            case LOCATION_EXTRACTED: return "location extracted chars=" + a0;
+            case WEATHER_FETCH: return "weather fetch chars=" + a0;
+            case WEATHER_RESULT: return "weather result ok=" + (a0 != 0);
+            case GEMINI_REQUEST: return "gemini request chars=" + a0;
+            case GEMINI_RESPONSE: return "gemini response chars=" + a0 + " latencyMs=" + a1;
+            case GEMINI_EMPTY: return "gemini empty response latencyMs=" + a1;
+            case GEMINI_ERROR: return "gemini error route=" + a0 + " latencyMs=" + a1;
+            case GEMINI_QUEUED: return "gemini queued priority=" + a0 + " depth=" + a1;
+            case GEMINI_DISPATCH: return "gemini dispatch priority=" + a0 + " waitMs=" + a1;
+            case GEMINI_RATE_LIMITED: return "gemini rate limited attempt=" + a0 + " backoffMs=" + a1;
+            case GEMINI_ROUTE: return "gemini route=" + a0 + " words=" + a1;
+            case GEMINI_NORMALIZED: return "gemini prompt normalized rawTokens=" + a0 + " saved=" + a1;
+            case GEMINI_CACHE_HIT: return "gemini cache hit chars=" + a0;
+            case OUTBOX_ENQUEUE: return "outbox enqueue chars=" + a0 + " pending=" + a1;
+            case OUTBOX_SEND: return "outbox send chars=" + a0 + " pending=" + a1;
+            case LOCALE_SWITCH: return "locale switch loadUs=" + a0 + " heapDeltaKb=" + a1;
+            case PROFILE_LOAD: return "profile load us=" + a0 + " bytes=" + a1;
+            case PROFILE_FLUSH: return "profile flush writes=" + a0 + " us=" + a1;
+            case MAIN_THREAD_IO: return "main thread io count=" + a0;
+            case EARLY_COMMIT: return "early commit intent=" + a0 + " partials=" + a1;
+            case EARLY_COMMIT_MISS: return "early commit miss committed=" + a0 + " final=" + a1;
+            case TURN_COMPOUND: return "compound turn clauses=" + a0;
+            case METRICS_APPEND: return "metrics append rollups=" + a0 + " fileKb=" + a1;
+            case METRICS_COMPACT: return "metrics compact rollups=" + a0 + " fileKb=" + a1;
+            case STT_RETRY: return "stt retry error=" + a0 + " backoffMs=" + a1;
+            case STT_RECREATE: return "stt recreate error=" + a0 + " count=" + a1;
+            case STT_READY_GAP: return "stt ready gap us=" + a0;
+            case HISTORY_RECALL: return "history recall hits=" + a0 + " topicLen=" + a1;
+            case HISTORY_SEGMENT: return "history segment level=" + a0 + " trigrams=" + a1;
+            case WAKE_WORD: return "wake word score=" + a0 + " template=" + a1;
+            case WAKE_WORD_ENROLL: return "wake word enrolled frames=" + a0 + " templates=" + a1;
+            default: return "event " + code + " a0=" + a0 + " a1=" + a1;
+        }
+    }
+
+    private static String intentName(long ordinal) {
+        ConversationManager.Intent[] intents = ConversationManager.Intent.values();
+        if (ordinal >= 0 && ordinal < intents.length) {
+            return intents[(int) ordinal].name();
+        }
+        return Long.toString(ordinal);
+    }
+}
@@ -8,26 +8,67 @@ import com.google.ai.client.generativeai.GenerativeModel;
 import com.google.ai.client.generativeai.java.GenerativeModelFutures;
 import com.google.ai.client.generativeai.type.Content; // <--- ADD THIS IMPORT
 import com.google.ai.client.generativeai.type.GenerateContentResponse;
+import com.google.ai.client.generativeai.type.GenerationConfig;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class GeminiApiClient {
 
     private static final String TAG = "GeminiApiClient";
-    private static GenerativeModelFutures model;
-    private static final Executor executor = Executors.newSingleThreadExecutor(); // For async operations
+    // One warm model per route, each with that route's model name and generation config
+    private static final Map<ModelRouter.Route, GenerativeModelFutures> models = new EnumMap<>(ModelRouter.Route.class);
+    private static final ModelRouter router = new ModelRouter();
+    private static volatile boolean initialized = false;
+    private static volatile GeminiOutbox outbox; // Set by the service; null means always try the network
+
+    // Normalized prompts feed both the request and the answer cache, so rephrasings with fillers still hit
+    private static final PromptNormalizer normalizer = new PromptNormalizer(); // Guarded by GeminiApiClient.class
+    private static long normalizedRequests, rawPromptTokens, promptTokensSaved;
+
+    private static final int ANSWER_CACHE_SIZE = 32;
+    private static final long ANSWER_CACHE_TTL_MILLIS = 10 * 60 * 1000;
+    private static final Map<String, CachedAnswer> answerCache = new LinkedHashMap<String, CachedAnswer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedAnswer> eldest) {
+            return size() > ANSWER_CACHE_SIZE;
+        }
+    };
+
+    private static final AtomicLong cacheHits = new AtomicLong();
+
+    private static final class CachedAnswer {
+        final String text;
+        final long storedAtMillis;
+
+        CachedAnswer(String text, long storedAtMillis) {
+            this.text = text;
+            this.storedAtMillis = storedAtMillis;
+        }
+    }
+
+    static final String BUSY_RESPONSE = "I'm getting a lot of questions right now. Please ask me again in a moment.";
+
+    // Keeps us under the API quota so peak traffic queues instead of failing with 429s
+    private static final RequestScheduler scheduler = new RequestScheduler(
+            BuildConfig.GEMINI_MAX_QPS, BuildConfig.GEMINI_REQUEST_BURST,
+            BuildConfig.GEMINI_TOKENS_PER_MINUTE, BuildConfig.GEMINI_TOKEN_BURST);
 
     // Callback interface for sending the Gemini response back
     public interface GeminiResponseCallback {
-        void onGeminiResponse(String response);
+        // cached: served from the answer cache without a request, for the turn's metrics
+        void onGeminiResponse(String response, boolean cached);
         void onGeminiError(String error);
+        // Offline: the question went to the outbox and its answer comes later; the caller says so in its language
+        void onQueuedOffline();
     }
 
-    // Initialize the Gemini Model with the API key from BuildConfig
-    public static void initialize() {
-        if (model == null) {
+    // Initialize the Gemini models with the API key from BuildConfig
+    public static synchronized void initialize() {
+        if (!initialized) {
             try {
                 // Access the API key from BuildConfig (ensure you put it in local.properties)
                 String apiKey = BuildConfig.GEMINI_API_KEY;
@@ -36,10 +77,15 @@ public class GeminiApiClient {
                     Log.e(TAG, "Please regenerate your API key and set GEMINI_API_KEY=YOUR_NEW_API_KEY in your local.properties file.");
                     return;
                 }
-                model = GenerativeModelFutures.from(
-                        new GenerativeModel("gemini-pro", apiKey) // Use "gemini-pro" for general chat
-                );
-                Log.d(TAG, "Gemini GenerativeModel initialized.");
+                for (ModelRouter.Route route : ModelRouter.Route.values()) {
+                    GenerationConfig.Builder config = new GenerationConfig.Builder();
+                    config.maxOutputTokens = route.maxOutputTokens;
+                    config.temperature = route.temperature;
+                    models.put(route, GenerativeModelFutures.from(
+                            new GenerativeModel(route.modelName, apiKey, config.build())));
+                }
+                initialized = true;
+                Log.d(TAG, "Gemini GenerativeModels initialized for " + models.size() + " routes.");
             } catch (Exception e) {
                 Log.e(TAG, "Error initializing Gemini model: " + e.getMessage());
                 // Handle initialization error, e.g., show a toast or log
@@ -49,35 +95,157 @@ public class GeminiApiClient {
 
     // Method to send a text query to Gemini and get a response
     public static void generateTextFromInput(String prompt, final GeminiResponseCallback callback) {
-        if (model == null) {
-            callback.onGeminiError("Gemini model not initialized. Check API key configuration.");
+        generateTextFromInput(prompt, null, RequestScheduler.Priority.INTERACTIVE, callback);
+    }
+
+    // Context (an earlier answer) goes along as its own part; routing and the cache only see the prompt
+    public static void generateTextFromInput(String prompt, String context, final GeminiResponseCallback callback) {
+        generateTextFromInput(prompt, context, RequestScheduler.Priority.INTERACTIVE, callback);
+    }
+
+    // Background work (pre-warming, cache refresh) passes BACKGROUND so it never delays a user's turn.
+    // Throws RejectedExecutionException when called on the main thread while the gemini backend is full.
+    public static void generateTextFromInput(String rawPrompt, String context, RequestScheduler.Priority priority,
+                                             final GeminiResponseCallback callback) {
+        String prompt = normalize(rawPrompt);
+        String cached = cachedAnswer(prompt);
+        if (cached != null) {
+            EventLog.record(EventLog.GEMINI_CACHE_HIT, cached.length());
+            cacheHits.incrementAndGet();
+            // Like a network answer, never inside the caller's turn: it records the turn after this returns
+            PeanutExecutors.gemini().execute(() -> callback.onGeminiResponse(cached, true));
+            return;
+        }
+        GeminiOutbox currentOutbox = outbox;
+        if (currentOutbox != null && !currentOutbox.isOnline()) {
+            // Answer right away instead of waiting for the request to time out; the context is not kept
+            currentOutbox.enqueue(prompt);
+            PeanutExecutors.gemini().execute(callback::onQueuedOffline);
+            return;
+        }
+        sendNow(prompt, context, priority, callback);
+    }
+
+    static synchronized String normalize(String rawPrompt) {
+        CharSequence normalized = normalizer.normalize(rawPrompt);
+        if (normalized.length() == 0) {
+            return rawPrompt; // Nothing but fillers; let Gemini make what it can of it
+        }
+        normalizedRequests++;
+        rawPromptTokens += normalizer.rawTokens();
+        promptTokensSaved += normalizer.tokensSaved();
+        EventLog.record(EventLog.GEMINI_NORMALIZED, normalizer.rawTokens(), normalizer.tokensSaved());
+        return normalized.toString();
+    }
+
+    private static synchronized String cachedAnswer(String prompt) {
+        CachedAnswer cached = answerCache.get(prompt);
+        if (cached == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.storedAtMillis > ANSWER_CACHE_TTL_MILLIS) {
+            answerCache.remove(prompt);
+            return null;
+        }
+        return cached.text;
+    }
+
+    private static synchronized void cacheAnswer(String prompt, String answer) {
+        answerCache.put(prompt, new CachedAnswer(answer, System.currentTimeMillis()));
+    }
+
+    public static void attachOutbox(GeminiOutbox newOutbox) {
+        outbox = newOutbox;
+    }
+
+    // Bypasses the outbox; used by the outbox itself when draining
+    static void sendNow(String prompt, String context, RequestScheduler.Priority priority,
+                        final GeminiResponseCallback callback) {
+        if (!initialized) {
+            // Like any other answer, never on the caller's thread, which may be taking the turn
+            PeanutExecutors.gemini().execute(() -> callback.onGeminiError("Gemini model not initialized. Check API key configuration."));
             return;
         }
 
-        Log.d(TAG, "Sending prompt to Gemini: " + prompt);
+        ModelRouter.Route route = router.route(prompt);
+        EventLog.record(EventLog.GEMINI_ROUTE, route.ordinal(), ModelRouter.countWords(prompt));
+        int contextLength = context != null ? context.length() + 1 : 0;
+        scheduler.submit(priority, estimateTokens(prompt, route) + contextLength / 4, new RequestScheduler.Call() {
+            @Override
+            public void start(RequestScheduler.Completion completion) {
+                send(prompt, context, route, callback, completion);
+            }
+
+            @Override
+            public void onGiveUp(Throwable lastError) {
+                callback.onGeminiError(BUSY_RESPONSE);
+            }
+        });
+    }
+
+    private static void send(String prompt, String context, ModelRouter.Route route, GeminiResponseCallback callback,
+                             RequestScheduler.Completion completion) {
+        EventLog.record(EventLog.GEMINI_REQUEST, prompt.length());
+        final long requestStartMillis = System.currentTimeMillis();
 
-        // --- MODIFIED LINE HERE ---
-        ListenableFuture<GenerateContentResponse> responseFuture =
-                model.generateContent(new Content.Builder().addText(prompt).build());
-        // --------------------------
+        Content.Builder content = new Content.Builder();
+        if (context != null) {
+            content.addText(context);
+        }
+        content.addText(prompt);
+        ListenableFuture<GenerateContentResponse> responseFuture = models.get(route).generateContent(content.build());
 
         // Add a listener to handle the asynchronous response
         responseFuture.addListener(() -> {
             try {
                 GenerateContentResponse response = responseFuture.get(); // Get the actual response
                 String generatedText = response.getText();
+                long latencyMillis = System.currentTimeMillis() - requestStartMillis;
+                completion.done();
+                router.recordResult(route, latencyMillis, true);
                 if (generatedText != null && !generatedText.isEmpty()) {
-                    Log.d(TAG, "Gemini response: " + generatedText);
-                    callback.onGeminiResponse(generatedText);
+                    EventLog.record(EventLog.GEMINI_RESPONSE, generatedText.length(), latencyMillis);
+                    if (context == null) { // An answer shaped by context is no answer to the bare prompt
+                        cacheAnswer(prompt, generatedText);
+                    }
+                    callback.onGeminiResponse(generatedText, false);
                 } else {
-                    Log.w(TAG, "Gemini returned an empty response.");
-                    callback.onGeminiResponse("I'm sorry, I couldn't generate a clear response from my knowledge base.");
+                    EventLog.record(EventLog.GEMINI_EMPTY, 0, latencyMillis);
+                    callback.onGeminiResponse("I'm sorry, I couldn't generate a clear response from my knowledge base.", false);
                 }
             } catch (Exception e) {
+                long latencyMillis = System.currentTimeMillis() - requestStartMillis;
+                router.recordResult(route, latencyMillis, false);
+                EventLog.record(EventLog.GEMINI_ERROR, route.ordinal(), latencyMillis);
+                if (RequestScheduler.isRateLimited(e)) {
+                    // The scheduler backs off and retries; the user just hears the answer a little later
+                    completion.rateLimited(e);
+                    return;
+                }
+                completion.done();
                 Log.e(TAG, "Error getting Gemini response: " + e.getMessage(), e);
+                EventLog.dumpToLogcat("Gemini error");
                 // Handle various exceptions, e.g., network issues, API errors
                 callback.onGeminiError("I'm sorry, I encountered an error trying to process that. Please try again.");
             }
-        }, executor); // Execute the listener on the defined executor (background thread)
+        }, PeanutExecutors.gemini()); // Listeners run on the bounded Gemini backend, never the main thread
+    }
+
+    // Rough count: ~4 characters per token for English prompts, plus the route's reply cap
+    static int estimateTokens(String prompt, ModelRouter.Route route) {
+        return prompt.length() / 4 + 1 + route.maxOutputTokens;
+    }
+
+    public static String describeScheduler() {
+        return scheduler.describe();
+    }
+
+    public static synchronized String describePrompts() {
+        return "normalized=" + normalizedRequests + " rawTokens=" + rawPromptTokens + " tokensSaved=" + promptTokensSaved
+                + " cachedAnswers=" + answerCache.size() + " cacheHits=" + cacheHits.get();
+    }
+
+    public static String describeRoutes() {
+        return router.describe();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,355 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds Gemini questions asked while offline and answers them once connectivity returns.
+ *
+ * The outbox is a small file rewritten atomically (temp file + rename) on a background thread
+ * whenever it changes, so queued questions survive the service being killed. When the
+ * {@link ConnectivitySource} reports the network is back, pending questions are sent one at a time,
+ * {@code drainSpacingMillis} apart, through the {@link Sender}; each answer is handed to the
+ * {@link Delivery} (a notification) and kept until {@link #takeAnswered()} collects it for the
+ * next conversation. A failed send is retried after {@code retryBaseMillis}, doubling up to
+ * {@link #MAX_RETRY_DELAY_MILLIS} while it keeps failing.
+ */
+public class GeminiOutbox implements ConnectivitySource.Listener {
+
+    private static final String TAG = "GeminiOutbox";
+
+    static final String OUTBOX_FILE = "gemini.outbox";
+    private static final String OUTBOX_TEMP_FILE = "gemini.outbox.tmp";
+    private static final int OUTBOX_MAGIC = 0x504E4F31; // "PNO1"
+
+    public static final int MAX_ENTRIES = 50;
+    public static final long DEFAULT_DRAIN_SPACING_MILLIS = 1000;
+    public static final long DEFAULT_RETRY_BASE_MILLIS = 5000;
+    public static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_TEXT_BYTES = 64 * 1024;
+
+    /**
+     * Sends one query; must call back exactly once. {@code context} (may be null) is earlier
+     * conversation sent alongside the prompt; it does not change how the prompt is routed or cached.
+     */
+    public interface Sender {
+        void send(String prompt, String context, GeminiApiClient.GeminiResponseCallback callback);
+    }
+
+    /** Told about each answer as soon as it arrives. */
+    public interface Delivery {
+        void onAnswer(Entry entry);
+    }
+
+    public static final class Entry {
+        public final long id;
+        public final long queuedAtMillis;
+        public final String prompt;
+        public String answer; // Null while pending
+
+        Entry(long id, long queuedAtMillis, String prompt, String answer) {
+            this.id = id;
+            this.queuedAtMillis = queuedAtMillis;
+            this.prompt = prompt;
+            this.answer = answer;
+        }
+    }
+
+    private final File directory;
+    private final ConnectivitySource connectivity;
+    private final Sender sender;
+    private final long drainSpacingMillis;
+    private final long retryBaseMillis;
+    private final ScheduledExecutorService executor;
+    private volatile Delivery delivery;
+
+    // Guarded by this
+    private final List<Entry> entries = new ArrayList<>();
+    private long nextId = 1;
+    private boolean draining;
+    private int failedSends; // In a row; sets the retry delay
+    private ScheduledFuture<?> retry; // Cancelled by close() so shutdown doesn't wait for it
+
+    public GeminiOutbox(File directory, ConnectivitySource connectivity, Sender sender, long drainSpacingMillis) {
+        this(directory, connectivity, sender, drainSpacingMillis, DEFAULT_RETRY_BASE_MILLIS);
+    }
+
+    GeminiOutbox(File directory, ConnectivitySource connectivity, Sender sender, long drainSpacingMillis,
+                 long retryBaseMillis) {
+        this.directory = directory;
+        this.connectivity = connectivity;
+        this.sender = sender;
+        this.drainSpacingMillis = drainSpacingMillis;
+        this.retryBaseMillis = retryBaseMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "peanut-outbox"));
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create outbox directory " + directory);
+        }
+        load();
+        connectivity.setListener(this);
+        if (connectivity.isOnline() && pendingCount() > 0) {
+            executor.execute(this::drainNext);
+        }
+    }
+
+    public void setDelivery(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    public boolean isOnline() {
+        return connectivity.isOnline();
+    }
+
+    /** Queues a question for later; the oldest pending question is dropped once the outbox is full. */
+    public void enqueue(String prompt) {
+        synchronized (this) {
+            if (entries.size() >= MAX_ENTRIES) {
+                Log.w(TAG, "Outbox full; dropping oldest entry.");
+                entries.remove(0);
+            }
+            entries.add(new Entry(nextId++, System.currentTimeMillis(), prompt, null));
+        }
+        EventLog.record(EventLog.OUTBOX_ENQUEUE, prompt.length(), pendingCount());
+        executor.execute(this::persist);
+    }
+
+    /** Removes and returns the answered entries, oldest first, for speaking at the next session. */
+    public List<Entry> takeAnswered() {
+        List<Entry> answered = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.answer != null) {
+                    answered.add(entry);
+                    it.remove();
+                }
+            }
+        }
+        if (!answered.isEmpty()) {
+            executor.execute(this::persist);
+        }
+        return answered;
+    }
+
+    public synchronized int pendingCount() {
+        int pending = 0;
+        for (Entry entry : entries) {
+            if (entry.answer == null) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    public void close() {
+        PeanutExecutors.checkNotMainThread("Outbox close");
+        connectivity.setListener(null);
+        synchronized (this) {
+            if (retry != null) {
+                retry.cancel(false);
+            }
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(2, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Outbox writer did not finish in time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- Draining ---
+
+    @Override
+    public void onConnectivityChanged(boolean online) {
+        if (online && !executor.isShutdown()) {
+            executor.execute(this::drainNext);
+        }
+    }
+
+    // Runs on the outbox thread: sends the oldest pending entry, then schedules the next one
+    private void drainNext() {
+        Entry next = null;
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            for (Entry entry : entries) {
+                if (entry.answer == null) {
+                    next = entry;
+                    break;
+                }
+            }
+            if (next == null || !connectivity.isOnline()) {
+                return;
+            }
+            draining = true;
+        }
+        Entry sending = next;
+        EventLog.record(EventLog.OUTBOX_SEND, sending.prompt.length(), pendingCount());
+        try {
+            send(sending);
+        } catch (RuntimeException e) {
+            retryLater(e.toString()); // Otherwise draining stays set and nothing is sent until a restart
+        }
+    }
+
+    private void send(Entry sending) {
+        sender.send(sending.prompt, null, new GeminiApiClient.GeminiResponseCallback() {
+            @Override
+            public void onGeminiResponse(String response, boolean cached) {
+                synchronized (GeminiOutbox.this) {
+                    sending.answer = response;
+                    draining = false;
+                    failedSends = 0;
+                    retry = null; // Already ran; close() has nothing to cancel
+                }
+                schedule(() -> {
+                    persist();
+                    Delivery current = delivery;
+                    if (current != null) {
+                        current.onAnswer(sending);
+                    }
+                    drainNext();
+                }, drainSpacingMillis);
+            }
+
+            @Override
+            public void onGeminiError(String error) {
+                retryLater(error);
+            }
+
+            @Override
+            public void onQueuedOffline() {
+                retryLater("offline"); // sendNow never queues; if it did, the entry is still pending here
+            }
+        });
+    }
+
+    // Keeps the entry pending and tries again after a backoff; a connectivity change also retries right away
+    private void retryLater(String error) {
+        long delayMillis;
+        synchronized (this) {
+            draining = false;
+            delayMillis = retryDelayMillis(retryBaseMillis, failedSends++);
+        }
+        Log.w(TAG, "Outbox send failed: " + error + "; retrying in " + delayMillis + " ms");
+        ScheduledFuture<?> scheduled = schedule(this::drainNext, delayMillis);
+        synchronized (this) {
+            retry = scheduled;
+        }
+    }
+
+    static long retryDelayMillis(long baseMillis, int failures) {
+        return Math.min(baseMillis << Math.min(failures, 16), MAX_RETRY_DELAY_MILLIS);
+    }
+
+    private ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        if (!executor.isShutdown()) {
+            return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        return null;
+    }
+
+    // --- Persistence ---
+
+    private void load() {
+        PeanutExecutors.checkNotMainThread("Outbox load");
+        File file = new File(directory, OUTBOX_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != OUTBOX_MAGIC) {
+                Log.w(TAG, "Ignoring outbox with unknown format.");
+                return;
+            }
+            long storedNextId = in.readLong();
+            int count = in.readInt();
+            List<Entry> loaded = new ArrayList<>(Math.min(count, MAX_ENTRIES));
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                long queuedAt = in.readLong();
+                String prompt = readText(in);
+                String answer = in.readBoolean() ? readText(in) : null;
+                loaded.add(new Entry(id, queuedAt, prompt, answer));
+            }
+            synchronized (this) {
+                entries.addAll(loaded);
+                nextId = storedNextId;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read outbox; starting empty: " + e.getMessage(), e);
+        }
+    }
+
+    // Runs on the outbox thread
+    private void persist() {
+        List<Entry> copy;
+        long storedNextId;
+        synchronized (this) {
+            copy = new ArrayList<>(entries);
+            storedNextId = nextId;
+        }
+        File temp = new File(directory, OUTBOX_TEMP_FILE);
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(OUTBOX_MAGIC);
+            out.writeLong(storedNextId);
+            out.writeInt(copy.size());
+            for (Entry entry : copy) {
+                out.writeLong(entry.id);
+                out.writeLong(entry.queuedAtMillis);
+                writeText(out, entry.prompt);
+                String answer = entry.answer;
+                out.writeBoolean(answer != null);
+                if (answer != null) {
+                    writeText(out, answer);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Outbox write failed: " + e.getMessage(), e);
+            return;
+        }
+        if (!temp.renameTo(new File(directory, OUTBOX_FILE))) {
+            Log.e(TAG, "Outbox rename failed.");
+        }
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_TEXT_BYTES);
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_TEXT_BYTES) {
+            throw new IOException("Bad text length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
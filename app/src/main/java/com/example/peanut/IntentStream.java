@@ -0,0 +1,123 @@
+package com.example.peanut;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Routes partial transcripts while the user is still speaking, so a short local request can be
+ * answered before the recognizer finalizes.
+ *
+ * Each partial is normalized and routed through the {@link SkillRegistry} the same way a final
+ * transcript is. The stream keeps a score for the leading route: the number of consecutive
+ * partials it has led. It commits when the leader
+ * <ul>
+ *   <li>is one of the early intents (answers that don't depend on what else the user says),</li>
+ *   <li>has led for {@link #DEFAULT_STABLE_PARTIALS} partials in a row, and</li>
+ *   <li>cannot be overtaken by the next word: the end of the partial is not the start of a
+ *       higher-priority trigger phrase, and</li>
+ *   <li>is the whole request: the partial neither ends on a conjunction or clause break nor
+ *       splits into clauses ({@link UtteranceSplitter}), so "what time is it and tell me a"
+ *       waits for the final transcript and every clause is answered.</li>
+ * </ul>
+ * After a commit the stream ignores further partials until {@link #reset()}. All methods are called
+ * on the main thread; offering a partial without a clause boundary does not allocate.
+ */
+public final class IntentStream {
+
+    public static final int DEFAULT_STABLE_PARTIALS = 2;
+
+    /** Local intents whose answer is the same however the sentence ends. */
+    public static final Set<ConversationManager.Intent> DEFAULT_EARLY_INTENTS = EnumSet.of(
+            ConversationManager.Intent.WHAT_TIME,
+            ConversationManager.Intent.TELL_JOKE,
+            ConversationManager.Intent.GOODBYE,
+            ConversationManager.Intent.THANK_YOU,
+            ConversationManager.Intent.HOW_ARE_YOU);
+
+    private final Set<ConversationManager.Intent> earlyIntents;
+    private final int stablePartials;
+
+    private final UtteranceSplitter splitter = new UtteranceSplitter();
+    private final StringBuilder text = new StringBuilder(128); // Normalized latest partial
+    private int leader = SkillRegistry.NO_ROUTE;
+    private int leaderScore;
+    private int partials;
+    private int committedRoute = SkillRegistry.NO_ROUTE;
+
+    public IntentStream() {
+        this(DEFAULT_EARLY_INTENTS, DEFAULT_STABLE_PARTIALS);
+    }
+
+    public IntentStream(Set<ConversationManager.Intent> earlyIntents, int stablePartials) {
+        this.earlyIntents = EnumSet.copyOf(earlyIntents);
+        this.stablePartials = Math.max(1, stablePartials);
+    }
+
+    /** Starts a new utterance. */
+    public void reset() {
+        text.setLength(0);
+        leader = SkillRegistry.NO_ROUTE;
+        leaderScore = 0;
+        partials = 0;
+        committedRoute = SkillRegistry.NO_ROUTE;
+    }
+
+    /**
+     * Feeds the recognizer's latest hypothesis for the whole utterance so far. Returns true exactly
+     * once per utterance, on the partial that commits; {@link #committedText()} is then the input to
+     * answer.
+     */
+    public boolean offer(CharSequence partial, SkillRegistry skills) {
+        if (isCommitted() || partial == null) {
+            return false;
+        }
+        partials++;
+        normalize(partial);
+        int route = skills.route(text);
+        if (route == SkillRegistry.NO_ROUTE || route != leader) {
+            leader = route;
+            leaderScore = route == SkillRegistry.NO_ROUTE ? 0 : 1;
+        } else {
+            leaderScore++;
+        }
+        if (leaderScore < stablePartials || !earlyIntents.contains(skills.intentOf(route))
+                || skills.isPrefixOfHigherPriorityPhrase(text, route)
+                || UtteranceSplitter.endsAtBoundary(text) || !splitter.split(text, skills).isEmpty()) {
+            return false;
+        }
+        committedRoute = route;
+        EventLog.record(EventLog.EARLY_COMMIT, skills.intentOf(route).ordinal(), partials);
+        return true;
+    }
+
+    public boolean isCommitted() {
+        return committedRoute != SkillRegistry.NO_ROUTE;
+    }
+
+    /** The route committed to, or {@link SkillRegistry#NO_ROUTE}. */
+    public int committedRoute() {
+        return committedRoute;
+    }
+
+    /** The normalized partial the commit was made on; only valid until the next {@link #reset()}. */
+    public CharSequence committedText() {
+        return text;
+    }
+
+    /** Partials offered since the last {@link #reset()}. */
+    public int partialCount() {
+        return partials;
+    }
+
+    // Same normalization as ConversationManager applies to a final transcript
+    private void normalize(CharSequence partial) {
+        int start = 0;
+        int end = partial.length();
+        while (start < end && Character.isWhitespace(partial.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(partial.charAt(end - 1))) end--;
+        text.setLength(0);
+        for (int i = start; i < end; i++) {
+            text.append(Character.toLowerCase(partial.charAt(i)));
+        }
+    }
+}
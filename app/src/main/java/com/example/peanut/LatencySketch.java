@@ -0,0 +1,144 @@
+package com.example.peanut;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Fixed-size, mergeable latency histogram. Values are microseconds, bucketed log-linearly: exact
+ * below 8, then 8 buckets per power of two, so a percentile read back is within 12.5% of the true
+ * value up to several days. Two sketches merge by adding counts, which makes per-hour, per-device
+ * rollups combinable in any order.
+ *
+ * Stored sparsely as {@code [varint buckets]([varint index][varint count])*}. Plain Java: the
+ * offline reader uses it too. Not thread-safe.
+ */
+public final class LatencySketch {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 39; // 2^39us is about six days
+    static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+
+    public void record(long micros) {
+        counts[bucketOf(micros)]++;
+        total++;
+    }
+
+    public void merge(LatencySketch other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+    }
+
+    public long count() {
+        return total;
+    }
+
+    /** The value at quantile {@code q} (0..1), or -1 when empty. */
+    public long percentile(double q) {
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return midpointOf(i);
+            }
+        }
+        return midpointOf(BUCKETS - 1);
+    }
+
+    // --- Buckets ---
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (1L << exponent) + ((long) sub << (exponent - SUB_BUCKET_BITS));
+    }
+
+    private static long midpointOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        return lowerBoundOf(bucket) + (1L << (exponent - SUB_BUCKET_BITS)) / 2;
+    }
+
+    // --- Encoding ---
+
+    public void write(DataOutput out) throws IOException {
+        int used = 0;
+        for (long c : counts) {
+            if (c != 0) {
+                used++;
+            }
+        }
+        writeVarint(out, used);
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                writeVarint(out, i);
+                writeVarint(out, counts[i]);
+            }
+        }
+    }
+
+    public static LatencySketch read(DataInput in) throws IOException {
+        LatencySketch sketch = new LatencySketch();
+        int used = (int) readVarint(in);
+        if (used < 0 || used > BUCKETS) {
+            throw new IOException("Bad sketch bucket count " + used);
+        }
+        for (int i = 0; i < used; i++) {
+            long bucket = readVarint(in);
+            long count = readVarint(in);
+            if (bucket < 0 || bucket >= BUCKETS || count < 0) {
+                throw new IOException("Bad sketch bucket " + bucket);
+            }
+            sketch.counts[(int) bucket] += count;
+            sketch.total += count;
+        }
+        return sketch;
+    }
+
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Picks the locale pack (responses plus trigger phrases) for the configured locale and keeps only
+ * that one resident.
+ *
+ * A pack is the asset {@code responses.txt} for English or {@code responses-<tag>.txt} for any
+ * other locale. Nothing is read until {@link #activate} asks for a pack; the previous pack's
+ * {@link ResponseBank} and compiled {@link SkillRegistry} are dropped as soon as the new one is in
+ * place, so a switch costs one pack load and the old tables become garbage. Load time and the heap
+ * delta of each switch are recorded for {@code dumpsys}.
+ */
+public class LocalePacks {
+
+    private static final String TAG = "LocalePacks";
+
+    public static final String DEFAULT_LANGUAGE = "en";
+
+    /** Opens the pack stored under an asset name; the bank may read lazily. */
+    public interface Loader {
+        ResponseBank open(String assetName);
+    }
+
+    /** A loaded pack: the responses plus the routing table compiled from its phrases. */
+    public static final class Pack {
+        public final String tag;
+        public final Locale locale;
+        public final ResponseBank responses;
+        public final SkillRegistry skills;
+
+        Pack(String tag, ResponseBank responses, SkillRegistry skills) {
+            this.tag = tag;
+            this.locale = Locale.forLanguageTag(tag);
+            this.responses = responses;
+            this.skills = skills;
+        }
+    }
+
+    private final Loader loader;
+    private final Set<String> availableTags;
+
+    // Guarded by this
+    private Pack active;
+    private int switchCount;
+    private long lastLoadNanos;
+    private long lastHeapDeltaBytes;
+
+    /** @param availableTags tags that have a pack, e.g. {@code "es"}; English is always available. */
+    public LocalePacks(Loader loader, Collection<String> availableTags) {
+        this.loader = loader;
+        this.availableTags = new HashSet<>(availableTags);
+        this.availableTags.add(DEFAULT_LANGUAGE);
+    }
+
+    /** The pack tags found among asset file names such as {@code responses-es.txt}. */
+    public static Set<String> tagsFromAssetNames(String[] assetNames) {
+        Set<String> tags = new HashSet<>();
+        for (String name : assetNames) {
+            if (name.startsWith("responses-") && name.endsWith(".txt")) {
+                tags.add(name.substring("responses-".length(), name.length() - ".txt".length()));
+            }
+        }
+        return tags;
+    }
+
+    /** The most specific available pack for {@code requested}: full tag, then language, then English. */
+    public String resolve(Locale requested) {
+        String tag = requested.toLanguageTag();
+        if (availableTags.contains(tag)) {
+            return tag;
+        }
+        String language = requested.getLanguage();
+        if (availableTags.contains(language)) {
+            return language;
+        }
+        return DEFAULT_LANGUAGE;
+    }
+
+    /**
+     * Makes the pack for {@code requested} the active one, loading it if it is not already active.
+     * The returned pack's {@link Pack#locale} is what TTS and STT should use.
+     */
+    public synchronized Pack activate(Locale requested) {
+        String tag = resolve(requested);
+        if (active != null && active.tag.equals(tag)) {
+            return active;
+        }
+        active = null; // Let the old pack go before the new one is built
+        Runtime runtime = Runtime.getRuntime();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+
+        ResponseBank responses = loader.open(ResponseBank.assetNameFor(tag));
+        SkillRegistry skills = BuiltInSkills.createRegistry(responses); // Reads the pack and compiles its phrases
+        Pack pack = new Pack(tag, responses, skills);
+
+        lastLoadNanos = System.nanoTime() - start;
+        lastHeapDeltaBytes = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+        switchCount++;
+        active = pack;
+        EventLog.record(EventLog.LOCALE_SWITCH, lastLoadNanos / 1000L, lastHeapDeltaBytes / 1024L);
+        Log.d(TAG, "Activated locale pack " + tag + " in " + lastLoadNanos / 1000L + "us.");
+        return pack;
+    }
+
+    /**
+     * The locale TTS and STT should use with {@code pack}: the requested one when the pack speaks
+     * its language (so "en-GB" keeps a British voice on the English pack), the pack's own otherwise.
+     */
+    public static Locale speechLocale(Locale requested, Pack pack) {
+        return requested.getLanguage().equals(pack.locale.getLanguage()) ? requested : pack.locale;
+    }
+
+    public synchronized Pack active() {
+        return active;
+    }
+
+    public synchronized long lastLoadNanos() {
+        return lastLoadNanos;
+    }
+
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder("locale: ");
+        sb.append(active != null ? active.tag : "none")
+                .append(" available=").append(availableTags)
+                .append(" switches=").append(switchCount)
+                .append(" lastLoadUs=").append(lastLoadNanos / 1000L)
+                .append(" lastHeapDeltaKb=").append(lastHeapDeltaBytes / 1024L);
+        return sb.toString();
+    }
+}
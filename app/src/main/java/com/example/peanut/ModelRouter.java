@@ -0,0 +1,158 @@
+package com.example.peanut;
+
+import java.util.Locale;
+
+/**
+ * Picks the Gemini model and generation settings for a prompt from cheap surface features
+ * (word count, leading question word, open-ended cue words), and keeps per-route counters so the
+ * routes can be tuned for cost and latency.
+ *
+ * Every answer is spoken aloud, so output caps are tight: a quick fact needs a sentence or two,
+ * and even open-ended answers are capped well below what anyone wants to listen to.
+ */
+public final class ModelRouter {
+
+    public enum Route {
+        // Short factual question: "what is the capital of lesotho"
+        QUICK_FACT("gemini-1.5-flash", 96, 0.2f),
+        // Ordinary conversational turn
+        SPOKEN("gemini-1.5-flash", 192, 0.7f),
+        // Explanations, stories, comparisons and long prompts
+        OPEN_ENDED("gemini-1.5-pro", 384, 0.8f);
+
+        public final String modelName;
+        public final int maxOutputTokens;
+        public final float temperature;
+
+        Route(String modelName, int maxOutputTokens, float temperature) {
+            this.modelName = modelName;
+            this.maxOutputTokens = maxOutputTokens;
+            this.temperature = temperature;
+        }
+    }
+
+    static final int QUICK_FACT_MAX_WORDS = 12;
+    static final int OPEN_ENDED_MIN_WORDS = 25;
+
+    private static final String[] QUESTION_WORDS = {
+            "what", "who", "when", "where", "which", "how many", "how much", "how far", "how old", "how long", "is", "are", "does", "did",
+    };
+    private static final String[] OPEN_ENDED_CUES = {
+            "explain", "describe", "tell me about", "tell me more", "story", "why", "compare", "difference between",
+            "how does", "how do", "write", "poem", "ideas", "advice", "should i", "summarize", "summarise",
+    };
+
+    private final int routeCount = Route.values().length;
+    private final long[] requests = new long[routeCount];
+    private final long[] failures = new long[routeCount];
+    private final long[] totalLatencyMillis = new long[routeCount];
+    private final long[] maxLatencyMillis = new long[routeCount];
+
+    /** Classifies a prompt without allocating; safe to call from any thread. */
+    public Route route(CharSequence prompt) {
+        int words = countWords(prompt);
+        if (words >= OPEN_ENDED_MIN_WORDS || containsAny(prompt, OPEN_ENDED_CUES)) {
+            return Route.OPEN_ENDED;
+        }
+        if (words <= QUICK_FACT_MAX_WORDS && startsWithAny(prompt, QUESTION_WORDS)) {
+            return Route.QUICK_FACT;
+        }
+        return Route.SPOKEN;
+    }
+
+    // --- Metrics ---
+
+    public synchronized void recordResult(Route route, long latencyMillis, boolean success) {
+        int r = route.ordinal();
+        requests[r]++;
+        if (!success) {
+            failures[r]++;
+        }
+        totalLatencyMillis[r] += latencyMillis;
+        maxLatencyMillis[r] = Math.max(maxLatencyMillis[r], latencyMillis);
+    }
+
+    public synchronized long requestCount(Route route) {
+        return requests[route.ordinal()];
+    }
+
+    public synchronized long averageLatencyMillis(Route route) {
+        int r = route.ordinal();
+        return requests[r] == 0 ? 0 : totalLatencyMillis[r] / requests[r];
+    }
+
+    /** One line per route for dumpsys. */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Route route : Route.values()) {
+            int r = route.ordinal();
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(route.name().toLowerCase(Locale.US))
+                    .append(" model=").append(route.modelName)
+                    .append(" maxTokens=").append(route.maxOutputTokens)
+                    .append(" requests=").append(requests[r])
+                    .append(" failures=").append(failures[r])
+                    .append(" avgMs=").append(requests[r] == 0 ? 0 : totalLatencyMillis[r] / requests[r])
+                    .append(" maxMs=").append(maxLatencyMillis[r]);
+        }
+        return sb.toString();
+    }
+
+    // --- Features ---
+
+    static int countWords(CharSequence text) {
+        int words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            boolean letter = !Character.isWhitespace(text.charAt(i));
+            if (letter && !inWord) {
+                words++;
+            }
+            inWord = letter;
+        }
+        return words;
+    }
+
+    // Case-insensitive whole-word prefix match, skipping leading whitespace
+    private static boolean startsWithAny(CharSequence text, String[] prefixes) {
+        int start = 0;
+        while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        for (String prefix : prefixes) {
+            if (matchesAt(text, start, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsAny(CharSequence text, String[] phrases) {
+        for (int i = 0; i < text.length(); i++) {
+            if (i > 0 && Character.isLetterOrDigit(text.charAt(i - 1))) {
+                continue; // Only try at word starts
+            }
+            for (String phrase : phrases) {
+                if (matchesAt(text, i, phrase)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAt(CharSequence text, int offset, String phrase) {
+        int end = offset + phrase.length();
+        if (end > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < phrase.length(); i++) {
+            if (Character.toLowerCase(text.charAt(offset + i)) != phrase.charAt(i)) {
+                return false;
+            }
+        }
+        return end == text.length() || !Character.isLetterOrDigit(text.charAt(end));
+    }
+}
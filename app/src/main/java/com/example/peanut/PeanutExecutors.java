@@ -0,0 +1,330 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Peanut's thread model. The main thread runs turns and nothing else; everything that waits on
+ * disk or the network runs on one of a few named, bounded backends:
+ * <ul>
+ *   <li>{@link Kind#GEMINI} - Gemini response listeners,</li>
+ *   <li>{@link Kind#WEATHER} - weather lookups,</li>
+ *   <li>{@link Kind#IO} - service startup loads, locale switches and closing the stores.</li>
+ * </ul>
+ * (The journal, outbox and profile stores keep their own single writer threads.)
+ *
+ * Each backend has a fixed thread count, a bounded queue and a {@link Rejection} policy, and
+ * exports queue depth, active tasks and time from submission to completion for {@code dumpsys}.
+ * {@link #shutdownAll()} is the service's {@code onDestroy} hook; a backend used again afterwards
+ * is recreated once the old one has finished its queue. Where the runtime has virtual threads
+ * (JDK 21+, {@code -Dpeanut.virtualThreads=true}) the backends run on them; Android uses platform
+ * threads.
+ *
+ * Code that touches disk calls {@link #checkNotMainThread} so I/O that slips onto the main thread
+ * is counted, logged and caught by tests.
+ */
+public final class PeanutExecutors {
+
+    private static final String TAG = "PeanutExecutors";
+
+    /** What happens to work submitted to a full backend. */
+    public enum Rejection {
+        ABORT,          // Throw RejectedExecutionException; the caller answers "busy"
+        CALLER_RUNS,    // Run on the submitting thread; from the main thread, ABORT instead
+        DISCARD_OLDEST  // Drop the oldest queued task to make room
+    }
+
+    public enum Kind {
+        // Rejected listeners run on the network thread that completed the request, so no answer is lost
+        GEMINI("gemini", 2, 32, Rejection.CALLER_RUNS),
+        WEATHER("weather", 1, 8, Rejection.ABORT),
+        IO("io", 1, 64, Rejection.ABORT);
+
+        final String backendName;
+        final int threads;
+        final int queueCapacity;
+        final Rejection rejection;
+
+        Kind(String backendName, int threads, int queueCapacity, Rejection rejection) {
+            this.backendName = backendName;
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.rejection = rejection;
+        }
+    }
+
+    private static final Backend[] backends = new Backend[Kind.values().length]; // Guarded by PeanutExecutors.class
+    private static volatile boolean preferVirtualThreads = Boolean.getBoolean("peanut.virtualThreads");
+
+    // Delayed tasks wait here and are then handed to their backend; it never runs the work itself
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "peanut-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static volatile Thread mainThread;
+    private static final AtomicLong mainThreadIo = new AtomicLong();
+
+    private PeanutExecutors() {
+    }
+
+    public static Backend gemini() {
+        return get(Kind.GEMINI);
+    }
+
+    public static Backend weather() {
+        return get(Kind.WEATHER);
+    }
+
+    public static Backend io() {
+        return get(Kind.IO);
+    }
+
+    public static synchronized Backend get(Kind kind) {
+        Backend current = backends[kind.ordinal()];
+        if (current == null || current.isShutdown()) {
+            Backend fresh = new Backend(kind.backendName, kind.threads, kind.queueCapacity, kind.rejection, preferVirtualThreads);
+            if (current != null) {
+                // Work queued before the last onDestroy (closing stores) finishes before anything new starts
+                Backend old = current;
+                fresh.execute(() -> old.awaitTermination(5, TimeUnit.SECONDS));
+            }
+            backends[kind.ordinal()] = fresh;
+            current = fresh;
+        }
+        return current;
+    }
+
+    /** Stops accepting work on every backend; queued tasks still run. Called from {@code onDestroy}. */
+    public static synchronized void shutdownAll() {
+        for (Backend backend : backends) {
+            if (backend != null) {
+                backend.shutdown();
+            }
+        }
+    }
+
+    /** Takes effect for backends created after the call. Ignored where virtual threads don't exist. */
+    public static void setPreferVirtualThreads(boolean prefer) {
+        preferVirtualThreads = prefer;
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        return virtualThreadFactory("probe") != null;
+    }
+
+    public static synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Backend backend : backends) {
+            if (backend != null) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                sb.append(backend.describe());
+            }
+        }
+        sb.append(sb.length() > 0 ? "\n" : "").append("main thread I/O: ").append(mainThreadIo.get());
+        return sb.toString();
+    }
+
+    // --- Main Thread Guard ---
+
+    public static void setMainThread(Thread thread) {
+        mainThread = thread;
+    }
+
+    /** Called where code reads or writes files; counts and logs it when that is the main thread. */
+    static void checkNotMainThread(String operation) {
+        if (Thread.currentThread() == mainThread) {
+            long count = mainThreadIo.incrementAndGet();
+            EventLog.record(EventLog.MAIN_THREAD_IO, count);
+            Log.w(TAG, operation + " ran on the main thread.");
+        }
+    }
+
+    public static long mainThreadIoCount() {
+        return mainThreadIo.get();
+    }
+
+    // --- Backends ---
+
+    /** A named pool with a bounded queue, a rejection policy and completion timing. */
+    public static final class Backend implements Executor {
+        private final String name;
+        private final Rejection rejection;
+        private final int queueCapacity;
+        private final ThreadPoolExecutor pool;
+        private final boolean virtual;
+        private final AtomicInteger delayed = new AtomicInteger();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong totalCompletionNanos = new AtomicLong();
+        private final AtomicLong maxCompletionNanos = new AtomicLong();
+
+        Backend(String name, int threads, int queueCapacity, Rejection rejection, boolean preferVirtual) {
+            this.name = name;
+            this.rejection = rejection;
+            this.queueCapacity = queueCapacity;
+            ThreadFactory factory = preferVirtual ? virtualThreadFactory("peanut-" + name + "-") : null;
+            this.virtual = factory != null;
+            if (factory == null) {
+                AtomicInteger count = new AtomicInteger();
+                factory = r -> new Thread(r, "peanut-" + name + "-" + count.incrementAndGet());
+            }
+            this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), factory, this::reject);
+            this.pool.allowCoreThreadTimeOut(true); // An idle service holds no threads
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            long submittedNanos = System.nanoTime();
+            pool.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, name + " task failed: " + e.getMessage(), e);
+                } finally {
+                    recordCompletion(System.nanoTime() - submittedNanos);
+                }
+            });
+        }
+
+        /**
+         * Runs {@code task} after {@code delayMillis}. Delayed tasks count against the queue bound,
+         * and a full backend always rejects them with {@link RejectedExecutionException}.
+         */
+        public void schedule(Runnable task, long delayMillis) {
+            if (isShutdown()) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            if (delayed.incrementAndGet() + pool.getQueue().size() > queueCapacity) {
+                delayed.decrementAndGet();
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException(name + " is full");
+            }
+            timer.schedule(() -> {
+                delayed.decrementAndGet();
+                if (isShutdown()) {
+                    Log.d(TAG, name + " shut down; dropping delayed task.");
+                    return;
+                }
+                try {
+                    execute(task);
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, name + " rejected a delayed task.");
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void reject(Runnable task, ThreadPoolExecutor executor) {
+            rejected.incrementAndGet();
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            switch (rejection) {
+                case CALLER_RUNS:
+                    if (Thread.currentThread() == mainThread) {
+                        throw new RejectedExecutionException(name + " is full"); // Never inside a turn
+                    }
+                    task.run();
+                    break;
+                case DISCARD_OLDEST:
+                    BlockingQueue<Runnable> queue = executor.getQueue();
+                    queue.poll();
+                    if (!queue.offer(task)) {
+                        Log.w(TAG, name + " dropped a task.");
+                    }
+                    break;
+                default:
+                    throw new RejectedExecutionException(name + " is full");
+            }
+        }
+
+        private void recordCompletion(long nanos) {
+            completed.incrementAndGet();
+            totalCompletionNanos.addAndGet(nanos);
+            long max = maxCompletionNanos.get();
+            while (nanos > max && !maxCompletionNanos.compareAndSet(max, nanos)) {
+                max = maxCompletionNanos.get();
+            }
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /** Tasks waiting to run, including delayed ones. */
+        public int queueDepth() {
+            return pool.getQueue().size() + delayed.get();
+        }
+
+        public int activeCount() {
+            return pool.getActiveCount();
+        }
+
+        public long completedCount() {
+            return completed.get();
+        }
+
+        public long rejectedCount() {
+            return rejected.get();
+        }
+
+        public long averageCompletionMicros() {
+            long done = completed.get();
+            return done == 0 ? 0 : totalCompletionNanos.get() / done / 1000L;
+        }
+
+        public boolean isShutdown() {
+            return pool.isShutdown();
+        }
+
+        void shutdown() {
+            pool.shutdown();
+        }
+
+        boolean awaitTermination(long timeout, TimeUnit unit) {
+            try {
+                return pool.awaitTermination(timeout, unit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        public String describe() {
+            return name + (virtual ? " (virtual)" : "") + ": queued=" + queueDepth() + "/" + queueCapacity
+                    + " active=" + activeCount() + " completed=" + completed.get() + " rejected=" + rejected.get()
+                    + " avgUs=" + averageCompletionMicros() + " maxUs=" + maxCompletionNanos.get() / 1000L
+                    + (isShutdown() ? " shutdown" : "");
+        }
+    }
+
+    // Thread.ofVirtual().name(prefix, 1).factory() on runtimes that have it, looked up reflectively
+    // because the app compiles against Java 11
+    private static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -7,49 +7,87 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.speech.RecognitionListener;
-import android.speech.RecognizerIntent;
-import android.speech.SpeechRecognizer;
-import android.speech.tts.TextToSpeech;
-import android.speech.tts.UtteranceProgressListener;
+import android.os.StrictMode;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-public class PeanutService extends Service implements ConversationManager.ExternalAiResponseCallback { // IMPLEMENT THE NEW CALLBACK INTERFACE
+public class PeanutService extends Service implements TurnController.Host {
 
     private static final String TAG = "PeanutService";
     private static final int NOTIFICATION_ID = 1;
+    private static final int OUTBOX_NOTIFICATION_ID_BASE = 1000; // + outbox entry id
     private static final String CHANNEL_ID = "PeanutServiceChannel";
+    private static final long DUMP_MAIN_THREAD_TIMEOUT_MILLIS = 500;
 
     public static final String ACTION_START_CONVERSATION = "com.example.peanut.ACTION_START_CONVERSATION";
     public static final String ACTION_STOP_SERVICE = "com.example.peanut.ACTION_STOP_SERVICE";
     public static final String ACTION_START_SERVICE_ON_BOOT = "com.example.peanut.ACTION_START_SERVICE_ON_BOOT";
 
-    private static final String UTTERANCE_ID_LISTEN = "utterance_id_listen";
-    private static final String UTTERANCE_ID_RESPONSE = "utterance_id_response";
-    private static final String UTTERANCE_ID_GOODBYE = "utterance_id_goodbye";
-    private static final String UTTERANCE_ID_THINKING = "utterance_id_thinking"; // New ID for "thinking" message
-
-    private TextToSpeech textToSpeech;
-    private SpeechRecognizer speechRecognizer;
-    private Intent speechRecognizerIntent;
     private Handler mainHandler;
+    private RecognizerController speechInput;
+    private SpeechOutput speechOutput;
+    private TurnController turnController;
+
+    private ConnectivitySource connectivitySource;
+    private AndroidWakeWordSource wakeWord;
+
+    // What loadState built; set once on the main thread and read from binder (dump) and io threads too
+    private volatile LoadedState loaded;
+
+    private static final class LoadedState {
+        final ConversationManager manager;
+        final LocalePacks packs;
+        final UserProfileStore profile;
+        final ConversationJournal journal;
+        final GeminiOutbox outbox;
+        final TurnMetrics metrics;
+        final ConversationHistory history;
+
+        LoadedState(ConversationManager manager, LocalePacks packs, UserProfileStore profile, ConversationJournal journal,
+                    GeminiOutbox outbox, TurnMetrics metrics, ConversationHistory history) {
+            this.manager = manager;
+            this.packs = packs;
+            this.profile = profile;
+            this.journal = journal;
+            this.outbox = outbox;
+            this.metrics = metrics;
+            this.history = history;
+        }
+    }
+
+    // ACTION_STOP_SERVICE was received: the goodbye really stops, rather than going back to spotting
+    private boolean stopRequested;
 
-    private boolean isTtsInitialized = false;
-    private ConversationManager conversationManager;
+    // The recognizer has the microphone; written on main, read by dump
+    private volatile boolean conversationActive;
+
+    // Start actions that arrived before the stores finished loading; replayed in order
+    private final List<String> pendingActions = new ArrayList<>();
+    private boolean destroyed;
 
     // --- Service Lifecycle ---
 
@@ -57,65 +95,309 @@ public class PeanutService extends Service implements ConversationManager.Extern
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "PeanutService onCreate");
+        EventLog.record(EventLog.SERVICE_CREATE);
         mainHandler = new Handler(Looper.getMainLooper());
-        conversationManager = new ConversationManager();
-        initializeTextToSpeech();
-        initializeSpeechRecognizer();
+        PeanutExecutors.setMainThread(Looper.getMainLooper().getThread());
+        if (BuildConfig.DEBUG) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads().detectDiskWrites().detectNetwork().penaltyLog().build());
+        }
+        speechOutput = new AndroidSpeechOutput(this, mainHandler);
+        // Retries busy/client errors with backoff and recreates the platform recognizer only when it is broken
+        speechInput = new RecognizerController(() -> new AndroidSpeechInput(this, mainHandler), mainHandler::postDelayed);
+        // Questions asked while offline are answered when the network returns
+        connectivitySource = new AndroidConnectivitySource(this);
+        // Between conversations the microphone goes to the on-device spotter, not the recognizer
+        wakeWord = new AndroidWakeWordSource(this, mainHandler, this::onWakeWord);
+        // Everything that reads files loads on the io backend; the turn loop is wired up once it is done
+        PeanutExecutors.io().execute(this::loadState);
+    }
+
+    // Runs on the io backend
+    private void loadState() {
+        long start = System.nanoTime();
+        UserProfileStore profile = new UserProfileStore(new File(getFilesDir(), "profile"));
+        LocalePacks packs = new LocalePacks(assetName -> ResponseBank.fromContext(this, assetName), availablePackTags());
+        Locale requested = configuredLocale(profile);
+        LocalePacks.Pack pack = packs.activate(requested);
+        ConversationManager manager = new ConversationManager(pack.responses, pack.skills);
+        // Replay the journal so a START_STICKY restart resumes the previous conversation
+        ConversationJournal journal = new ConversationJournal(new File(getFilesDir(), "journal"));
+        manager.attachJournal(journal, journal.restore());
+        manager.attachProfile(profile);
+        GeminiOutbox outbox = new GeminiOutbox(new File(getFilesDir(), "outbox"), connectivitySource,
+                (prompt, context, callback) -> GeminiApiClient.sendNow(prompt, context, RequestScheduler.Priority.BACKGROUND, callback),
+                GeminiOutbox.DEFAULT_DRAIN_SPACING_MILLIS);
+        outbox.setDelivery(this::showOutboxNotification);
+        TurnMetrics metrics = new TurnMetrics(getFilesDir(), BuildConfig.VERSION_CODE, Build.MANUFACTURER + " " + Build.MODEL);
+        // Every turn, searchable for "what did you tell me about ..." and as context for Gemini
+        ConversationHistory history = new ConversationHistory(new File(getFilesDir(), "history"));
+        try {
+            history.open();
+            manager.attachHistory(history);
+        } catch (IOException e) {
+            Log.e(TAG, "Conversation history unavailable: " + e.getMessage(), e);
+        }
+        wakeWord.loadTemplates();
+        Locale speechLocale = LocalePacks.speechLocale(requested, pack);
+        Log.d(TAG, "State loaded in " + (System.nanoTime() - start) / 1000L + "us (profile " + profile.loadNanos() / 1000L + "us)");
+
+        mainHandler.post(() -> {
+            if (destroyed) {
+                PeanutExecutors.io().execute(() -> closeStores(journal, profile, outbox, metrics, history));
+                return;
+            }
+            GeminiApiClient.attachOutbox(outbox);
+            speechOutput.setLocale(speechLocale);
+            speechInput.setLocale(speechLocale);
+            turnController = new TurnController(manager, speechInput, speechOutput, mainHandler::post, this);
+            turnController.setMetrics(metrics);
+            loaded = new LoadedState(manager, packs, profile, journal, outbox, metrics, history);
+            for (String action : pendingActions) {
+                handleAction(action);
+            }
+            pendingActions.clear();
+        });
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "PeanutService onStartCommand");
+        String action = intent != null ? intent.getAction() : null;
+        EventLog.record(EventLog.SERVICE_START_COMMAND, actionCode(action));
 
         createNotificationChannel();
         startForeground(NOTIFICATION_ID, createNotification());
 
-        if (intent != null) {
-            String action = intent.getAction();
-            if (ACTION_START_CONVERSATION.equals(action)) {
-                Log.d(TAG, "Received ACTION_START_CONVERSATION from MainActivity.");
-                conversationManager.resetConversation();
-                if (isTtsInitialized) {
-                    speak(getString(R.string.listening_prompt), UTTERANCE_ID_LISTEN);
-                } else {
-                    Log.w(TAG, "TTS not initialized yet. Cannot start conversation immediately.");
-                    showToast("Peanut's voice is not ready yet. Please try again in a moment.");
-                }
-            } else if (ACTION_STOP_SERVICE.equals(action)) {
-                Log.d(TAG, "Received ACTION_STOP_SERVICE command.");
-                speak("Goodbye! Stopping Peanut service.", UTTERANCE_ID_GOODBYE);
-                stopSelfDelayed(2000);
-                return START_NOT_STICKY;
-            } else if (ACTION_START_SERVICE_ON_BOOT.equals(action)) {
-                Log.d(TAG, "Received ACTION_START_SERVICE_ON_BOOT. Service initialized.");
-                conversationManager.resetConversation();
+        if (action != null) {
+            if (turnController == null) {
+                pendingActions.add(action); // Still loading
+            } else {
+                handleAction(action);
+            }
+        }
+        return ACTION_STOP_SERVICE.equals(action) ? START_NOT_STICKY : START_STICKY;
+    }
+
+    private void handleAction(String action) {
+        if (ACTION_START_CONVERSATION.equals(action)) {
+            Log.d(TAG, "Received ACTION_START_CONVERSATION from MainActivity.");
+            conversationActive = true;
+            wakeWord.stop();
+            turnController.startConversation(withOutboxAnswers(getString(R.string.listening_prompt)));
+        } else if (ACTION_STOP_SERVICE.equals(action)) {
+            Log.d(TAG, "Received ACTION_STOP_SERVICE command.");
+            stopRequested = true;
+            conversationActive = true; // Saying goodbye
+            wakeWord.stop();
+            turnController.sayGoodbyeAndStop("Goodbye! Stopping Peanut service.");
+        } else if (ACTION_START_SERVICE_ON_BOOT.equals(action)) {
+            Log.d(TAG, "Received ACTION_START_SERVICE_ON_BOOT. Service initialized.");
+            loaded.manager.resetConversation();
+            if (wakeWord.hasTemplates()) {
+                wakeWord.start();
             }
         }
-        return START_STICKY;
+    }
+
+    // The spotter heard its name; it has already released the microphone
+    private void onWakeWord() {
+        if (destroyed) {
+            return;
+        }
+        startService(new Intent(this, PeanutService.class).setAction(ACTION_START_CONVERSATION));
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "PeanutService onDestroy");
-        if (textToSpeech != null) {
-            textToSpeech.stop();
-            textToSpeech.shutdown();
-            Log.d(TAG, "TTS shut down");
-        }
-        if (speechRecognizer != null) {
-            speechRecognizer.destroy();
-            Log.d(TAG, "SpeechRecognizer destroyed");
+        EventLog.record(EventLog.SERVICE_DESTROY);
+        destroyed = true;
+        wakeWord.stop();
+        if (turnController != null) {
+            turnController.shutdown();
+        } else {
+            speechOutput.shutdown();
+            speechInput.destroy();
         }
+        GeminiApiClient.attachOutbox(null);
+        // Closing flushes to disk, so it happens on the io backend; queued work still runs after shutdownAll
+        LoadedState state = loaded;
+        ConnectivitySource connectivity = connectivitySource;
+        PeanutExecutors.io().execute(() -> {
+            if (state != null) {
+                closeStores(state.journal, state.profile, state.outbox, state.metrics, state.history);
+            }
+            connectivity.close();
+        });
+        PeanutExecutors.shutdownAll();
         showToast("Peanut service stopped.");
     }
 
+    // Runs on the io backend; any argument may be null when loading never finished
+    private static void closeStores(ConversationJournal journal, UserProfileStore profile, GeminiOutbox outbox,
+                                    TurnMetrics metrics, ConversationHistory history) {
+        if (journal != null) {
+            journal.close();
+        }
+        if (profile != null) {
+            profile.close();
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (history != null) {
+            history.close();
+        }
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
+    // Exposes the event ring buffer through `adb shell dumpsys activity service com.example.peanut/.PeanutService`.
+    // Passing "reload-responses" re-reads the response bank (bundled asset or files/responses.txt override);
+    // "locale <tag>" saves a new preferred locale in the user profile and switches to it.
+    // "metrics" prints this device's turn-metrics table; "export-metrics" copies the metrics file to the
+    // app's external files dir for `adb pull` and TurnMetricsReader. Dump runs on a binder thread, so
+    // reading the file here is off the main thread; main-thread state is read by posting to main.
+    // "history <words>" lists the newest turns matching the words.
+    // "wakeword-enroll" records the next 1.5 s as a wake word template (after the conversation, if one is running);
+    // say "hey peanut" right after.
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        LoadedState state = loaded;
+        if (state == null) {
+            writer.println("Still loading.");
+            return;
+        }
+        if (args != null && args.length > 0 && "reload-responses".equals(args[0])) {
+            PeanutExecutors.io().execute(state.manager::reloadResponses);
+            writer.println("Response bank reload scheduled.");
+            return;
+        }
+        if (args != null && args.length > 1 && "locale".equals(args[0])) {
+            Locale requested = Locale.forLanguageTag(args[1]);
+            state.profile.setLocaleTag(requested.toLanguageTag());
+            PeanutExecutors.io().execute(() -> applyLocale(state, requested));
+            writer.println("Switching to locale pack " + state.packs.resolve(requested) + " for " + requested.toLanguageTag() + ".");
+            return;
+        }
+        if (args != null && args.length > 0 && "metrics".equals(args[0])) {
+            try {
+                TurnMetricsReader.printTable(writer, TurnMetricsReader.byIntent(state.metrics.readAll()));
+            } catch (IOException e) {
+                writer.println("Could not read metrics: " + e.getMessage());
+            }
+            return;
+        }
+        if (args != null && args.length > 0 && "export-metrics".equals(args[0])) {
+            File dir = getExternalFilesDir(null);
+            File export = new File(dir != null ? dir : getFilesDir(), "turn-metrics-" + System.currentTimeMillis() + ".pnm");
+            try {
+                writer.println("Exported " + state.metrics.export(export) + " bytes to " + export.getAbsolutePath());
+            } catch (IOException e) {
+                writer.println("Export failed: " + e.getMessage());
+            }
+            return;
+        }
+        if (args != null && args.length > 1 && "history".equals(args[0])) {
+            String query = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+            for (ConversationHistory.Hit hit : state.history.search(query, 10)) {
+                writer.println(new Date(hit.timestampMillis) + (hit.followUp ? " (later) " : " ") + hit.userText + " -> " + hit.responseText);
+            }
+            return;
+        }
+        if (args != null && args.length > 0 && "wakeword-enroll".equals(args[0])) {
+            wakeWord.requestEnrollment();
+            if (conversationActive) {
+                writer.println("In a conversation; recording the template once it ends.");
+                return;
+            }
+            // The recognizer and the spotter never hold the microphone together
+            mainHandler.post(() -> {
+                if (!destroyed && !conversationActive) {
+                    wakeWord.start();
+                }
+            });
+            writer.println("Say \"hey peanut\" now.");
+            return;
+        }
+        EventLog.dump(writer);
+        writer.println("Gemini scheduler: " + GeminiApiClient.describeScheduler());
+        writer.println("Gemini prompts: " + GeminiApiClient.describePrompts());
+        writer.println("Gemini outbox pending: " + state.outbox.pendingCount());
+        writer.println("Gemini routes:");
+        writer.println(GeminiApiClient.describeRoutes());
+        writer.println(state.packs.describe());
+        writer.println(state.profile.describe());
+        writer.println(state.metrics.describe());
+        writer.println(state.history.describe());
+        writer.println(wakeWord.describe());
+        writer.println(describeMainThreadState());
+        writer.println("Executors:");
+        writer.println(PeanutExecutors.describe());
+    }
+
+    // Binder thread: the recognizer and the turn loop belong to the main thread, so ask it and wait a little
+    private String describeMainThreadState() {
+        FutureTask<String> task = new FutureTask<>(() -> speechInput.describe() + "\n" + turnController.describeReadyGaps());
+        mainHandler.post(task);
+        try {
+            return task.get(DUMP_MAIN_THREAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.cancel(false);
+            return "Main thread busy; recognizer and turn state skipped.";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted; recognizer and turn state skipped.";
+        } catch (ExecutionException e) {
+            return "Could not read recognizer and turn state: " + e.getCause();
+        }
+    }
+
+    // --- Locale ---
+
+    // One setting drives the response pack, the TTS voice and the STT language together
+    private static Locale configuredLocale(UserProfileStore profile) {
+        String tag = profile.getLocaleTag();
+        return tag != null ? Locale.forLanguageTag(tag) : Locale.getDefault();
+    }
+
+    private Set<String> availablePackTags() {
+        try {
+            String[] assets = getAssets().list("");
+            return LocalePacks.tagsFromAssetNames(assets != null ? assets : new String[0]);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not list locale packs: " + e.getMessage(), e);
+            return Collections.emptySet();
+        }
+    }
+
+    // Loads the pack on the io backend, then swaps it in on the main thread between turns
+    private void applyLocale(LoadedState state, Locale requested) {
+        LocalePacks.Pack previous = state.packs.active();
+        LocalePacks.Pack pack = state.packs.activate(requested);
+        Locale speechLocale = LocalePacks.speechLocale(requested, pack);
+        mainHandler.post(() -> {
+            if (destroyed) {
+                return;
+            }
+            if (pack != previous) {
+                state.manager.usePack(pack.responses, pack.skills);
+            }
+            speechOutput.setLocale(speechLocale);
+            speechInput.setLocale(speechLocale);
+            Log.d(TAG, "Locale " + requested.toLanguageTag() + " uses pack " + pack.tag + ".");
+        });
+    }
+
     // --- Foreground Notification Management ---
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -160,260 +442,75 @@ public class PeanutService extends Service implements ConversationManager.Extern
                 .build();
     }
 
-    // --- Text-to-Speech (TTS) Initialization and Speaking ---
-    private void initializeTextToSpeech() {
-        textToSpeech = new TextToSpeech(this, status -> {
-            if (status == TextToSpeech.SUCCESS) {
-                int result = textToSpeech.setLanguage(Locale.US);
-                if (result == TextToSpeech.LANG_MISSING_DATA || result == TextToSpeech.LANG_NOT_SUPPORTED) {
-                    Log.e(TAG, "TTS Language not supported or data missing during init. Result: " + result);
-                    showToast("Peanut's voice language not supported.");
-                    isTtsInitialized = false;
-                    Intent installIntent = new Intent();
-                    installIntent.setAction(TextToSpeech.Engine.ACTION_INSTALL_TTS_DATA);
-                    installIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    startActivity(installIntent);
-                } else {
-                    Log.d(TAG, "TTS Initialized successfully. Language set result: " + result);
-                    isTtsInitialized = true;
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                        textToSpeech.setOnUtteranceProgressListener(new UtteranceProgressListener() {
-                            @Override
-                            public void onStart(String utteranceId) {
-                                Log.d(TAG, "TTS onStart: " + utteranceId);
-                                if (speechRecognizer != null &&
-                                        !utteranceId.equals(UTTERANCE_ID_THINKING)) { // Don't cancel speech rec if just speaking "thinking..."
-                                    speechRecognizer.cancel();
-                                }
-                            }
-
-                            @Override
-                            public void onDone(String utteranceId) {
-                                Log.d(TAG, "TTS onDone: " + utteranceId);
-                                // Only start listening again if it's a regular response or initial prompt,
-                                // NOT if it's a goodbye message or a "thinking" message (where we await Gemini's final response)
-                                if (utteranceId != null &&
-                                        (utteranceId.equals(UTTERANCE_ID_LISTEN) ||
-                                                utteranceId.equals(UTTERANCE_ID_RESPONSE))) {
-                                    mainHandler.post(() -> {
-                                        if (speechRecognizer != null) {
-                                            try {
-                                                Log.d(TAG, "Attempting to start SpeechRecognizer from TTS onDone (main thread).");
-                                                speechRecognizer.startListening(speechRecognizerIntent);
-                                            } catch (Exception e) {
-                                                Log.e(TAG, "Error starting SpeechRecognizer on main thread: " + e.getMessage(), e);
-                                                showToast("Failed to start listening. Please try again.");
-                                            }
-                                        } else {
-                                            Log.e(TAG, "SpeechRecognizer is null when trying to start listening after TTS done.");
-                                            showToast("Speech input is not ready.");
-                                        }
-                                    });
-                                } else if (utteranceId != null && utteranceId.equals(UTTERANCE_ID_GOODBYE)) {
-                                    Log.d(TAG, "Goodbye utterance finished. Service will stop shortly.");
-                                } else if (utteranceId != null && utteranceId.equals(UTTERANCE_ID_THINKING)) {
-                                    Log.d(TAG, "Thinking utterance finished. Waiting for Gemini response.");
-                                    // Do NOT restart listening yet; the actual Gemini response will trigger it.
-                                }
-                            }
-
-                            @Override
-                            public void onError(String utteranceId) {
-                                Log.e(TAG, "TTS onError: " + utteranceId);
-                                showToast("Peanut had an error speaking.");
-                            }
-
-                            @Override
-                            public void onStop(String utteranceId, boolean interrupted) {
-                                Log.d(TAG, "TTS onStop: " + utteranceId + ", interrupted: " + interrupted);
-                            }
-                        });
-                    } else {
-                        Log.w(TAG, "UtteranceProgressListener not fully supported below API 21, speech timing might be less precise. Consider upgrading API level if possible.");
-                        isTtsInitialized = false;
-                    }
-                }
-            } else {
-                Log.e(TAG, "TTS Initialization failed! Status: " + status);
-                showToast("Peanut's voice engine failed to initialize.");
-                isTtsInitialized = false;
-            }
-        });
-    }
+    // --- Offline Outbox ---
 
-    private void speak(String text, String utteranceId) {
-        if (!isTtsInitialized) {
-            Log.e(TAG, "TTS not initialized. Cannot speak: '" + text + "'");
-            showToast("Peanut cannot speak right now (voice engine not ready).");
-            return;
+    // Answers that arrived since the last conversation are spoken before the usual prompt
+    private String withOutboxAnswers(String listeningPrompt) {
+        List<GeminiOutbox.Entry> answered = loaded.outbox.takeAnswered();
+        if (answered.isEmpty()) {
+            return listeningPrompt;
         }
-
-        if (textToSpeech.isSpeaking()) {
-            textToSpeech.stop();
+        StringBuilder sb = new StringBuilder();
+        for (GeminiOutbox.Entry entry : answered) {
+            loaded.manager.render(ResponseBank.OUTBOX_EARLIER, sb);
+            sb.append(' ').append(entry.prompt).append(". ").append(entry.answer).append(' ');
         }
-
-        int langAvailability = textToSpeech.isLanguageAvailable(Locale.US);
-        Log.d(TAG, "speak: Attempting to speak '" + text + "'. Language availability for Locale.US: " + langAvailability);
-
-        if (langAvailability >= TextToSpeech.LANG_AVAILABLE) {
-            Bundle params = new Bundle();
-            params.putString(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
-            textToSpeech.speak(text, TextToSpeech.QUEUE_FLUSH, params, utteranceId);
-        } else {
-            Log.e(TAG, "TTS language not available to speak: '" + text + "' (Availability code: " + langAvailability + ")");
-            showToast("Peanut cannot speak due to language issues.");
-        }
-    }
-
-    private void speak(String text) {
-        speak(text, UTTERANCE_ID_RESPONSE);
+        return sb.append(listeningPrompt).toString();
     }
 
-    // --- SpeechRecognizer (STT) Initialization and Listener ---
-    private void initializeSpeechRecognizer() {
-        speechRecognizerIntent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
-        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
-        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, Locale.getDefault());
-        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE, this.getPackageName());
-        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, 1);
-
-        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_POSSIBLY_COMPLETE_SILENCE_LENGTH_MILLIS, 2000L);
-        speechRecognizerIntent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_COMPLETE_SILENCE_LENGTH_MILLIS, 2000L);
-
-        mainHandler.post(() -> {
-            try {
-                speechRecognizer = SpeechRecognizer.createSpeechRecognizer(getApplicationContext());
-                speechRecognizer.setRecognitionListener(new RecognitionListener() {
-                    @Override
-                    public void onReadyForSpeech(Bundle params) { Log.d(TAG, "onReadyForSpeech: SpeechRecognizer is ready."); }
-                    @Override
-                    public void onBeginningOfSpeech() { Log.d(TAG, "onBeginningOfSpeech: User has started speaking."); }
-                    @Override
-                    public void onRmsChanged(float rmsdB) { /* Log.d(TAG, "onRmsChanged: " + rmsdB); */ }
-                    @Override
-                    public void onBufferReceived(byte[] buffer) { Log.d(TAG, "onBufferReceived"); }
-                    @Override
-                    public void onEndOfSpeech() { Log.d(TAG, "onEndOfSpeech: User has stopped speaking."); }
-
-                    @Override
-                    public void onError(int error) {
-                        String errorMessage = getErrorText(error);
-                        Log.e(TAG, "STT Error: " + errorMessage);
-                        showToast("Speech recognition error: " + errorMessage);
-
-                        if (speechRecognizer != null) {
-                            speechRecognizer.cancel();
-                        }
-
-                        // Only re-prompt if it's a timeout/no_match AND we are not expecting a Gemini response
-                        // or explicit clarification.
-                        if ((error == SpeechRecognizer.ERROR_SPEECH_TIMEOUT || error == SpeechRecognizer.ERROR_NO_MATCH) &&
-                                conversationManager.lastIntent != ConversationManager.Intent.EXTERNAL_AI_QUERY &&
-                                !conversationManager.isAwaitingClarification()) {
-                            speak("I didn't hear anything or understand that. Can you please try again?");
-                        } else if (error == SpeechRecognizer.ERROR_RECOGNIZER_BUSY) {
-                            speak("My speech recognition is busy. Please wait a moment and try again.");
-                        } else if (error != SpeechRecognizer.ERROR_SPEECH_TIMEOUT && error != SpeechRecognizer.ERROR_NO_MATCH) {
-                            speak("I'm sorry, I encountered an error and cannot process your request right now.");
-                        }
-                    }
-
-                    @Override
-                    public void onResults(Bundle results) {
-                        Log.d(TAG, "onResults: Speech results received.");
-                        ArrayList<String> matches = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
-                        if (matches != null && !matches.isEmpty()) {
-                            String userSpeech = matches.get(0);
-                            Log.d(TAG, "User said: " + userSpeech);
-                            handleUserSpeech(userSpeech);
-                        } else {
-                            speak("I didn't catch that. Could you please repeat?");
-                        }
-                    }
-
-                    @Override
-                    public void onPartialResults(Bundle partialResults) { /* Log.d(TAG, "onPartialResults"); */ }
-                    @Override
-                    public void onEvent(int eventType, Bundle params) { Log.d(TAG, "onEvent: " + eventType); }
-                });
-                Log.d(TAG, "SpeechRecognizer initialized on main thread.");
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to initialize SpeechRecognizer on main thread: " + e.getMessage(), e);
-                showToast("Speech recognition engine failed to initialize.");
+    private void showOutboxNotification(GeminiOutbox.Entry entry) {
+        Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setContentTitle(entry.prompt)
+                .setContentText(entry.answer)
+                .setStyle(new NotificationCompat.BigTextStyle().bigText(entry.answer))
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setAutoCancel(true)
+                .setPriority(NotificationCompat.PRIORITY_DEFAULT)
+                .build();
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        try {
+            if (manager != null) {
+                manager.notify(OUTBOX_NOTIFICATION_ID_BASE + (int) entry.id, notification);
             }
-        });
+        } catch (SecurityException e) {
+            Log.w(TAG, "Notification permission missing; answer will be spoken next session.", e);
+        }
     }
 
     public static String getErrorText(int errorCode) {
-        String message;
-        switch (errorCode) {
-            case SpeechRecognizer.ERROR_AUDIO: message = "Audio recording error"; break;
-            case SpeechRecognizer.ERROR_CLIENT: message = "Client side error"; break;
-            case SpeechRecognizer.ERROR_INSUFFICIENT_PERMISSIONS: message = "Insufficient permissions. Please grant microphone access."; break;
-            case SpeechRecognizer.ERROR_NETWORK: message = "Network error"; break;
-            case SpeechRecognizer.ERROR_NETWORK_TIMEOUT: message = "Network timeout"; break;
-            case SpeechRecognizer.ERROR_NO_MATCH: message = "No match found"; break;
-            case SpeechRecognizer.ERROR_RECOGNIZER_BUSY: message = "Recognition service is busy"; break;
-            case SpeechRecognizer.ERROR_SERVER: message = "Server error"; break;
-            case SpeechRecognizer.ERROR_SPEECH_TIMEOUT: message = "No speech input received"; break;
-            default: message = "Unknown speech recognition error (" + errorCode + ")"; break;
-        }
-        return message;
+        return TurnController.getErrorText(errorCode);
     }
 
-    // --- Core Logic: Handling User Speech ---
-    private void handleUserSpeech(String speech) {
-        String lowerCaseSpeech = speech.toLowerCase(Locale.US).trim();
-
-        // Get the response directly from the conversation manager.
-        // Pass 'this' (PeanutService) as the callback for asynchronous responses.
-        String immediateResponse = conversationManager.getResponse(lowerCaseSpeech, this);
-        Log.d(TAG, "Peanut's immediate response from CM: " + immediateResponse);
-
-        // If CM indicates it's awaiting clarification (e.g., for weather location),
-        // or if it's delegating to external AI, speak the immediate response
-        // and then wait for the callback to provide the final action (like re-listening).
-        if (conversationManager.isAwaitingClarification() ||
-                conversationManager.lastIntent == ConversationManager.Intent.EXTERNAL_AI_QUERY ||
-                (conversationManager.lastIntent == ConversationManager.Intent.GET_WEATHER && conversationManager.entities.containsKey("location"))) {
-            // For EXTERNAL_AI_QUERY, speak the "thinking..." message
-            if (conversationManager.lastIntent == ConversationManager.Intent.EXTERNAL_AI_QUERY) {
-                speak(immediateResponse, UTTERANCE_ID_THINKING); // Use specific ID to prevent immediate re-listen
-            } else { // For clarification or weather fetching message
-                speak(immediateResponse, UTTERANCE_ID_RESPONSE);
-            }
-            // Do NOT re-start listening here; the callback (onResponseReady) will do that.
-        } else if (conversationManager.isGoodbyeResponse(immediateResponse)) {
-            speak(immediateResponse, UTTERANCE_ID_GOODBYE);
-            stopSelfDelayed(2000);
-        } else {
-            // For all other synchronous responses, speak and then re-listen
-            speak(immediateResponse);
-        }
+    // Maps start actions to compact codes for the event log
+    private static int actionCode(String action) {
+        if (ACTION_START_CONVERSATION.equals(action)) return 1;
+        if (ACTION_STOP_SERVICE.equals(action)) return 2;
+        if (ACTION_START_SERVICE_ON_BOOT.equals(action)) return 3;
+        return 0;
     }
 
-    // --- Implementation of ConversationManager.ExternalAiResponseCallback ---
+    // --- TurnController.Host ---
+
+    // Utility to stop the service after a delay; with an enrolled wake word the conversation ends in
+    // spotting instead, unless the user asked the service to stop
     @Override
-    public void onResponseReady(String response) {
-        mainHandler.post(() -> { // Ensure TTS call is on UI thread
-            Log.d(TAG, "Received async response (Gemini/Weather): " + response);
-            if (conversationManager.isGoodbyeResponse(response)) {
-                // If the final response happens to be a goodbye (e.g., from Gemini saying goodbye)
-                speak(response, UTTERANCE_ID_GOODBYE);
-                stopSelfDelayed(2000);
+    public void stopSelfDelayed(long delayMillis) {
+        mainHandler.postDelayed(() -> {
+            if (destroyed) {
+                return;
+            }
+            conversationActive = false;
+            if (!stopRequested && (wakeWord.hasTemplates() || wakeWord.isEnrollmentPending())) {
+                wakeWord.start();
             } else {
-                speak(response, UTTERANCE_ID_RESPONSE); // Speak response, then re-listen
+                stopSelf();
             }
-        });
-    }
-
-    // Utility to stop the service after a delay
-    private void stopSelfDelayed(long delayMillis) {
-        mainHandler.postDelayed(this::stopSelf, delayMillis);
+        }, delayMillis);
     }
 
     // Utility to show a Toast message on the main thread
-    private void showToast(String message) {
+    @Override
+    public void showToast(String message) {
         mainHandler.post(() -> Toast.makeText(PeanutService.this, message, Toast.LENGTH_SHORT).show());
     }
 }
\ No newline at end of file
@@ -0,0 +1,333 @@
+package com.example.peanut;
+
+/**
+ * Cleans a speech transcript before it becomes a Gemini prompt or a cache key, in one pass over
+ * the characters:
+ * <ul>
+ *   <li>lowercases and collapses whitespace and punctuation,</li>
+ *   <li>drops recognizer artifacts in angle or square brackets ({@code <unk>}, {@code [noise]}),</li>
+ *   <li>drops fillers ("um", "uh"), leading discourse markers ("so", "well") and stuttered repeats,</li>
+ *   <li>turns spelled-out numbers into digits ("two hundred and five" to "205", "1,000" to "1000"),</li>
+ *   <li>estimates tokens before and after, so savings can be reported.</li>
+ * </ul>
+ * Instances reuse their buffers and are not thread-safe; keep one per thread or synchronize.
+ */
+public final class PromptNormalizer {
+
+    private static final String[] FILLERS = {
+            "um", "umm", "uh", "uhh", "uhm", "er", "erm", "ah", "eh", "hmm", "hm", "mm", "mhm", "huh",
+    };
+    // Only dropped before the first content word: "so what is", "well how far"
+    private static final String[] LEADING_MARKERS = {
+            "so", "well", "okay", "ok", "like", "alright", "hey", "peanut",
+    };
+    private static final String[] UNITS = {
+            "zero", "one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten",
+            "eleven", "twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen", "eighteen", "nineteen",
+    };
+    private static final String[] TENS = {
+            "", "", "twenty", "thirty", "forty", "fifty", "sixty", "seventy", "eighty", "ninety",
+    };
+
+    private final StringBuilder out = new StringBuilder();
+    private final StringBuilder word = new StringBuilder();
+    private int rawTokens;
+    private int tokens;
+    private int lastWordStart;
+    private final int[] wordStarts = new int[4]; // Starts of the last four emitted words, oldest first
+    private int wordCount;
+    private boolean lastWasNumber;
+    private boolean lastWasFiller;
+
+    // Spelled-out number being accumulated
+    private boolean numberPending;
+    private long numberTotal;
+    private long numberGroup;
+    private int numberWords;
+    private boolean numberHasScale;
+    private boolean pendingAnd;
+
+    /** Normalizes {@code raw}; the result stays valid until the next call. */
+    public CharSequence normalize(CharSequence raw) {
+        out.setLength(0);
+        word.setLength(0);
+        rawTokens = 0;
+        tokens = 0;
+        lastWordStart = -1;
+        wordCount = 0;
+        lastWasNumber = false;
+        lastWasFiller = false;
+        resetNumber();
+
+        boolean question = false;
+        int bracketDepth = 0;
+        boolean inArtifactWord = false;
+        int n = raw.length();
+        for (int i = 0; i < n; i++) {
+            char c = raw.charAt(i);
+            if (c == '<' || c == '[') {
+                flushWord();
+                bracketDepth++;
+                continue;
+            }
+            if (c == '>' || c == ']') {
+                if (bracketDepth > 0) bracketDepth--;
+                inArtifactWord = false;
+                continue;
+            }
+            if (bracketDepth > 0) {
+                // Artifacts still cost tokens in the raw transcript
+                boolean letter = Character.isLetterOrDigit(c);
+                if (letter && !inArtifactWord) rawTokens++;
+                inArtifactWord = letter;
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+                continue;
+            }
+            boolean nextIsLetter = i + 1 < n && Character.isLetter(raw.charAt(i + 1));
+            boolean nextIsDigit = i + 1 < n && Character.isDigit(raw.charAt(i + 1));
+            int len = word.length();
+            if ((c == '\'' || c == '\u2019') && len > 0 && nextIsLetter) {
+                word.append('\''); // Contractions stay one word: "what's"
+                continue;
+            }
+            if ((c == ',' || c == '.') && len > 0 && Character.isDigit(word.charAt(len - 1)) && nextIsDigit) {
+                if (c == '.') word.append('.'); // "3.5" keeps its point, "1,000" loses its comma
+                continue;
+            }
+            if (c == '?') {
+                question = true;
+            }
+            flushWord();
+        }
+        flushWord();
+        flushNumber();
+        if (question && out.length() > 0) {
+            out.append('?');
+        }
+        return out;
+    }
+
+    /** Estimated tokens in the last raw input. */
+    public int rawTokens() {
+        return rawTokens;
+    }
+
+    /** Estimated tokens in the last normalized output. */
+    public int tokens() {
+        return tokens;
+    }
+
+    public int tokensSaved() {
+        return Math.max(0, rawTokens - tokens);
+    }
+
+    // Cheap estimate in the spirit of "about four characters per token", at least one per word
+    static int estimateTokens(int wordLength) {
+        return Math.max(1, (wordLength + 3) / 4);
+    }
+
+    // --- Word Handling ---
+
+    private void flushWord() {
+        if (word.length() == 0) {
+            return;
+        }
+        rawTokens += estimateTokens(word.length());
+        processWord();
+        word.setLength(0);
+    }
+
+    private void processWord() {
+        if (indexOf(FILLERS, word) >= 0) {
+            lastWasFiller = true;
+            return;
+        }
+        boolean noContentYet = out.length() == 0 && !numberPending;
+        if ((noContentYet && indexOf(LEADING_MARKERS, word) >= 0) || (lastWasFiller && equalsWord(word, "like"))) {
+            lastWasFiller = true; // "so um like what is": all three go
+            return;
+        }
+        lastWasFiller = false;
+
+        if (accumulateNumber()) {
+            return;
+        }
+        if (numberPending && numberHasScale && !pendingAnd && equalsWord(word, "and")) {
+            pendingAnd = true; // Might be "two hundred and five"; decided by the next word
+            return;
+        }
+        flushNumber();
+
+        // Stutters: "the the cat", "what what is"
+        if (!lastWasNumber && lastWordStart >= 0 && regionEquals(out, lastWordStart, word)) {
+            return;
+        }
+        emit(word);
+    }
+
+    private void emit(CharSequence text) {
+        appendWord(text);
+        lastWasNumber = false;
+        dropRepeatedPair();
+    }
+
+    private void appendWord(CharSequence text) {
+        if (out.length() > 0) {
+            out.append(' ');
+        }
+        int start = out.length();
+        out.append(text);
+        recordWord(start);
+    }
+
+    private void recordWord(int start) {
+        lastWordStart = start;
+        tokens += estimateTokens(out.length() - start);
+        System.arraycopy(wordStarts, 1, wordStarts, 0, 3);
+        wordStarts[3] = start;
+        wordCount++;
+    }
+
+    // Two-word stutters: "tell me tell me about" keeps one "tell me"
+    private void dropRepeatedPair() {
+        if (wordCount < 4) {
+            return;
+        }
+        int firstPair = wordStarts[0];
+        int secondPair = wordStarts[2];
+        int pairLength = out.length() - secondPair;
+        if (secondPair - 1 - firstPair != pairLength) {
+            return;
+        }
+        for (int i = 0; i < pairLength; i++) {
+            if (out.charAt(firstPair + i) != out.charAt(secondPair + i)) {
+                return;
+            }
+        }
+        tokens -= estimateTokens(wordStarts[3] - 1 - secondPair) + estimateTokens(out.length() - wordStarts[3]);
+        out.setLength(secondPair - 1);
+        // Only the two surviving words are known now; older starts are not needed for pair checks
+        wordStarts[2] = wordStarts[0];
+        wordStarts[3] = wordStarts[1];
+        wordCount = 2;
+        lastWordStart = wordStarts[3];
+    }
+
+    // --- Numbers ---
+
+    private boolean accumulateNumber() {
+        int unit = indexOf(UNITS, word);
+        int ten = unit < 0 ? indexOf(TENS, word) : -1;
+        long scale = unit < 0 && ten < 0 ? scaleOf(word) : 0;
+        if (unit < 0 && ten < 0 && scale == 0) {
+            return false;
+        }
+        if (scale != 0 && !numberPending) {
+            return false; // A bare "hundred" or "thousand" reads better as a word
+        }
+        if (scale == 100) {
+            pendingAnd = false;
+            numberGroup = (numberGroup == 0 ? 1 : numberGroup) * 100;
+            numberHasScale = true;
+        } else if (scale != 0) {
+            pendingAnd = false;
+            numberTotal += (numberGroup == 0 ? 1 : numberGroup) * scale;
+            numberGroup = 0;
+            numberHasScale = true;
+        } else {
+            long value = unit >= 0 ? unit : ten * 10L;
+            boolean extendsGroup = numberPending && (
+                    (numberGroup % 100 >= 20 && numberGroup % 10 == 0 && value < 10)   // "twenty" + "five"
+                            || (numberGroup % 100 == 0 && (numberGroup > 0 || numberTotal > 0)));  // "hundred" + "five"
+            if (numberPending && !extendsGroup) {
+                flushNumber(); // "five five" is two numbers; a pending "and" is emitted between them
+            } else {
+                pendingAnd = false; // "two hundred and five": the "and" belonged to the number
+            }
+            numberGroup += value;
+        }
+        numberPending = true;
+        numberWords++;
+        return true;
+    }
+
+    private void flushNumber() {
+        if (!numberPending) {
+            return;
+        }
+        long value = numberTotal + numberGroup;
+        if (numberWords == 1 && value == 1) {
+            emit("one"); // "which one", "this one": a pronoun far more often than a number
+        } else {
+            if (out.length() > 0) {
+                out.append(' ');
+            }
+            int start = out.length();
+            out.append(value); // Appending the long directly avoids a String per number
+            recordWord(start);
+            lastWasNumber = true;
+        }
+        boolean and = pendingAnd;
+        resetNumber();
+        if (and) {
+            emit("and");
+        }
+    }
+
+    private void resetNumber() {
+        numberPending = false;
+        numberTotal = 0;
+        numberGroup = 0;
+        numberWords = 0;
+        numberHasScale = false;
+        pendingAnd = false;
+    }
+
+    private static long scaleOf(CharSequence w) {
+        if (equalsWord(w, "hundred")) return 100;
+        if (equalsWord(w, "thousand")) return 1_000;
+        if (equalsWord(w, "million")) return 1_000_000;
+        if (equalsWord(w, "billion")) return 1_000_000_000;
+        return 0;
+    }
+
+    // --- Allocation-free comparisons ---
+
+    private static int indexOf(String[] words, CharSequence w) {
+        for (int i = 0; i < words.length; i++) {
+            if (equalsWord(w, words[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean equalsWord(CharSequence w, String candidate) {
+        int len = w.length();
+        if (len != candidate.length() || len == 0) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (w.charAt(i) != candidate.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(StringBuilder sb, int start, CharSequence w) {
+        int len = w.length();
+        if (sb.length() - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (sb.charAt(start + i) != w.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
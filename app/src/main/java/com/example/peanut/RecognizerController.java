@@ -0,0 +1,304 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * {@link SpeechInput} that keeps the platform recognizer warm between turns and absorbs its
+ * transient failures, so {@link TurnController} only hears about errors worth telling the user.
+ *
+ * States:
+ * <ul>
+ *   <li>IDLE - no session; {@link #startListening()} starts one at once.</li>
+ *   <li>ARMING - startListening was issued, waiting for onReadyForSpeech.</li>
+ *   <li>LISTENING - capturing audio until results or an error.</li>
+ *   <li>BUSY - the recognizer reported busy or a client error (or was not created yet); a retry
+ *       is scheduled with backoff.</li>
+ *   <li>COOLING - a session just ended or was cancelled; the recognizer gets a moment to release
+ *       the microphone. A start requested meanwhile is deferred to the end of cooling instead of
+ *       running into ERROR_RECOGNIZER_BUSY.</li>
+ * </ul>
+ * The controller re-arms while the answer is being spoken: the session ends (and cools down, and a
+ * broken recognizer is recreated) during TTS, so when TTS is done starting is a single call. It
+ * does not start capturing before TTS is done, which would transcribe Peanut's own voice.
+ *
+ * The recognizer is destroyed and recreated only when it is actually broken: the service
+ * disconnected, it never became ready, or retries ran out. Used on the main thread only.
+ */
+public class RecognizerController implements SpeechInput {
+
+    private static final String TAG = "RecognizerController";
+
+    public enum State { IDLE, ARMING, LISTENING, BUSY, COOLING }
+
+    /** Runs a task on the main thread after a delay; {@code Handler::postDelayed} in the service. */
+    public interface Delayer {
+        void postDelayed(Runnable task, long delayMillis);
+    }
+
+    static final long COOLDOWN_MILLIS = 100;
+    static final long[] BACKOFF_MILLIS = {50, 100, 200, 400};
+    static final long ARM_TIMEOUT_MILLIS = 3000; // No onReadyForSpeech by then: the recognizer is stuck
+
+    private final Supplier<SpeechInput> factory;
+    private final Delayer delayer;
+    private SpeechInput recognizer;
+    private Listener listener;
+    private Locale locale;
+
+    private volatile State state = State.IDLE;
+    private boolean wantListening;  // A start was requested and not cancelled since
+    private int attempts;           // Failed starts in a row
+    private boolean recreatedThisStart;
+    private int generation;         // Bumped on every transition so stale timers do nothing
+    private boolean destroyed;
+
+    // Read by dumpsys
+    private volatile long starts;
+    private volatile long retries;
+    private volatile long recreations;
+    private volatile long deferredStarts;
+    private volatile long staleCallbacks;
+    private volatile long surfacedErrors;
+
+    public RecognizerController(Supplier<SpeechInput> factory, Delayer delayer) {
+        this.factory = factory;
+        this.delayer = delayer;
+        recognizer = create();
+    }
+
+    // --- SpeechInput ---
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setLocale(Locale locale) {
+        this.locale = locale;
+        recognizer.setLocale(locale);
+    }
+
+    @Override
+    public void startListening() {
+        if (destroyed) {
+            return;
+        }
+        wantListening = true;
+        attempts = 0;
+        recreatedThisStart = false;
+        switch (state) {
+            case IDLE:
+                begin();
+                break;
+            case COOLING:
+            case BUSY:
+                deferredStarts++; // Starts when the timer fires
+                break;
+            default:
+                Log.w(TAG, "startListening while " + state + "; ignored.");
+                break;
+        }
+    }
+
+    @Override
+    public void cancel() {
+        wantListening = false;
+        if (state == State.ARMING || state == State.LISTENING) {
+            recognizer.cancel();
+            cool();
+        } else if (state == State.BUSY) {
+            cool(); // The failed session is already cancelled; just let the pending retry lapse
+        }
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        wantListening = false;
+        generation++;
+        state = State.IDLE;
+        recognizer.destroy();
+    }
+
+    public State state() {
+        return state;
+    }
+
+    // --- Transitions ---
+
+    private void begin() {
+        state = State.ARMING;
+        int armed = ++generation;
+        starts++;
+        try {
+            recognizer.startListening();
+        } catch (RuntimeException e) {
+            // AndroidSpeechInput throws until its recognizer exists; same as the recognizer being busy
+            Log.w(TAG, "startListening failed: " + e.getMessage());
+            onStartFailed(TurnController.ERROR_CLIENT);
+            return;
+        }
+        delayer.postDelayed(() -> {
+            if (generation == armed && state == State.ARMING) {
+                Log.w(TAG, "No onReadyForSpeech after " + ARM_TIMEOUT_MILLIS + "ms; recreating the recognizer.");
+                recognizer.cancel();
+                recreate(-1);
+                onStartFailed(TurnController.ERROR_CLIENT);
+            }
+        }, ARM_TIMEOUT_MILLIS);
+    }
+
+    private void cool() {
+        state = State.COOLING;
+        int cooling = ++generation;
+        delayer.postDelayed(() -> {
+            if (generation == cooling) {
+                afterWait();
+            }
+        }, COOLDOWN_MILLIS);
+    }
+
+    // End of cooling or backoff: start if someone is still waiting to listen
+    private void afterWait() {
+        if (destroyed) {
+            return;
+        }
+        if (wantListening) {
+            begin();
+        } else {
+            state = State.IDLE;
+        }
+    }
+
+    private void onStartFailed(int error) {
+        if (attempts < BACKOFF_MILLIS.length) {
+            long backoff = BACKOFF_MILLIS[attempts++];
+            retries++;
+            EventLog.record(EventLog.STT_RETRY, error, backoff);
+            state = State.BUSY;
+            int waiting = ++generation;
+            delayer.postDelayed(() -> {
+                if (generation == waiting) {
+                    afterWait();
+                }
+            }, backoff);
+        } else if (!recreatedThisStart) {
+            // Retries ran out: the recognizer is broken, so try once more with a fresh one
+            recreate(error);
+            attempts = BACKOFF_MILLIS.length - 1;
+            onStartFailed(error);
+        } else {
+            surface(error);
+        }
+    }
+
+    private void surface(int error) {
+        surfacedErrors++;
+        wantListening = false;
+        cool();
+        if (listener != null) {
+            listener.onError(error);
+        }
+    }
+
+    private void recreate(int reason) {
+        recreatedThisStart = true;
+        recreations++;
+        EventLog.record(EventLog.STT_RECREATE, reason, recreations);
+        recognizer.destroy();
+        recognizer = create();
+    }
+
+    private SpeechInput create() {
+        SpeechInput created = factory.get();
+        created.setListener(new Forwarder(created));
+        if (locale != null) {
+            created.setLocale(locale);
+        }
+        return created;
+    }
+
+    // Relays one recognizer instance's callbacks; anything from a replaced instance or an ended session is dropped
+    private final class Forwarder implements Listener {
+        private final SpeechInput source;
+
+        Forwarder(SpeechInput source) {
+            this.source = source;
+        }
+
+        private boolean isCurrent() {
+            if (source == recognizer && (state == State.ARMING || state == State.LISTENING)) {
+                return true;
+            }
+            staleCallbacks++;
+            return false;
+        }
+
+        @Override
+        public void onReadyForSpeech() {
+            if (!isCurrent()) {
+                return;
+            }
+            state = State.LISTENING;
+            generation++; // Disarms the arm timeout
+            attempts = 0;
+            if (listener != null) {
+                listener.onReadyForSpeech();
+            }
+        }
+
+        @Override
+        public void onResults(String transcript) {
+            if (!isCurrent()) {
+                return;
+            }
+            wantListening = false;
+            cool();
+            if (listener != null) {
+                listener.onResults(transcript);
+            }
+        }
+
+        @Override
+        public void onPartialResults(String partialTranscript) {
+            if (isCurrent() && listener != null) {
+                listener.onPartialResults(partialTranscript);
+            }
+        }
+
+        @Override
+        public void onError(int error) {
+            if (!isCurrent()) {
+                return; // e.g. the ERROR_CLIENT some recognizers report after cancel()
+            }
+            switch (error) {
+                case TurnController.ERROR_RECOGNIZER_BUSY:
+                case TurnController.ERROR_CLIENT:
+                case TurnController.ERROR_TOO_MANY_REQUESTS:
+                    recognizer.cancel();
+                    onStartFailed(error);
+                    break;
+                case TurnController.ERROR_SERVER_DISCONNECTED:
+                    recreate(error);
+                    onStartFailed(error);
+                    break;
+                default:
+                    wantListening = false;
+                    cool();
+                    if (listener != null) {
+                        listener.onError(error);
+                    }
+                    break;
+            }
+        }
+    }
+
+    public String describe() {
+        return "recognizer: state=" + state + " starts=" + starts + " retries=" + retries + " recreations=" + recreations
+                + " deferredStarts=" + deferredStarts + " staleCallbacks=" + staleCallbacks + " surfacedErrors=" + surfacedErrors;
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client-side quota guard for outbound model calls.
+ *
+ * Calls wait in a priority queue (interactive turns ahead of background work, FIFO within a
+ * priority) and are dispatched by a single thread only when both token buckets allow it: one for
+ * requests per second and one for tokens per minute. When a call comes back rate limited, the
+ * scheduler stops dispatching for the server's {@code Retry-After} (or an exponential backoff when
+ * none is given) and re-queues the call at the front of its priority.
+ */
+public final class RequestScheduler {
+
+    private static final String TAG = "RequestScheduler";
+
+    public static final int MAX_RETRIES = 3;
+    static final long DEFAULT_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    public enum Priority { INTERACTIVE, BACKGROUND }
+
+    /** One outbound request. */
+    public interface Call {
+        /** Starts the request; must eventually call exactly one method on {@code completion}. */
+        void start(Completion completion);
+
+        /** The call was dropped without a usable answer: retries ran out or the scheduler shut down. */
+        void onGiveUp(Throwable lastError);
+    }
+
+    public interface Completion {
+        /** The request finished (successfully or with an error the caller handled itself). */
+        void done();
+
+        /** The server rejected the request for quota reasons; it will be retried after backoff. */
+        void rateLimited(Throwable error);
+    }
+
+    private final ScheduledExecutorService dispatcher;
+    private final TokenBucket requestBucket;
+    private final TokenBucket tokenBucket;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private long nextSequence;
+    private long backoffUntilNanos;
+    private int consecutiveRateLimits;
+    private ScheduledFuture<?> pendingWakeUp;
+    private boolean shutdown;
+
+    // --- Metrics (guarded by this) ---
+    private int maxQueueDepth;
+    private final long[] dispatched = new long[Priority.values().length];
+    private final long[] totalWaitNanos = new long[Priority.values().length];
+    private final long[] maxWaitNanos = new long[Priority.values().length];
+    private long rateLimitedCount;
+    private long retriedCount;
+    private long gaveUpCount;
+
+    /**
+     * @param requestsPerSecond sustained request rate
+     * @param requestBurst      requests allowed back to back after an idle period
+     * @param tokensPerMinute   sustained token quota (prompt + expected output)
+     * @param tokenBurst        tokens allowed back to back after an idle period
+     */
+    public RequestScheduler(double requestsPerSecond, int requestBurst, int tokensPerMinute, int tokenBurst) {
+        long now = System.nanoTime();
+        requestBucket = new TokenBucket(requestBurst, requestsPerSecond, now);
+        tokenBucket = new TokenBucket(tokenBurst, tokensPerMinute / 60d, now);
+        dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "peanut-request-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Queues a call costing roughly {@code estimatedTokens} against the per-minute token quota. */
+    public void submit(Priority priority, int estimatedTokens, Call call) {
+        Entry entry;
+        synchronized (this) {
+            if (shutdown) {
+                entry = null;
+            } else {
+                entry = new Entry(priority, nextSequence++, Math.max(1, estimatedTokens), call);
+                queue.add(entry);
+                maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+                EventLog.record(EventLog.GEMINI_QUEUED, priority.ordinal(), queue.size());
+            }
+        }
+        if (entry == null) {
+            call.onGiveUp(new IllegalStateException("Request scheduler is shut down"));
+            return;
+        }
+        dispatcher.execute(this::dispatch);
+    }
+
+    public void shutdown() {
+        Entry[] abandoned;
+        synchronized (this) {
+            shutdown = true;
+            abandoned = queue.toArray(new Entry[0]);
+            queue.clear();
+        }
+        dispatcher.shutdownNow();
+        for (Entry entry : abandoned) {
+            entry.call.onGiveUp(new IllegalStateException("Request scheduler is shut down"));
+        }
+    }
+
+    // --- Dispatching (dispatcher thread only) ---
+
+    private void dispatch() {
+        while (true) {
+            Entry next;
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (shutdown) {
+                    return;
+                }
+                next = queue.peek();
+                if (next == null) {
+                    return;
+                }
+                long waitNanos = Math.max(backoffUntilNanos - now,
+                        Math.max(requestBucket.nanosUntilAvailable(1, now), tokenBucket.nanosUntilAvailable(next.tokens, now)));
+                if (waitNanos > 0) {
+                    scheduleWakeUp(waitNanos);
+                    return;
+                }
+                queue.poll();
+                requestBucket.consume(1, now);
+                tokenBucket.consume(next.tokens, now);
+                int p = next.priority.ordinal();
+                long waited = now - next.enqueuedNanos;
+                dispatched[p]++;
+                totalWaitNanos[p] += waited;
+                maxWaitNanos[p] = Math.max(maxWaitNanos[p], waited);
+                EventLog.record(EventLog.GEMINI_DISPATCH, p, waited / 1_000_000L);
+            }
+            start(next);
+        }
+    }
+
+    private void scheduleWakeUp(long waitNanos) {
+        // A wake-up that is already due may be the one running this dispatch, so only a future one counts
+        if (pendingWakeUp != null && pendingWakeUp.getDelay(TimeUnit.NANOSECONDS) > 0) {
+            if (pendingWakeUp.getDelay(TimeUnit.NANOSECONDS) <= waitNanos) {
+                return; // An earlier wake-up will re-check anyway
+            }
+            pendingWakeUp.cancel(false);
+        }
+        pendingWakeUp = dispatcher.schedule(this::dispatch, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void start(Entry entry) {
+        try {
+            entry.call.start(new Completion() {
+                private boolean completed;
+
+                @Override
+                public void done() {
+                    synchronized (RequestScheduler.this) {
+                        if (completed) return;
+                        completed = true;
+                        consecutiveRateLimits = 0;
+                    }
+                }
+
+                @Override
+                public void rateLimited(Throwable error) {
+                    synchronized (RequestScheduler.this) {
+                        if (completed) return;
+                        completed = true;
+                    }
+                    onRateLimited(entry, error);
+                }
+            });
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Request failed to start: " + e.getMessage(), e);
+            entry.call.onGiveUp(e);
+        }
+    }
+
+    private void onRateLimited(Entry entry, Throwable error) {
+        long retryAfterMillis = parseRetryAfterMillis(error);
+        boolean giveUp;
+        synchronized (this) {
+            rateLimitedCount++;
+            consecutiveRateLimits++;
+            if (retryAfterMillis < 0) {
+                // No hint from the server: 1s, 2s, 4s... capped
+                retryAfterMillis = Math.min(MAX_BACKOFF_MILLIS, DEFAULT_BACKOFF_MILLIS << Math.min(consecutiveRateLimits - 1, 16));
+            }
+            long now = System.nanoTime();
+            backoffUntilNanos = Math.max(backoffUntilNanos, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+            // The server's view of the quota wins over ours
+            requestBucket.drain(now);
+            giveUp = shutdown || entry.attempts >= MAX_RETRIES;
+            if (giveUp) {
+                gaveUpCount++;
+            } else {
+                entry.attempts++;
+                retriedCount++;
+                queue.add(entry); // Keeps its sequence number, so it stays ahead of later calls of the same priority
+            }
+        }
+        Log.w(TAG, "Rate limited; backing off " + retryAfterMillis + "ms (attempt " + entry.attempts + ")");
+        EventLog.record(EventLog.GEMINI_RATE_LIMITED, entry.attempts, retryAfterMillis);
+        if (giveUp) {
+            entry.call.onGiveUp(error);
+        } else if (!dispatcher.isShutdown()) {
+            dispatcher.execute(this::dispatch);
+        }
+    }
+
+    // --- Retry-After Parsing ---
+
+    // "Retry-After: 30", "retry after 2.5s", or the gRPC/JSON form "retryDelay": "30s"
+    private static final Pattern RETRY_AFTER_PATTERN = Pattern.compile(
+            "(?:retry[- _]?after|retrydelay)\"?\\s*[:=]?\\s*\"?(\\d+(?:\\.\\d+)?)\\s*(ms|s|seconds?)?",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern RATE_LIMITED_PATTERN = Pattern.compile(
+            "\\b429\\b|resource[_ ]exhausted|rate[- ]?limit", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * True if the error (or any cause) looks like an HTTP 429 / RESOURCE_EXHAUSTED quota rejection.
+     * A bare "quota" is not enough: "quota project not set" or a key with no quota will not clear by waiting.
+     */
+    public static boolean isRateLimited(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            String message = t.getMessage();
+            if (message != null && RATE_LIMITED_PATTERN.matcher(message).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The server's requested backoff in milliseconds, or -1 if the error (and its causes) carries none. */
+    public static long parseRetryAfterMillis(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            String message = t.getMessage();
+            if (message == null) {
+                continue;
+            }
+            Matcher matcher = RETRY_AFTER_PATTERN.matcher(message);
+            if (matcher.find()) {
+                double value = Double.parseDouble(matcher.group(1));
+                String unit = matcher.group(2);
+                double millis = unit != null && unit.equalsIgnoreCase("ms") ? value : value * 1000d;
+                return Math.min(MAX_BACKOFF_MILLIS, (long) Math.ceil(millis));
+            }
+        }
+        return -1;
+    }
+
+    // --- Metrics ---
+
+    public synchronized int queueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int maxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public synchronized long dispatchedCount(Priority priority) {
+        return dispatched[priority.ordinal()];
+    }
+
+    public synchronized long averageWaitMillis(Priority priority) {
+        int p = priority.ordinal();
+        return dispatched[p] == 0 ? 0 : totalWaitNanos[p] / dispatched[p] / 1_000_000L;
+    }
+
+    public synchronized long maxWaitMillis(Priority priority) {
+        return maxWaitNanos[priority.ordinal()] / 1_000_000L;
+    }
+
+    public synchronized long rateLimitedCount() {
+        return rateLimitedCount;
+    }
+
+    public synchronized long retriedCount() {
+        return retriedCount;
+    }
+
+    public synchronized long gaveUpCount() {
+        return gaveUpCount;
+    }
+
+    /** One-line summary for dumpsys. */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("queue=").append(queue.size()).append(" maxQueue=").append(maxQueueDepth);
+        for (Priority priority : Priority.values()) {
+            int p = priority.ordinal();
+            sb.append(' ').append(priority.name().toLowerCase(Locale.US))
+                    .append("[sent=").append(dispatched[p])
+                    .append(" avgWaitMs=").append(dispatched[p] == 0 ? 0 : totalWaitNanos[p] / dispatched[p] / 1_000_000L)
+                    .append(" maxWaitMs=").append(maxWaitNanos[p] / 1_000_000L).append(']');
+        }
+        sb.append(" rateLimited=").append(rateLimitedCount)
+                .append(" retried=").append(retriedCount)
+                .append(" gaveUp=").append(gaveUpCount);
+        long backoffMillis = TimeUnit.NANOSECONDS.toMillis(backoffUntilNanos - System.nanoTime());
+        if (backoffMillis > 0) {
+            sb.append(" backoffMs=").append(backoffMillis);
+        }
+        return sb.toString();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Priority priority;
+        final long sequence;
+        final int tokens;
+        final Call call;
+        final long enqueuedNanos = System.nanoTime();
+        int attempts;
+
+        Entry(Priority priority, long sequence, int tokens, Call call) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.tokens = tokens;
+            this.call = call;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.example.peanut;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Response templates loaded from {@code assets/responses.txt} instead of hard-coded lists.
+ *
+ * The file is read once and only its section headers are indexed; a section is parsed into
+ * precompiled {@link Template}s the first time its intent is needed. Templates are split into
+ * literal parts and slot ids up front, so rendering appends into a caller-supplied builder instead
+ * of re-parsing a format string each turn. {@link #reload()} re-reads the source and swaps the new
+ * contents in at once, which picks up an override file without rebuilding the app.
+ */
+public class ResponseBank {
+
+    private static final String TAG = "ResponseBank";
+
+    public static final String ASSET_NAME = "responses.txt";
+
+    // --- Section Names ---
+    public static final String GREETING = "greeting";
+    public static final String HOW_ARE_YOU = "how_are_you";
+    public static final String NAME_INQUIRY = "name_inquiry";
+    public static final String SET_NAME = "set_name";
+    public static final String JOKE = "joke";
+    public static final String GOODBYE = "goodbye";
+    public static final String THANK_YOU = "thank_you";
+    public static final String TIME = "time";
+    public static final String WEATHER_LOCATION_PROMPT = "weather_location_prompt";
+    public static final String UNDERSTANDING_FAILURE = "understanding_failure";
+    public static final String SMALL_TALK = "small_talk";
+    public static final String AFFIRMATION = "affirmation";
+    public static final String NEGATION = "negation";
+    public static final String GREETING_ASK_NAME = "greeting_ask_name";
+    public static final String JOKE_FOLLOWUP = "joke_followup";
+    public static final String AFFIRMATION_AFTER_JOKE = "affirmation_after_joke";
+    public static final String AFFIRMATION_FOLLOWUP = "affirmation_followup";
+    public static final String NEGATION_FOLLOWUP = "negation_followup";
+    public static final String WEATHER_STILL_WAITING = "weather_still_waiting";
+    public static final String THINKING = "thinking";
+    public static final String RECALL_FOUND = "recall_found";
+    public static final String RECALL_NONE = "recall_none";
+    public static final String WEATHER_FETCHING = "weather_fetching";
+    public static final String OUTBOX_EARLIER = "outbox_earlier";
+    public static final String OFFLINE = "offline";
+    public static final String SPEECH_BUSY = "speech_busy";
+
+    // Trigger phrases of a skill in a locale pack live in "[phrases:<skill name>]"
+    public static final String PHRASES_PREFIX = "phrases:";
+
+    static final String FALLBACK_RESPONSE = "I don't have a response for that right now.";
+
+    // --- Slots ---
+    static final byte SLOT_NONE = 0;
+    static final byte SLOT_NAME = 1;
+    static final byte SLOT_TIME = 2;
+
+    /** Supplies the raw bank file; called again on every reload. */
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * A template precompiled into alternating literal parts and slots:
+     * {@code literals[0] slot[0] literals[1] slot[1] ... literals[n-1]}.
+     */
+    public static final class Template {
+        final String[] literals;
+        final byte[] slots; // slots.length == literals.length - 1
+
+        Template(String[] literals, byte[] slots) {
+            this.literals = literals;
+            this.slots = slots;
+        }
+
+        public void render(StringBuilder out, CharSequence name, CharSequence time) {
+            out.append(literals[0]);
+            for (int i = 0; i < slots.length; i++) {
+                switch (slots[i]) {
+                    case SLOT_NAME: out.append(name); break;
+                    case SLOT_TIME: out.append(time); break;
+                    default: break;
+                }
+                out.append(literals[i + 1]);
+            }
+        }
+
+        static Template compile(String line) {
+            List<String> literals = new ArrayList<>(3);
+            List<Byte> slots = new ArrayList<>(2);
+            int literalStart = 0;
+            int open = line.indexOf('{');
+            while (open >= 0) {
+                int close = line.indexOf('}', open);
+                if (close < 0) {
+                    break;
+                }
+                byte slot = slotFor(line, open + 1, close);
+                if (slot != SLOT_NONE) {
+                    literals.add(line.substring(literalStart, open).intern());
+                    slots.add(slot);
+                    literalStart = close + 1;
+                }
+                open = line.indexOf('{', close);
+            }
+            literals.add(line.substring(literalStart).intern());
+            byte[] slotArray = new byte[slots.size()];
+            for (int i = 0; i < slotArray.length; i++) {
+                slotArray[i] = slots.get(i);
+            }
+            return new Template(literals.toArray(new String[0]), slotArray);
+        }
+
+        private static byte slotFor(String line, int start, int end) {
+            if (end - start == 4 && line.regionMatches(start, "name", 0, 4)) return SLOT_NAME;
+            if (end - start == 4 && line.regionMatches(start, "time", 0, 4)) return SLOT_TIME;
+            return SLOT_NONE; // Unknown placeholder: keep it as literal text
+        }
+    }
+
+    private static final Template FALLBACK_TEMPLATE = Template.compile(FALLBACK_RESPONSE);
+    private static final Template[] NO_TEMPLATES = new Template[0];
+
+    private final Source source;
+
+    // Raw file contents plus the [start, end) character range of each section's body.
+    private String text;
+    private Map<String, int[]> sectionRanges;
+    private final Map<String, Template[]> compiled = new HashMap<>();
+
+    public ResponseBank(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Reads the bank from {@code files/responses.txt} when present, so an updated bank can be
+     * dropped in without a rebuild, and from the bundled asset otherwise.
+     */
+    public static ResponseBank fromContext(Context context) {
+        return fromContext(context, ASSET_NAME);
+    }
+
+    /** Same as {@link #fromContext(Context)} for a locale pack, e.g. {@code responses-es.txt}. */
+    public static ResponseBank fromContext(Context context, final String assetName) {
+        final Context appContext = context.getApplicationContext();
+        return new ResponseBank(() -> {
+            File override = new File(appContext.getFilesDir(), assetName);
+            if (override.isFile()) {
+                Log.d(TAG, "Loading response bank override from " + override);
+                return new FileInputStream(override);
+            }
+            return appContext.getAssets().open(assetName);
+        });
+    }
+
+    /** Asset holding the pack of a language: {@code responses.txt} for English, {@code responses-<lang>.txt} otherwise. */
+    public static String assetNameFor(String language) {
+        return language.equals("en") ? ASSET_NAME : "responses-" + language + ".txt";
+    }
+
+    public static ResponseBank fromFile(final File file) {
+        return new ResponseBank(() -> new FileInputStream(file));
+    }
+
+    /** Returns the compiled templates of a section, parsing it on first use. */
+    public synchronized Template[] templates(String section) {
+        Template[] templates = compiled.get(section);
+        if (templates != null) {
+            return templates;
+        }
+        if (sectionRanges == null) {
+            load();
+        }
+        int[] range = sectionRanges.get(section);
+        templates = range != null ? parseSection(range[0], range[1]) : NO_TEMPLATES;
+        if (templates.length == 0) {
+            Log.w(TAG, "Response bank has no entries for section: " + section);
+        }
+        compiled.put(section, templates);
+        return templates;
+    }
+
+    /** Picks a random template from a section; falls back to a generic line if the section is empty. */
+    public Template choose(String section, Random random) {
+        Template[] templates = templates(section);
+        if (templates.length == 0) {
+            return FALLBACK_TEMPLATE;
+        }
+        return templates[random.nextInt(templates.length)];
+    }
+
+    /** The raw, uncompiled lines of a section (e.g. trigger phrases); empty if the section is missing. */
+    public synchronized String[] lines(String section) {
+        if (sectionRanges == null) {
+            load();
+        }
+        int[] range = sectionRanges.get(section);
+        if (range == null) {
+            return new String[0];
+        }
+        List<String> lines = new ArrayList<>();
+        int lineStart = range[0];
+        while (lineStart < range[1]) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > range[1]) {
+                lineEnd = range[1];
+            }
+            String line = text.substring(lineStart, lineEnd).trim();
+            if (!line.isEmpty() && line.charAt(0) != '#') {
+                lines.add(line);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    /** Reads and indexes the source now if it isn't already, so the first render doesn't. */
+    public synchronized void preload() {
+        if (sectionRanges == null) {
+            load();
+        }
+    }
+
+    /**
+     * Re-reads the source and replaces all sections in one step. The read happens outside the
+     * monitor, so turns keep rendering from the old contents until the new ones are in; call it off
+     * the main thread.
+     */
+    public void reload() {
+        String fresh = readSource();
+        Map<String, int[]> ranges = indexSections(fresh);
+        synchronized (this) {
+            text = fresh;
+            sectionRanges = ranges;
+            compiled.clear();
+        }
+        Log.d(TAG, "Response bank reloaded.");
+    }
+
+    // First lookup: caller holds the monitor
+    private void load() {
+        text = readSource();
+        sectionRanges = indexSections(text);
+    }
+
+    private static Map<String, int[]> indexSections(String text) {
+        Map<String, int[]> sectionRanges = new HashMap<>();
+        String currentSection = null;
+        int bodyStart = 0;
+        int lineStart = 0;
+        int length = text.length();
+        while (lineStart < length) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            if (text.charAt(lineStart) == '[') {
+                int close = text.indexOf(']', lineStart);
+                if (close > lineStart && close < lineEnd) {
+                    if (currentSection != null) {
+                        sectionRanges.put(currentSection, new int[]{bodyStart, lineStart});
+                    }
+                    currentSection = text.substring(lineStart + 1, close).trim();
+                    bodyStart = Math.min(lineEnd + 1, length);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (currentSection != null) {
+            sectionRanges.put(currentSection, new int[]{bodyStart, length});
+        }
+        return sectionRanges;
+    }
+
+    private Template[] parseSection(int start, int end) {
+        List<Template> templates = new ArrayList<>();
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
+            }
+            String line = text.substring(lineStart, lineEnd).trim();
+            if (!line.isEmpty() && line.charAt(0) != '#') {
+                templates.add(Template.compile(line));
+            }
+            lineStart = lineEnd + 1;
+        }
+        return templates.toArray(NO_TEMPLATES);
+    }
+
+    private String readSource() {
+        PeanutExecutors.checkNotMainThread("Response bank read");
+        try (InputStream in = source.open()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read response bank: " + e.getMessage(), e);
+            return "";
+        }
+    }
+}
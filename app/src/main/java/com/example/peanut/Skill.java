@@ -0,0 +1,26 @@
+package com.example.peanut;
+
+/**
+ * A capability Peanut can handle, e.g. telling the time or answering through Gemini.
+ *
+ * Skills are registered with a {@link SkillRegistry} together with the trigger phrases that route
+ * to them; the registry only instantiates a skill the first time a turn is routed to it, so a skill
+ * should load its data in its constructor or on first {@link #handle}, never in a static initializer.
+ */
+public interface Skill {
+
+    /**
+     * Handles one turn routed to this skill by appending the immediate response to
+     * {@code result.text}. The route's intent is already set on {@code result.intent}; a skill may
+     * replace it (e.g. weather asking for a city).
+     *
+     * An async skill sets {@code result.awaitingAsync}, appends a short holding response, and later
+     * delivers its answer through {@code callback} from {@link ConversationManager#onTurnThread}
+     * (recording it with {@link ConversationManager#recordAsyncResponse}).
+     *
+     * @param conversation Conversation state and response rendering.
+     * @param input The lowercased, trimmed user input. Only valid during this call.
+     */
+    void handle(ConversationManager conversation, CharSequence input, TurnResult result,
+                ConversationManager.ExternalAiResponseCallback callback);
+}
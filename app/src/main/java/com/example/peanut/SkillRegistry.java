@@ -0,0 +1,334 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Routes user input to {@link Skill}s by their declared trigger phrases.
+ *
+ * The routing table is built once in {@link Builder#build()}: every phrase is indexed by its first
+ * word in an open-addressing hash table, so routing a turn only looks at the phrases whose first
+ * word actually occurs in the input instead of running every skill's regex. When several skills
+ * match, the one registered first wins, which keeps the priority order of the old if-chain.
+ * Routing does not allocate. Skills are created from their factory on first use.
+ */
+public final class SkillRegistry {
+
+    private static final String TAG = "SkillRegistry";
+
+    public static final int NO_ROUTE = -1;
+
+    // --- Routes (one per registered skill, in priority order) ---
+    private final String[] routeNames;
+    private final ConversationManager.Intent[] routeIntents;
+    private final List<Supplier<Skill>> factories;
+    private final Skill[] instances;
+
+    // --- Phrases ---
+    private final String[] phrases;
+    private final int[] phraseRoutes;
+    private final boolean[] phraseNeedsArgument; // Phrase must be followed by another word (e.g. "my name is X")
+
+    // --- First-word index: open addressing, keyed by String.hashCode of the first word ---
+    private final int tableMask;
+    private final String[] tableWords;
+    private final int[] tableHashes;
+    private final int[][] tablePhrases;
+
+    // --- Fallback when no phrase matches (e.g. Gemini) ---
+    private final String fallbackName;
+    private final ConversationManager.Intent fallbackIntent;
+    private final Supplier<Skill> fallbackFactory;
+    private Skill fallbackInstance;
+
+    private int instantiated = 0;
+
+    public static final class Builder {
+        private final List<String> names = new ArrayList<>();
+        private final List<ConversationManager.Intent> intents = new ArrayList<>();
+        private final List<Supplier<Skill>> factories = new ArrayList<>();
+        private final List<String> phrases = new ArrayList<>();
+        private final List<Integer> phraseRoutes = new ArrayList<>();
+        private final List<Boolean> phraseNeedsArgument = new ArrayList<>();
+        private String fallbackName;
+        private ConversationManager.Intent fallbackIntent = ConversationManager.Intent.UNKNOWN;
+        private Supplier<Skill> fallbackFactory;
+
+        /** Registers a skill triggered when any of {@code triggerPhrases} occurs as whole words in the input. */
+        public Builder register(String name, ConversationManager.Intent intent, String[] triggerPhrases, Supplier<Skill> factory) {
+            return add(name, intent, triggerPhrases, false, factory);
+        }
+
+        /** Like {@link #register}, but a phrase only triggers when another word follows it. */
+        public Builder registerWithArgument(String name, ConversationManager.Intent intent, String[] triggerPhrases, Supplier<Skill> factory) {
+            return add(name, intent, triggerPhrases, true, factory);
+        }
+
+        /** The skill used when no trigger phrase matches. */
+        public Builder fallback(String name, ConversationManager.Intent intent, Supplier<Skill> factory) {
+            this.fallbackName = name;
+            this.fallbackIntent = intent;
+            this.fallbackFactory = factory;
+            return this;
+        }
+
+        private Builder add(String name, ConversationManager.Intent intent, String[] triggerPhrases, boolean needsArgument, Supplier<Skill> factory) {
+            int route = names.size();
+            names.add(name);
+            intents.add(intent);
+            factories.add(factory);
+            for (String phrase : triggerPhrases) {
+                String normalized = phrase.trim().toLowerCase(Locale.US);
+                if (normalized.isEmpty()) {
+                    continue;
+                }
+                phrases.add(normalized);
+                phraseRoutes.add(route);
+                phraseNeedsArgument.add(needsArgument);
+            }
+            return this;
+        }
+
+        public SkillRegistry build() {
+            return new SkillRegistry(this);
+        }
+    }
+
+    private SkillRegistry(Builder builder) {
+        int routeCount = builder.names.size();
+        routeNames = builder.names.toArray(new String[0]);
+        routeIntents = builder.intents.toArray(new ConversationManager.Intent[0]);
+        factories = new ArrayList<>(builder.factories);
+        instances = new Skill[routeCount];
+
+        int phraseCount = builder.phrases.size();
+        phrases = builder.phrases.toArray(new String[0]);
+        phraseRoutes = new int[phraseCount];
+        phraseNeedsArgument = new boolean[phraseCount];
+        for (int i = 0; i < phraseCount; i++) {
+            phraseRoutes[i] = builder.phraseRoutes.get(i);
+            phraseNeedsArgument[i] = builder.phraseNeedsArgument.get(i);
+        }
+
+        // Group phrases by first word, keeping registration order inside each group
+        Map<String, List<Integer>> byFirstWord = new LinkedHashMap<>();
+        for (int i = 0; i < phraseCount; i++) {
+            String phrase = phrases[i];
+            int end = 0;
+            while (end < phrase.length() && isWordChar(phrase.charAt(end))) end++;
+            String firstWord = phrase.substring(0, end);
+            List<Integer> group = byFirstWord.get(firstWord);
+            if (group == null) {
+                group = new ArrayList<>();
+                byFirstWord.put(firstWord, group);
+            }
+            group.add(i);
+        }
+        int capacity = Integer.highestOneBit(Math.max(4, byFirstWord.size() * 2 - 1)) << 1;
+        tableMask = capacity - 1;
+        tableWords = new String[capacity];
+        tableHashes = new int[capacity];
+        tablePhrases = new int[capacity][];
+        for (Map.Entry<String, List<Integer>> entry : byFirstWord.entrySet()) {
+            int hash = entry.getKey().hashCode();
+            int slot = mix(hash) & tableMask;
+            while (tableWords[slot] != null) {
+                slot = (slot + 1) & tableMask;
+            }
+            tableWords[slot] = entry.getKey();
+            tableHashes[slot] = hash;
+            int[] group = new int[entry.getValue().size()];
+            for (int i = 0; i < group.length; i++) {
+                group[i] = entry.getValue().get(i);
+            }
+            tablePhrases[slot] = group;
+        }
+
+        fallbackName = builder.fallbackName;
+        fallbackIntent = builder.fallbackIntent;
+        fallbackFactory = builder.fallbackFactory;
+        Log.d(TAG, "Routing table built: " + routeCount + " skills, " + phraseCount + " phrases, " + byFirstWord.size() + " first words.");
+    }
+
+    // --- Routing ---
+
+    /** Returns the highest-priority route whose trigger phrase occurs in {@code input}, or {@link #NO_ROUTE}. */
+    public int route(CharSequence input) {
+        int best = Integer.MAX_VALUE;
+        int length = input.length();
+        int i = 0;
+        while (i < length) {
+            if (!isWordChar(input.charAt(i))) {
+                i++;
+                continue;
+            }
+            int wordEnd = i;
+            int hash = 0;
+            while (wordEnd < length && isWordChar(input.charAt(wordEnd))) {
+                hash = 31 * hash + input.charAt(wordEnd);
+                wordEnd++;
+            }
+            int[] candidates = lookup(input, i, wordEnd, hash);
+            if (candidates != null) {
+                for (int phrase : candidates) {
+                    int route = phraseRoutes[phrase];
+                    if (route < best && phraseMatchesAt(input, i, phrase)) {
+                        best = route;
+                        break; // Later phrases in the group belong to the same or lower-priority routes
+                    }
+                }
+                if (best == 0) {
+                    break;
+                }
+            }
+            i = wordEnd;
+        }
+        return best == Integer.MAX_VALUE ? NO_ROUTE : best;
+    }
+
+    /**
+     * True when the words at the end of {@code input} are the start of a trigger phrase of a route
+     * with higher priority than {@code route}, i.e. one more word from the recognizer could still
+     * change the routing. The last word may be incomplete. Used to decide whether a partial
+     * transcript can be acted on early.
+     */
+    public boolean isPrefixOfHigherPriorityPhrase(CharSequence input, int route) {
+        int length = input.length();
+        while (length > 0 && !isWordChar(input.charAt(length - 1))) length--;
+        int limit = route == NO_ROUTE ? Integer.MAX_VALUE : route;
+        for (int start = 0; start < length; start++) {
+            if (!isWordChar(input.charAt(start)) || (start > 0 && isWordChar(input.charAt(start - 1)))) {
+                continue; // Only word starts
+            }
+            int tailLength = length - start;
+            for (int p = 0; p < phrases.length; p++) {
+                if (phraseRoutes[p] >= limit || phrases[p].length() <= tailLength) {
+                    continue;
+                }
+                if (regionStartsWith(input, start, length, phrases[p])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public ConversationManager.Intent intentOf(int route) {
+        return route == NO_ROUTE ? fallbackIntent : routeIntents[route];
+    }
+
+    /** Returns the first route registered for {@code intent}, or {@link #NO_ROUTE}. */
+    public int routeOf(ConversationManager.Intent intent) {
+        for (int route = 0; route < routeIntents.length; route++) {
+            if (routeIntents[route] == intent) {
+                return route;
+            }
+        }
+        return NO_ROUTE;
+    }
+
+    public String nameOf(int route) {
+        return route == NO_ROUTE ? fallbackName : routeNames[route];
+    }
+
+    /** Returns the skill for a route, creating it on first use. */
+    public synchronized Skill skill(int route) {
+        if (route == NO_ROUTE) {
+            if (fallbackInstance == null && fallbackFactory != null) {
+                fallbackInstance = create(fallbackName, fallbackFactory);
+            }
+            return fallbackInstance;
+        }
+        if (instances[route] == null) {
+            instances[route] = create(routeNames[route], factories.get(route));
+        }
+        return instances[route];
+    }
+
+    public int size() {
+        return routeNames.length;
+    }
+
+    public synchronized int instantiatedCount() {
+        return instantiated;
+    }
+
+    private Skill create(String name, Supplier<Skill> factory) {
+        long start = System.nanoTime();
+        Skill skill = factory.get();
+        instantiated++;
+        Log.d(TAG, "Instantiated skill " + name + " in " + (System.nanoTime() - start) / 1000L + "us");
+        return skill;
+    }
+
+    // --- Matching Helpers ---
+
+    private int[] lookup(CharSequence input, int start, int end, int hash) {
+        int slot = mix(hash) & tableMask;
+        while (tableWords[slot] != null) {
+            if (tableHashes[slot] == hash && regionEquals(input, start, end, tableWords[slot])) {
+                return tablePhrases[slot];
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return null;
+    }
+
+    private boolean phraseMatchesAt(CharSequence input, int start, int phraseIndex) {
+        String phrase = phrases[phraseIndex];
+        int end = start + phrase.length();
+        if (end > input.length()) {
+            return false;
+        }
+        for (int i = 0; i < phrase.length(); i++) {
+            if (input.charAt(start + i) != phrase.charAt(i)) {
+                return false;
+            }
+        }
+        if (end < input.length() && isWordChar(input.charAt(end))) {
+            return false; // Phrase ends in the middle of a word
+        }
+        if (phraseNeedsArgument[phraseIndex]) {
+            int next = end;
+            while (next < input.length() && Character.isWhitespace(input.charAt(next))) next++;
+            return next > end && next < input.length() && Character.isLetter(input.charAt(next));
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(CharSequence input, int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (input.charAt(start + i) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether input[start, end) is a prefix of phrase
+    private static boolean regionStartsWith(CharSequence input, int start, int end, String phrase) {
+        for (int i = start; i < end; i++) {
+            if (input.charAt(i) != phrase.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '\'' || c == '_';
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.peanut;
+
+import java.util.Locale;
+
+/**
+ * Speech-to-text backend used by {@link TurnController}. The Android implementation wraps
+ * {@code SpeechRecognizer}; tests use a scripted fake. Error codes are the
+ * {@code SpeechRecognizer.ERROR_*} constants. All methods are called on the main thread.
+ */
+public interface SpeechInput {
+
+    interface Listener {
+        void onReadyForSpeech();
+        void onResults(String transcript); // null when the recognizer returned no matches
+        void onPartialResults(String partialTranscript);
+        void onError(int error);
+    }
+
+    void setListener(Listener listener);
+
+    /** Recognizes {@code locale} from the next {@link #startListening()} on. */
+    void setLocale(Locale locale);
+
+    void startListening();
+
+    void cancel();
+
+    void destroy();
+}
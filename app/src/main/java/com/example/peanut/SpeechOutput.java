@@ -0,0 +1,31 @@
+package com.example.peanut;
+
+import java.util.Locale;
+
+/**
+ * Text-to-speech backend used by {@link TurnController}. The Android implementation wraps
+ * {@code TextToSpeech}; tests use a scripted fake. Listener callbacks may arrive on any thread.
+ */
+public interface SpeechOutput {
+
+    interface Listener {
+        void onStart(String utteranceId);
+        void onDone(String utteranceId);
+        void onError(String utteranceId);
+    }
+
+    void setListener(Listener listener);
+
+    /** Speaks in {@code locale} from the next utterance on. */
+    void setLocale(Locale locale);
+
+    /** True once the engine is initialized and its language is usable. */
+    boolean isReady();
+
+    /** Speaks {@code text}, interrupting anything currently being spoken. */
+    void speak(String text, String utteranceId);
+
+    void stop();
+
+    void shutdown();
+}
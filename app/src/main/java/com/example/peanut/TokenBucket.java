@@ -0,0 +1,59 @@
+package com.example.peanut;
+
+/**
+ * Classic token bucket: holds up to {@code capacity} tokens and refills continuously at
+ * {@code refillPerSecond}. Callers pass the current {@code System.nanoTime()} so tests can drive
+ * the clock. Not thread-safe; {@link RequestScheduler} only touches it from its dispatcher thread.
+ */
+final class TokenBucket {
+
+    private final double capacity;
+    private final double refillPerNano;
+    private double tokens;
+    private long lastRefillNanos;
+
+    TokenBucket(double capacity, double refillPerSecond, long nowNanos) {
+        if (capacity <= 0 || refillPerSecond <= 0) {
+            throw new IllegalArgumentException("capacity and refill rate must be positive");
+        }
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / 1_000_000_000d;
+        this.tokens = capacity;
+        this.lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * Nanoseconds until {@code cost} tokens are available, or 0 if they are available now.
+     * A cost above capacity is clamped so an oversized request waits for a full bucket instead of forever.
+     */
+    long nanosUntilAvailable(double cost, long nowNanos) {
+        refill(nowNanos);
+        double needed = Math.min(cost, capacity) - tokens;
+        return needed <= 0 ? 0 : (long) Math.ceil(needed / refillPerNano);
+    }
+
+    /** Takes {@code cost} tokens; the balance may go negative for requests larger than the bucket. */
+    void consume(double cost, long nowNanos) {
+        refill(nowNanos);
+        tokens -= cost;
+    }
+
+    /** Empties the bucket, e.g. after the server says the quota is exhausted. */
+    void drain(long nowNanos) {
+        refill(nowNanos);
+        tokens = Math.min(tokens, 0);
+    }
+
+    double available(long nowNanos) {
+        refill(nowNanos);
+        return tokens;
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * refillPerNano);
+            lastRefillNanos = nowNanos;
+        }
+    }
+}
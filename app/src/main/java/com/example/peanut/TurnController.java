@@ -0,0 +1,511 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Peanut's turn-taking state machine: speak, listen, hand the transcript to the
+ * {@link ConversationManager}, speak the answer and listen again.
+ *
+ * It only depends on {@link SpeechInput}, {@link SpeechOutput} and an executor standing in for the
+ * main thread, so the same logic that runs in {@link PeanutService} can be driven by scripted
+ * speech backends in plain JVM tests. All state is touched on the main executor.
+ *
+ * Partial transcripts go through an {@link IntentStream}; when it commits to a short local intent
+ * the answer is spoken right away and the recognizer's final result is only checked against it.
+ *
+ * A transcript with several requests is split into clauses ({@link UtteranceSplitter}); each is
+ * routed on its own, the weather and Gemini clauses run concurrently, and the answers are spoken in
+ * order as a {@link CompoundTurn}: local answers first, remote ones as they arrive.
+ *
+ * With {@link #setMetrics} each turn's recognizer wait, routing time, backend latency, TTS start
+ * delay, cache hit and errors are recorded into {@link TurnMetrics} when the next listen starts.
+ */
+public class TurnController implements ConversationManager.ExternalAiResponseCallback {
+
+    private static final String TAG = "TurnController";
+
+    static final String UTTERANCE_ID_LISTEN = "utterance_id_listen";
+    static final String UTTERANCE_ID_RESPONSE = "utterance_id_response";
+    static final String UTTERANCE_ID_GOODBYE = "utterance_id_goodbye";
+    static final String UTTERANCE_ID_THINKING = "utterance_id_thinking"; // Re-listen waits for the async answer
+    static final String UTTERANCE_ID_PART = "utterance_id_part"; // One answer of a compound turn; the next follows when done
+
+    static final long STOP_DELAY_MILLIS = 2000;
+
+    /** Service-side effects the controller needs but cannot perform itself. */
+    public interface Host {
+        void showToast(String message);
+        void stopSelfDelayed(long delayMillis);
+    }
+
+    /** Receives timing of each turn; used by latency tests and diagnostics. */
+    public interface LatencyListener {
+        // Time from the final transcript arriving to the answer being handed to TTS
+        void onResponseSpoken(ConversationManager.Intent intent, long transcriptToSpeakNanos);
+        // Time from TTS finishing to the recognizer being restarted
+        void onListeningResumed(long ttsDoneToListenNanos);
+    }
+
+    private final ConversationManager conversationManager;
+    private final SpeechInput speechInput;
+    private final SpeechOutput speechOutput;
+    private final Executor mainExecutor;
+    private final Host host;
+    private LatencyListener latencyListener;
+
+    private long transcriptArrivedNanos;
+
+    private final IntentStream intentStream = new IntentStream();
+    private boolean answeredEarly; // This utterance was answered from a partial transcript
+
+    private final UtteranceSplitter splitter = new UtteranceSplitter();
+    private CompoundTurn compound; // The compound turn being answered, or null
+    private final ArrayDeque<String> parts = new ArrayDeque<>(); // Its answers waiting to be spoken
+    private boolean partSpeaking;
+
+    private TurnMetrics metrics;
+    private final TurnMetrics.Sample sample = new TurnMetrics.Sample(); // The turn being measured
+    private long listenStartedNanos = -1;
+    private long speakRequestedNanos = -1;
+
+    private long readyGapSinceNanos = -1; // TTS done, until the recognizer reports ready
+    private final LatencySketch readyGaps = new LatencySketch(); // Guarded by itself; read by dumpsys
+
+    public TurnController(ConversationManager conversationManager, SpeechInput speechInput, SpeechOutput speechOutput,
+                          Executor mainExecutor, Host host) {
+        this.conversationManager = conversationManager;
+        this.speechInput = speechInput;
+        this.speechOutput = speechOutput;
+        this.mainExecutor = mainExecutor;
+        this.host = host;
+        conversationManager.setTurnExecutor(mainExecutor); // Skills' async answers update state on the main thread
+        speechOutput.setListener(new SpeechOutput.Listener() {
+            @Override
+            public void onStart(String utteranceId) {
+                EventLog.record(EventLog.TTS_START, utteranceCode(utteranceId));
+                if (metrics != null) {
+                    long startedNanos = System.nanoTime();
+                    mainExecutor.execute(() -> onTtsStarted(startedNanos));
+                }
+                // Don't cancel speech rec if just speaking "thinking..."
+                if (!UTTERANCE_ID_THINKING.equals(utteranceId)) {
+                    mainExecutor.execute(speechInput::cancel);
+                }
+            }
+
+            @Override
+            public void onDone(String utteranceId) {
+                EventLog.record(EventLog.TTS_DONE, utteranceCode(utteranceId));
+                // Only start listening again if it's a regular response or initial prompt,
+                // NOT if it's a goodbye message or a "thinking" message (where we await Gemini's final response)
+                if (UTTERANCE_ID_LISTEN.equals(utteranceId) || UTTERANCE_ID_RESPONSE.equals(utteranceId)) {
+                    long doneNanos = System.nanoTime();
+                    mainExecutor.execute(() -> resumeListening(doneNanos));
+                } else if (UTTERANCE_ID_PART.equals(utteranceId)) {
+                    mainExecutor.execute(() -> {
+                        partSpeaking = false;
+                        speakNextPart();
+                    });
+                }
+            }
+
+            @Override
+            public void onError(String utteranceId) {
+                Log.e(TAG, "TTS onError: " + utteranceId);
+                EventLog.record(EventLog.TTS_ERROR, utteranceCode(utteranceId));
+                EventLog.dumpToLogcat("TTS onError");
+                mainExecutor.execute(() -> sample.error = true);
+                host.showToast("Peanut had an error speaking.");
+            }
+        });
+        speechInput.setListener(new SpeechInput.Listener() {
+            @Override
+            public void onReadyForSpeech() {
+                onRecognizerReady();
+            }
+
+            @Override
+            public void onResults(String transcript) {
+                if (answeredEarly) {
+                    checkEarlyAnswer(transcript);
+                } else if (transcript != null && !transcript.isEmpty()) {
+                    EventLog.record(EventLog.STT_RESULTS, transcript.length());
+                    handleUserSpeech(transcript);
+                } else {
+                    speak("I didn't catch that. Could you please repeat?");
+                }
+            }
+
+            @Override
+            public void onPartialResults(String partialTranscript) {
+                handlePartialSpeech(partialTranscript);
+            }
+
+            @Override
+            public void onError(int error) {
+                if (answeredEarly) {
+                    return; // The recognizer was cancelled after an early answer
+                }
+                handleRecognizerError(error);
+            }
+        });
+    }
+
+    public void setLatencyListener(LatencyListener latencyListener) {
+        this.latencyListener = latencyListener;
+    }
+
+    public void setMetrics(TurnMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // --- Entry Points from the Service ---
+
+    /** Speaks the listening prompt; listening starts when it finishes. */
+    public void startConversation(String listeningPrompt) {
+        conversationManager.resetConversation();
+        if (speechOutput.isReady()) {
+            speak(listeningPrompt, UTTERANCE_ID_LISTEN);
+        } else {
+            Log.w(TAG, "TTS not initialized yet. Cannot start conversation immediately.");
+            host.showToast("Peanut's voice is not ready yet. Please try again in a moment.");
+        }
+    }
+
+    public void sayGoodbyeAndStop(String goodbye) {
+        speak(goodbye, UTTERANCE_ID_GOODBYE);
+        host.stopSelfDelayed(STOP_DELAY_MILLIS);
+    }
+
+    public void shutdown() {
+        finishSample();
+        speechOutput.shutdown();
+        speechInput.destroy();
+    }
+
+    // --- Core Logic: Handling User Speech ---
+
+    void handlePartialSpeech(String partial) {
+        // An answer to a clarifying question is read in context, so it waits for the final transcript
+        if (answeredEarly || conversationManager.isAwaitingClarification()) {
+            return;
+        }
+        if (intentStream.offer(partial, conversationManager.getSkills())) {
+            answeredEarly = true;
+            speechInput.cancel();
+            handleUserSpeech(intentStream.committedText());
+        }
+    }
+
+    // The recognizer finished after we answered early; a different final intent is logged, not re-answered
+    private void checkEarlyAnswer(String transcript) {
+        if (transcript == null) {
+            return;
+        }
+        SkillRegistry skills = conversationManager.getSkills();
+        ConversationManager.Intent committed = skills.intentOf(intentStream.committedRoute());
+        ConversationManager.Intent spoken = skills.intentOf(skills.route(transcript.trim().toLowerCase(Locale.ROOT)));
+        if (spoken != committed) {
+            Log.w(TAG, "Answered " + committed + " early but the final transcript routes to " + spoken);
+            EventLog.record(EventLog.EARLY_COMMIT_MISS, committed.ordinal(), spoken.ordinal());
+        }
+    }
+
+    void handleUserSpeech(CharSequence speech) {
+        transcriptArrivedNanos = System.nanoTime();
+        startSample();
+        // An answer to a clarifying question is one reply, however it is phrased
+        if (!conversationManager.isAwaitingClarification()) {
+            List<String> clauses = splitter.split(speech, conversationManager.getSkills());
+            if (!clauses.isEmpty()) {
+                handleCompound(clauses);
+                return;
+            }
+        }
+        // Get the response directly from the conversation manager (it lowercases and trims the input).
+        // Pass 'this' as the callback for asynchronous responses.
+        TurnResult result = conversationManager.processTurn(speech, this);
+        String immediateResponse = result.text.toString();
+        sample.intent = result.intent.name();
+        sample.nluNanos = System.nanoTime() - transcriptArrivedNanos;
+
+        // If CM indicates it's awaiting clarification (e.g., for weather location),
+        // or if it's delegating to external AI, speak the immediate response
+        // and then wait for the callback to provide the final action (like re-listening).
+        // The turn's own intent is used rather than lastIntent, which a synchronous callback may already have moved on.
+        if (conversationManager.isAwaitingClarification() || result.awaitingAsync) {
+            // For EXTERNAL_AI_QUERY, speak the "thinking..." message
+            if (immediateResponse.isEmpty()) {
+                // Nothing to say in the meantime (a history recall); the callback speaks the answer
+            } else if (result.intent == ConversationManager.Intent.EXTERNAL_AI_QUERY) {
+                speak(immediateResponse, UTTERANCE_ID_THINKING); // Use specific ID to prevent immediate re-listen
+            } else { // For clarification or weather fetching message
+                speak(immediateResponse, UTTERANCE_ID_RESPONSE);
+            }
+            // Do NOT re-start listening here; the callback (onResponseReady) will do that.
+        } else if (conversationManager.isGoodbyeResponse(immediateResponse)) {
+            sayGoodbyeAndStop(immediateResponse);
+        } else {
+            // For all other synchronous responses, speak and then re-listen
+            speak(immediateResponse);
+        }
+        if (latencyListener != null) {
+            latencyListener.onResponseSpoken(result.intent, System.nanoTime() - transcriptArrivedNanos);
+        }
+    }
+
+    // --- Compound Turns ---
+
+    private void handleCompound(List<String> clauses) {
+        CompoundTurn turn = new CompoundTurn(clauses.size());
+        compound = turn;
+        parts.clear();
+        partSpeaking = false;
+        EventLog.record(EventLog.TURN_COMPOUND, clauses.size());
+        // A clause that may ask "which city?" goes last, so its question is the one left pending
+        int weatherRoute = conversationManager.getSkills().routeOf(ConversationManager.Intent.GET_WEATHER);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < clauses.size(); i++) {
+                boolean isWeather = weatherRoute != SkillRegistry.NO_ROUTE
+                        && conversationManager.getSkills().route(clauses.get(i)) == weatherRoute;
+                if (isWeather == (pass == 1)) {
+                    answerClause(turn, i, clauses.get(i));
+                }
+            }
+        }
+        sample.intent = TurnMetrics.COMPOUND_INTENT;
+        sample.nluNanos = System.nanoTime() - transcriptArrivedNanos;
+        queueReadyParts(turn);
+        if (latencyListener != null) {
+            latencyListener.onResponseSpoken(turn.intentOf(0), System.nanoTime() - transcriptArrivedNanos);
+        }
+    }
+
+    private void answerClause(CompoundTurn turn, int clause, String text) {
+        // Remote answers come back on other threads; they are merged on the main thread
+        TurnResult result = conversationManager.processTurn(text,
+                (response, fromCache) -> mainExecutor.execute(() -> onClauseAnswered(turn, clause, response, fromCache)));
+        String answer = result.text.toString();
+        if (result.awaitingAsync) {
+            turn.pending(clause, result.intent, answer);
+        } else if (result.intent == ConversationManager.Intent.GOODBYE) {
+            turn.goodbye(clause, answer);
+        } else {
+            turn.local(clause, result.intent, answer);
+        }
+    }
+
+    private void onClauseAnswered(CompoundTurn turn, int clause, String response, boolean fromCache) {
+        EventLog.record(EventLog.TURN_ASYNC_RESPONSE, response.length());
+        turn.resolve(clause, response);
+        if (turn == compound) { // Otherwise the conversation moved on
+            onBackendAnswered(fromCache); // The slowest clause sets the turn's backend latency
+            queueReadyParts(turn);
+        }
+    }
+
+    private void queueReadyParts(CompoundTurn turn) {
+        parts.addAll(turn.drainReady());
+        speakNextPart();
+    }
+
+    private void speakNextPart() {
+        CompoundTurn turn = compound;
+        if (partSpeaking || turn == null) {
+            return;
+        }
+        String next = parts.poll();
+        if (next != null) {
+            partSpeaking = true;
+            speak(next, UTTERANCE_ID_PART);
+        } else if (turn.isComplete()) {
+            compound = null;
+            if (turn.goodbye() != null) {
+                sayGoodbyeAndStop(turn.goodbye());
+            } else {
+                resumeListening(System.nanoTime());
+            }
+        }
+    }
+
+    // --- Implementation of ConversationManager.ExternalAiResponseCallback ---
+    @Override
+    public void onResponseReady(String response, boolean fromCache) {
+        mainExecutor.execute(() -> { // Ensure TTS call is on the main thread
+            EventLog.record(EventLog.TURN_ASYNC_RESPONSE, response.length());
+            onBackendAnswered(fromCache);
+            if (conversationManager.isGoodbyeResponse(response)) {
+                // If the final response happens to be a goodbye (e.g., from Gemini saying goodbye)
+                sayGoodbyeAndStop(response);
+            } else {
+                speak(response, UTTERANCE_ID_RESPONSE); // Speak response, then re-listen
+            }
+        });
+    }
+
+    // --- Recognizer Handling ---
+
+    private void resumeListening(long ttsDoneNanos) {
+        finishSample();
+        compound = null;
+        intentStream.reset();
+        answeredEarly = false;
+        readyGapSinceNanos = ttsDoneNanos;
+        try {
+            speechInput.startListening();
+            listenStartedNanos = System.nanoTime();
+            if (latencyListener != null) {
+                latencyListener.onListeningResumed(System.nanoTime() - ttsDoneNanos);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting speech input on main thread: " + e.getMessage(), e);
+            host.showToast("Failed to start listening. Please try again.");
+        }
+    }
+
+    private void handleRecognizerError(int error) {
+        String errorMessage = getErrorText(error);
+        Log.e(TAG, "STT Error: " + errorMessage);
+        EventLog.record(EventLog.STT_ERROR, error);
+        if (error != ERROR_SPEECH_TIMEOUT && error != ERROR_NO_MATCH) {
+            EventLog.dumpToLogcat("STT error " + error);
+        }
+        host.showToast("Speech recognition error: " + errorMessage);
+        sample.error = true;
+        finishSample(); // The re-prompt below is not part of any turn
+
+        speechInput.cancel();
+
+        // Only re-prompt if it's a timeout/no_match AND we are not expecting a Gemini response
+        // or explicit clarification.
+        if ((error == ERROR_SPEECH_TIMEOUT || error == ERROR_NO_MATCH) &&
+                conversationManager.lastIntent != ConversationManager.Intent.EXTERNAL_AI_QUERY &&
+                !conversationManager.isAwaitingClarification()) {
+            speak("I didn't hear anything or understand that. Can you please try again?");
+        } else if (error == ERROR_RECOGNIZER_BUSY) {
+            StringBuilder busy = new StringBuilder();
+            conversationManager.render(ResponseBank.SPEECH_BUSY, busy);
+            speak(busy.toString());
+        } else if (error != ERROR_SPEECH_TIMEOUT && error != ERROR_NO_MATCH) {
+            speak("I'm sorry, I encountered an error and cannot process your request right now.");
+        }
+    }
+
+    // --- Speaking ---
+
+    private void speak(String text, String utteranceId) {
+        if (!speechOutput.isReady()) {
+            Log.e(TAG, "TTS not initialized. Cannot speak.");
+            host.showToast("Peanut cannot speak right now (voice engine not ready).");
+            return;
+        }
+        EventLog.record(EventLog.TTS_SPEAK, utteranceCode(utteranceId), text.length());
+        if (speakRequestedNanos < 0 && sample.ttsStartNanos < 0) {
+            speakRequestedNanos = System.nanoTime(); // Only the turn's first utterance is timed
+        }
+        speechOutput.speak(text, utteranceId);
+    }
+
+    private void speak(String text) {
+        speak(text, UTTERANCE_ID_RESPONSE);
+    }
+
+    // --- Metrics ---
+
+    private void startSample() {
+        finishSample(); // A turn that never re-listened (e.g. still awaiting an answer) ends here
+        if (listenStartedNanos >= 0) {
+            sample.sttWaitNanos = transcriptArrivedNanos - listenStartedNanos;
+            listenStartedNanos = -1;
+        }
+    }
+
+    private void onBackendAnswered(boolean fromCache) {
+        sample.backendNanos = System.nanoTime() - transcriptArrivedNanos;
+        if (fromCache) {
+            sample.cacheHit = true;
+        }
+    }
+
+    private void onTtsStarted(long startedNanos) {
+        if (speakRequestedNanos >= 0 && sample.ttsStartNanos < 0) {
+            sample.ttsStartNanos = startedNanos - speakRequestedNanos;
+        }
+        speakRequestedNanos = -1;
+    }
+
+    private void onRecognizerReady() {
+        if (readyGapSinceNanos < 0) {
+            return;
+        }
+        long gapMicros = (System.nanoTime() - readyGapSinceNanos) / 1000L;
+        readyGapSinceNanos = -1;
+        EventLog.record(EventLog.STT_READY_GAP, gapMicros);
+        synchronized (readyGaps) {
+            readyGaps.record(gapMicros);
+        }
+    }
+
+    /** Percentiles of the gap from TTS done to the recognizer being ready, for dumpsys. */
+    public String describeReadyGaps() {
+        synchronized (readyGaps) {
+            return "listen resume (TTS done to ready): n=" + readyGaps.count() + " p50=" + readyGaps.percentile(0.5)
+                    + "us p90=" + readyGaps.percentile(0.9) + "us p99=" + readyGaps.percentile(0.99) + "us";
+        }
+    }
+
+    private void finishSample() {
+        if (metrics != null) {
+            metrics.record(sample);
+        }
+        sample.reset();
+        speakRequestedNanos = -1;
+    }
+
+    // --- SpeechRecognizer Error Codes --- (same values as android.speech.SpeechRecognizer)
+    static final int ERROR_NETWORK_TIMEOUT = 1;
+    static final int ERROR_NETWORK = 2;
+    static final int ERROR_AUDIO = 3;
+    static final int ERROR_SERVER = 4;
+    static final int ERROR_CLIENT = 5;
+    static final int ERROR_SPEECH_TIMEOUT = 6;
+    static final int ERROR_NO_MATCH = 7;
+    static final int ERROR_RECOGNIZER_BUSY = 8;
+    static final int ERROR_INSUFFICIENT_PERMISSIONS = 9;
+    static final int ERROR_TOO_MANY_REQUESTS = 10;
+    static final int ERROR_SERVER_DISCONNECTED = 11;
+
+    public static String getErrorText(int errorCode) {
+        String message;
+        switch (errorCode) {
+            case ERROR_AUDIO: message = "Audio recording error"; break;
+            case ERROR_CLIENT: message = "Client side error"; break;
+            case ERROR_INSUFFICIENT_PERMISSIONS: message = "Insufficient permissions. Please grant microphone access."; break;
+            case ERROR_NETWORK: message = "Network error"; break;
+            case ERROR_NETWORK_TIMEOUT: message = "Network timeout"; break;
+            case ERROR_NO_MATCH: message = "No match found"; break;
+            case ERROR_RECOGNIZER_BUSY: message = "Recognition service is busy"; break;
+            case ERROR_SERVER: message = "Server error"; break;
+            case ERROR_SPEECH_TIMEOUT: message = "No speech input received"; break;
+            case ERROR_TOO_MANY_REQUESTS: message = "Too many recognition requests"; break;
+            case ERROR_SERVER_DISCONNECTED: message = "Recognition service disconnected"; break;
+            default: message = "Unknown speech recognition error (" + errorCode + ")"; break;
+        }
+        return message;
+    }
+
+    // Maps utterance IDs to compact codes for the event log
+    static int utteranceCode(String utteranceId) {
+        if (UTTERANCE_ID_LISTEN.equals(utteranceId)) return 1;
+        if (UTTERANCE_ID_RESPONSE.equals(utteranceId)) return 2;
+        if (UTTERANCE_ID_GOODBYE.equals(utteranceId)) return 3;
+        if (UTTERANCE_ID_THINKING.equals(utteranceId)) return 4;
+        if (UTTERANCE_ID_PART.equals(utteranceId)) return 5;
+        return 0;
+    }
+}
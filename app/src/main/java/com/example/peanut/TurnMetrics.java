@@ -0,0 +1,319 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-turn measurements rolled up by hour and intent, kept on disk for comparing app versions and
+ * devices after the fact.
+ *
+ * {@link TurnController} fills one {@link Sample} per turn. Samples are folded into the current
+ * hour's {@link TurnMetricsFile.Rollup}s in memory (fixed size: one {@link LatencySketch} per
+ * measure and intent). When the hour changes the finished rollups are appended to
+ * {@code turn.metrics} on the io backend; {@link #flush()} appends the partial hour. The file is
+ * compacted (partial hours merged, anything older than the retention dropped, then the oldest hours
+ * until it fits) whenever it grows past {@link #DEFAULT_MAX_BYTES}. {@link #export} copies it for
+ * {@code adb pull}; {@link TurnMetricsReader} merges exports from many devices.
+ */
+public class TurnMetrics {
+
+    private static final String TAG = "TurnMetrics";
+
+    static final String METRICS_FILE = "turn.metrics";
+    private static final String METRICS_TEMP_FILE = "turn.metrics.tmp";
+
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    public static final int DEFAULT_RETENTION_HOURS = 30 * 24;
+    public static final String NO_INTENT = "NONE";       // Turns that failed before routing
+    public static final String COMPOUND_INTENT = "COMPOUND";
+
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000L;
+
+    /** One turn's measurements; -1 means not measured. Reused, so only valid until recorded. */
+    public static final class Sample {
+        public String intent;
+        public long sttWaitNanos = -1;
+        public long nluNanos = -1;
+        public long backendNanos = -1;
+        public long ttsStartNanos = -1;
+        public boolean cacheHit;
+        public boolean error;
+
+        public void reset() {
+            intent = null;
+            sttWaitNanos = -1;
+            nluNanos = -1;
+            backendNanos = -1;
+            ttsStartNanos = -1;
+            cacheHit = false;
+            error = false;
+        }
+
+        boolean isEmpty() {
+            return intent == null && !error;
+        }
+    }
+
+    private final File directory;
+    private final int appVersion;
+    private final String device;
+    private final long maxBytes;
+    private final int retentionHours;
+    private final LongSupplier clock;
+
+    // Guarded by this
+    private int currentHour = Integer.MIN_VALUE;
+    private final Map<String, TurnMetricsFile.Rollup> current = new LinkedHashMap<>();
+    private long samples;
+
+    // Guarded by fileLock
+    private final Object fileLock = new Object();
+    private boolean fileChecked;
+
+    // Counted under fileLock; describe() reads them without it, so dumpsys never waits on a disk write
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    public TurnMetrics(File directory, int appVersion, String device) {
+        this(directory, appVersion, device, DEFAULT_MAX_BYTES, DEFAULT_RETENTION_HOURS, System::currentTimeMillis);
+    }
+
+    TurnMetrics(File directory, int appVersion, String device, long maxBytes, int retentionHours, LongSupplier clock) {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.device = device;
+        this.maxBytes = maxBytes;
+        this.retentionHours = retentionHours;
+        this.clock = clock;
+    }
+
+    // --- Recording --- (main thread; never touches disk)
+
+    public void record(Sample sample) {
+        if (sample.isEmpty()) {
+            return;
+        }
+        List<TurnMetricsFile.Rollup> finished = null;
+        synchronized (this) {
+            int hour = hourNow();
+            if (hour != currentHour) {
+                if (!current.isEmpty()) {
+                    finished = new ArrayList<>(current.values());
+                    current.clear();
+                }
+                currentHour = hour;
+            }
+            String intent = sample.intent != null ? sample.intent : NO_INTENT;
+            TurnMetricsFile.Rollup rollup = current.get(intent);
+            if (rollup == null) {
+                rollup = new TurnMetricsFile.Rollup(hour, appVersion, intent);
+                current.put(intent, rollup);
+            }
+            rollup.turns++;
+            if (sample.error) {
+                rollup.errors++;
+            }
+            if (sample.cacheHit) {
+                rollup.cacheHits++;
+            }
+            add(rollup, TurnMetricsFile.Measure.STT_WAIT, sample.sttWaitNanos);
+            add(rollup, TurnMetricsFile.Measure.NLU, sample.nluNanos);
+            add(rollup, TurnMetricsFile.Measure.BACKEND, sample.backendNanos);
+            add(rollup, TurnMetricsFile.Measure.TTS_START, sample.ttsStartNanos);
+            samples++;
+        }
+        if (finished != null) {
+            List<TurnMetricsFile.Rollup> toAppend = finished;
+            try {
+                PeanutExecutors.io().execute(() -> append(toAppend));
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "io backend full; dropping " + toAppend.size() + " rollups.");
+            }
+        }
+    }
+
+    private static void add(TurnMetricsFile.Rollup rollup, TurnMetricsFile.Measure measure, long nanos) {
+        if (nanos >= 0) {
+            rollup.sketch(measure).record(nanos / 1000L);
+        }
+    }
+
+    /** The current hour's rollups, for dumpsys. */
+    public synchronized List<TurnMetricsFile.Rollup> currentHour() {
+        List<TurnMetricsFile.Rollup> copy = new ArrayList<>(current.size());
+        for (TurnMetricsFile.Rollup rollup : current.values()) {
+            TurnMetricsFile.Rollup snapshot = new TurnMetricsFile.Rollup(rollup.hour, rollup.appVersion, rollup.intent);
+            snapshot.merge(rollup);
+            copy.add(snapshot);
+        }
+        return copy;
+    }
+
+    // --- Persistence --- (io backend)
+
+    /** Appends the partial current hour. Blocks; never call on the main thread. */
+    public void flush() {
+        List<TurnMetricsFile.Rollup> partial;
+        synchronized (this) {
+            partial = new ArrayList<>(current.values());
+            current.clear();
+        }
+        if (!partial.isEmpty()) {
+            append(partial);
+        }
+    }
+
+    public void close() {
+        flush();
+    }
+
+    /** Flushes, then copies the whole file to {@code destination}. Returns the bytes written. */
+    public long export(File destination) throws IOException {
+        flush();
+        synchronized (fileLock) {
+            PeanutExecutors.checkNotMainThread("Metrics export");
+            File file = new File(directory, METRICS_FILE);
+            long copied = 0;
+            try (InputStream in = new FileInputStream(file); OutputStream out = new FileOutputStream(destination)) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                    copied += n;
+                }
+            }
+            return copied;
+        }
+    }
+
+    /** Everything on disk plus the current hour, merged by hour, version and intent. */
+    public List<TurnMetricsFile.Rollup> readAll() throws IOException {
+        List<TurnMetricsFile.Rollup> all;
+        synchronized (fileLock) {
+            PeanutExecutors.checkNotMainThread("Metrics read");
+            all = new ArrayList<>(TurnMetricsFile.read(new File(directory, METRICS_FILE)).rollups);
+        }
+        all.addAll(currentHour());
+        return mergeByKey(all);
+    }
+
+    void append(List<TurnMetricsFile.Rollup> rollups) {
+        synchronized (fileLock) {
+            PeanutExecutors.checkNotMainThread("Metrics append");
+            File file = new File(directory, METRICS_FILE);
+            try {
+                prepareFile(file);
+                try (FileOutputStream fos = new FileOutputStream(file, true)) {
+                    DataOutputStream out = new DataOutputStream(fos);
+                    for (TurnMetricsFile.Rollup rollup : rollups) {
+                        TurnMetricsFile.writeRecord(out, rollup);
+                    }
+                    out.flush();
+                    fos.getFD().sync();
+                }
+                appends.incrementAndGet();
+                EventLog.record(EventLog.METRICS_APPEND, rollups.size(), (int) (file.length() / 1024));
+                if (file.length() > maxBytes) {
+                    compact(file);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Metrics append failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    // Makes sure the file starts with a valid header and ends on a whole record
+    private void prepareFile(File file) throws IOException {
+        if (fileChecked && file.exists()) {
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        TurnMetricsFile.Contents contents;
+        try {
+            contents = TurnMetricsFile.read(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable metrics file: " + e.getMessage());
+            contents = new TurnMetricsFile.Contents();
+        }
+        if (contents.validBytes == 0) {
+            TurnMetricsFile.rewrite(file, new File(directory, METRICS_TEMP_FILE), device, new ArrayList<>());
+        } else if (contents.validBytes < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(contents.validBytes); // Cut a torn tail before appending after it
+            }
+        }
+        fileChecked = true;
+    }
+
+    private void compact(File file) throws IOException {
+        List<TurnMetricsFile.Rollup> kept = mergeByKey(TurnMetricsFile.read(file).rollups);
+        int oldestAllowed = hourNow() - retentionHours;
+        kept.removeIf(rollup -> rollup.hour < oldestAllowed);
+        kept.sort((a, b) -> Integer.compare(a.hour, b.hour));
+        // Drop whole oldest hours until the file is at most half the limit, leaving room to grow
+        long size = encodedSize(kept);
+        while (size > maxBytes / 2 && !kept.isEmpty()) {
+            int oldest = kept.get(0).hour;
+            while (!kept.isEmpty() && kept.get(0).hour == oldest) {
+                size -= 8 + kept.remove(0).encode().length;
+            }
+        }
+        TurnMetricsFile.rewrite(file, new File(directory, METRICS_TEMP_FILE), device, kept);
+        compactions.incrementAndGet();
+        EventLog.record(EventLog.METRICS_COMPACT, kept.size(), (int) (file.length() / 1024));
+        Log.d(TAG, "Compacted metrics to " + kept.size() + " rollups, " + file.length() + " bytes.");
+    }
+
+    private static long encodedSize(List<TurnMetricsFile.Rollup> rollups) throws IOException {
+        long size = 0;
+        for (TurnMetricsFile.Rollup rollup : rollups) {
+            size += 8 + rollup.encode().length;
+        }
+        return size;
+    }
+
+    /** Merges rollups that share hour, app version and intent; keeps first-seen order. */
+    static List<TurnMetricsFile.Rollup> mergeByKey(Collection<TurnMetricsFile.Rollup> rollups) {
+        Map<String, TurnMetricsFile.Rollup> merged = new LinkedHashMap<>();
+        for (TurnMetricsFile.Rollup rollup : rollups) {
+            String key = rollup.hour + "/" + rollup.appVersion + "/" + rollup.intent;
+            TurnMetricsFile.Rollup existing = merged.get(key);
+            if (existing == null) {
+                existing = new TurnMetricsFile.Rollup(rollup.hour, rollup.appVersion, rollup.intent);
+                merged.put(key, existing);
+            }
+            existing.merge(rollup);
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    private int hourNow() {
+        return (int) (clock.getAsLong() / MILLIS_PER_HOUR);
+    }
+
+    public String describe() {
+        long fileBytes = new File(directory, METRICS_FILE).length();
+        synchronized (this) {
+            return "metrics: samples=" + samples + " currentHourIntents=" + current.size() + " fileBytes=" + fileBytes
+                    + " appends=" + appends.get() + " compactions=" + compactions.get();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.peanut;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk format of the turn-metrics rollups, shared by the service and the offline
+ * {@link TurnMetricsReader}. Plain Java.
+ *
+ * Layout: header {@code [int magic "PNM1"][UTF device]} followed by append-only records
+ * {@code [int length][payload][int crc32]}. A payload is one rollup: hour (hours since the epoch),
+ * app version code, intent name, turn/error/cache-hit counts and one {@link LatencySketch} per
+ * {@link Measure}. Several records may share a key (the service appends a partial hour when it
+ * stops); readers merge them. A torn tail is detected by length/CRC and ignored.
+ */
+public final class TurnMetricsFile {
+
+    static final int MAGIC = 0x504E4D31; // "PNM1"
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    /** What each rollup measures; the order is the on-disk order. */
+    public enum Measure {
+        STT_WAIT("stt", true),       // Recognizer start to final transcript
+        NLU("nlu", false),           // Routing and rendering the answer
+        BACKEND("backend", true),    // Transcript to weather/Gemini answer
+        TTS_START("tts", true);      // speak() to the engine starting the utterance
+
+        public final String label;
+        public final boolean inMillis; // Printed in ms rather than us
+
+        Measure(String label, boolean inMillis) {
+            this.label = label;
+            this.inMillis = inMillis;
+        }
+    }
+
+    /** Aggregate of one hour of turns with one intent on one app version. */
+    public static final class Rollup {
+        public final int hour;
+        public final int appVersion;
+        public final String intent;
+        public long turns;
+        public long errors;
+        public long cacheHits;
+        public final LatencySketch[] sketches = new LatencySketch[Measure.values().length];
+
+        public Rollup(int hour, int appVersion, String intent) {
+            this.hour = hour;
+            this.appVersion = appVersion;
+            this.intent = intent;
+            for (int i = 0; i < sketches.length; i++) {
+                sketches[i] = new LatencySketch();
+            }
+        }
+
+        public LatencySketch sketch(Measure measure) {
+            return sketches[measure.ordinal()];
+        }
+
+        public void merge(Rollup other) {
+            turns += other.turns;
+            errors += other.errors;
+            cacheHits += other.cacheHits;
+            for (int i = 0; i < sketches.length; i++) {
+                sketches[i].merge(other.sketches[i]);
+            }
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(hour);
+            LatencySketch.writeVarint(out, appVersion);
+            out.writeUTF(intent);
+            LatencySketch.writeVarint(out, turns);
+            LatencySketch.writeVarint(out, errors);
+            LatencySketch.writeVarint(out, cacheHits);
+            for (LatencySketch sketch : sketches) {
+                sketch.write(out);
+            }
+            return bytes.toByteArray();
+        }
+
+        static Rollup decode(byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            int hour = in.readInt();
+            int appVersion = (int) LatencySketch.readVarint(in);
+            Rollup rollup = new Rollup(hour, appVersion, in.readUTF());
+            rollup.turns = LatencySketch.readVarint(in);
+            rollup.errors = LatencySketch.readVarint(in);
+            rollup.cacheHits = LatencySketch.readVarint(in);
+            for (int i = 0; i < rollup.sketches.length; i++) {
+                rollup.sketches[i] = LatencySketch.read(in);
+            }
+            return rollup;
+        }
+    }
+
+    /** Everything readable from one file. */
+    public static final class Contents {
+        public String device = "";
+        public final List<Rollup> rollups = new ArrayList<>();
+        public long validBytes; // Length up to the last intact record; 0 when the header is unusable
+    }
+
+    private TurnMetricsFile() {
+    }
+
+    public static Contents read(File file) throws IOException {
+        Contents contents = new Contents();
+        if (!file.exists()) {
+            return contents;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a turn-metrics file");
+            }
+            contents.device = in.readUTF();
+            long position = 4 + 2 + utfLength(contents.device);
+            contents.validBytes = position;
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (in.readInt() != crc(payload)) {
+                        break;
+                    }
+                    position += 8 + length;
+                } catch (EOFException e) {
+                    break; // Torn tail
+                }
+                contents.rollups.add(Rollup.decode(payload));
+                contents.validBytes = position;
+            }
+        } catch (EOFException e) {
+            contents.validBytes = 0; // Not even a whole header
+        }
+        return contents;
+    }
+
+    static void writeHeader(DataOutputStream out, String device) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(device);
+    }
+
+    static void writeRecord(DataOutputStream out, Rollup rollup) throws IOException {
+        byte[] payload = rollup.encode();
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(crc(payload));
+    }
+
+    /** Writes a whole file to {@code temp}, synced, then renames it over {@code file}. */
+    static void rewrite(File file, File temp, String device, List<Rollup> rollups) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeHeader(out, device);
+            for (Rollup rollup : rollups) {
+                writeRecord(out, rollup);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+        }
+        return length;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.peanut;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Offline reader for exported turn-metrics files. Merges any number of files (one per device, or
+ * several exports of one device) and prints a percentile table per group:
+ *
+ * <pre>
+ *   java -cp classes com.example.peanut.TurnMetricsReader [--by intent|version|device|hour] FILE...
+ * </pre>
+ *
+ * Plain Java; needs only this class, {@link TurnMetricsFile} and {@link LatencySketch}. The
+ * service's {@code dumpsys ... metrics} prints the same table through {@link #printTable}.
+ */
+public final class TurnMetricsReader {
+
+    public enum GroupBy { INTENT, VERSION, DEVICE, HOUR }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private TurnMetricsReader() {
+    }
+
+    public static void main(String[] args) {
+        GroupBy groupBy = GroupBy.INTENT;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--by".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    groupBy = GroupBy.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    usage("Unknown grouping " + args[i]);
+                    return;
+                }
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            usage("No files given");
+            return;
+        }
+        PrintWriter out = new PrintWriter(System.out);
+        try {
+            printTable(out, merge(files, groupBy));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            out.flush();
+        }
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("usage: TurnMetricsReader [--by intent|version|device|hour] FILE...");
+        System.exit(2);
+    }
+
+    /** Reads every file and merges its rollups into one per group, sorted by group name. */
+    public static Map<String, TurnMetricsFile.Rollup> merge(List<File> files, GroupBy groupBy) throws IOException {
+        Map<String, TurnMetricsFile.Rollup> groups = new TreeMap<>();
+        for (File file : files) {
+            TurnMetricsFile.Contents contents = TurnMetricsFile.read(file);
+            for (TurnMetricsFile.Rollup rollup : contents.rollups) {
+                add(groups, groupOf(rollup, contents.device, groupBy), rollup);
+            }
+        }
+        return groups;
+    }
+
+    /** Groups already-loaded rollups (from one device) by intent. */
+    public static Map<String, TurnMetricsFile.Rollup> byIntent(List<TurnMetricsFile.Rollup> rollups) {
+        Map<String, TurnMetricsFile.Rollup> groups = new TreeMap<>();
+        for (TurnMetricsFile.Rollup rollup : rollups) {
+            add(groups, rollup.intent, rollup);
+        }
+        return groups;
+    }
+
+    private static void add(Map<String, TurnMetricsFile.Rollup> groups, String group, TurnMetricsFile.Rollup rollup) {
+        TurnMetricsFile.Rollup merged = groups.get(group);
+        if (merged == null) {
+            merged = new TurnMetricsFile.Rollup(rollup.hour, rollup.appVersion, group);
+            groups.put(group, merged);
+        }
+        merged.merge(rollup);
+    }
+
+    private static String groupOf(TurnMetricsFile.Rollup rollup, String device, GroupBy groupBy) {
+        switch (groupBy) {
+            case VERSION:
+                return "v" + rollup.appVersion;
+            case DEVICE:
+                return device.isEmpty() ? "unknown" : device;
+            case HOUR:
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:00'Z'", Locale.ROOT);
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                return format.format(new Date(rollup.hour * 3600_000L)); // Sorts chronologically
+            default:
+                return rollup.intent;
+        }
+    }
+
+    // --- Output ---
+
+    public static void printTable(PrintWriter out, Map<String, TurnMetricsFile.Rollup> groups) {
+        StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "%-22s %7s %5s %6s", "group", "turns", "err", "cache"));
+        for (TurnMetricsFile.Measure measure : TurnMetricsFile.Measure.values()) {
+            String unit = measure.inMillis ? "ms" : "us";
+            header.append(String.format(Locale.ROOT, "  %-20s", measure.label + " p50/p90/p99 " + unit));
+        }
+        out.println(header);
+        if (groups.isEmpty()) {
+            out.println("(no turns recorded)");
+            return;
+        }
+        for (Map.Entry<String, TurnMetricsFile.Rollup> entry : groups.entrySet()) {
+            TurnMetricsFile.Rollup rollup = entry.getValue();
+            StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%-22s %7d %5d %6d",
+                    entry.getKey(), rollup.turns, rollup.errors, rollup.cacheHits));
+            for (TurnMetricsFile.Measure measure : TurnMetricsFile.Measure.values()) {
+                row.append(String.format(Locale.ROOT, "  %-20s", percentiles(rollup.sketch(measure), measure.inMillis)));
+            }
+            out.println(row);
+        }
+    }
+
+    private static String percentiles(LatencySketch sketch, boolean inMillis) {
+        if (sketch.count() == 0) {
+            return "-";
+        }
+        StringBuilder s = new StringBuilder();
+        for (double q : QUANTILES) {
+            if (s.length() > 0) {
+                s.append('/');
+            }
+            long micros = sketch.percentile(q);
+            s.append(inMillis ? (micros + 500) / 1000 : micros);
+        }
+        return s.toString();
+    }
+}
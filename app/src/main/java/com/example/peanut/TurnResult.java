@@ -0,0 +1,18 @@
+package com.example.peanut;
+
+/**
+ * Preallocated result of one conversation turn, owned by a {@link ConversationManager} and
+ * overwritten on every turn so the local intent path does not allocate result objects.
+ */
+public final class TurnResult {
+
+    public ConversationManager.Intent intent = ConversationManager.Intent.UNKNOWN;
+    public final StringBuilder text = new StringBuilder(256); // Immediate response to speak
+    public boolean awaitingAsync = false; // True when a weather or Gemini answer will follow via the callback
+
+    void reset() {
+        intent = ConversationManager.Intent.UNKNOWN;
+        text.setLength(0);
+        awaitingAsync = false;
+    }
+}
@@ -0,0 +1,363 @@
+package com.example.peanut;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * What Peanut remembers about the user across sessions: their name, preferred locale and the
+ * places they ask about most.
+ *
+ * Reads come from an in-memory copy and never touch disk. Writes update that copy and mark it
+ * dirty; one flush per {@link #DEFAULT_FLUSH_DELAY_MILLIS} window writes the whole profile on the
+ * "peanut-profile" thread to a temp file that is synced and renamed over the real one, so the
+ * file on disk is always either the old or the new profile. A CRC over the payload catches a torn
+ * file on filesystems that reorder the rename; a profile that fails it is ignored and the user is
+ * simply asked again. A write that fails is retried, waiting twice as long after each failure.
+ *
+ * File layout: {@code [int magic][int length][payload][int crc32]} with the payload holding the
+ * name, locale tag and {@code (location, count)} pairs.
+ *
+ * Location counts are halved every {@link #LOCATION_AGING_RECORDS} lookups, so places asked about
+ * long ago fade; when a new one needs room, the lowest count goes, the least recently asked on ties.
+ */
+public class UserProfileStore {
+
+    private static final String TAG = "UserProfileStore";
+
+    static final String PROFILE_FILE = "user.profile";
+    private static final String PROFILE_TEMP_FILE = "user.profile.tmp";
+    private static final int PROFILE_MAGIC = 0x504E5031; // "PNP1"
+    private static final int MAX_PAYLOAD_BYTES = 16 * 1024;
+
+    public static final int MAX_LOCATIONS = 8;
+    static final int LOCATION_AGING_RECORDS = 32;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+    public static final long DEFAULT_FLUSH_DELAY_MILLIS = 500;
+
+    private final File directory;
+    private final long flushDelayMillis;
+    private final ScheduledExecutorService writer;
+
+    // Guarded by this
+    private String name;
+    private String localeTag;
+    private final List<String> locations = new ArrayList<>(); // Most asked first
+    private final List<Integer> locationCounts = new ArrayList<>();
+    private final List<Long> locationLastAsked = new ArrayList<>(); // Ticks of locationClock; 0 if loaded
+    private long locationClock;
+    private boolean dirty;
+    private boolean flushScheduled;
+    private int failedFlushes; // In a row; each doubles the delay before the next try
+    private int writesSinceFlush;
+    private long flushCount;
+    private long coalescedWrites;
+
+    private final long loadNanos;
+
+    public UserProfileStore(File directory) {
+        this(directory, DEFAULT_FLUSH_DELAY_MILLIS);
+    }
+
+    public UserProfileStore(File directory, long flushDelayMillis) {
+        this.directory = directory;
+        this.flushDelayMillis = flushDelayMillis;
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "peanut-profile"));
+        long start = System.nanoTime();
+        int bytes = load();
+        loadNanos = System.nanoTime() - start;
+        EventLog.record(EventLog.PROFILE_LOAD, loadNanos / 1000L, bytes);
+    }
+
+    // --- Reads ---
+
+    /** The user's name, or null if they never told us. */
+    public synchronized String getName() {
+        return name;
+    }
+
+    /** The preferred locale as a BCP 47 tag, or null to follow the device. */
+    public synchronized String getLocaleTag() {
+        return localeTag;
+    }
+
+    /** Locations the user asked about, most frequent first. */
+    public synchronized List<String> frequentLocations() {
+        return new ArrayList<>(locations);
+    }
+
+    public long loadNanos() {
+        return loadNanos;
+    }
+
+    // --- Writes --- (never block: the file is written later on the profile thread)
+
+    public void setName(String newName) {
+        synchronized (this) {
+            if (newName == null ? name == null : newName.equals(name)) {
+                return;
+            }
+            name = newName;
+        }
+        markDirty();
+    }
+
+    public void setLocaleTag(String newLocaleTag) {
+        synchronized (this) {
+            if (newLocaleTag == null ? localeTag == null : newLocaleTag.equals(localeTag)) {
+                return;
+            }
+            localeTag = newLocaleTag;
+        }
+        markDirty();
+    }
+
+    /** Counts a location the user asked about; only the {@link #MAX_LOCATIONS} most frequent lately are kept. */
+    public void recordLocation(String location) {
+        String key = location.trim().toLowerCase(Locale.US);
+        if (key.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            int index = locations.indexOf(key);
+            if (index < 0) {
+                if (locations.size() >= MAX_LOCATIONS) {
+                    int evicted = leastAskedLocation();
+                    locations.remove(evicted);
+                    locationCounts.remove(evicted);
+                    locationLastAsked.remove(evicted);
+                }
+                locations.add(key);
+                locationCounts.add(0);
+                locationLastAsked.add(0L);
+                index = locations.size() - 1;
+            }
+            int count = locationCounts.get(index) + 1;
+            // Bubble up so the list stays ordered by count
+            while (index > 0 && locationCounts.get(index - 1) < count) {
+                locations.set(index, locations.get(index - 1));
+                locationCounts.set(index, locationCounts.get(index - 1));
+                locationLastAsked.set(index, locationLastAsked.get(index - 1));
+                index--;
+            }
+            locations.set(index, key);
+            locationCounts.set(index, count);
+            locationLastAsked.set(index, ++locationClock);
+            if (locationClock % LOCATION_AGING_RECORDS == 0) {
+                // Halving keeps the order; rounding up keeps every count at least 1
+                for (int i = 0; i < locationCounts.size(); i++) {
+                    locationCounts.set(i, (locationCounts.get(i) + 1) / 2);
+                }
+            }
+        }
+        markDirty();
+    }
+
+    // Guarded by this: the lowest count, and of those the one asked longest ago
+    private int leastAskedLocation() {
+        int least = locations.size() - 1;
+        for (int i = least - 1; i >= 0 && locationCounts.get(i).equals(locationCounts.get(least)); i--) {
+            if (locationLastAsked.get(i) < locationLastAsked.get(least)) {
+                least = i;
+            }
+        }
+        return least;
+    }
+
+    private void markDirty() {
+        synchronized (this) {
+            dirty = true;
+            writesSinceFlush++;
+            if (flushScheduled || writer.isShutdown()) {
+                return; // The pending flush will pick this write up
+            }
+            flushScheduled = true;
+        }
+        writer.schedule(this::persist, flushDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Blocks until every write so far is on disk. For shutdown and tests, never the main thread. */
+    public void flush() {
+        PeanutExecutors.checkNotMainThread("Profile flush");
+        if (writer.isShutdown()) {
+            return;
+        }
+        try {
+            Future<?> done = writer.submit(this::persist);
+            done.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Log.w(TAG, "Profile flush did not complete: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        flush();
+        writer.shutdown();
+    }
+
+    public synchronized String describe() {
+        return "profile: name=" + (name != null) + " locale=" + localeTag + " locations=" + locations.size()
+                + " loadUs=" + loadNanos / 1000L + " flushes=" + flushCount + " coalescedWrites=" + coalescedWrites;
+    }
+
+    // --- Persistence ---
+
+    // Returns the number of bytes read, 0 when there was no usable profile
+    private int load() {
+        PeanutExecutors.checkNotMainThread("Profile load");
+        File file = new File(directory, PROFILE_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != PROFILE_MAGIC) {
+                Log.w(TAG, "Ignoring profile with unknown format.");
+                return 0;
+            }
+            int length = in.readInt();
+            if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+                throw new IOException("Bad profile length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (in.readInt() != crc(payload)) {
+                throw new IOException("Profile checksum mismatch");
+            }
+            DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+            String loadedName = readOptional(fields);
+            String loadedLocale = readOptional(fields);
+            int count = Math.min(fields.readInt(), MAX_LOCATIONS);
+            synchronized (this) {
+                name = loadedName;
+                localeTag = loadedLocale;
+                for (int i = 0; i < count; i++) {
+                    locations.add(fields.readUTF());
+                    locationCounts.add(fields.readInt());
+                    locationLastAsked.add(0L);
+                }
+            }
+            return 12 + length;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read profile; starting fresh: " + e.getMessage(), e);
+            synchronized (this) {
+                name = null;
+                localeTag = null;
+                locations.clear();
+                locationCounts.clear();
+                locationLastAsked.clear();
+            }
+            return 0;
+        }
+    }
+
+    // Runs on the profile thread
+    private void persist() {
+        byte[] payload;
+        int writes;
+        synchronized (this) {
+            flushScheduled = false;
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            writes = writesSinceFlush;
+            writesSinceFlush = 0;
+            try {
+                payload = encode();
+            } catch (IOException e) {
+                Log.e(TAG, "Profile encode failed: " + e.getMessage(), e);
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create profile directory " + directory);
+            markDirtyAfterFailure();
+            return;
+        }
+        File temp = new File(directory, PROFILE_TEMP_FILE);
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(PROFILE_MAGIC);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt(crc(payload));
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Profile write failed: " + e.getMessage(), e);
+            markDirtyAfterFailure();
+            return;
+        }
+        if (!temp.renameTo(new File(directory, PROFILE_FILE))) {
+            Log.e(TAG, "Profile rename failed.");
+            markDirtyAfterFailure();
+            return;
+        }
+        synchronized (this) {
+            flushCount++;
+            coalescedWrites += writes - 1;
+            failedFlushes = 0;
+        }
+        EventLog.record(EventLog.PROFILE_FLUSH, writes, (System.nanoTime() - start) / 1000L);
+    }
+
+    // Keeps the data for the next write instead of losing it, and schedules that write
+    private void markDirtyAfterFailure() {
+        long delayMillis;
+        synchronized (this) {
+            dirty = true;
+            delayMillis = Math.min(flushDelayMillis << Math.min(++failedFlushes, 16), MAX_RETRY_DELAY_MILLIS);
+            if (flushScheduled || writer.isShutdown()) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        writer.schedule(this::persist, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeOptional(out, name);
+        writeOptional(out, localeTag);
+        out.writeInt(locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            out.writeUTF(locations.get(i));
+            out.writeInt(locationCounts.get(i));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
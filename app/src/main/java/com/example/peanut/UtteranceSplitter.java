@@ -0,0 +1,140 @@
+package com.example.peanut;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Breaks a compound utterance ("what time is it and what's the weather in london, also tell me
+ * about black holes") into clauses that can each be routed on their own.
+ *
+ * Candidate boundaries are conjunctions and sentence breaks. A piece only becomes its own clause
+ * when it would be handled differently from the text before it: it matches a trigger phrase, or
+ * it opens a new question ("tell me about ...", "who ..."). Anything else is glued back, so "tell
+ * me about salt and pepper" stays one Gemini question. Only the first piece that sets the user's
+ * name counts: in "my name is john and i'm tired" the "i'm" phrase is not a second name. Boundary
+ * words are English; utterances in
+ * other packs are only split at punctuation.
+ *
+ * Checking an utterance without a boundary does not allocate. Not thread-safe; one instance per
+ * {@link TurnController}.
+ */
+public final class UtteranceSplitter {
+
+    private static final Pattern BOUNDARY = Pattern.compile(
+            "\\s*[,;]\\s*(?:and\\s+)?(?:also|then|plus)\\s+"
+                    + "|\\s*,?\\s+and\\s+(?:also\\s+|then\\s+)?"
+                    + "|\\s*,?\\s+also\\s+"
+                    + "|\\s*[;.?!]\\s+");
+
+    // Words and marks a partial transcript may end on when another clause is about to follow
+    private static final String[] TRAILING_BOUNDARIES = {"and", "also", "then", "plus"};
+    private static final String TRAILING_MARKS = ",;.?!";
+
+    // First words that start a new request even when no trigger phrase matches
+    private static final String[] QUESTION_OPENERS = {
+            "what", "what's", "who", "who's", "how", "how's", "why", "when", "where", "which",
+            "tell", "explain", "describe", "is", "are", "can", "could", "do", "does", "will", "should",
+    };
+
+    private final Matcher boundary = BOUNDARY.matcher("");
+    private final StringBuilder text = new StringBuilder(128);
+
+    /**
+     * Returns the clauses of {@code utterance}, lowercased and trimmed, or an empty list when it is
+     * a single request.
+     */
+    public List<String> split(CharSequence utterance, SkillRegistry skills) {
+        normalize(utterance);
+        if (!boundary.reset(text).find()) {
+            return Collections.emptyList();
+        }
+        List<String> clauses = new ArrayList<>(4);
+        int clauseStart = 0;
+        int cutStart = boundary.start();
+        int pieceStart = boundary.end();
+        boolean named = setsName(skills, skills.route(text.subSequence(0, cutStart)));
+        while (true) {
+            boolean more = boundary.find();
+            int pieceEnd = more ? boundary.start() : text.length();
+            if (pieceStart < pieceEnd) {
+                CharSequence piece = text.subSequence(pieceStart, pieceEnd);
+                int route = skills.route(piece);
+                boolean secondName = named && setsName(skills, route);
+                named |= setsName(skills, route);
+                if (!secondName && startsNewRequest(piece, route)) {
+                    addClause(clauses, clauseStart, cutStart);
+                    clauseStart = pieceStart;
+                }
+            }
+            if (!more) {
+                break;
+            }
+            cutStart = boundary.start();
+            pieceStart = boundary.end();
+        }
+        addClause(clauses, clauseStart, text.length());
+        return clauses.size() > 1 ? clauses : Collections.<String>emptyList();
+    }
+
+    /**
+     * True when {@code partial} ends on a conjunction or a clause break ("what time is it and"),
+     * so more of the utterance is still coming. Does not allocate.
+     */
+    public static boolean endsAtBoundary(CharSequence partial) {
+        int end = partial.length();
+        while (end > 0 && Character.isWhitespace(partial.charAt(end - 1))) end--;
+        if (end == 0) {
+            return false;
+        }
+        if (TRAILING_MARKS.indexOf(partial.charAt(end - 1)) >= 0) {
+            return true;
+        }
+        int start = end;
+        while (start > 0 && SkillRegistry.isWordChar(partial.charAt(start - 1))) start--;
+        for (String word : TRAILING_BOUNDARIES) {
+            if (word.length() == end - start && word.contentEquals(partial.subSequence(start, end))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean setsName(SkillRegistry skills, int route) {
+        return route != SkillRegistry.NO_ROUTE && skills.intentOf(route) == ConversationManager.Intent.SET_MY_NAME;
+    }
+
+    private static boolean startsNewRequest(CharSequence piece, int route) {
+        if (route != SkillRegistry.NO_ROUTE) {
+            return true;
+        }
+        int end = 0;
+        while (end < piece.length() && SkillRegistry.isWordChar(piece.charAt(end))) end++;
+        for (String opener : QUESTION_OPENERS) {
+            if (opener.length() == end && opener.contentEquals(piece.subSequence(0, end))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addClause(List<String> clauses, int start, int end) {
+        while (end > start && !SkillRegistry.isWordChar(text.charAt(end - 1))) end--;
+        if (end > start) {
+            clauses.add(text.substring(start, end));
+        }
+    }
+
+    private void normalize(CharSequence utterance) {
+        int start = 0;
+        int end = utterance.length();
+        while (start < end && Character.isWhitespace(utterance.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(utterance.charAt(end - 1))) end--;
+        text.setLength(0);
+        for (int i = start; i < end; i++) {
+            text.append(Character.toLowerCase(utterance.charAt(i)));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.peanut;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Offline evaluation of {@link WakeWordSpotter} over WAV recordings (16-bit mono, 16 kHz):
+ *
+ * <pre>
+ *   java -cp classes com.example.peanut.WakeWordHarness [--threshold N] TEMPLATE_DIR POSITIVE_DIR NEGATIVE_DIR
+ * </pre>
+ *
+ * Enrolls every WAV in TEMPLATE_DIR, then streams each positive (contains the wake word once) and
+ * negative (must not trigger) through a fresh spotter in 20 ms reads, as the device does. Prints
+ * the false-reject rate, false accepts per hour of negative audio, CPU time per second of audio,
+ * and the same rates at neighbouring thresholds. Plain Java (no java.lang.management, so it also
+ * compiles in the app).
+ */
+public final class WakeWordHarness {
+
+    private static final int READ_SAMPLES = 320; // What AndroidWakeWordSource reads at a time
+    private static final double[] SWEEP = {0.7, 0.85, 1.0, 1.15, 1.3};
+
+    /** The outcome of one evaluation. */
+    public static final class Report {
+        public final int threshold;
+        public int positives;
+        public int detected;           // Positives that triggered
+        public int negatives;
+        public int falseAcceptFiles;   // Negatives that triggered at least once
+        public int falseAccepts;       // Triggers in negatives
+        public double negativeSeconds;
+        public double audioSeconds;
+        public long cpuNanos;
+        public long frames;
+        public long matchedFrames;
+        final List<Integer> positiveScores = new ArrayList<>(); // Lowest score per file
+        final List<Integer> negativeScores = new ArrayList<>();
+
+        Report(int threshold) {
+            this.threshold = threshold;
+        }
+
+        public double falseRejectRate() {
+            return positives == 0 ? 0 : 1.0 - (double) detected / positives;
+        }
+
+        public double falseAcceptsPerHour() {
+            return negativeSeconds == 0 ? 0 : falseAccepts * 3600.0 / negativeSeconds;
+        }
+
+        public double cpuMillisPerAudioSecond() {
+            return audioSeconds == 0 ? 0 : cpuNanos / 1e6 / audioSeconds;
+        }
+
+        /** Fraction of files that would be misjudged at {@code threshold}: {false rejects, false-accepting negatives}. */
+        public double[] ratesAt(int threshold) {
+            int rejected = 0;
+            for (int score : positiveScores) {
+                rejected += score >= threshold ? 1 : 0;
+            }
+            int accepted = 0;
+            for (int score : negativeScores) {
+                accepted += score < threshold ? 1 : 0;
+            }
+            return new double[] {
+                    positiveScores.isEmpty() ? 0 : (double) rejected / positiveScores.size(),
+                    negativeScores.isEmpty() ? 0 : (double) accepted / negativeScores.size()};
+        }
+    }
+
+    private WakeWordHarness() {
+    }
+
+    public static void main(String[] args) {
+        int threshold = WakeWordSpotter.DEFAULT_THRESHOLD;
+        List<File> dirs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--threshold".equals(args[i]) && i + 1 < args.length) {
+                threshold = Integer.parseInt(args[++i]);
+            } else {
+                dirs.add(new File(args[i]));
+            }
+        }
+        if (dirs.size() != 3) {
+            System.err.println("usage: WakeWordHarness [--threshold N] TEMPLATE_DIR POSITIVE_DIR NEGATIVE_DIR");
+            System.exit(2);
+            return;
+        }
+        PrintWriter out = new PrintWriter(System.out);
+        try {
+            print(out, evaluate(wavs(dirs.get(0)), wavs(dirs.get(1)), wavs(dirs.get(2)), threshold));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            out.flush();
+        }
+    }
+
+    /** The WAV files in {@code dir}, sorted by name. */
+    public static List<File> wavs(File dir) throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.toLowerCase(Locale.ROOT).endsWith(".wav"));
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    public static Report evaluate(List<File> templates, List<File> positives, List<File> negatives, int threshold) throws IOException {
+        List<short[]> enrolled = new ArrayList<>();
+        for (File template : templates) {
+            enrolled.add(WavFile.read(template, WakeWordSpotter.SAMPLE_RATE));
+        }
+        Report report = new Report(threshold);
+        for (File positive : positives) {
+            int triggers = run(enrolled, WavFile.read(positive, WakeWordSpotter.SAMPLE_RATE), threshold, report, report.positiveScores);
+            report.positives++;
+            report.detected += triggers > 0 ? 1 : 0;
+        }
+        for (File negative : negatives) {
+            short[] pcm = WavFile.read(negative, WakeWordSpotter.SAMPLE_RATE);
+            int triggers = run(enrolled, pcm, threshold, report, report.negativeScores);
+            report.negatives++;
+            report.negativeSeconds += (double) pcm.length / WakeWordSpotter.SAMPLE_RATE;
+            report.falseAcceptFiles += triggers > 0 ? 1 : 0;
+            report.falseAccepts += triggers;
+        }
+        return report;
+    }
+
+    // Streams one recording through a fresh spotter; returns how many times it triggered
+    private static int run(List<short[]> enrolled, short[] pcm, int threshold, Report report, List<Integer> scores) {
+        WakeWordSpotter spotter = new WakeWordSpotter();
+        for (short[] template : enrolled) {
+            spotter.addTemplate(template);
+        }
+        spotter.setThreshold(threshold);
+        long before = System.nanoTime(); // One busy thread, so wall time is its CPU time
+        int triggers = 0;
+        for (int offset = 0; offset < pcm.length; offset += READ_SAMPLES) {
+            triggers += spotter.process(pcm, offset, Math.min(READ_SAMPLES, pcm.length - offset)) ? 1 : 0;
+        }
+        report.cpuNanos += System.nanoTime() - before;
+        report.audioSeconds += (double) pcm.length / WakeWordSpotter.SAMPLE_RATE;
+        report.frames += spotter.frames();
+        report.matchedFrames += spotter.matchedFrames();
+
+        // A detection resets the paths, so the lowest score for the sweep comes from an untimed
+        // second pass that never triggers
+        WakeWordSpotter scorer = new WakeWordSpotter();
+        for (short[] template : enrolled) {
+            scorer.addTemplate(template);
+        }
+        scorer.setThreshold(Integer.MIN_VALUE);
+        for (int offset = 0; offset < pcm.length; offset += READ_SAMPLES) {
+            scorer.process(pcm, offset, Math.min(READ_SAMPLES, pcm.length - offset));
+        }
+        scores.add(scorer.takeBestScore());
+        return triggers;
+    }
+
+    // --- Output ---
+
+    public static void print(PrintWriter out, Report report) {
+        out.println(String.format(Locale.ROOT, "threshold %d: %d/%d positives detected (false reject %.1f%%), "
+                        + "%d false accepts in %d negatives (%.1f min, %.1f per hour)",
+                report.threshold, report.detected, report.positives, report.falseRejectRate() * 100,
+                report.falseAccepts, report.negatives, report.negativeSeconds / 60, report.falseAcceptsPerHour()));
+        out.println(String.format(Locale.ROOT, "cpu %.2f ms per second of audio; %d%% of %d frames matched, the rest skipped as quiet",
+                report.cpuMillisPerAudioSecond(), report.frames == 0 ? 0 : report.matchedFrames * 100 / report.frames, report.frames));
+        out.println("threshold  false-reject  false-accepting-negatives");
+        for (double factor : SWEEP) {
+            int threshold = (int) Math.round(report.threshold * factor);
+            double[] rates = report.ratesAt(threshold);
+            out.println(String.format(Locale.ROOT, "%9d  %11.1f%%  %24.1f%%", threshold, rates[0] * 100, rates[1] * 100));
+        }
+    }
+}
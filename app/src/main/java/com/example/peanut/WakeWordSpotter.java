@@ -0,0 +1,476 @@
+package com.example.peanut;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spots the wake word ("hey peanut") in 16 kHz mono PCM without the network or the platform
+ * recognizer, so the service can wait for its name all day and open a recognizer session only
+ * when it hears it.
+ *
+ * Features are fixed point and computed into buffers allocated up front: every 10 ms a 25 ms
+ * Hamming window goes through a 512-point integer FFT into {@link #BANDS} mel bands; a cosine
+ * transform of their log2 energies (Q8), without its zeroth term, makes a gain-independent frame
+ * vector of {@link #CEPSTRA} values that ignores pitch. Frames are matched against
+ * enrolled templates (recordings of the wake word) by subsequence dynamic time warping, which
+ * keeps one column of path costs per template, so matching costs O(template frames) per frame.
+ * A detection is a path whose average frame distance falls below the threshold. After 300 ms of
+ * silence the FFT and matching are skipped until the level rises again.
+ *
+ * Not thread-safe: templates are added and audio is fed on one thread. Counters may be read anywhere.
+ */
+public class WakeWordSpotter {
+
+    public static final int SAMPLE_RATE = 16000;
+    static final int HOP = 160;                 // 10 ms between frames
+    static final int WINDOW = 400;              // 25 ms per frame
+    static final int FFT_SIZE = 512;
+    private static final int FFT_BITS = 9;
+    static final int BANDS = 20;
+    static final int CEPSTRA = 12;              // Values per frame vector
+    private static final int DYNAMIC_RANGE = 6 * 256; // Bands more than ~36 dB below the loudest are floored (Q8 log2)
+    private static final int LOW_HZ = 100;
+    private static final int HIGH_HZ = 6000;
+
+    static final int MIN_TEMPLATE_FRAMES = 25;
+    static final int MAX_TEMPLATE_FRAMES = 150;
+    static final int MAX_TEMPLATES = 8;
+    static final int DEFAULT_THRESHOLD = 220;   // Average per-cepstrum distance of a matching frame, Q8 log2 units
+
+    private static final int SPEECH_MARGIN = 3 * 256;     // Frame level above the noise floor that counts as sound (Q8 log2, ~9 dB)
+    private static final int DORMANT_AFTER_FRAMES = 30;   // Of quiet before matching is suspended
+    private static final int REFRACTORY_FRAMES = 100;     // No second detection within 1 s
+    private static final int INFINITY = Integer.MAX_VALUE / 4;
+
+    // --- Feature Extraction (fixed point, preallocated) ---
+
+    /** Turns hops of PCM into frame vectors. One per stream; enrollment uses its own. */
+    static final class Features {
+        private static final short[] WINDOW_Q15 = new short[WINDOW];
+        private static final short[] COS_Q15 = new short[FFT_SIZE / 2];
+        private static final short[] SIN_Q15 = new short[FFT_SIZE / 2];
+        private static final short[] BIT_REVERSE = new short[FFT_SIZE];
+        private static final int[] BAND_FIRST = new int[BANDS];
+        private static final int[][] BAND_WEIGHTS_Q8 = new int[BANDS][];
+        private static final short[][] DCT_Q15 = new short[CEPSTRA][BANDS];
+
+        static {
+            for (int i = 0; i < WINDOW; i++) {
+                WINDOW_Q15[i] = (short) Math.round(32767 * (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (WINDOW - 1))));
+            }
+            for (int i = 0; i < FFT_SIZE / 2; i++) {
+                COS_Q15[i] = (short) Math.round(32767 * Math.cos(2 * Math.PI * i / FFT_SIZE));
+                SIN_Q15[i] = (short) Math.round(-32767 * Math.sin(2 * Math.PI * i / FFT_SIZE));
+            }
+            for (int i = 0; i < FFT_SIZE; i++) {
+                BIT_REVERSE[i] = (short) (Integer.reverse(i) >>> (32 - FFT_BITS));
+            }
+            // Triangular filters evenly spaced on the mel scale
+            double lowMel = mel(LOW_HZ);
+            double highMel = mel(HIGH_HZ);
+            double[] edges = new double[BANDS + 2];
+            for (int i = 0; i < edges.length; i++) {
+                edges[i] = hz(lowMel + (highMel - lowMel) * i / (BANDS + 1)) * FFT_SIZE / SAMPLE_RATE;
+            }
+            for (int b = 0; b < BANDS; b++) {
+                int first = (int) Math.ceil(edges[b]);
+                int last = (int) Math.floor(edges[b + 2]);
+                BAND_FIRST[b] = first;
+                BAND_WEIGHTS_Q8[b] = new int[Math.max(1, last - first + 1)];
+                for (int bin = first; bin <= last; bin++) {
+                    double weight = bin <= edges[b + 1]
+                            ? (bin - edges[b]) / (edges[b + 1] - edges[b])
+                            : (edges[b + 2] - bin) / (edges[b + 2] - edges[b + 1]);
+                    BAND_WEIGHTS_Q8[b][bin - first] = (int) Math.round(256 * Math.max(weight, 0.05));
+                }
+            }
+            // Cepstra 1..CEPSTRA of the band levels: the spectral envelope without pitch ripple; cepstrum 0,
+            // the overall level, is left out so the vector does not depend on gain
+            for (int k = 0; k < CEPSTRA; k++) {
+                for (int b = 0; b < BANDS; b++) {
+                    DCT_Q15[k][b] = (short) Math.round(32767 * Math.cos(Math.PI * (k + 1) * (b + 0.5) / BANDS) / Math.sqrt(BANDS / 2.0));
+                }
+            }
+        }
+
+        private static double mel(double hz) {
+            return 2595 * Math.log10(1 + hz / 700);
+        }
+
+        private static double hz(double mel) {
+            return 700 * (Math.pow(10, mel / 2595) - 1);
+        }
+
+        private final short[] recent = new short[WINDOW]; // Ring of the last WINDOW samples
+        private int recentEnd;
+        private int filled;
+        private final int[] re = new int[FFT_SIZE];
+        private final int[] im = new int[FFT_SIZE];
+        private final long[] power = new long[FFT_SIZE / 2 + 1];
+        private final int[] levels = new int[BANDS];
+        private int hopLevel;                              // Q8 log2 energy of the last hop
+
+        /** Adds one hop of samples; returns false until a full window has been seen. */
+        boolean push(short[] pcm, int offset) {
+            long energy = 0;
+            for (int i = 0; i < HOP; i++) {
+                short sample = pcm[offset + i];
+                recent[recentEnd] = sample;
+                recentEnd = recentEnd + 1 == WINDOW ? 0 : recentEnd + 1;
+                energy += sample * sample;
+            }
+            hopLevel = log2Q8(energy / HOP + 1);
+            filled = Math.min(WINDOW, filled + HOP);
+            return filled == WINDOW;
+        }
+
+        int hopLevel() {
+            return hopLevel;
+        }
+
+        /** Computes the frame vector of the current window into {@code out} (CEPSTRA values). */
+        void frame(int[] out, int outOffset) {
+            for (int i = WINDOW; i < FFT_SIZE; i++) {
+                re[BIT_REVERSE[i]] = 0;
+            }
+            int peak = 1;
+            for (int i = 0; i < WINDOW; i++) {
+                int sample = recent[(recentEnd + i) % WINDOW];
+                int windowed = (sample * WINDOW_Q15[i]) >> 15;
+                re[BIT_REVERSE[i]] = windowed;
+                peak |= windowed < 0 ? -windowed : windowed;
+            }
+            // Quiet frames are scaled up to 14 bits so the halving FFT keeps their detail; the
+            // scale only moves cepstrum 0, which is dropped
+            int shift = Math.max(0, 14 - (32 - Integer.numberOfLeadingZeros(peak)));
+            if (shift > 0) {
+                for (int i = 0; i < FFT_SIZE; i++) {
+                    re[i] <<= shift;
+                }
+            }
+            for (int i = 0; i < FFT_SIZE; i++) {
+                im[i] = 0;
+            }
+            fft();
+            for (int bin = 0; bin <= FFT_SIZE / 2; bin++) {
+                power[bin] = (long) re[bin] * re[bin] + (long) im[bin] * im[bin];
+            }
+            int loudest = 0;
+            for (int b = 0; b < BANDS; b++) {
+                int[] weights = BAND_WEIGHTS_Q8[b];
+                long energy = 0;
+                for (int k = 0; k < weights.length; k++) {
+                    energy += power[BAND_FIRST[b] + k] * weights[k];
+                }
+                levels[b] = log2Q8((energy >> 8) + 1);
+                loudest = Math.max(loudest, levels[b]);
+            }
+            for (int b = 0; b < BANDS; b++) {
+                levels[b] = Math.max(levels[b], loudest - DYNAMIC_RANGE); // Bands lost in noise say little
+            }
+            for (int k = 0; k < CEPSTRA; k++) {
+                short[] basis = DCT_Q15[k];
+                long sum = 0;
+                for (int b = 0; b < BANDS; b++) {
+                    sum += levels[b] * basis[b];
+                }
+                out[outOffset + k] = (int) (sum >> 15);
+            }
+        }
+
+        // In-place radix-2 FFT on bit-reversed input; halves every stage so Q15 products never overflow
+        private void fft() {
+            for (int size = 2, stride = FFT_SIZE / 2; size <= FFT_SIZE; size <<= 1, stride >>= 1) {
+                int half = size >> 1;
+                for (int start = 0; start < FFT_SIZE; start += size) {
+                    for (int k = 0; k < half; k++) {
+                        int c = COS_Q15[k * stride];
+                        int s = SIN_Q15[k * stride];
+                        int a = start + k;
+                        int b = a + half;
+                        int tr = (re[b] * c - im[b] * s) >> 15;
+                        int ti = (re[b] * s + im[b] * c) >> 15;
+                        re[b] = (re[a] - tr) >> 1;
+                        im[b] = (im[a] - ti) >> 1;
+                        re[a] = (re[a] + tr) >> 1;
+                        im[a] = (im[a] + ti) >> 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /** log2(x) in Q8, linear between powers of two. */
+    static int log2Q8(long x) {
+        if (x <= 1) {
+            return 0;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(x);
+        long fraction = msb >= 8 ? (x >>> (msb - 8)) & 0xFF : (x << (8 - msb)) & 0xFF;
+        return msb * 256 + (int) fraction;
+    }
+
+    // --- Templates ---
+
+    private final int[][] templates = new int[MAX_TEMPLATES][]; // Frame vectors, CEPSTRA per frame
+    private final int[] templateFrames = new int[MAX_TEMPLATES];
+    private volatile int templateCount; // Also read from the main and binder threads
+
+    // Subsequence DTW per template: cost, start frame and length of the best path ending at each
+    // template frame, for the last input frame and (swapped in after each frame) the current one
+    private final int[][] cost = new int[MAX_TEMPLATES][MAX_TEMPLATE_FRAMES];
+    private final int[][] start = new int[MAX_TEMPLATES][MAX_TEMPLATE_FRAMES];
+    private final int[][] steps = new int[MAX_TEMPLATES][MAX_TEMPLATE_FRAMES];
+    private final int[][] nextCost = new int[MAX_TEMPLATES][MAX_TEMPLATE_FRAMES];
+    private final int[][] nextStart = new int[MAX_TEMPLATES][MAX_TEMPLATE_FRAMES];
+    private final int[][] nextSteps = new int[MAX_TEMPLATES][MAX_TEMPLATE_FRAMES];
+
+    // --- Stream State ---
+
+    private final Features features = new Features();
+    private final int[] frame = new int[CEPSTRA];
+    private final short[] pending = new short[HOP];  // Samples short of a full hop
+    private int pendingCount;
+    private int frameIndex;
+    private int noiseFloor = -1;
+    private int quietFrames = DORMANT_AFTER_FRAMES;  // Start dormant
+    private int refractory;
+    private int threshold = DEFAULT_THRESHOLD;
+    private int bestScore = INFINITY;                // Lowest score since the last reset
+
+    // Read by dumpsys and the harness
+    private volatile long frames;
+    private volatile long matchedFrames;
+    private volatile long detections;
+    private volatile int lastDetectionScore = -1;
+
+    public WakeWordSpotter() {
+        resetPaths();
+    }
+
+    /**
+     * Enrolls one recording of the wake word: the sound in it, without leading and trailing quiet.
+     * Returns false when there is no room, or it is too short or too long to be the wake word.
+     */
+    public boolean addTemplate(short[] pcm) {
+        if (templateCount == MAX_TEMPLATES) {
+            return false;
+        }
+        Features extractor = new Features();
+        List<int[]> vectors = new ArrayList<>();
+        List<Integer> levels = new ArrayList<>();
+        int loudest = 0;
+        for (int offset = 0; offset + HOP <= pcm.length; offset += HOP) {
+            if (!extractor.push(pcm, offset)) {
+                continue;
+            }
+            int[] vector = new int[CEPSTRA];
+            extractor.frame(vector, 0);
+            vectors.add(vector);
+            levels.add(extractor.hopLevel());
+            loudest = Math.max(loudest, extractor.hopLevel());
+        }
+        // Keep the span within 30 dB of the loudest frame
+        int first = 0;
+        int last = vectors.size() - 1;
+        while (first < last && levels.get(first) < loudest - 10 * 256) {
+            first++;
+        }
+        while (last > first && levels.get(last) < loudest - 10 * 256) {
+            last--;
+        }
+        int count = last - first + 1;
+        if (count < MIN_TEMPLATE_FRAMES || count > MAX_TEMPLATE_FRAMES) {
+            return false;
+        }
+        int[] template = new int[count * CEPSTRA];
+        for (int f = 0; f < count; f++) {
+            System.arraycopy(vectors.get(first + f), 0, template, f * CEPSTRA, CEPSTRA);
+        }
+        templates[templateCount] = template;
+        templateFrames[templateCount] = count;
+        templateCount++;
+        resetPaths();
+        EventLog.record(EventLog.WAKE_WORD_ENROLL, count, templateCount);
+        return true;
+    }
+
+    public int templateCount() {
+        return templateCount;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    // --- Streaming ---
+
+    /**
+     * Feeds {@code length} samples; returns true if the wake word ended within them. Samples are
+     * consumed in 10 ms hops; a remainder is kept for the next call. Allocates nothing.
+     */
+    public boolean process(short[] pcm, int offset, int length) {
+        boolean detected = false;
+        int end = offset + length;
+        if (pendingCount > 0) {
+            int take = Math.min(HOP - pendingCount, length);
+            System.arraycopy(pcm, offset, pending, pendingCount, take);
+            pendingCount += take;
+            offset += take;
+            if (pendingCount == HOP) {
+                detected |= hop(pending, 0);
+                pendingCount = 0;
+            }
+        }
+        for (; offset + HOP <= end; offset += HOP) {
+            detected |= hop(pcm, offset);
+        }
+        if (offset < end) {
+            System.arraycopy(pcm, offset, pending, 0, end - offset);
+            pendingCount = end - offset;
+        }
+        return detected;
+    }
+
+    private boolean hop(short[] pcm, int offset) {
+        if (!features.push(pcm, offset)) {
+            return false;
+        }
+        frames++;
+        frameIndex++;
+        int level = features.hopLevel();
+        // The floor follows quiet levels at once and loud ones slowly (about 1 dB per second)
+        noiseFloor = noiseFloor < 0 || level < noiseFloor ? level : noiseFloor + 1;
+        if (level > noiseFloor + SPEECH_MARGIN) {
+            quietFrames = 0;
+        } else if (++quietFrames == DORMANT_AFTER_FRAMES) {
+            resetPaths(); // Nothing spoken for a while: forget partial matches and stop matching
+        }
+        if (quietFrames >= DORMANT_AFTER_FRAMES || templateCount == 0) {
+            return false;
+        }
+        matchedFrames++;
+        features.frame(frame, 0);
+        if (refractory > 0) {
+            refractory--;
+            return false;
+        }
+        return match();
+    }
+
+    // Advances every template's DTW column by the current frame
+    private boolean match() {
+        int bestTemplate = -1;
+        int best = INFINITY;
+        for (int t = 0; t < templateCount; t++) {
+            int[] template = templates[t];
+            int length = templateFrames[t];
+            int[] c = cost[t];
+            int[] s = start[t];
+            int[] n = steps[t];
+            int[] nc = nextCost[t];
+            int[] ns = nextStart[t];
+            int[] nn = nextSteps[t];
+            // A path may start at any frame
+            nc[0] = distance(template, 0);
+            ns[0] = frameIndex;
+            nn[0] = 1;
+            for (int j = 1; j < length; j++) {
+                int from = c[j - 1];  // Both advance
+                int fromStart = s[j - 1];
+                int fromSteps = n[j - 1];
+                if (c[j] < from) {    // The input lingers on template frame j
+                    from = c[j];
+                    fromStart = s[j];
+                    fromSteps = n[j];
+                }
+                if (nc[j - 1] < from) { // The input skips template frame j - 1
+                    from = nc[j - 1];
+                    fromStart = ns[j - 1];
+                    fromSteps = nn[j - 1];
+                }
+                if (from >= INFINITY) {
+                    nc[j] = INFINITY;
+                    continue;
+                }
+                nc[j] = from + distance(template, j);
+                ns[j] = fromStart;
+                nn[j] = fromSteps + 1;
+            }
+            cost[t] = nc;
+            nextCost[t] = c;
+            start[t] = ns;
+            nextStart[t] = s;
+            steps[t] = nn;
+            nextSteps[t] = n;
+
+            int last = length - 1;
+            int spoken = frameIndex - ns[last] + 1;
+            if (nc[last] < INFINITY && spoken * 2 >= length && spoken <= length * 2) {
+                int score = nc[last] / (nn[last] * CEPSTRA);
+                if (score < best) {
+                    best = score;
+                    bestTemplate = t;
+                }
+            }
+        }
+        bestScore = Math.min(bestScore, best);
+        if (best < threshold) {
+            detections++;
+            lastDetectionScore = best;
+            EventLog.record(EventLog.WAKE_WORD, best, bestTemplate);
+            refractory = REFRACTORY_FRAMES;
+            resetPaths();
+            return true;
+        }
+        return false;
+    }
+
+    // L1 distance between the current frame and template frame j
+    private int distance(int[] template, int j) {
+        int sum = 0;
+        int base = j * CEPSTRA;
+        for (int b = 0; b < CEPSTRA; b++) {
+            int diff = frame[b] - template[base + b];
+            sum += diff < 0 ? -diff : diff;
+        }
+        return sum;
+    }
+
+    private void resetPaths() {
+        for (int t = 0; t < MAX_TEMPLATES; t++) {
+            for (int j = 0; j < MAX_TEMPLATE_FRAMES; j++) {
+                cost[t][j] = INFINITY;
+            }
+        }
+    }
+
+    // --- Stats ---
+
+    /** Lowest score seen since the last call; the harness sweeps thresholds with it. */
+    int takeBestScore() {
+        int score = bestScore;
+        bestScore = INFINITY;
+        return score;
+    }
+
+    public long frames() {
+        return frames;
+    }
+
+    /** Frames that went through the FFT and matching; the rest were skipped as quiet. */
+    public long matchedFrames() {
+        return matchedFrames;
+    }
+
+    public long detections() {
+        return detections;
+    }
+
+    public String describe() {
+        long total = frames;
+        return "wakeword: templates=" + templateCount + " threshold=" + threshold + " frames=" + total
+                + " matched=" + (total > 0 ? matchedFrames * 100 / total : 0) + "% detections=" + detections
+                + " lastScore=" + lastDetectionScore;
+    }
+}
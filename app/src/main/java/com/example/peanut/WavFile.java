@@ -0,0 +1,128 @@
+package com.example.peanut;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes 16-bit PCM mono WAV files: wake-word templates on the device and recordings
+ * fed to {@link WakeWordHarness}. Plain Java.
+ */
+public final class WavFile {
+
+    private WavFile() {
+    }
+
+    /** The samples of {@code file}, which must be 16-bit PCM mono at {@code sampleRate}. */
+    public static short[] read(File file, int sampleRate) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (readTag(in) != 0x46464952 /* RIFF */) {
+                throw new IOException(file + ": not a RIFF file");
+            }
+            readLittleInt(in);
+            if (readTag(in) != 0x45564157 /* WAVE */) {
+                throw new IOException(file + ": not a WAVE file");
+            }
+            boolean formatSeen = false;
+            while (true) {
+                int tag = readTag(in);
+                int size = readLittleInt(in);
+                if (tag == 0x20746d66 /* "fmt " */) {
+                    int format = readLittleShort(in);
+                    int channels = readLittleShort(in);
+                    int rate = readLittleInt(in);
+                    readLittleInt(in); // Byte rate
+                    readLittleShort(in); // Block align
+                    int bits = readLittleShort(in);
+                    if (format != 1 || channels != 1 || bits != 16 || rate != sampleRate) {
+                        throw new IOException(file + ": need 16-bit PCM mono at " + sampleRate + " Hz, got format " + format
+                                + ", " + channels + " channels, " + bits + " bits, " + rate + " Hz");
+                    }
+                    skip(in, size - 16);
+                    formatSeen = true;
+                } else if (tag == 0x61746164 /* data */) {
+                    if (!formatSeen) {
+                        throw new IOException(file + ": data before fmt");
+                    }
+                    byte[] bytes = new byte[size];
+                    in.readFully(bytes);
+                    short[] samples = new short[size / 2];
+                    for (int i = 0; i < samples.length; i++) {
+                        samples[i] = (short) ((bytes[2 * i] & 0xFF) | bytes[2 * i + 1] << 8);
+                    }
+                    return samples;
+                } else {
+                    skip(in, size + (size & 1)); // Chunks are padded to an even size
+                }
+            }
+        }
+    }
+
+    public static void write(File file, short[] samples, int sampleRate) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(44 + samples.length * 2);
+        writeTag(bytes, "RIFF");
+        writeLittleInt(bytes, 36 + samples.length * 2);
+        writeTag(bytes, "WAVE");
+        writeTag(bytes, "fmt ");
+        writeLittleInt(bytes, 16);
+        writeLittleShort(bytes, 1); // PCM
+        writeLittleShort(bytes, 1); // Mono
+        writeLittleInt(bytes, sampleRate);
+        writeLittleInt(bytes, sampleRate * 2);
+        writeLittleShort(bytes, 2);
+        writeLittleShort(bytes, 16);
+        writeTag(bytes, "data");
+        writeLittleInt(bytes, samples.length * 2);
+        for (short sample : samples) {
+            writeLittleShort(bytes, sample);
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            bytes.writeTo(out);
+        }
+    }
+
+    // --- Little-Endian Helpers ---
+
+    private static int readTag(DataInputStream in) throws IOException {
+        return readLittleInt(in);
+    }
+
+    private static int readLittleInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readLittleShort(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort()) & 0xFFFF;
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Truncated WAV chunk");
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void writeTag(OutputStream out, String tag) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.write(tag.charAt(i));
+        }
+    }
+
+    private static void writeLittleInt(OutputStream out, int value) throws IOException {
+        writeLittleShort(out, value);
+        writeLittleShort(out, value >>> 16);
+    }
+
+    private static void writeLittleShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+}
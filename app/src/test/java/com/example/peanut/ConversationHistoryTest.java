@@ -0,0 +1,261 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ConversationHistoryTest {
+
+    // Opt-in: -Dpeanut.history.turns=1000000 runs the search benchmark; timing on shared CI machines is too noisy
+    private static final int BENCHMARK_TURNS = Integer.getInteger("peanut.history.turns", 0);
+    private static final int TURNS_PER_LEVEL0 = ConversationHistory.BLOCKS * ConversationHistory.TURNS_PER_BLOCK;
+
+    private static final String[] FILLER = {"which", "usually", "means", "very", "large", "small", "because", "when",
+            "people", "often", "called", "known", "first", "most", "found", "water", "light", "years", "world", "part",
+            "made", "used", "between", "many", "after", "before", "around", "also", "could", "would", "should", "where"};
+
+    private File dir;
+    private ConversationHistory history;
+    private long now = 1_700_000_000_000L;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("history").toFile();
+        history = new ConversationHistory(dir);
+        history.open();
+    }
+
+    @After
+    public void tearDown() {
+        history.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void findsTurnsByWordPrefixNewestFirstAndPairsAnswersWithTheirQuestion() {
+        write("tell me about black holes", "Hmm, let me think about that for a moment...");
+        write("", "A black hole is a region where gravity is so strong that nothing escapes.");
+        write("what time is it", "It's 3:15 PM.");
+        write("how big are black holes", "Hmm, let me think about that for a moment...");
+        write("", "Black holes range from a few solar masses to billions.");
+
+        List<ConversationHistory.Hit> hits = history.search("Black HOLE", 10);
+        assertEquals(2, hits.size()); // Each question once, with its answer rather than the holding reply
+        assertEquals("how big are black holes", hits.get(0).userText);
+        assertTrue(hits.get(0).followUp);
+        assertTrue(hits.get(1).responseText.startsWith("A black hole"));
+
+        assertEquals(1, history.search("gravity", 10).size());
+        assertTrue(history.search("ravity", 10).isEmpty()); // Words match at their start only
+        assertTrue(history.search("what about the", 10).isEmpty()); // Nothing but stop words
+        assertEquals("It's 3:15 PM.", history.search("time", 10).get(0).responseText);
+    }
+
+    @Test
+    public void reopensAfterATornTailAndRebuildsMissingSegments() throws Exception {
+        int turns = TURNS_PER_LEVEL0 * 3 + 100;
+        for (int i = 0; i < turns; i++) {
+            write("question n" + i + "x about topic" + (i % 50), "answer " + i);
+        }
+        long intact = history.dataBytes();
+        history.close();
+
+        // A record cut off by a crash: a length with no valid checksum behind it
+        try (RandomAccessFile raw = new RandomAccessFile(new File(dir, ConversationHistory.DATA_FILE), "rw")) {
+            raw.seek(intact);
+            raw.writeInt(40);
+            raw.writeLong(now);
+        }
+        new File(dir, "history-00000001.idx").delete();
+
+        history = new ConversationHistory(dir);
+        history.open();
+        assertEquals(intact, history.dataBytes());
+        assertEquals(10, history.search("topic7", 10).size());
+        assertEquals("answer " + (turns - 1), history.search("question", 1).get(0).responseText);
+        assertEquals("answer 5", history.search("n5x", 1).get(0).responseText);
+
+        write("one more about topic7", "appended after the torn record");
+        assertEquals("appended after the torn record", history.search("topic7", 1).get(0).responseText);
+    }
+
+    @Test
+    public void mergedSegmentsShrinkTheIndexPerTurn() {
+        Random random = new Random(7);
+        String[] words = vocabulary(random, 3000);
+        int small = TURNS_PER_LEVEL0 * ConversationHistory.FANOUT * 4;
+        int large = small * ConversationHistory.FANOUT * 2;
+        long smallIndex = 0;
+        for (int i = 0; i < large; i++) {
+            writeSynthetic(random, words);
+            if (i + 1 == small) {
+                smallIndex = history.indexBytes();
+            }
+        }
+        long largeIndex = history.indexBytes();
+        String description = history.describe();
+        assertTrue(smallIndex + "B at " + small + " turns, " + largeIndex + "B at " + large + " turns; " + description, largeIndex * small < smallIndex * large / 2); // Eight times the turns, under four times the index
+        assertTrue(largeIndex < history.dataBytes() / 10);
+
+        // The next record seals the full active segment, and every level in turn reaches four segments and
+        // merges, the top one included: one segment of 131072 records is left
+        writeSynthetic(random, words);
+        description = history.describe();
+        String levels = description.substring(description.indexOf("levels=") + 7, description.indexOf(" merges"));
+        assertEquals(description, "4", levels);
+    }
+
+    @Test
+    public void recallSkillAnswersFromHistoryAndGeminiGetsEarlierAnswers() throws Exception {
+        List<String> prompts = new CopyOnWriteArrayList<>();
+        List<String> contexts = new CopyOnWriteArrayList<>();
+        ResponseBank responses = ResponseBank.fromFile(new File("src/main/assets/responses.txt"));
+        responses.preload();
+        ConversationManager manager = new ConversationManager(responses,
+                BuiltInSkills.registerAll(new SkillRegistry.Builder(), null, (prompt, context, callback) -> {
+                    prompts.add(prompt);
+                    contexts.add(context);
+                }).build());
+        manager.attachHistory(history);
+        write("what is the tallest mountain", "Hmm, let me think about that for a moment...");
+        write("", "Mount Everest, at 8,849 meters.");
+
+        // The history is read on the io backend, never on the thread taking the turn; this thread
+        // is the turn thread, running the answers posted to it like TurnController's main loop
+        BlockingQueue<Runnable> turnThread = new LinkedBlockingQueue<>();
+        manager.setTurnExecutor(turnThread::add);
+        PeanutExecutors.setMainThread(Thread.currentThread());
+        long mainThreadIo = PeanutExecutors.mainThreadIoCount();
+        try {
+            List<String> answers = new ArrayList<>();
+            TurnResult recall = manager.processTurn("what did you tell me about the tallest mountain", (response, fromCache) -> answers.add(response));
+            assertEquals(ConversationManager.Intent.RECALL, recall.intent);
+            assertTrue(recall.awaitingAsync);
+            assertEquals("", recall.text.toString());
+            turnThread.poll(5, TimeUnit.SECONDS).run();
+            String answer = answers.get(0);
+            assertTrue(answer, answer.endsWith("Mount Everest, at 8,849 meters."));
+            assertTrue(prompts.isEmpty());
+
+            manager.processTurn("what did you say about volcanoes", (response, fromCache) -> answers.add(response));
+            turnThread.poll(5, TimeUnit.SECONDS).run();
+            answer = answers.get(1);
+            assertFalse(answer, answer.contains("Everest"));
+
+            manager.processTurn("how high is the tallest mountain", (response, fromCache) -> answers.add(response));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (prompts.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(mainThreadIo, PeanutExecutors.mainThreadIoCount());
+        } finally {
+            PeanutExecutors.setMainThread(null);
+        }
+        assertEquals(1, prompts.size());
+        assertTrue(contexts.get(0), contexts.get(0).contains("Mount Everest"));
+        // The context travels on its own, so the question is routed (and cached) as if asked cold
+        assertEquals("how high is the tallest mountain", prompts.get(0));
+        assertEquals(ModelRouter.Route.SPOKEN, new ModelRouter().route(prompts.get(0)));
+        assertNull(history.contextFor("quantum chromodynamics", 100));
+    }
+
+    @Test
+    public void searchLatencyOverManyTurns() {
+        if (BENCHMARK_TURNS == 0) {
+            return; // Not asked for
+        }
+        Random random = new Random(11);
+        String[] words = vocabulary(random, 20_000);
+        List<String[]> asked = new ArrayList<>();
+        for (int i = 0; i < BENCHMARK_TURNS; i++) {
+            String[] turn = writeSynthetic(random, words);
+            if (i % Math.max(1, BENCHMARK_TURNS / 500) == 0) {
+                asked.add(turn);
+            }
+        }
+
+        LatencySketch latency = new LatencySketch();
+        int found = 0;
+        for (int round = 0; round < 2; round++) { // The first round warms up
+            for (String[] turn : asked) {
+                String query = turn[1] + " " + turn[2];
+                long t = System.nanoTime();
+                List<ConversationHistory.Hit> hits = history.search(query, 3);
+                latency.record((System.nanoTime() - t) / 1000L);
+                found += hits.isEmpty() ? 0 : 1;
+            }
+            if (round == 0) {
+                latency = new LatencySketch();
+                found = 0;
+            }
+        }
+        assertEquals(asked.size(), found);
+        assertTrue("p50 " + latency.percentile(0.5) + "us", latency.percentile(0.5) < 10_000);
+        assertTrue("p99 " + latency.percentile(0.99) + "us", latency.percentile(0.99) < 100_000);
+    }
+
+    // --- Helpers ---
+
+    private void write(String user, String response) {
+        history.write(new ConversationTurn(now++, user, response));
+    }
+
+    // A question about two topic words (frequent ones far more often) and an answer that repeats them among filler words
+    private String[] writeSynthetic(Random random, String[] words) {
+        String a = words[zipf(random, words.length)];
+        String b = words[zipf(random, words.length)];
+        write("tell me about " + a + " and " + b, "Hmm, let me think about that for a moment...");
+        StringBuilder answer = new StringBuilder();
+        answer.append(Character.toUpperCase(a.charAt(0))).append(a.substring(1)).append(" is related to ").append(b);
+        for (int i = 0; i < 8; i++) {
+            answer.append(' ').append(FILLER[zipf(random, FILLER.length)]);
+        }
+        write("", answer.append('.').toString());
+        return new String[] {"tell me about " + a + " and " + b, a, b};
+    }
+
+    private static int zipf(Random random, int n) {
+        return (int) Math.min(n - 1, Math.exp(random.nextDouble() * Math.log(n)) - 1);
+    }
+
+    // Words of 4 to 9 letters drawn with English letter frequencies, so trigrams are about as varied as in real text
+    private static String[] vocabulary(Random random, int size) {
+        String letters = "eeeeeeeeeeeetttttttttaaaaaaaaooooooooiiiiiiinnnnnnnsssssshhhhhhrrrrrrddddllllccuuummwwffggyyppbbvkjxqz";
+        List<String> words = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        while (words.size() < size) {
+            StringBuilder word = new StringBuilder();
+            for (int n = 4 + random.nextInt(6); n > 0; n--) {
+                word.append(letters.charAt(random.nextInt(letters.length())));
+            }
+            if (seen.add(word.toString())) {
+                words.add(word.toString());
+            }
+        }
+        return words.toArray(new String[0]); // Generation order is frequency rank
+    }
+}
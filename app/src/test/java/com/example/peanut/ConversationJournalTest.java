@@ -0,0 +1,130 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+public class ConversationJournalTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal-test").toFile();
+    }
+
+    @Test
+    public void restoresTurnsAndStateAfterRestart() {
+        ConversationJournal journal = new ConversationJournal(dir);
+        journal.restore();
+        journal.appendState("thabo", true, "SET_MY_NAME");
+        journal.appendTurn(new ConversationTurn(1L, "my name is thabo", "Got it, thabo!"));
+        journal.close();
+
+        ConversationJournal.State state = new ConversationJournal(dir).restore();
+        assertEquals("thabo", state.userName);
+        assertTrue(state.askedForName);
+        assertEquals("SET_MY_NAME", state.lastIntent);
+        assertEquals(1, state.recentTurns.size());
+        assertEquals("Got it, thabo!", state.recentTurns.peekLast().responseText);
+    }
+
+    @Test
+    public void truncatedTailIsCutAndJournalStaysAppendable() throws IOException {
+        ConversationJournal journal = new ConversationJournal(dir);
+        journal.restore();
+        journal.appendTurn(new ConversationTurn(1L, "hello", "Hi!"));
+        journal.appendTurn(new ConversationTurn(2L, "tell me a joke", "Why don't skeletons fight?"));
+        journal.close();
+
+        // Simulate a crash in the middle of writing the last record
+        File journalFile = new File(dir, ConversationJournal.JOURNAL_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        journal = new ConversationJournal(dir);
+        ConversationJournal.State state = journal.restore();
+        assertEquals(1, state.recentTurns.size());
+        assertEquals("hello", state.recentTurns.peekFirst().userText);
+
+        journal.appendTurn(new ConversationTurn(3L, "thanks", "Anytime!"));
+        journal.close();
+
+        state = new ConversationJournal(dir).restore();
+        assertEquals(2, state.recentTurns.size());
+        assertEquals("thanks", state.recentTurns.peekLast().userText);
+    }
+
+    @Test
+    public void corruptRecordStopsReplay() throws IOException {
+        ConversationJournal journal = new ConversationJournal(dir);
+        journal.restore();
+        journal.appendTurn(new ConversationTurn(1L, "hello", "Hi!"));
+        journal.appendTurn(new ConversationTurn(2L, "bye", "Goodbye!"));
+        journal.close();
+
+        File journalFile = new File(dir, ConversationJournal.JOURNAL_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.seek(raf.length() - 6);
+            raf.write(0x7F); // flip a payload byte so the CRC no longer matches
+        }
+
+        ConversationJournal.State state = new ConversationJournal(dir).restore();
+        assertEquals(1, state.recentTurns.size());
+        assertEquals("hello", state.recentTurns.peekFirst().userText);
+    }
+
+    @Test
+    public void compactionKeepsReplayBounded() {
+        ConversationJournal journal = new ConversationJournal(dir);
+        journal.restore();
+        int turns = ConversationJournal.COMPACT_EVERY * 5 + 3;
+        for (int i = 0; i < turns; i++) {
+            journal.appendTurn(new ConversationTurn(i, "turn " + i, "answer " + i));
+            if (i % 16 == 0) {
+                journal.flush();
+            }
+        }
+        journal.close();
+
+        assertTrue(new File(dir, ConversationJournal.SNAPSHOT_FILE).exists());
+        long journalBytes = new File(dir, ConversationJournal.JOURNAL_FILE).length();
+        assertTrue("journal should have been compacted, was " + journalBytes + " bytes", journalBytes < 64 * 64);
+
+        ConversationJournal.State state = new ConversationJournal(dir).restore();
+        assertEquals(ConversationJournal.MAX_RECENT_TURNS, state.recentTurns.size());
+        assertEquals("turn " + (turns - 1), state.recentTurns.peekLast().userText);
+    }
+
+    @Test
+    public void staleJournalFromPreviousGenerationIsIgnored() throws IOException {
+        ConversationJournal journal = new ConversationJournal(dir);
+        journal.restore();
+        journal.appendTurn(new ConversationTurn(1L, "first", "one"));
+        journal.close();
+        byte[] staleJournal = Files.readAllBytes(new File(dir, ConversationJournal.JOURNAL_FILE).toPath());
+
+        journal = new ConversationJournal(dir);
+        journal.restore();
+        for (int i = 0; i < ConversationJournal.COMPACT_EVERY; i++) {
+            journal.appendTurn(new ConversationTurn(i, "later " + i, "answer"));
+        }
+        journal.close();
+
+        // Crash between snapshot rename and journal reset: the old journal is still on disk
+        Files.write(new File(dir, ConversationJournal.JOURNAL_FILE).toPath(), staleJournal);
+
+        ConversationJournal.State state = new ConversationJournal(dir).restore();
+        assertFalse("first".equals(state.recentTurns.peekLast().userText));
+        assertEquals("later " + (ConversationJournal.COMPACT_EVERY - 1), state.recentTurns.peekLast().userText);
+    }
+}
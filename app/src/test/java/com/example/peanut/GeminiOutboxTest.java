@@ -0,0 +1,222 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class GeminiOutboxTest {
+
+    private File dir;
+    private final FakeConnectivity connectivity = new FakeConnectivity();
+    private final StubModel model = new StubModel();
+    private GeminiOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("outbox").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (outbox != null) {
+            outbox.close();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void queuedQuestionsSurviveRestart() throws Exception {
+        outbox = new GeminiOutbox(dir, connectivity, model, 10);
+        outbox.enqueue("what is the capital of lesotho");
+        outbox.enqueue("how tall is thabana ntlenyana");
+        outbox.close();
+
+        outbox = new GeminiOutbox(dir, connectivity, model, 10);
+        assertEquals(2, outbox.pendingCount());
+        assertTrue(model.prompts.isEmpty());
+    }
+
+    @Test
+    public void reconnectDrainsInOrderWithPacing() throws Exception {
+        outbox = new GeminiOutbox(dir, connectivity, model, 100);
+        List<GeminiOutbox.Entry> delivered = new CopyOnWriteArrayList<>();
+        outbox.setDelivery(delivered::add);
+        outbox.enqueue("first");
+        outbox.enqueue("second");
+        outbox.enqueue("third");
+
+        connectivity.set(true, outbox);
+        assertTrue(waitFor(() -> delivered.size() == 3));
+
+        assertEquals("first", model.prompts.get(0));
+        assertEquals("third", model.prompts.get(2));
+        long spacing = (model.sentAtNanos.get(2) - model.sentAtNanos.get(0)) / 1_000_000L;
+        assertTrue("drained 3 in " + spacing + "ms", spacing >= 180);
+        assertEquals(0, outbox.pendingCount());
+
+        List<GeminiOutbox.Entry> answered = outbox.takeAnswered();
+        assertEquals(3, answered.size());
+        assertEquals("answer to first", answered.get(0).answer);
+        assertTrue(outbox.takeAnswered().isEmpty());
+
+        // Collected answers are gone after a restart too
+        outbox.close();
+        outbox = new GeminiOutbox(dir, connectivity, model, 100);
+        assertTrue(outbox.takeAnswered().isEmpty());
+    }
+
+    @Test
+    public void failedSendStaysQueuedUntilNextReconnect() throws Exception {
+        outbox = new GeminiOutbox(dir, connectivity, model, 10);
+        outbox.enqueue("question");
+        model.failNext = true;
+        connectivity.set(true, outbox);
+        assertTrue(waitFor(() -> model.prompts.size() == 1));
+        Thread.sleep(50);
+        assertEquals(1, outbox.pendingCount());
+
+        connectivity.set(false, outbox);
+        connectivity.set(true, outbox);
+        assertTrue(waitFor(() -> outbox.pendingCount() == 0));
+        assertEquals(2, model.prompts.size());
+    }
+
+    @Test
+    public void failedSendIsRetriedWithBackoffWhileOnline() throws Exception {
+        outbox = new GeminiOutbox(dir, connectivity, model, 10, 40);
+        outbox.enqueue("question");
+        model.failures = 2;
+        connectivity.set(true, outbox);
+        assertTrue(waitFor(() -> outbox.pendingCount() == 0));
+        assertEquals(3, model.prompts.size());
+        long firstRetryNanos = model.sentAtNanos.get(1) - model.sentAtNanos.get(0);
+        long secondRetryNanos = model.sentAtNanos.get(2) - model.sentAtNanos.get(1);
+        assertTrue(firstRetryNanos / 1_000_000 + " ms", firstRetryNanos >= 40_000_000L);
+        assertTrue(secondRetryNanos / 1_000_000 + " ms", secondRetryNanos >= 80_000_000L);
+        assertEquals(GeminiOutbox.MAX_RETRY_DELAY_MILLIS, GeminiOutbox.retryDelayMillis(5000, 40));
+    }
+
+    @Test
+    public void throwingSendIsRetried() throws Exception {
+        outbox = new GeminiOutbox(dir, connectivity, model, 10, 20);
+        outbox.enqueue("question");
+        model.throwNext = true;
+        connectivity.set(true, outbox);
+        assertTrue(waitFor(() -> outbox.pendingCount() == 0));
+        assertEquals(2, model.prompts.size());
+    }
+
+    @Test
+    public void drainStopsWhenConnectivityDrops() throws Exception {
+        outbox = new GeminiOutbox(dir, connectivity, model, 200);
+        for (int i = 0; i < 5; i++) {
+            outbox.enqueue("q" + i);
+        }
+        connectivity.set(true, outbox);
+        assertTrue(waitFor(() -> model.prompts.size() == 1));
+        connectivity.set(false, outbox);
+        Thread.sleep(500);
+        assertEquals(1, model.prompts.size());
+        assertEquals(4, outbox.pendingCount());
+    }
+
+    @Test
+    public void pendingQuestionsDrainOnStartupWhenAlreadyOnline() throws Exception {
+        outbox = new GeminiOutbox(dir, connectivity, model, 10);
+        outbox.enqueue("question");
+        outbox.close();
+
+        connectivity.online = true;
+        outbox = new GeminiOutbox(dir, connectivity, model, 10);
+        assertTrue(waitFor(() -> outbox.pendingCount() == 0));
+    }
+
+    @Test
+    public void fullOutboxDropsOldest() {
+        outbox = new GeminiOutbox(dir, connectivity, model, 10);
+        for (int i = 0; i < GeminiOutbox.MAX_ENTRIES + 5; i++) {
+            outbox.enqueue("q" + i);
+        }
+        assertEquals(GeminiOutbox.MAX_ENTRIES, outbox.pendingCount());
+    }
+
+    private static final class FakeConnectivity implements ConnectivitySource {
+        volatile boolean online;
+        private volatile Listener listener;
+
+        void set(boolean nowOnline, Listener expected) {
+            online = nowOnline;
+            assertEquals(expected, listener);
+            listener.onConnectivityChanged(nowOnline);
+        }
+
+        @Override
+        public boolean isOnline() {
+            return online;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Answers immediately, or fails when asked to. */
+    private static final class StubModel implements GeminiOutbox.Sender {
+        final List<String> prompts = new CopyOnWriteArrayList<>();
+        final List<Long> sentAtNanos = new CopyOnWriteArrayList<>();
+        volatile boolean failNext;
+        volatile int failures; // Fail this many sends in a row
+        volatile boolean throwNext;
+
+        @Override
+        public void send(String prompt, String context, GeminiApiClient.GeminiResponseCallback callback) {
+            prompts.add(prompt);
+            sentAtNanos.add(System.nanoTime());
+            if (throwNext) {
+                throwNext = false;
+                throw new IllegalStateException("client not ready");
+            }
+            if (failNext || failures > 0) {
+                failNext = false;
+                failures--;
+                callback.onGeminiError("network error");
+            } else {
+                callback.onGeminiResponse("answer to " + prompt, false);
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static boolean waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.met()) {
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        return condition.met();
+    }
+}
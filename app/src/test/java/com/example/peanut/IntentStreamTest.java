@@ -0,0 +1,143 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Replays timestamped partial-result traces through {@link IntentStream} and reports, per intent,
+ * how much earlier the answer could start than with the final transcript.
+ */
+public class IntentStreamTest {
+
+    // "ms:partial" steps separated by '|'; the last step starts with '=' and is the final result.
+    // Timings follow what SpeechRecognizer reports: a partial every 150-250ms while the user speaks,
+    // the final after the end-of-speech silence.
+    private static final String[] TRACES = {
+            "180:what|420:what time|610:what time is|790:what time is it|950:what time is it|=1900:what time is it",
+            "200:do|380:do you|560:do you know|700:do you know the|880:do you know the time|1040:do you know the time|=2000:do you know the time",
+            "150:tell|320:tell me|450:tell me a|640:tell me a joke|820:tell me a joke|=1800:tell me a joke",
+            "150:tell|300:tell me|470:tell me a|620:tell me a joke|800:tell me a joke|960:tell me a joke about|1200:tell me a joke about cats|=2100:tell me a joke about cats",
+            "220:goodbye|400:goodbye|=1300:goodbye",
+            "160:okay|350:okay bye|520:okay bye|=1500:okay bye peanut",
+            "250:thanks|420:thanks|=1400:thanks",
+            "200:thank|380:thank you|560:thank you|=1500:thank you",
+            "180:how|350:how are|520:how are you|700:how are you|=1600:how are you",
+            "200:thanks|380:thanks hi|=1400:thanks hi",
+            "200:what|400:what is|600:what is the|800:what is the capital|1000:what is the capital of lesotho|=2000:what is the capital of lesotho",
+            "200:weather|380:weather in|560:weather in maseru|=1500:weather in maseru",
+    };
+
+    private final SkillRegistry skills = BuiltInSkills.createRegistry();
+
+    @Test
+    public void replayedTracesCommitEarlyWithoutMisses() {
+        Map<ConversationManager.Intent, long[]> won = new EnumMap<>(ConversationManager.Intent.class); // {sum ms, commits, traces}
+        IntentStream stream = new IntentStream();
+        for (String trace : TRACES) {
+            Replay replay = replay(stream, trace);
+            long[] totals = won.computeIfAbsent(replay.finalIntent, k -> new long[3]);
+            totals[2]++;
+            if (replay.commitMillis >= 0) {
+                assertEquals(trace, replay.finalIntent, replay.committedIntent);
+                totals[0] += replay.finalMillis - replay.commitMillis;
+                totals[1]++;
+            }
+        }
+        assertEquals(2, won.get(ConversationManager.Intent.WHAT_TIME)[1]);
+        assertEquals(2, won.get(ConversationManager.Intent.TELL_JOKE)[1]);
+        assertEquals(2, won.get(ConversationManager.Intent.GOODBYE)[1]);
+        assertTrue(won.get(ConversationManager.Intent.WHAT_TIME)[0] / 2 >= 900);
+        assertEquals(0, won.get(ConversationManager.Intent.UNKNOWN)[1]); // Gemini questions wait for the final
+        assertEquals(0, won.get(ConversationManager.Intent.GET_WEATHER)[1]); // The city comes last
+        assertEquals(0, won.get(ConversationManager.Intent.GREETING)[1]);
+    }
+
+    @Test
+    public void wordsThatCouldStartAHigherPriorityPhraseHoldTheCommit() {
+        // "you" may still become "you can call me ...", which outranks thanks
+        assertTrue(skills.isPrefixOfHigherPriorityPhrase("thank you", skills.routeOf(ConversationManager.Intent.THANK_YOU)));
+        assertTrue(skills.isPrefixOfHigherPriorityPhrase("thanks good", skills.routeOf(ConversationManager.Intent.THANK_YOU)));
+        assertFalse(skills.isPrefixOfHigherPriorityPhrase("what time is it", skills.routeOf(ConversationManager.Intent.WHAT_TIME)));
+        assertFalse(skills.isPrefixOfHigherPriorityPhrase("thanks", skills.routeOf(ConversationManager.Intent.THANK_YOU)));
+        assertFalse(skills.isPrefixOfHigherPriorityPhrase("tell me a joke", 0));
+
+        IntentStream stream = new IntentStream();
+        Replay held = replay(stream, "200:thank|380:thank you|560:thank you|=1500:thank you");
+        assertEquals(-1, held.commitMillis);
+        assertEquals(ConversationManager.Intent.THANK_YOU, held.finalIntent);
+    }
+
+    @Test
+    public void stabilityRequirementPreventsMisses() {
+        // Committing on the first partial answers "thanks" to someone who went on to say hi
+        IntentStream eager = new IntentStream(IntentStream.DEFAULT_EARLY_INTENTS, 1);
+        Replay miss = replay(eager, "200:thanks|380:thanks hi|=1400:thanks hi");
+        assertEquals(ConversationManager.Intent.THANK_YOU, miss.committedIntent);
+        assertEquals(ConversationManager.Intent.GREETING, miss.finalIntent);
+
+        Replay held = replay(new IntentStream(), "200:thanks|380:thanks hi|=1400:thanks hi");
+        assertEquals(-1, held.commitMillis);
+    }
+
+    @Test
+    public void offeringPartialsDoesNotAllocate() {
+        IntentStream stream = new IntentStream();
+        String[] partials = {"what", "what time", "what time is", "what time is it", "what time is it"};
+        for (int i = 0; i < 10_000; i++) { // Warm up
+            stream.reset();
+            for (String partial : partials) {
+                stream.offer(partial, skills);
+            }
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            stream.reset();
+            for (String partial : partials) {
+                stream.offer(partial, skills);
+            }
+        }
+        long perUtterance = (threads.getThreadAllocatedBytes(threadId) - before) / 1000;
+        assertTrue("allocated " + perUtterance + " bytes per utterance", perUtterance < 64);
+    }
+
+    // --- Replay ---
+
+    private static final class Replay {
+        long commitMillis = -1;
+        long finalMillis;
+        ConversationManager.Intent committedIntent;
+        ConversationManager.Intent finalIntent;
+    }
+
+    private Replay replay(IntentStream stream, String trace) {
+        Replay replay = new Replay();
+        stream.reset();
+        for (String step : trace.split("\\|")) {
+            boolean isFinal = step.startsWith("=");
+            int colon = step.indexOf(':');
+            long millis = Long.parseLong(step.substring(isFinal ? 1 : 0, colon));
+            String text = step.substring(colon + 1);
+            if (isFinal) {
+                replay.finalMillis = millis;
+                replay.finalIntent = skills.intentOf(skills.route(text));
+            } else if (stream.offer(text, skills)) {
+                replay.commitMillis = millis;
+                replay.committedIntent = skills.intentOf(stream.committedRoute());
+            }
+        }
+        return replay;
+    }
+}
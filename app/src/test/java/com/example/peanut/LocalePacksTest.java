@@ -0,0 +1,114 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LocalePacksTest {
+
+    private static final String ASSETS = "src/main/assets/";
+
+    private static final String[] SECTIONS = {
+            ResponseBank.GREETING, ResponseBank.HOW_ARE_YOU, ResponseBank.NAME_INQUIRY, ResponseBank.SET_NAME,
+            ResponseBank.JOKE, ResponseBank.GOODBYE, ResponseBank.THANK_YOU, ResponseBank.TIME,
+            ResponseBank.WEATHER_LOCATION_PROMPT, ResponseBank.UNDERSTANDING_FAILURE, ResponseBank.SMALL_TALK,
+            ResponseBank.AFFIRMATION, ResponseBank.NEGATION, ResponseBank.GREETING_ASK_NAME,
+            ResponseBank.JOKE_FOLLOWUP, ResponseBank.AFFIRMATION_AFTER_JOKE, ResponseBank.AFFIRMATION_FOLLOWUP,
+            ResponseBank.NEGATION_FOLLOWUP, ResponseBank.WEATHER_STILL_WAITING, ResponseBank.THINKING,
+            ResponseBank.RECALL_FOUND, ResponseBank.RECALL_NONE, ResponseBank.WEATHER_FETCHING,
+            ResponseBank.OUTBOX_EARLIER, ResponseBank.OFFLINE, ResponseBank.SPEECH_BUSY,
+    };
+
+    private static final String[] SKILLS = {
+            "greeting", "how_are_you", "name_inquiry", "set_name", "joke", "goodbye",
+            "thank_you", "time", "weather", "affirmation", "negation", "small_talk", "recall",
+    };
+
+    private static final ConversationManager.ExternalAiResponseCallback NO_ASYNC = (response, fromCache) -> { };
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final LocalePacks packs = new LocalePacks(assetName -> {
+        loads.incrementAndGet();
+        return ResponseBank.fromFile(new File(ASSETS + assetName));
+    }, LocalePacks.tagsFromAssetNames(new File(ASSETS).list()));
+
+    @Test
+    public void everyPackCoversEverySectionAndSkill() {
+        for (String tag : LocalePacks.tagsFromAssetNames(new File(ASSETS).list())) {
+            ResponseBank pack = ResponseBank.fromFile(new File(ASSETS + ResponseBank.assetNameFor(tag)));
+            for (String section : SECTIONS) {
+                assertTrue(tag + " lacks [" + section + "]", pack.lines(section).length > 0);
+            }
+            for (String skill : SKILLS) {
+                assertTrue(tag + " lacks phrases for " + skill, pack.lines(ResponseBank.PHRASES_PREFIX + skill).length > 0);
+            }
+        }
+        ResponseBank english = ResponseBank.fromFile(new File(ASSETS + ResponseBank.ASSET_NAME));
+        for (String section : SECTIONS) {
+            assertTrue("en lacks [" + section + "]", english.lines(section).length > 0);
+        }
+    }
+
+    @Test
+    public void resolvesMostSpecificAvailablePack() {
+        assertEquals("es", packs.resolve(Locale.forLanguageTag("es-MX")));
+        assertEquals("es", packs.resolve(new Locale("es")));
+        assertEquals("en", packs.resolve(Locale.UK));
+        assertEquals("en", packs.resolve(Locale.FRANCE));
+        assertEquals(0, loads.get()); // Resolving never loads
+
+        LocalePacks.Pack english = packs.activate(Locale.UK);
+        assertEquals(Locale.UK, LocalePacks.speechLocale(Locale.UK, english));
+        assertEquals(new Locale("en"), LocalePacks.speechLocale(Locale.FRANCE, english));
+    }
+
+    @Test
+    public void spanishTurnsRouteLocally() {
+        LocalePacks.Pack spanish = packs.activate(Locale.forLanguageTag("es-ES"));
+        ConversationManager manager = new ConversationManager(spanish.responses, spanish.skills);
+
+        assertEquals(ConversationManager.Intent.GREETING, manager.processTurn("Hola", NO_ASYNC).intent);
+        TurnResult named = manager.processTurn("me llamo Jos\u00e9", NO_ASYNC);
+        assertEquals(ConversationManager.Intent.SET_MY_NAME, named.intent);
+        assertEquals("jos\u00e9", manager.getUserName());
+        assertTrue(named.text.toString(), named.text.indexOf("jos\u00e9") >= 0);
+        assertEquals(ConversationManager.Intent.WHAT_TIME, manager.processTurn("qu\u00e9 hora es", NO_ASYNC).intent);
+        assertEquals(ConversationManager.Intent.TELL_JOKE, manager.processTurn("cu\u00e9ntame un chiste", NO_ASYNC).intent);
+        TurnResult negation = manager.processTurn("no", NO_ASYNC);
+        assertEquals(ConversationManager.Intent.NEGATION, negation.intent);
+        assertTrue(negation.text.toString(), negation.text.toString().endsWith(spanish.responses.lines(ResponseBank.NEGATION_FOLLOWUP)[0]));
+    }
+
+    @Test
+    public void switchKeepsOnlyTheActivePackResident() {
+        LocalePacks.Pack english = packs.activate(Locale.US);
+        ConversationManager manager = new ConversationManager(english.responses, english.skills);
+        manager.processTurn("my name is thabo", NO_ASYNC);
+        WeakReference<SkillRegistry> englishSkills = new WeakReference<>(english.skills);
+        WeakReference<ResponseBank> englishResponses = new WeakReference<>(english.responses);
+        english = null;
+
+        LocalePacks.Pack spanish = packs.activate(new Locale("es"));
+        assertTrue(spanish == packs.activate(Locale.forLanguageTag("es-AR"))); // Same pack, no reload
+        assertEquals(2, loads.get());
+        manager.usePack(spanish.responses, spanish.skills);
+
+        TurnResult firstTurn = manager.processTurn("hola", NO_ASYNC);
+        assertEquals(ConversationManager.Intent.GREETING, firstTurn.intent);
+        assertEquals("thabo", manager.getUserName()); // The name carries over
+
+        for (int i = 0; i < 20 && (englishSkills.get() != null || englishResponses.get() != null); i++) {
+            System.gc();
+            Thread.yield();
+        }
+        assertNull(englishSkills.get());
+        assertNull(englishResponses.get());
+    }
+}
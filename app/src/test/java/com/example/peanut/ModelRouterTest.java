@@ -0,0 +1,63 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ModelRouterTest {
+
+    private final ModelRouter router = new ModelRouter();
+
+    @Test
+    public void shortQuestionsTakeTheQuickRoute() {
+        assertEquals(ModelRouter.Route.QUICK_FACT, router.route("what is the capital of lesotho"));
+        assertEquals(ModelRouter.Route.QUICK_FACT, router.route("Who wrote Things Fall Apart"));
+        assertEquals(ModelRouter.Route.QUICK_FACT, router.route("how many legs does a spider have"));
+        assertEquals(ModelRouter.Route.QUICK_FACT, router.route("  is the moon bigger than pluto"));
+    }
+
+    @Test
+    public void openEndedCuesAndLongPromptsTakeTheOpenRoute() {
+        assertEquals(ModelRouter.Route.OPEN_ENDED, router.route("explain black holes"));
+        assertEquals(ModelRouter.Route.OPEN_ENDED, router.route("why is the sky blue"));
+        assertEquals(ModelRouter.Route.OPEN_ENDED, router.route("tell me a story about a dragon"));
+        assertEquals(ModelRouter.Route.OPEN_ENDED, router.route("what is the difference between a frog and a toad"));
+        StringBuilder longPrompt = new StringBuilder("so");
+        for (int i = 0; i < ModelRouter.OPEN_ENDED_MIN_WORDS; i++) {
+            longPrompt.append(" word");
+        }
+        assertEquals(ModelRouter.Route.OPEN_ENDED, router.route(longPrompt));
+    }
+
+    @Test
+    public void everythingElseIsSpoken() {
+        assertEquals(ModelRouter.Route.SPOKEN, router.route("i had a really long day at work"));
+        // Question words only count at the start and as whole words
+        assertEquals(ModelRouter.Route.SPOKEN, router.route("whatever you think"));
+        assertEquals(ModelRouter.Route.SPOKEN, router.route("my cat knows what is up"));
+        // "why" inside a word is not a cue
+        assertEquals(ModelRouter.Route.SPOKEN, router.route("whyte is my surname"));
+    }
+
+    @Test
+    public void spokenRoutesHaveTightOutputCaps() {
+        assertTrue(ModelRouter.Route.QUICK_FACT.maxOutputTokens < ModelRouter.Route.SPOKEN.maxOutputTokens);
+        assertTrue(ModelRouter.Route.SPOKEN.maxOutputTokens < ModelRouter.Route.OPEN_ENDED.maxOutputTokens);
+        assertTrue(ModelRouter.Route.OPEN_ENDED.maxOutputTokens <= 512);
+    }
+
+    @Test
+    public void recordsLatencyPerRoute() {
+        router.recordResult(ModelRouter.Route.QUICK_FACT, 300, true);
+        router.recordResult(ModelRouter.Route.QUICK_FACT, 500, false);
+        router.recordResult(ModelRouter.Route.OPEN_ENDED, 2000, true);
+
+        assertEquals(2, router.requestCount(ModelRouter.Route.QUICK_FACT));
+        assertEquals(400, router.averageLatencyMillis(ModelRouter.Route.QUICK_FACT));
+        assertEquals(0, router.requestCount(ModelRouter.Route.SPOKEN));
+        String summary = router.describe();
+        assertTrue(summary, summary.contains("quick_fact model=gemini-1.5-flash maxTokens=96 requests=2 failures=1 avgMs=400 maxMs=500"));
+        assertTrue(summary, summary.contains("open_ended"));
+    }
+}
@@ -0,0 +1,295 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PeanutExecutorsTest {
+
+    private ExecutorService main;
+    private ScheduledExecutorService scheduler;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        main = Executors.newSingleThreadExecutor(r -> new Thread(r, "fake-main"));
+        scheduler = Executors.newScheduledThreadPool(2);
+        dir = Files.createTempDirectory("executors").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        PeanutExecutors.setMainThread(null);
+        main.shutdownNow();
+        scheduler.shutdownNow();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                File[] files = child.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        f.delete();
+                    }
+                }
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void fullBackendAppliesItsRejectionPolicy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> ran = new CopyOnWriteArrayList<>();
+
+        PeanutExecutors.Backend abort = new PeanutExecutors.Backend("abort", 1, 2, PeanutExecutors.Rejection.ABORT, false);
+        abort.execute(() -> {
+            ran.add(Thread.currentThread().getName());
+            await(release);
+        });
+        abort.execute(() -> ran.add("queued-1"));
+        abort.execute(() -> ran.add("queued-2"));
+        try {
+            abort.execute(() -> ran.add("rejected"));
+            fail("a full ABORT backend accepted a task");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(2, abort.queueDepth());
+        assertEquals(1, abort.rejectedCount());
+
+        PeanutExecutors.Backend callerRuns = new PeanutExecutors.Backend("callers", 1, 1, PeanutExecutors.Rejection.CALLER_RUNS, false);
+        callerRuns.execute(() -> await(release));
+        callerRuns.execute(() -> { });
+        String[] ranOn = new String[1];
+        callerRuns.execute(() -> ranOn[0] = Thread.currentThread().getName());
+        assertEquals(Thread.currentThread().getName(), ranOn[0]);
+        // ...except on the main thread, where it would run inside a turn
+        PeanutExecutors.setMainThread(Thread.currentThread());
+        try {
+            callerRuns.execute(() -> ran.add("inline on main"));
+            fail("a full CALLER_RUNS backend ran a task on the main thread");
+        } catch (RejectedExecutionException expected) {
+        } finally {
+            PeanutExecutors.setMainThread(null);
+        }
+
+        PeanutExecutors.Backend discard = new PeanutExecutors.Backend("discard", 1, 1, PeanutExecutors.Rejection.DISCARD_OLDEST, false);
+        discard.execute(() -> await(release));
+        discard.execute(() -> ran.add("dropped"));
+        discard.execute(() -> ran.add("kept"));
+
+        release.countDown();
+        abort.shutdown();
+        callerRuns.shutdown();
+        discard.shutdown();
+        assertTrue(abort.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(discard.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(ran.toString(), ran.get(0).startsWith("peanut-abort-"));
+        assertTrue(ran.contains("queued-2"));
+        assertFalse(ran.contains("rejected"));
+        assertFalse(ran.contains("inline on main"));
+        assertTrue(ran.contains("kept"));
+        assertFalse(ran.contains("dropped"));
+        assertEquals(3, abort.completedCount());
+        assertTrue(abort.describe(), abort.describe().contains("completed=3 rejected=1"));
+    }
+
+    @Test
+    public void delayedTasksCountAgainstTheBound() throws Exception {
+        PeanutExecutors.Backend backend = new PeanutExecutors.Backend("delayed", 1, 2, PeanutExecutors.Rejection.CALLER_RUNS, false);
+        CountDownLatch done = new CountDownLatch(2);
+        backend.schedule(done::countDown, 50);
+        backend.schedule(done::countDown, 50);
+        assertEquals(2, backend.queueDepth());
+        try {
+            backend.schedule(done::countDown, 50);
+            fail("a full backend accepted a delayed task");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        backend.shutdown();
+        assertTrue(backend.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, backend.queueDepth());
+        try {
+            backend.schedule(done::countDown, 50);
+            fail("a shut down backend accepted a delayed task");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(0, backend.queueDepth());
+    }
+
+    @Test
+    public void shutdownAllRecreatesBackendsOnNextUse() throws Exception {
+        PeanutExecutors.Backend before = PeanutExecutors.io();
+        CountDownLatch closed = new CountDownLatch(1);
+        before.execute(() -> {
+            sleep(50);
+            closed.countDown();
+        });
+        PeanutExecutors.shutdownAll();
+        assertTrue(before.isShutdown());
+
+        PeanutExecutors.Backend after = PeanutExecutors.io();
+        assertNotSame(before, after);
+        CountDownLatch ranAfter = new CountDownLatch(1);
+        after.execute(() -> {
+            // Work queued before onDestroy finishes first
+            assertEquals(0, closed.getCount());
+            ranAfter.countDown();
+        });
+        assertTrue(ranAfter.await(5, TimeUnit.SECONDS));
+        assertTrue(PeanutExecutors.describe(), PeanutExecutors.describe().contains("io: "));
+    }
+
+    @Test
+    public void virtualThreadsAreUsedOnlyWhereTheyExist() throws Exception {
+        PeanutExecutors.Backend backend = new PeanutExecutors.Backend("vt", 1, 4, PeanutExecutors.Rejection.ABORT, true);
+        String[] name = new String[1];
+        CountDownLatch ran = new CountDownLatch(1);
+        backend.execute(() -> {
+            name[0] = Thread.currentThread().getName();
+            ran.countDown();
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(name[0], name[0].startsWith("peanut-vt-"));
+        assertEquals(PeanutExecutors.virtualThreadsAvailable(), backend.describe().contains("(virtual)"));
+        backend.shutdown();
+    }
+
+    @Test
+    public void turnsAndStoresNeverDoIoOnTheMainThread() throws Exception {
+        Thread mainThread = main.submit(Thread::currentThread).get();
+        PeanutExecutors.setMainThread(mainThread);
+        long ioBefore = PeanutExecutors.mainThreadIoCount();
+
+        // What PeanutService.loadState does on the io backend
+        LocalePacks packs = new LocalePacks(assetName -> ResponseBank.fromFile(new File("src/main/assets/" + assetName)),
+                LocalePacks.tagsFromAssetNames(new File("src/main/assets").list()));
+        UserProfileStore[] profile = new UserProfileStore[1];
+        ConversationJournal[] journal = new ConversationJournal[1];
+        ConversationManager[] manager = new ConversationManager[1];
+        PeanutExecutors.io().execute(() -> {
+            profile[0] = new UserProfileStore(new File(dir, "profile"), 20);
+            LocalePacks.Pack pack = packs.activate(Locale.US);
+            manager[0] = new ConversationManager(pack.responses, pack.skills);
+            journal[0] = new ConversationJournal(new File(dir, "journal"));
+            manager[0].attachJournal(journal[0], journal[0].restore());
+            manager[0].attachProfile(profile[0]);
+        });
+        assertTrue(waitFor(() -> manager[0] != null));
+
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.says("my name is thabo", 5))
+                .then(ScriptedSpeech.Utterance.says("weather in maseru", 5))
+                .then(ScriptedSpeech.Utterance.says("what is the capital of lesotho", 5))
+                .then(ScriptedSpeech.Utterance.says("tell me a joke", 5));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        TurnController controller = new TurnController(manager[0], input, output, main, new TurnController.Host() {
+            @Override
+            public void showToast(String message) {
+            }
+
+            @Override
+            public void stopSelfDelayed(long delayMillis) {
+            }
+        });
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(waitFor(() -> input.listenCount() >= 5));
+        // The forecast arrives from the weather backend a moment later
+        assertTrue(output.spoken().toString(), waitFor(() -> output.spoken().stream().anyMatch(s -> s.contains("Maseru"))));
+
+        // The dumpsys reload re-reads the bank on io while turns keep rendering from it on main
+        CountDownLatch reloaded = new CountDownLatch(1);
+        AtomicInteger turns = new AtomicInteger();
+        Runnable[] turn = new Runnable[1];
+        turn[0] = () -> {
+            manager[0].processTurn("tell me a joke", (response, fromCache) -> { });
+            if (turns.incrementAndGet() < 100_000 && reloaded.getCount() > 0) {
+                main.execute(turn[0]);
+            }
+        };
+        main.execute(turn[0]);
+        PeanutExecutors.io().execute(() -> {
+            for (int i = 0; i < 200; i++) {
+                manager[0].reloadResponses();
+            }
+            reloaded.countDown();
+        });
+        assertTrue(reloaded.await(5, TimeUnit.SECONDS));
+        main.submit(() -> { }).get();
+        assertTrue(turns.get() > 0);
+
+        // A locale switch loads on io and swaps on main, like the dumpsys command
+        CountDownLatch switched = new CountDownLatch(1);
+        PeanutExecutors.io().execute(() -> {
+            LocalePacks.Pack spanish = packs.activate(new Locale("es"));
+            main.execute(() -> {
+                manager[0].usePack(spanish.responses, spanish.skills);
+                switched.countDown();
+            });
+        });
+        assertTrue(switched.await(5, TimeUnit.SECONDS));
+        PeanutExecutors.io().execute(() -> {
+            journal[0].close();
+            profile[0].close();
+        });
+        assertTrue(waitFor(() -> new File(new File(dir, "profile"), UserProfileStore.PROFILE_FILE).exists()));
+        assertEquals(ioBefore, PeanutExecutors.mainThreadIoCount());
+
+        // The guard itself works: the same flush on the main thread is counted
+        UserProfileStore onMain = new UserProfileStore(new File(dir, "control"));
+        main.submit(onMain::flush).get();
+        assertEquals(ioBefore + 1, PeanutExecutors.mainThreadIoCount());
+        onMain.close();
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static boolean waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.met()) {
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        return condition.met();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PromptNormalizerTest {
+
+    private final PromptNormalizer normalizer = new PromptNormalizer();
+
+    // Transcripts in the shape the recognizer hands us
+    private static final String[] SAMPLE_CORPUS = {
+            "um what is the the capital of lesotho",
+            "so uh like how far is the moon",
+            "Well, erm, who wrote things fall apart?",
+            "what's  two hundred and five   times three",
+            "hey peanut um tell me tell me about black holes",
+            "<unk> how many people live in maseru [noise]",
+            "uh uh I I want to know why the sky is blue",
+            "is it going to rain tomorrow in in london",
+            "mm what year did nelson mandela become president",
+            "okay so um what is twenty five percent of one thousand",
+    };
+
+    @Test
+    public void removesFillersStuttersAndLeadingMarkers() {
+        assertEquals("what is the capital of lesotho", normalize("um what is the the capital of lesotho"));
+        assertEquals("how far is the moon", normalize("so uh like how far is the moon"));
+        assertEquals("who wrote things fall apart?", normalize("Well, erm, who wrote things fall apart?"));
+        assertEquals("tell me about black holes", normalize("hey peanut um tell me tell me about black holes"));
+        // "like" with meaning survives
+        assertEquals("what is it like on mars", normalize("what is it like on mars"));
+        assertEquals("i like cats", normalize("I like cats"));
+    }
+
+    @Test
+    public void dropsRecognizerArtifactsAndCollapsesWhitespace() {
+        assertEquals("how many people live in maseru", normalize("<unk> how many people live in maseru [noise]"));
+        assertEquals("what's the time in tokyo", normalize("  What\u2019s   the\ttime, in   Tokyo  "));
+    }
+
+    @Test
+    public void canonicalizesNumbers() {
+        assertEquals("what's 205 times 3", normalize("what's two hundred and five times three"));
+        assertEquals("what is 25 percent of 1000", normalize("what is twenty five percent of one thousand"));
+        assertEquals("what is 1000 plus 3.5", normalize("what is 1,000 plus 3.5"));
+        assertEquals("2005", normalize("two thousand and five"));
+        assertEquals("5 5", normalize("five five"));
+        assertEquals("202 cats", normalize("two hundred and two cats"));
+        assertEquals("which one is bigger", normalize("which one is bigger"));
+        assertEquals("a hundred reasons", normalize("a hundred reasons"));
+        assertEquals("100 and apples", normalize("one hundred and apples"));
+    }
+
+    @Test
+    public void equivalentPhrasingsShareACacheKey() {
+        assertEquals(normalize("what is the capital of lesotho"), normalize("Um, what is the the capital of Lesotho"));
+        assertEquals(normalize("how far is the moon"), normalize("so uh how far is the moon"));
+    }
+
+    @Test
+    public void reportsTokensSavedOnSampleCorpus() {
+        int raw = 0;
+        int saved = 0;
+        for (String transcript : SAMPLE_CORPUS) {
+            normalizer.normalize(transcript);
+            raw += normalizer.rawTokens();
+            saved += normalizer.tokensSaved();
+        }
+        assertTrue(saved > 0);
+        assertTrue(saved + " of " + raw + " tokens saved", raw > saved);
+    }
+
+    @Test
+    public void normalizationRunsInMicroseconds() {
+        int iterations = 200_000;
+        for (int i = 0; i < iterations / 10; i++) {
+            normalizer.normalize(SAMPLE_CORPUS[i % SAMPLE_CORPUS.length]); // Warm up
+        }
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += normalizer.normalize(SAMPLE_CORPUS[i % SAMPLE_CORPUS.length]).length();
+        }
+        long nanosPerPrompt = (System.nanoTime() - start) / iterations;
+        assertTrue(sink > 0);
+        assertTrue("normalization took " + nanosPerPrompt + "ns", nanosPerPrompt < 20_000);
+    }
+
+    private String normalize(String raw) {
+        return normalizer.normalize(raw).toString();
+    }
+}
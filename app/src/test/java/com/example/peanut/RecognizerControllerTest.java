@@ -0,0 +1,328 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the recognizer state machine against a fake recognizer and a manual clock, all on the
+ * test thread, plus one end-to-end turn through {@link TurnController}.
+ */
+public class RecognizerControllerTest {
+
+    private final List<FakeRecognizer> created = new ArrayList<>();
+    private final ManualDelayer delayer = new ManualDelayer();
+    private final List<String> events = new ArrayList<>();
+    private RecognizerController controller;
+
+    @Before
+    public void setUp() {
+        controller = new RecognizerController(() -> {
+            FakeRecognizer recognizer = new FakeRecognizer();
+            created.add(recognizer);
+            return recognizer;
+        }, delayer);
+        controller.setListener(new SpeechInput.Listener() {
+            @Override
+            public void onReadyForSpeech() {
+                events.add("ready");
+            }
+
+            @Override
+            public void onResults(String transcript) {
+                events.add("results " + transcript);
+            }
+
+            @Override
+            public void onPartialResults(String partialTranscript) {
+                events.add("partial " + partialTranscript);
+            }
+
+            @Override
+            public void onError(int error) {
+                events.add("error " + error);
+            }
+        });
+    }
+
+    @Test
+    public void sessionGoesFromArmingToListeningAndCoolsDownAfterResults() {
+        controller.startListening();
+        assertEquals(RecognizerController.State.ARMING, controller.state());
+        current().ready();
+        assertEquals(RecognizerController.State.LISTENING, controller.state());
+        current().listener.onPartialResults("what");
+        current().listener.onResults("what time is it");
+        assertEquals(RecognizerController.State.COOLING, controller.state());
+        delayer.advance(RecognizerController.COOLDOWN_MILLIS);
+        assertEquals(RecognizerController.State.IDLE, controller.state());
+        assertEquals(Arrays.asList("ready", "partial what", "results what time is it"), events);
+
+        delayer.advance(RecognizerController.ARM_TIMEOUT_MILLIS); // The arm timeout was disarmed by ready
+        assertEquals(1, created.size());
+    }
+
+    @Test
+    public void startDuringCoolingIsDeferredInsteadOfHittingBusy() {
+        controller.startListening();
+        current().ready();
+        controller.cancel(); // TTS started speaking the answer
+        assertEquals(1, current().cancels);
+        controller.startListening(); // TTS finished sooner than the cooldown
+        assertEquals(RecognizerController.State.COOLING, controller.state());
+        assertEquals(1, current().starts);
+
+        delayer.advance(RecognizerController.COOLDOWN_MILLIS);
+        assertEquals(RecognizerController.State.ARMING, controller.state());
+        assertEquals(2, current().starts);
+        assertTrue(controller.describe(), controller.describe().contains("deferredStarts=1"));
+    }
+
+    @Test
+    public void cancelWhileIdleOrCoolingDoesNotTouchTheRecognizer() {
+        controller.cancel();
+        controller.startListening();
+        current().ready();
+        current().listener.onResults("hello");
+        controller.cancel(); // TTS start after the session already ended
+        assertEquals(0, current().cancels);
+        delayer.advance(RecognizerController.COOLDOWN_MILLIS);
+        assertEquals(RecognizerController.State.IDLE, controller.state());
+    }
+
+    @Test
+    public void busyAndClientErrorsAreRetriedWithBackoffAndNotReported() {
+        controller.startListening();
+        current().listener.onError(TurnController.ERROR_RECOGNIZER_BUSY);
+        assertEquals(RecognizerController.State.BUSY, controller.state());
+        delayer.advance(RecognizerController.BACKOFF_MILLIS[0] - 1);
+        assertEquals(1, current().starts);
+        delayer.advance(1);
+        assertEquals(2, current().starts);
+
+        current().listener.onError(TurnController.ERROR_CLIENT);
+        delayer.advance(RecognizerController.BACKOFF_MILLIS[1]);
+        assertEquals(3, current().starts);
+        current().ready();
+
+        assertEquals(Arrays.asList("ready"), events);
+        assertEquals(1, created.size());
+        assertTrue(controller.describe(), controller.describe().contains("retries=2 recreations=0"));
+    }
+
+    @Test
+    public void exhaustedRetriesRecreateTheRecognizerOnceThenReport() {
+        controller.startListening();
+        for (long backoff : RecognizerController.BACKOFF_MILLIS) {
+            current().listener.onError(TurnController.ERROR_RECOGNIZER_BUSY);
+            delayer.advance(backoff);
+        }
+        assertEquals(1, created.size());
+        current().listener.onError(TurnController.ERROR_RECOGNIZER_BUSY);
+        assertEquals(2, created.size()); // Broken: a fresh recognizer gets one more try
+        assertTrue(created.get(0).destroyed);
+        delayer.advance(RecognizerController.BACKOFF_MILLIS[RecognizerController.BACKOFF_MILLIS.length - 1]);
+        assertEquals(1, current().starts);
+
+        current().listener.onError(TurnController.ERROR_RECOGNIZER_BUSY);
+        assertEquals(Arrays.asList("error " + TurnController.ERROR_RECOGNIZER_BUSY), events);
+        delayer.advance(RecognizerController.COOLDOWN_MILLIS);
+        assertEquals(RecognizerController.State.IDLE, controller.state());
+    }
+
+    @Test
+    public void recognizerThatNeverBecomesReadyIsRecreated() {
+        controller.setLocale(Locale.FRANCE);
+        controller.startListening();
+        delayer.advance(RecognizerController.ARM_TIMEOUT_MILLIS);
+        assertEquals(2, created.size());
+        assertEquals(Locale.FRANCE, current().locale); // The new one keeps the language
+        delayer.advance(RecognizerController.BACKOFF_MILLIS[0]);
+        assertEquals(1, current().starts);
+        current().ready();
+        assertEquals(Arrays.asList("ready"), events);
+    }
+
+    @Test
+    public void disconnectedServiceIsRecreatedImmediately() {
+        controller.startListening();
+        current().ready();
+        current().listener.onError(TurnController.ERROR_SERVER_DISCONNECTED);
+        assertEquals(2, created.size());
+        delayer.advance(RecognizerController.BACKOFF_MILLIS[0]);
+        assertEquals(1, current().starts);
+        assertEquals(Arrays.asList("ready"), events.subList(0, 1));
+    }
+
+    @Test
+    public void startThatThrowsBeforeTheRecognizerExistsIsRetried() {
+        current().throwOnStart = true;
+        controller.startListening();
+        assertEquals(RecognizerController.State.BUSY, controller.state());
+        current().throwOnStart = false;
+        delayer.advance(RecognizerController.BACKOFF_MILLIS[0]);
+        assertEquals(RecognizerController.State.ARMING, controller.state());
+        assertEquals(1, current().starts);
+    }
+
+    @Test
+    public void lateCallbacksFromAnEndedSessionAreDropped() {
+        controller.startListening();
+        current().ready();
+        controller.cancel();
+        current().listener.onError(TurnController.ERROR_CLIENT); // Some recognizers report this after cancel()
+        current().listener.onResults("too late");
+        assertEquals(Arrays.asList("ready"), events);
+        delayer.advance(RecognizerController.COOLDOWN_MILLIS + RecognizerController.BACKOFF_MILLIS[0]);
+        assertEquals(RecognizerController.State.IDLE, controller.state());
+        assertTrue(controller.describe(), controller.describe().contains("staleCallbacks=2"));
+    }
+
+    @Test
+    public void userFacingErrorsArePassedThrough() {
+        controller.startListening();
+        current().ready();
+        current().listener.onError(TurnController.ERROR_NO_MATCH);
+        assertEquals(Arrays.asList("ready", "error " + TurnController.ERROR_NO_MATCH), events);
+        assertEquals(RecognizerController.State.COOLING, controller.state());
+    }
+
+    @Test
+    public void turnControllerNeverApologizesForATransientBusyRecognizer() throws Exception {
+        ExecutorService main = Executors.newSingleThreadExecutor(r -> new Thread(r, "fake-main"));
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        try {
+            ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                    .then(ScriptedSpeech.Utterance.fails(TurnController.ERROR_RECOGNIZER_BUSY, 5))
+                    .then(ScriptedSpeech.Utterance.says("what time is it", 5));
+            ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 20);
+            RecognizerController recognizer = new RecognizerController(() -> input,
+                    (task, delayMillis) -> scheduler.schedule(() -> main.execute(task), delayMillis, TimeUnit.MILLISECONDS));
+            ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")));
+            List<String> toasts = new CopyOnWriteArrayList<>();
+            TurnController turns = new TurnController(manager, recognizer, output, main, new TurnController.Host() {
+                @Override
+                public void showToast(String message) {
+                    toasts.add(message);
+                }
+
+                @Override
+                public void stopSelfDelayed(long delayMillis) {
+                }
+            });
+
+            main.execute(() -> turns.startConversation("I am listening."));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (input.listenCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(3, input.listenCount()); // Busy, retried, then listening again after the answer
+            assertEquals(2, output.spoken().size());
+            assertTrue(output.spoken().get(1).contains(":"));
+            assertTrue(toasts.toString(), toasts.isEmpty());
+            Thread.sleep(50);
+            String gaps = turns.describeReadyGaps();
+            assertTrue(gaps, gaps.contains("n=2 "));
+        } finally {
+            main.shutdownNow();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        controller.destroy();
+    }
+
+    // --- Fakes ---
+
+    private FakeRecognizer current() {
+        return created.get(created.size() - 1);
+    }
+
+    private static final class FakeRecognizer implements SpeechInput {
+        Listener listener;
+        Locale locale;
+        int starts;
+        int cancels;
+        boolean destroyed;
+        boolean throwOnStart;
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void setLocale(Locale locale) {
+            this.locale = locale;
+        }
+
+        @Override
+        public void startListening() {
+            if (throwOnStart) {
+                throw new IllegalStateException("Speech input is not ready.");
+            }
+            starts++;
+        }
+
+        @Override
+        public void cancel() {
+            cancels++;
+        }
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+        }
+
+        void ready() {
+            listener.onReadyForSpeech();
+        }
+    }
+
+    // Runs delayed tasks on the test thread when the clock is advanced past them
+    private static final class ManualDelayer implements RecognizerController.Delayer {
+        private final List<long[]> dueAt = new ArrayList<>();
+        private final List<Runnable> tasks = new ArrayList<>();
+        private long now;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            dueAt.add(new long[] {now + delayMillis});
+            tasks.add(task);
+        }
+
+        void advance(long millis) {
+            long target = now + millis;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < tasks.size(); i++) {
+                    if (dueAt.get(i)[0] <= target && (next < 0 || dueAt.get(i)[0] < dueAt.get(next)[0])) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                now = dueAt.remove(next)[0];
+                tasks.remove(next).run();
+            }
+            now = target;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class RequestSchedulerTest {
+
+    private final ScheduledExecutorService server = Executors.newScheduledThreadPool(2);
+    private RequestScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        server.shutdownNow();
+    }
+
+    @Test
+    public void staysWithinServerQuota() throws Exception {
+        // Server allows 20 requests in any one-second window; the client runs at 10 QPS with a burst of 5
+        QuotaStub stub = new QuotaStub(20, 1000, 500);
+        scheduler = new RequestScheduler(10, 5, 1_000_000, 1_000_000);
+        int calls = 25;
+        CountDownLatch finished = new CountDownLatch(calls);
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            scheduler.submit(RequestScheduler.Priority.INTERACTIVE, 10, stub.call(i, finished));
+        }
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(0, stub.rejected);
+        assertEquals(calls, stub.accepted);
+        // 5 go out immediately, the other 20 at 10 per second
+        assertTrue("elapsed " + elapsedMillis + "ms", elapsedMillis >= 1800);
+        assertEquals(0, scheduler.queueDepth());
+        assertTrue(scheduler.maxQueueDepth() >= 20);
+        assertEquals(calls, scheduler.dispatchedCount(RequestScheduler.Priority.INTERACTIVE));
+        assertTrue(scheduler.maxWaitMillis(RequestScheduler.Priority.INTERACTIVE) >= 1800);
+    }
+
+    @Test
+    public void tokensPerMinuteQuotaIsEnforced() throws Exception {
+        QuotaStub stub = new QuotaStub(1000, 1000, 500);
+        // 6000 tokens per minute = 100 per second, burst of 20; each call costs 10
+        scheduler = new RequestScheduler(1000, 1000, 6000, 20);
+        int calls = 10;
+        CountDownLatch finished = new CountDownLatch(calls);
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            scheduler.submit(RequestScheduler.Priority.INTERACTIVE, 10, stub.call(i, finished));
+        }
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 2 calls fit the burst; the remaining 80 tokens take 0.8s to refill
+        assertTrue("elapsed " + elapsedMillis + "ms", elapsedMillis >= 700);
+    }
+
+    @Test
+    public void interactiveCallsOvertakeQueuedBackgroundWork() throws Exception {
+        QuotaStub stub = new QuotaStub(1000, 1000, 500);
+        scheduler = new RequestScheduler(20, 1, 1_000_000, 1_000_000);
+        int background = 10;
+        CountDownLatch finished = new CountDownLatch(background + 1);
+        for (int i = 0; i < background; i++) {
+            scheduler.submit(RequestScheduler.Priority.BACKGROUND, 10, stub.call(i, finished));
+        }
+        Thread.sleep(60); // Let the first background call or two go out
+        scheduler.submit(RequestScheduler.Priority.INTERACTIVE, 10, stub.call(99, finished));
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+
+        int position = stub.order.indexOf(99);
+        assertTrue("interactive call ran at position " + position + " of " + stub.order, position <= 3);
+        assertEquals(1, scheduler.dispatchedCount(RequestScheduler.Priority.INTERACTIVE));
+        assertEquals(background, scheduler.dispatchedCount(RequestScheduler.Priority.BACKGROUND));
+    }
+
+    @Test
+    public void retryAfterFromServerIsHonored() throws Exception {
+        // Quota of 2 per 5s window: the third call is rejected and told to come back in 300ms
+        QuotaStub stub = new QuotaStub(2, 5000, 300);
+        scheduler = new RequestScheduler(1000, 1000, 1_000_000, 1_000_000);
+        CountDownLatch finished = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(RequestScheduler.Priority.INTERACTIVE, 10, stub.call(i, finished));
+        }
+        // Free up quota once the backoff has been requested, as the real server's window would
+        assertTrue(stub.awaitRejection());
+        long rejectedAt = System.nanoTime();
+        stub.resetWindow();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+
+        long retriedAfterMillis = TimeUnit.NANOSECONDS.toMillis(stub.lastAcceptedNanos - rejectedAt);
+        assertTrue("retried after " + retriedAfterMillis + "ms", retriedAfterMillis >= 250);
+        assertEquals(1, scheduler.rateLimitedCount());
+        assertEquals(1, scheduler.retriedCount());
+        assertEquals(3, stub.accepted);
+    }
+
+    @Test
+    public void givesUpAfterRepeatedRateLimits() throws Exception {
+        QuotaStub stub = new QuotaStub(0, 60_000, 10);
+        scheduler = new RequestScheduler(1000, 1000, 1_000_000, 1_000_000);
+        CountDownLatch gaveUp = new CountDownLatch(1);
+        scheduler.submit(RequestScheduler.Priority.INTERACTIVE, 10, new RequestScheduler.Call() {
+            @Override
+            public void start(RequestScheduler.Completion completion) {
+                stub.handle(0, completion);
+            }
+
+            @Override
+            public void onGiveUp(Throwable lastError) {
+                gaveUp.countDown();
+            }
+        });
+        assertTrue(gaveUp.await(5, TimeUnit.SECONDS));
+        assertEquals(RequestScheduler.MAX_RETRIES + 1, stub.rejected);
+        assertEquals(1, scheduler.gaveUpCount());
+    }
+
+    @Test
+    public void parsesRetryAfterHints() {
+        assertEquals(30_000, RequestScheduler.parseRetryAfterMillis(new RuntimeException("HTTP 429 Too Many Requests; Retry-After: 30")));
+        assertEquals(2_500, RequestScheduler.parseRetryAfterMillis(new RuntimeException("quota exceeded, retry after 2.5s")));
+        assertEquals(15_000, RequestScheduler.parseRetryAfterMillis(
+                new RuntimeException("wrapper", new RuntimeException("{\"@type\": \"RetryInfo\", \"retryDelay\": \"15s\"}"))));
+        assertEquals(400, RequestScheduler.parseRetryAfterMillis(new RuntimeException("Retry-After: 400ms")));
+        assertEquals(RequestScheduler.MAX_BACKOFF_MILLIS, RequestScheduler.parseRetryAfterMillis(new RuntimeException("Retry-After: 3600")));
+        assertEquals(-1, RequestScheduler.parseRetryAfterMillis(new RuntimeException("429 RESOURCE_EXHAUSTED")));
+
+        assertTrue(RequestScheduler.isRateLimited(new RuntimeException("x", new RuntimeException("RESOURCE_EXHAUSTED"))));
+        assertTrue(RequestScheduler.isRateLimited(new RuntimeException("429 Quota exceeded for quota metric")));
+        assertFalse(RequestScheduler.isRateLimited(new RuntimeException("quota project not set")));
+        assertFalse(RequestScheduler.isRateLimited(new RuntimeException("API key has no quota")));
+        assertFalse(RequestScheduler.isRateLimited(new RuntimeException("Unable to resolve host")));
+    }
+
+    /**
+     * Local stand-in for the API: accepts at most {@code limit} requests per window and rejects the
+     * rest with a 429-style error carrying a Retry-After hint, after a short simulated latency.
+     */
+    private final class QuotaStub {
+        private final int limit;
+        private final long windowNanos;
+        private final long retryAfterMillis;
+        private final ArrayDeque<Long> acceptedTimes = new ArrayDeque<>();
+        final List<Integer> order = new CopyOnWriteArrayList<>();
+        private final CountDownLatch firstRejection = new CountDownLatch(1);
+        volatile int accepted;
+        volatile int rejected;
+        volatile long lastAcceptedNanos;
+
+        QuotaStub(int limit, long windowMillis, long retryAfterMillis) {
+            this.limit = limit;
+            this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        RequestScheduler.Call call(int id, CountDownLatch finished) {
+            return new RequestScheduler.Call() {
+                @Override
+                public void start(RequestScheduler.Completion completion) {
+                    handle(id, () -> {
+                        completion.done();
+                        finished.countDown();
+                    }, completion);
+                }
+
+                @Override
+                public void onGiveUp(Throwable lastError) {
+                    finished.countDown();
+                }
+            };
+        }
+
+        void handle(int id, RequestScheduler.Completion completion) {
+            handle(id, completion::done, completion);
+        }
+
+        private void handle(int id, Runnable onAccepted, RequestScheduler.Completion completion) {
+            long now = System.nanoTime();
+            boolean accept;
+            synchronized (this) {
+                while (!acceptedTimes.isEmpty() && now - acceptedTimes.peekFirst() >= windowNanos) {
+                    acceptedTimes.pollFirst();
+                }
+                accept = acceptedTimes.size() < limit;
+                if (accept) {
+                    acceptedTimes.addLast(now);
+                    accepted++;
+                    lastAcceptedNanos = now;
+                    order.add(id);
+                } else {
+                    rejected++;
+                }
+            }
+            server.schedule(() -> {
+                if (accept) {
+                    onAccepted.run();
+                } else {
+                    firstRejection.countDown();
+                    completion.rateLimited(new RuntimeException(
+                            "HTTP 429 Too Many Requests; Retry-After: " + retryAfterMillis + "ms"));
+                }
+            }, 2, TimeUnit.MILLISECONDS);
+        }
+
+        boolean awaitRejection() throws InterruptedException {
+            return firstRejection.await(5, TimeUnit.SECONDS);
+        }
+
+        synchronized void resetWindow() {
+            acceptedTimes.clear();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class ResponseBankTest {
+
+    @Test
+    public void bundledBankHasEverySection() {
+        ResponseBank bank = ResponseBank.fromFile(new File("src/main/assets/responses.txt"));
+        String[] sections = {
+                ResponseBank.GREETING, ResponseBank.HOW_ARE_YOU, ResponseBank.NAME_INQUIRY,
+                ResponseBank.SET_NAME, ResponseBank.JOKE, ResponseBank.GOODBYE, ResponseBank.THANK_YOU,
+                ResponseBank.TIME, ResponseBank.WEATHER_LOCATION_PROMPT, ResponseBank.UNDERSTANDING_FAILURE,
+                ResponseBank.SMALL_TALK, ResponseBank.AFFIRMATION, ResponseBank.NEGATION
+        };
+        for (String section : sections) {
+            assertTrue(section, bank.templates(section).length > 0);
+        }
+    }
+
+    @Test
+    public void rendersSlotsAndKeepsUnknownPlaceholders() throws IOException {
+        File file = writeBank("[greeting]\nHi {name}, it's {time}. {mood} today?\n");
+        ResponseBank.Template template = ResponseBank.fromFile(file).templates(ResponseBank.GREETING)[0];
+        StringBuilder out = new StringBuilder();
+        template.render(out, "Lerato", "9:15 AM");
+        assertEquals("Hi Lerato, it's 9:15 AM. {mood} today?", out.toString());
+    }
+
+    @Test
+    public void sectionsAreCompiledOnceUntilReload() throws IOException {
+        File file = writeBank("[joke]\nFirst joke, {name}.\n\n[goodbye]\nBye {name}!\n");
+        ResponseBank bank = ResponseBank.fromFile(file);
+        ResponseBank.Template[] jokes = bank.templates(ResponseBank.JOKE);
+        assertSame(jokes, bank.templates(ResponseBank.JOKE));
+
+        Files.write(file.toPath(), "[joke]\nSecond joke, {name}.\n".getBytes(StandardCharsets.UTF_8));
+        assertSame(jokes, bank.templates(ResponseBank.JOKE));
+
+        bank.reload();
+        StringBuilder out = new StringBuilder();
+        bank.choose(ResponseBank.JOKE, new Random(1)).render(out, "Sipho", "");
+        assertEquals("Second joke, Sipho.", out.toString());
+    }
+
+    @Test
+    public void missingSectionFallsBack() throws IOException {
+        ResponseBank bank = ResponseBank.fromFile(writeBank("[greeting]\nHello!\n"));
+        StringBuilder out = new StringBuilder();
+        bank.choose(ResponseBank.NEGATION, new Random(1)).render(out, "x", "y");
+        assertEquals(ResponseBank.FALLBACK_RESPONSE, out.toString());
+    }
+
+    @Test
+    public void constructionIsLazyAndRenderingAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return; // Nothing to measure on this JVM
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        File file = new File("src/main/assets/responses.txt");
+        ResponseBank.fromFile(file).templates(ResponseBank.GREETING); // Warm up class loading and the JIT
+        long threadId = Thread.currentThread().getId();
+
+        // Service start: the bank is created on the main thread, so it must not read or parse anything yet
+        long before = threads.getThreadAllocatedBytes(threadId);
+        ResponseBank bank = ResponseBank.fromFile(file);
+        long construction = threads.getThreadAllocatedBytes(threadId) - before;
+        before = threads.getThreadAllocatedBytes(threadId);
+        bank.preload();
+        long preload = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(construction + " bytes to construct", construction < 1024);
+        assertTrue(preload + " bytes to preload", preload > file.length()); // The read happened here instead
+
+        // Every turn: a template compiled on first use renders into the session's builder without allocating
+        ResponseBank.Template template = bank.templates(ResponseBank.GREETING)[0];
+        StringBuilder out = new StringBuilder(256);
+        int renders = 10_000;
+        for (int i = 0; i < renders; i++) {
+            out.setLength(0);
+            template.render(out, "Lerato", "9:15 AM");
+        }
+        before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < renders; i++) {
+            out.setLength(0);
+            template.render(out, "Lerato", "9:15 AM");
+        }
+        long perRender = (threads.getThreadAllocatedBytes(threadId) - before) / renders;
+        assertEquals(perRender + " bytes per render", 0, perRender);
+    }
+
+    private static File writeBank(String contents) throws IOException {
+        File file = File.createTempFile("responses", ".txt");
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.peanut;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scripted speech backends for driving {@link TurnController} without a device. Events are
+ * delivered after configurable delays on a scheduler, the same way the platform engines call
+ * back asynchronously.
+ */
+final class ScriptedSpeech {
+
+    private ScriptedSpeech() {
+    }
+
+    /**
+     * One scripted recognizer outcome: a transcript, or an error code when {@code transcript} is null,
+     * optionally preceded by partial transcripts spread evenly over {@code delayMillis}.
+     */
+    static final class Utterance {
+        final String transcript;
+        final int error;
+        final long delayMillis;
+        final String[] partials;
+
+        private Utterance(String transcript, int error, long delayMillis, String[] partials) {
+            this.transcript = transcript;
+            this.error = error;
+            this.delayMillis = delayMillis;
+            this.partials = partials;
+        }
+
+        static Utterance says(String transcript, long delayMillis) {
+            return new Utterance(transcript, 0, delayMillis, new String[0]);
+        }
+
+        static Utterance streams(String transcript, long delayMillis, String... partials) {
+            return new Utterance(transcript, 0, delayMillis, partials);
+        }
+
+        static Utterance fails(int error, long delayMillis) {
+            return new Utterance(null, error, delayMillis, new String[0]);
+        }
+    }
+
+    /** Replays scripted utterances, one per {@link #startListening()} call. */
+    static final class Input implements SpeechInput {
+        private final ScheduledExecutorService scheduler;
+        private final Executor mainExecutor;
+        private final ArrayDeque<Utterance> script = new ArrayDeque<>();
+        private Listener listener;
+        private volatile int listenCount;
+        private volatile int cancelCount;
+        private volatile boolean destroyed;
+        private volatile Locale locale = Locale.US;
+
+        Input(ScheduledExecutorService scheduler, Executor mainExecutor) {
+            this.scheduler = scheduler;
+            this.mainExecutor = mainExecutor;
+        }
+
+        synchronized Input then(Utterance utterance) {
+            script.add(utterance);
+            return this;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void setLocale(Locale locale) {
+            this.locale = locale;
+        }
+
+        Locale locale() {
+            return locale;
+        }
+
+        @Override
+        public void startListening() {
+            listenCount++;
+            Utterance next;
+            synchronized (this) {
+                next = script.poll();
+            }
+            mainExecutor.execute(() -> listener.onReadyForSpeech());
+            if (next == null) {
+                return; // Script exhausted: keep "listening" forever
+            }
+            for (int i = 0; i < next.partials.length; i++) {
+                String partial = next.partials[i];
+                long at = next.delayMillis * i / (next.partials.length + 1);
+                scheduler.schedule(() -> mainExecutor.execute(() -> listener.onPartialResults(partial)), at, TimeUnit.MILLISECONDS);
+            }
+            scheduler.schedule(() -> mainExecutor.execute(() -> {
+                if (next.transcript != null) {
+                    listener.onResults(next.transcript);
+                } else {
+                    listener.onError(next.error);
+                }
+            }), next.delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void cancel() {
+            cancelCount++;
+        }
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+        }
+
+        int listenCount() {
+            return listenCount;
+        }
+
+        int cancelCount() {
+            return cancelCount;
+        }
+
+        boolean isDestroyed() {
+            return destroyed;
+        }
+    }
+
+    /** Pretends to speak: onStart right away, onDone after a fixed delay, both off the main thread. */
+    static final class Output implements SpeechOutput {
+        private final ScheduledExecutorService scheduler;
+        private final long speakMillis;
+        private final List<String> spoken = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> utteranceIds = Collections.synchronizedList(new ArrayList<>());
+        private volatile Listener listener;
+        private volatile boolean ready = true;
+        private volatile boolean shutdown;
+        private volatile Locale locale = Locale.US;
+
+        Output(ScheduledExecutorService scheduler, long speakMillis) {
+            this.scheduler = scheduler;
+            this.speakMillis = speakMillis;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void setLocale(Locale locale) {
+            this.locale = locale;
+        }
+
+        Locale locale() {
+            return locale;
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        void setReady(boolean ready) {
+            this.ready = ready;
+        }
+
+        @Override
+        public void speak(String text, String utteranceId) {
+            spoken.add(text);
+            utteranceIds.add(utteranceId);
+            scheduler.execute(() -> listener.onStart(utteranceId));
+            scheduler.schedule(() -> listener.onDone(utteranceId), speakMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        List<String> spoken() {
+            synchronized (spoken) {
+                return new ArrayList<>(spoken);
+            }
+        }
+
+        List<String> utteranceIds() {
+            synchronized (utteranceIds) {
+                return new ArrayList<>(utteranceIds);
+            }
+        }
+
+        boolean isShutdown() {
+            return shutdown;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+public class SkillRegistryTest {
+
+    // The if-chain that recognizeIntent used before skills, kept here as the routing oracle.
+    private static final Object[][] LEGACY_CHAIN = {
+            {".*\\b(hello|hi|hey|greetings|good morning|good afternoon|good evening)\\b.*", ConversationManager.Intent.GREETING},
+            {".*\\b(how are you|how you doing|how's it going)\\b.*", ConversationManager.Intent.HOW_ARE_YOU},
+            {".*\\b(what is your name|who are you|your name|what do you call yourself)\\b.*", ConversationManager.Intent.NAME_INQUIRY},
+            {".*\\b(my name is|i am called|you can call me|i'm)\\s+([a-zA-Z]+).*", ConversationManager.Intent.SET_MY_NAME},
+            {".*\\b(tell me a joke|joke please|make me laugh|tell a funny story)\\b.*", ConversationManager.Intent.TELL_JOKE},
+            {".*\\b(goodbye|bye|see you later|farewell|i'm leaving|i'm done|exit)\\b.*", ConversationManager.Intent.GOODBYE},
+            {".*\\b(thank you|thanks|i appreciate it|cheers)\\b.*", ConversationManager.Intent.THANK_YOU},
+            {".*\\b(what time is it|current time|time now|do you know the time)\\b.*", ConversationManager.Intent.WHAT_TIME},
+            {".*\\b(weather|forecast|how's the weather|temperature)\\b.*", ConversationManager.Intent.GET_WEATHER},
+            {".*\\b(yes|yeah|yep|okay|sure|alright|fine)\\b.*", ConversationManager.Intent.AFFIRMATION},
+            {".*\\b(no|nope|not really|nah)\\b.*", ConversationManager.Intent.NEGATION},
+            {".*\\b(okay|alright|right|hmm|what about|tell me more|interesting)\\b.*", ConversationManager.Intent.SMALL_TALK},
+    };
+
+    private static final String[] CORPUS = {
+            "hello", "hi there peanut", "this is something", "good evening", "how are you today",
+            "who are you", "my name is thabo", "i'm leaving now", "i'm", "yes i'm", "tell me a joke",
+            "bye", "thanks a lot", "what time is it", "weather in london", "how's the weather",
+            "yeah sure", "no thanks", "not really", "hmm", "tell me more about black holes",
+            "what is the capital of lesotho", "exit", "nothing", "shiny", "right now it is late",
+    };
+
+    @Test
+    public void builtInRoutingMatchesLegacyChain() {
+        SkillRegistry registry = BuiltInSkills.createRegistry();
+        for (String input : CORPUS) {
+            assertEquals(input, legacyIntent(input), registry.intentOf(registry.route(input)));
+        }
+    }
+
+    @Test
+    public void skillsAreInstantiatedOnFirstUse() {
+        AtomicInteger created = new AtomicInteger();
+        SkillRegistry registry = new SkillRegistry.Builder()
+                .register("a", ConversationManager.Intent.SKILL, new String[]{"alpha"}, () -> {
+                    created.incrementAndGet();
+                    return (conversation, input, result, callback) -> result.text.append("a");
+                })
+                .register("b", ConversationManager.Intent.SKILL, new String[]{"beta"}, () -> {
+                    created.incrementAndGet();
+                    return (conversation, input, result, callback) -> result.text.append("b");
+                })
+                .build();
+        assertEquals(0, created.get());
+
+        int route = registry.route("say beta please");
+        assertEquals("b", registry.nameOf(route));
+        registry.skill(route);
+        registry.skill(route);
+        assertEquals(1, created.get());
+        assertEquals(1, registry.instantiatedCount());
+        assertEquals(SkillRegistry.NO_ROUTE, registry.route("gamma"));
+    }
+
+    @Test
+    public void startupAndRoutingCostWithManySkills() {
+        int extraSkills = 60;
+        SkillRegistry.Builder builder = BuiltInSkills.registerAll(new SkillRegistry.Builder());
+        for (int i = 0; i < extraSkills; i++) {
+            builder.register("skill" + i, ConversationManager.Intent.SKILL,
+                    new String[]{"run task " + i, "start job " + i, "skill" + i + " status"},
+                    () -> {
+                        throw new AssertionError("skill instantiated during startup");
+                    });
+        }
+        SkillRegistry registry = builder.build();
+        assertEquals(BuiltInSkills.createRegistry().size() + extraSkills, registry.size());
+        assertEquals(0, registry.instantiatedCount());
+
+        int turns = 100_000;
+        long routeStart = System.nanoTime();
+        int matched = 0;
+        for (int i = 0; i < turns; i++) {
+            if (registry.route(i % 2 == 0 ? "could you run task 42 now" : "what is the capital of lesotho") != SkillRegistry.NO_ROUTE) {
+                matched++;
+            }
+        }
+        long nanosPerRoute = (System.nanoTime() - routeStart) / turns;
+
+        assertEquals(turns / 2, matched);
+        assertTrue("routing took " + nanosPerRoute + "ns", nanosPerRoute < 50_000);
+    }
+
+    private static ConversationManager.Intent legacyIntent(String input) {
+        for (Object[] entry : LEGACY_CHAIN) {
+            if (Pattern.matches((String) entry[0], input)) {
+                return (ConversationManager.Intent) entry[1];
+            }
+        }
+        return ConversationManager.Intent.UNKNOWN;
+    }
+}
@@ -0,0 +1,332 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Soak harness for the always-on service: drives a few hundred thousand turns through
+ * {@link TurnController}, {@link ConversationManager} and the journal with instant fake speech and
+ * AI backends, tearing the "service" down and creating it again every few thousand turns the way a
+ * START_STICKY restart or {@code BootReceiver} does.
+ *
+ * After each slice of turns it forces a GC and samples used heap, live threads, main-loop queue
+ * depth, AI callbacks still reachable and torn-down services still reachable, and fails when any of
+ * them grew at every sample. Runs on the plain JVM; {@code -Dpeanut.soak.turns=2000000} makes a
+ * longer soak.
+ */
+public class SoakTest {
+
+    private static final int TURNS = Integer.getInteger("peanut.soak.turns", 200_000);
+    private static final int SAMPLES = 8;
+    private static final int TURNS_PER_RESTART = 5_000;
+    // Heap growth below this across the whole run is GC noise, not a leak
+    private static final long HEAP_NOISE_BYTES = 2L * 1024 * 1024;
+
+    // A goodbye every pass through the corpus lets the loop go quiet, which is when restarts happen
+    private static final String[] CORPUS = {
+            "hello", "how are you", "what time is it", "tell me a joke", "yes", "no thanks",
+            "my name is thabo", "what is your name", "interesting", "what is the capital of lesotho",
+            "thank you", "why is the sky blue", "tell me more", "goodbye",
+    };
+
+    private File dir;
+    private final MainLoop main = new MainLoop();
+    private final FakeAi ai = new FakeAi(main);
+    private final ResponseBank bank = ResponseBank.fromFile(new File("src/main/assets/responses.txt"));
+    private final List<WeakReference<SoakService>> destroyed = new ArrayList<>();
+    private int turns;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("soak").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void turnsDoNotLeakHeapThreadsOrCallbacks() throws Exception {
+        long[] heap = new long[SAMPLES];
+        long[] threads = new long[SAMPLES];
+        long[] queue = new long[SAMPLES];
+        long[] callbacks = new long[SAMPLES];
+        long[] services = new long[SAMPLES];
+        int turnsPerSample = TURNS / (SAMPLES + 1); // The first slice is warm-up and not sampled
+
+        SoakService service = new SoakService();
+        int restarts = 0;
+        int turnsAtRestart = 0;
+        for (int sample = -1; sample < SAMPLES; sample++) {
+            int target = (sample + 2) * turnsPerSample;
+            while (turns < target) {
+                if (!main.runOne()) {
+                    // Quiet after a goodbye: restart the service now and then, otherwise start talking again
+                    if (!service.stopRequested) {
+                        fail("Turn loop stalled after " + turns + " turns");
+                    }
+                    if (turns - turnsAtRestart >= TURNS_PER_RESTART) {
+                        service.destroy();
+                        destroyed.add(new WeakReference<>(service));
+                        service = new SoakService();
+                        restarts++;
+                        turnsAtRestart = turns;
+                    } else {
+                        service.stopRequested = false;
+                        service.controller.startConversation("I am listening.");
+                    }
+                }
+            }
+            if (sample < 0) {
+                continue;
+            }
+            forceGc();
+            Runtime runtime = Runtime.getRuntime();
+            heap[sample] = runtime.totalMemory() - runtime.freeMemory();
+            threads[sample] = Thread.activeCount();
+            queue[sample] = main.peakDepthSinceLastSample();
+            callbacks[sample] = ai.liveCallbacks();
+            services[sample] = liveDestroyedServices();
+        }
+        service.destroy();
+
+        assertTrue("soak ran no restarts", restarts > 0);
+        assertTrue("soak asked the AI nothing", ai.requests > 0);
+        assertNotGrowing("heap bytes", heap, HEAP_NOISE_BYTES);
+        assertNotGrowing("live threads", threads, 0);
+        assertNotGrowing("main loop queue depth", queue, 0);
+        assertNotGrowing("AI callbacks retained", callbacks, 0);
+        assertNotGrowing("destroyed services retained", services, 0);
+        assertTrue("recent turns unbounded", service.conversation.getRecentTurns().size() <= ConversationJournal.MAX_RECENT_TURNS);
+    }
+
+    @Test
+    public void growthCheckFlagsMonotonicSeries() {
+        assertEquals(true, grewEverySample(new long[]{1, 2, 3, 4}, 0));
+        assertEquals(false, grewEverySample(new long[]{1, 2, 2, 4}, 0));
+        assertEquals(false, grewEverySample(new long[]{10, 11, 12, 13}, 5)); // Within noise
+        assertEquals(false, grewEverySample(new long[]{4, 3, 2, 1}, 0));
+    }
+
+    // --- Growth Checks ---
+
+    private static void assertNotGrowing(String what, long[] samples, long noise) {
+        if (grewEverySample(samples, noise)) {
+            fail(what + " grew at every sample: " + java.util.Arrays.toString(samples));
+        }
+    }
+
+    // Monotonic growth across every sample, by more than the noise allowance overall
+    static boolean grewEverySample(long[] samples, long noise) {
+        for (int i = 1; i < samples.length; i++) {
+            if (samples[i] <= samples[i - 1]) {
+                return false;
+            }
+        }
+        return samples[samples.length - 1] - samples[0] > noise;
+    }
+
+    private int liveDestroyedServices() {
+        int live = 0;
+        Iterator<WeakReference<SoakService>> it = destroyed.iterator();
+        while (it.hasNext()) {
+            if (it.next().get() != null) {
+                live++;
+            } else {
+                it.remove();
+            }
+        }
+        return live;
+    }
+
+    // Collects until a fresh sentinel is gone twice, so softly reachable garbage has a chance to go too
+    private static void forceGc() throws InterruptedException {
+        for (int round = 0; round < 2; round++) {
+            WeakReference<Object> sentinel = new WeakReference<>(new Object());
+            for (int i = 0; i < 20 && sentinel.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // --- Fakes ---
+
+    /** One service lifetime: what {@link PeanutService} builds in onCreate and tears down in onDestroy. */
+    private final class SoakService implements TurnController.Host {
+        final ConversationJournal journal = new ConversationJournal(new File(dir, "journal"));
+        final ConversationManager conversation = new ConversationManager(bank,
+                BuiltInSkills.registerAll(new SkillRegistry.Builder(), null, ai).build());
+        final TurnController controller;
+        boolean stopRequested;
+
+        SoakService() {
+            conversation.attachJournal(journal, journal.restore());
+            controller = new TurnController(conversation, new InstantInput(), new InstantOutput(), main, this);
+            controller.startConversation("I am listening.");
+        }
+
+        void destroy() {
+            controller.shutdown();
+            journal.close();
+        }
+
+        @Override
+        public void showToast(String message) {
+        }
+
+        @Override
+        public void stopSelfDelayed(long delayMillis) {
+            stopRequested = true;
+        }
+    }
+
+    /** Stands in for the main looper: tasks run one at a time on the test thread. */
+    private static final class MainLoop implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private int peakDepth;
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            peakDepth = Math.max(peakDepth, tasks.size());
+        }
+
+        boolean runOne() {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                return false;
+            }
+            task.run();
+            return true;
+        }
+
+        int peakDepthSinceLastSample() {
+            int peak = peakDepth;
+            peakDepth = tasks.size();
+            return peak;
+        }
+    }
+
+    /** Hears the next corpus line as soon as listening starts. */
+    private final class InstantInput implements SpeechInput {
+        private Listener listener;
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void setLocale(Locale locale) {
+        }
+
+        @Override
+        public void startListening() {
+            String transcript = CORPUS[turns % CORPUS.length];
+            turns++;
+            main.execute(() -> listener.onResults(transcript));
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    /** Finishes every utterance immediately. */
+    private final class InstantOutput implements SpeechOutput {
+        private Listener listener;
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void setLocale(Locale locale) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void speak(String text, String utteranceId) {
+            main.execute(() -> {
+                listener.onStart(utteranceId);
+                listener.onDone(utteranceId);
+            });
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    /** Answers on a later main-loop task, like a network call, and tracks whether callbacks are let go. */
+    private static final class FakeAi implements GeminiOutbox.Sender {
+        private final Executor main;
+        private final List<WeakReference<GeminiApiClient.GeminiResponseCallback>> callbacks = new ArrayList<>();
+        int requests;
+
+        FakeAi(Executor main) {
+            this.main = main;
+        }
+
+        @Override
+        public void send(String prompt, String context, GeminiApiClient.GeminiResponseCallback callback) {
+            requests++;
+            callbacks.add(new WeakReference<>(callback));
+            String answer = "Here is what I found about " + prompt + '.';
+            main.execute(() -> callback.onGeminiResponse(answer, false));
+        }
+
+        int liveCallbacks() {
+            int live = 0;
+            Iterator<WeakReference<GeminiApiClient.GeminiResponseCallback>> it = callbacks.iterator();
+            while (it.hasNext()) {
+                if (it.next().get() != null) {
+                    live++;
+                } else {
+                    it.remove();
+                }
+            }
+            return live;
+        }
+    }
+}
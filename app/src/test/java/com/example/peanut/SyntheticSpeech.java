@@ -0,0 +1,225 @@
+package com.example.peanut;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Formant-synthesized "speech" for wake-word fixtures: phones become a glottal pulse train or
+ * noise shaped by three resonators gliding between formant targets. Nothing like a real voice to
+ * a listener, but it has what the spotter keys on (formant tracks, bursts, timing) and varies the
+ * way speakers do: vocal tract length, pitch, speaking rate, loudness and background noise.
+ */
+final class SyntheticSpeech {
+
+    static final String HEY_PEANUT = "h ey p ii n uh t";
+
+    /** Phrases that must not trigger, several sharing sounds with the wake word. */
+    static final String[] DISTRACTORS = {
+            "h ey p ii t er",            // hey peter
+            "h ai dh eh r",              // hi there
+            "p ii n uh t b uh t er",     // peanut butter
+            "h ey",                      // hey
+            "ow k ey g uw g l",          // okay google
+            "b uh n ae n uh",            // banana
+            "h ey p ao l",               // hey paul
+            "w ah t t ai m ih z ih t",   // what time is it
+            "t eh l m ii uh j ow k",     // tell me a joke
+            "s ii y uw l ey t er",       // see you later
+            "h ae p ii b er th d ey",    // happy birthday
+            "k ae n y uw h ih r m ii",   // can you hear me
+    };
+
+    // F1, F2, F3 at the start and end of each phone (Hz); voicing and noise amplitude; noise centre
+    private static final class Phone {
+        final double[] from;
+        final double[] to;
+        final double voicing;
+        final double noise;
+        final double noiseHz;
+        final int millis;
+        final boolean closure; // A stop: silence, then a burst
+
+        Phone(double[] from, double[] to, double voicing, double noise, double noiseHz, int millis, boolean closure) {
+            this.from = from;
+            this.to = to;
+            this.voicing = voicing;
+            this.noise = noise;
+            this.noiseHz = noiseHz;
+            this.millis = millis;
+            this.closure = closure;
+        }
+    }
+
+    private static final Map<String, Phone> PHONES = new HashMap<>();
+
+    static {
+        vowel("ii", 280, 2250, 2900);
+        vowel("ih", 400, 1900, 2550);
+        vowel("eh", 550, 1770, 2490);
+        vowel("ae", 690, 1660, 2490);
+        vowel("aa", 710, 1100, 2540);
+        vowel("ah", 640, 1190, 2390);
+        vowel("ao", 590, 880, 2540);
+        vowel("uh", 620, 1200, 2390);
+        vowel("uw", 310, 870, 2250);
+        vowel("er", 470, 1350, 1700);
+        glide("ey", "eh", "ii", 170);
+        glide("ai", "aa", "ii", 200);
+        glide("ow", "ao", "uw", 180);
+        PHONES.put("n", new Phone(f(250, 1200, 2600), f(250, 1200, 2600), 0.45, 0, 0, 70, false));
+        PHONES.put("m", new Phone(f(250, 1000, 2200), f(250, 1000, 2200), 0.45, 0, 0, 70, false));
+        PHONES.put("l", new Phone(f(360, 1300, 2700), f(360, 1300, 2700), 0.6, 0, 0, 60, false));
+        PHONES.put("r", new Phone(f(420, 1300, 1600), f(420, 1300, 1600), 0.6, 0, 0, 60, false));
+        PHONES.put("w", new Phone(f(300, 700, 2200), f(300, 700, 2200), 0.6, 0, 0, 50, false));
+        PHONES.put("y", new Phone(f(280, 2200, 2900), f(280, 2200, 2900), 0.6, 0, 0, 50, false));
+        stop("p", 1000, false);
+        stop("b", 1000, true);
+        stop("t", 4500, false);
+        stop("d", 4000, true);
+        stop("k", 2200, false);
+        stop("g", 2000, true);
+        fricative("s", 5500, 0.5, 0, 110);
+        fricative("z", 5500, 0.35, 0.3, 90);
+        fricative("sh", 2800, 0.5, 0, 110);
+        fricative("j", 2800, 0.35, 0.3, 80);
+        fricative("f", 6500, 0.15, 0, 90);
+        fricative("v", 6500, 0.1, 0.3, 70);
+        fricative("th", 6500, 0.12, 0, 80);
+        fricative("dh", 6500, 0.08, 0.35, 50);
+        fricative("h", 1500, 0.25, 0, 70);
+    }
+
+    private static double[] f(double f1, double f2, double f3) {
+        return new double[] {f1, f2, f3};
+    }
+
+    private static void vowel(String name, double f1, double f2, double f3) {
+        PHONES.put(name, new Phone(f(f1, f2, f3), f(f1, f2, f3), 1.0, 0, 0, 130, false));
+    }
+
+    private static void glide(String name, String from, String to, int millis) {
+        PHONES.put(name, new Phone(PHONES.get(from).from, PHONES.get(to).from, 1.0, 0, 0, millis, false));
+    }
+
+    private static void stop(String name, double burstHz, boolean voiced) {
+        PHONES.put(name, new Phone(f(300, 1200, 2500), f(300, 1200, 2500), voiced ? 0.08 : 0, 0.6, burstHz, 70, true));
+    }
+
+    private static void fricative(String name, double hz, double noise, double voicing, int millis) {
+        PHONES.put(name, new Phone(f(400, 1500, 2500), f(400, 1500, 2500), voicing, noise, hz, millis, false));
+    }
+
+    /** One speaker: how their voice differs from the phone table. */
+    static final class Speaker {
+        final double tract;    // Formant scale; shorter vocal tracts have higher formants
+        final double pitchHz;
+        final double rate;     // Phone duration scale
+        final double loudness; // Peak amplitude, 0..1 of full scale
+        final double noise;    // Background noise amplitude, 0..1 of full scale
+
+        Speaker(double tract, double pitchHz, double rate, double loudness, double noise) {
+            this.tract = tract;
+            this.pitchHz = pitchHz;
+            this.rate = rate;
+            this.loudness = loudness;
+            this.noise = noise;
+        }
+
+        static Speaker random(Random random) {
+            return new Speaker(0.9 + random.nextDouble() * 0.22, 95 + random.nextDouble() * 130,
+                    0.8 + random.nextDouble() * 0.45, 0.08 + random.nextDouble() * 0.5, 0.001 + random.nextDouble() * 0.006);
+        }
+    }
+
+    private final Random random;
+    private final StringBuilder pcm = new StringBuilder(); // Samples as chars, appended as synthesized
+    private double phase;
+    private final double[][] state = new double[4][2];     // Resonator memories: 3 formants and the noise band
+
+    SyntheticSpeech(long seed) {
+        random = new Random(seed);
+    }
+
+    /** Background noise only. */
+    SyntheticSpeech pause(int millis, Speaker speaker) {
+        for (int i = millis * WakeWordSpotter.SAMPLE_RATE / 1000; i > 0; i--) {
+            add(0, speaker);
+        }
+        return this;
+    }
+
+    /** A steady tone (a beep, a fridge hum), which must not trigger either. */
+    SyntheticSpeech tone(int millis, double hz, double amplitude, Speaker speaker) {
+        for (int i = 0; i < millis * WakeWordSpotter.SAMPLE_RATE / 1000; i++) {
+            add(amplitude * Math.sin(2 * Math.PI * hz * i / WakeWordSpotter.SAMPLE_RATE), speaker);
+        }
+        return this;
+    }
+
+    /** Speaks a space-separated phone string. */
+    SyntheticSpeech say(String phones, Speaker speaker) {
+        String[] names = phones.split(" ");
+        double[] formants = null;
+        for (String name : names) {
+            Phone phone = PHONES.get(name);
+            if (phone == null) {
+                throw new IllegalArgumentException("Unknown phone " + name);
+            }
+            int samples = (int) (phone.millis * speaker.rate * (0.9 + random.nextDouble() * 0.2)) * WakeWordSpotter.SAMPLE_RATE / 1000;
+            if (formants == null) {
+                formants = phone.from.clone();
+            }
+            int closure = phone.closure ? samples * 3 / 4 : 0;
+            for (int i = 0; i < samples; i++) {
+                double progress = (double) i / samples;
+                for (int k = 0; k < 3; k++) {
+                    double target = (phone.from[k] + (phone.to[k] - phone.from[k]) * progress) * speaker.tract;
+                    formants[k] += (target - formants[k]) * 0.004; // Articulators move over ~15 ms
+                }
+                double pitch = speaker.pitchHz * (1 + 0.05 * Math.sin(2 * Math.PI * 3 * pcm.length() / WakeWordSpotter.SAMPLE_RATE));
+                phase += pitch / WakeWordSpotter.SAMPLE_RATE;
+                double glottal = 0;
+                if (phase >= 1) {
+                    phase -= 1;
+                    glottal = 1;
+                }
+                double voiced = glottal * phone.voicing * 6;
+                double noise = 0;
+                if (phone.noise > 0 && i >= closure) {
+                    noise = resonate(3, random.nextGaussian() * phone.noise, phone.noiseHz * speaker.tract, 1500);
+                }
+                double sample = voiced;
+                for (int k = 0; k < 3; k++) {
+                    sample = resonate(k, sample, formants[k], 60 + 40 * k);
+                }
+                add((sample * 0.25 + noise) * speaker.loudness, speaker);
+            }
+        }
+        return this;
+    }
+
+    // Two-pole resonator with unity gain at its centre frequency
+    private double resonate(int which, double in, double hz, double bandwidth) {
+        double r = Math.exp(-Math.PI * bandwidth / WakeWordSpotter.SAMPLE_RATE);
+        double b = 2 * r * Math.cos(2 * Math.PI * hz / WakeWordSpotter.SAMPLE_RATE);
+        double c = -r * r;
+        double out = (1 - b - c) * in + b * state[which][0] + c * state[which][1];
+        state[which][1] = state[which][0];
+        state[which][0] = out;
+        return out;
+    }
+
+    private void add(double signal, Speaker speaker) {
+        double value = signal + random.nextGaussian() * speaker.noise;
+        pcm.append((char) (short) Math.max(-32768, Math.min(32767, Math.round(value * 32767))));
+    }
+
+    short[] pcm() {
+        short[] out = new short[pcm.length()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (short) pcm.charAt(i);
+        }
+        return out;
+    }
+}
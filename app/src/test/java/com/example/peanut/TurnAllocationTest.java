@@ -0,0 +1,80 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Guards the allocation budget of a steady-state local turn. Fails the build if the per-turn
+ * allocation of the local intent path creeps back up (e.g. String.matches, String.format or a
+ * new SimpleDateFormat per turn, which together cost tens of kilobytes per turn).
+ */
+public class TurnAllocationTest {
+
+    // What remains per turn is the history entry: the ConversationTurn plus copies of the
+    // input and response strings it keeps.
+    private static final long BYTES_PER_TURN_BUDGET = 512;
+
+    private static final String[] LOCAL_TURNS = {
+            "Hello",
+            "how are you",
+            "tell me a joke",
+            "what time is it",
+            "thank you",
+            "yes",
+            "nope",
+            "interesting",
+            "what is your name",
+    };
+
+    private static final ConversationManager.ExternalAiResponseCallback NO_ASYNC = (response, fromCache) -> {
+        throw new AssertionError("local turn went async: " + response);
+    };
+
+    @Test
+    public void steadyStateLocalTurnStaysWithinAllocationBudget() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return; // Nothing to measure on this JVM
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")));
+        int warmupTurns = 20_000;
+        int measuredTurns = 20_000;
+        runTurns(manager, warmupTurns);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        runTurns(manager, measuredTurns);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        long perTurn = allocated / measuredTurns;
+        assertTrue("Local turn allocated " + perTurn + " bytes (budget " + BYTES_PER_TURN_BUDGET + ")",
+                perTurn <= BYTES_PER_TURN_BUDGET);
+    }
+
+    @Test
+    public void processTurnReusesTheSessionResult() {
+        ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")));
+        TurnResult first = manager.processTurn("  WHAT TIME IS IT ", NO_ASYNC);
+        assertEquals(ConversationManager.Intent.WHAT_TIME, first.intent);
+        assertTrue(first.text.length() > 0);
+        TurnResult second = manager.processTurn("tell me a joke", NO_ASYNC);
+        assertTrue(first == second);
+        assertEquals(ConversationManager.Intent.TELL_JOKE, second.intent);
+    }
+
+    private static void runTurns(ConversationManager manager, int turns) {
+        for (int i = 0; i < turns; i++) {
+            TurnResult result = manager.processTurn(LOCAL_TURNS[i % LOCAL_TURNS.length], NO_ASYNC);
+            if (result.text.length() == 0) {
+                throw new AssertionError("empty response for " + LOCAL_TURNS[i % LOCAL_TURNS.length]);
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the service's turn-taking logic against scripted speech backends, including a
+ * turn-latency regression budget.
+ */
+public class TurnControllerTest {
+
+    // Transcript in to answer handed to TTS, for a local intent. Generous for slow CI machines.
+    private static final long LOCAL_TURN_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private ExecutorService main;
+    private ScheduledExecutorService scheduler;
+    private final List<Long> stopRequests = new CopyOnWriteArrayList<>();
+    private final List<String> toasts = new CopyOnWriteArrayList<>();
+
+    private final TurnController.Host host = new TurnController.Host() {
+        @Override
+        public void showToast(String message) {
+            toasts.add(message);
+        }
+
+        @Override
+        public void stopSelfDelayed(long delayMillis) {
+            stopRequests.add(delayMillis);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        main = Executors.newSingleThreadExecutor(r -> new Thread(r, "fake-main"));
+        scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        main.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void localTurnIsSpokenAndListeningResumes() throws Exception {
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.says("What time is it", 5))
+                .then(ScriptedSpeech.Utterance.says("tell me a joke", 5));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        TurnController controller = newController(input, output);
+
+        CountDownLatch resumed = new CountDownLatch(3); // prompt, time answer, joke answer
+        controller.setLatencyListener(new TurnController.LatencyListener() {
+            @Override
+            public void onResponseSpoken(ConversationManager.Intent intent, long nanos) {
+            }
+
+            @Override
+            public void onListeningResumed(long nanos) {
+                resumed.countDown();
+            }
+        });
+        main.execute(() -> controller.startConversation("I am listening."));
+
+        assertTrue(resumed.await(5, TimeUnit.SECONDS));
+        List<String> ids = output.utteranceIds();
+        assertEquals(TurnController.UTTERANCE_ID_LISTEN, ids.get(0));
+        assertEquals(TurnController.UTTERANCE_ID_RESPONSE, ids.get(1));
+        assertTrue(output.spoken().get(1).contains(":")); // The time answer
+        assertEquals(3, input.listenCount());
+    }
+
+    @Test
+    public void thinkingUtteranceWaitsForAsyncAnswerBeforeListening() throws Exception {
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.says("what is the capital of lesotho", 5));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        TurnController controller = newController(input, output);
+
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(waitFor(() -> output.utteranceIds().size() >= 3 && input.listenCount() >= 2));
+
+        List<String> ids = output.utteranceIds();
+        assertEquals(TurnController.UTTERANCE_ID_THINKING, ids.get(1));
+        assertEquals(TurnController.UTTERANCE_ID_RESPONSE, ids.get(2));
+        // Listening resumed exactly once after the prompt and once after the async answer
+        assertEquals(2, input.listenCount());
+    }
+
+    @Test
+    public void asyncAnswerUpdatesTheConversationOnTheMainThread() throws Exception {
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.says("what is the capital of lesotho", 5));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        AtomicReference<ConversationManager> conversation = new AtomicReference<>();
+        List<String> seenOnBackend = new CopyOnWriteArrayList<>();
+        GeminiOutbox.Sender ai = (prompt, context, callback) -> scheduler.execute(() -> {
+            CountDownLatch hold = new CountDownLatch(1);
+            main.execute(() -> awaitQuietly(hold)); // Keep the main thread busy while the answer arrives
+            int turns = conversation.get().getRecentTurns().size();
+            callback.onGeminiResponse("Maseru.", false);
+            seenOnBackend.add(conversation.get().lastIntent + " " + (conversation.get().getRecentTurns().size() - turns));
+            hold.countDown();
+        });
+        conversation.set(new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")),
+                BuiltInSkills.registerAll(new SkillRegistry.Builder(), null, ai).build()));
+        TurnController controller = new TurnController(conversation.get(), input, output, main, host);
+
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(waitFor(() -> input.listenCount() >= 2));
+        // The callback only queued the answer; the main thread recorded it and moved on to small talk
+        assertEquals("[EXTERNAL_AI_QUERY 0]", seenOnBackend.toString());
+        assertEquals(ConversationManager.Intent.SMALL_TALK, conversation.get().lastIntent);
+        assertEquals("Maseru.", output.spoken().get(2));
+    }
+
+    @Test
+    public void stableLocalIntentIsAnsweredBeforeTheFinalResult() throws Exception {
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.streams("what time is it please", 400,
+                        "what", "what time", "what time is it", "what time is it"))
+                .then(ScriptedSpeech.Utterance.streams("what is the capital of lesotho", 100,
+                        "what", "what is the capital", "what is the capital of lesotho"));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        TurnController controller = newController(input, output);
+
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(waitFor(() -> input.listenCount() >= 2));
+        assertTrue(input.cancelCount() >= 1);
+        assertTrue(output.spoken().get(1).contains(":")); // The time answer, from the partial
+        assertTrue(waitFor(() -> output.utteranceIds().size() >= 4));
+
+        // The final "... please" was not answered a second time, and the question waited for its final result
+        List<String> ids = output.utteranceIds();
+        assertEquals(TurnController.UTTERANCE_ID_RESPONSE, ids.get(1));
+        assertEquals(TurnController.UTTERANCE_ID_THINKING, ids.get(2));
+    }
+
+    @Test
+    public void compoundPartialsWaitForTheFinalTranscript() throws Exception {
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.streams("what time is it and tell me a joke", 300,
+                        "what time", "what time is it", "what time is it and", "what time is it and tell me a"));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        TurnController controller = newController(input, output);
+
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(waitFor(() -> input.listenCount() >= 2));
+
+        // Not committed on "what time is it and": both local clauses are answered together, the joke included
+        List<String> spoken = output.spoken();
+        assertEquals(spoken.toString(), 2, spoken.size());
+        assertTrue(spoken.get(1), spoken.get(1).contains(":"));
+        assertTrue(spoken.get(1), spoken.get(1).contains("Did that make you smile?"));
+    }
+
+    @Test
+    public void compoundUtteranceAnswersEveryClauseConcurrentlyAndInOrder() throws Exception {
+        long aiMillis = 1000;
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.says("What time is it and what's the weather in London, also tell me about black holes", 5));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        // Stubbed remote backends: the weather lookup's simulated latency and a Gemini that takes aiMillis
+        GeminiOutbox.Sender slowAi = (prompt, context, callback) -> scheduler.schedule(
+                () -> callback.onGeminiResponse("Black holes are regions where gravity wins.", false), aiMillis, TimeUnit.MILLISECONDS);
+        ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")),
+                BuiltInSkills.registerAll(new SkillRegistry.Builder(), null, slowAi).build());
+        TurnController controller = new TurnController(manager, input, output, main, host);
+
+        long[] heardAt = new long[1];
+        controller.setLatencyListener(new TurnController.LatencyListener() {
+            @Override
+            public void onResponseSpoken(ConversationManager.Intent intent, long nanos) {
+                heardAt[0] = System.nanoTime() - nanos;
+            }
+
+            @Override
+            public void onListeningResumed(long nanos) {
+            }
+        });
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(waitFor(() -> input.listenCount() >= 2));
+        long totalMillis = (System.nanoTime() - heardAt[0]) / 1_000_000L;
+
+        List<String> spoken = output.spoken();
+        assertEquals(spoken.toString(), 4, spoken.size());
+        assertTrue(spoken.get(1), spoken.get(1).contains(":")); // The time first, while the rest is on its way
+        assertTrue(spoken.get(1), spoken.get(1).contains("fetching the weather for london"));
+        assertTrue(spoken.get(2), spoken.get(2).contains("London"));
+        assertTrue(spoken.get(3), spoken.get(3).startsWith("Black holes"));
+        assertEquals(TurnController.UTTERANCE_ID_PART, output.utteranceIds().get(3));
+        // Bounded by the slowest clause, not the sum of both remote ones
+        assertTrue(totalMillis + "ms", totalMillis >= BuiltInSkills.SIMULATED_WEATHER_LATENCY_MILLIS);
+        assertTrue(totalMillis + "ms", totalMillis < BuiltInSkills.SIMULATED_WEATHER_LATENCY_MILLIS + aiMillis - 300);
+    }
+
+    @Test
+    public void goodbyeStopsTheServiceWithoutListening() throws Exception {
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.says("goodbye peanut", 5));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        TurnController controller = newController(input, output);
+
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(waitFor(() -> !stopRequests.isEmpty()));
+        Thread.sleep(50);
+        assertEquals(TurnController.UTTERANCE_ID_GOODBYE, output.utteranceIds().get(1));
+        assertEquals(1, input.listenCount());
+    }
+
+    @Test
+    public void noMatchErrorRepromptsTheUser() throws Exception {
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                .then(ScriptedSpeech.Utterance.fails(TurnController.ERROR_NO_MATCH, 5));
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+        TurnController controller = newController(input, output);
+
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(waitFor(() -> output.spoken().size() >= 2 && input.listenCount() >= 2));
+        assertTrue(output.spoken().get(1).startsWith("I didn't hear anything"));
+        assertTrue(input.cancelCount() >= 1);
+    }
+
+    @Test
+    public void localTurnLatencyStaysWithinBudget() throws Exception {
+        int turns = 200;
+        String[] phrases = {"hello", "what time is it", "tell me a joke", "thank you", "how are you"};
+        ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main);
+        for (int i = 0; i < turns; i++) {
+            input.then(ScriptedSpeech.Utterance.says(phrases[i % phrases.length], 0));
+        }
+        ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 0);
+        TurnController controller = newController(input, output);
+
+        List<Long> latencies = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(turns);
+        controller.setLatencyListener(new TurnController.LatencyListener() {
+            @Override
+            public void onResponseSpoken(ConversationManager.Intent intent, long nanos) {
+                latencies.add(nanos);
+                done.countDown();
+            }
+
+            @Override
+            public void onListeningResumed(long nanos) {
+            }
+        });
+        main.execute(() -> controller.startConversation("I am listening."));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // Skip warm-up turns, then compare the median against the budget
+        List<Long> steady = latencies.subList(turns / 4, turns);
+        long[] sorted = steady.stream().mapToLong(Long::longValue).sorted().toArray();
+        long median = sorted[sorted.length / 2];
+        assertTrue("median local turn latency " + median + "ns", median < LOCAL_TURN_BUDGET_NANOS);
+    }
+
+    private TurnController newController(ScriptedSpeech.Input input, ScriptedSpeech.Output output) {
+        ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")));
+        return new TurnController(manager, input, output, main, host);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static boolean waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.met()) {
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        return condition.met();
+    }
+}
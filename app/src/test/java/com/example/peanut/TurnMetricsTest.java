@@ -0,0 +1,311 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TurnMetricsTest {
+
+    private static final long HOUR_MILLIS = 3600_000L;
+    private static final long START_MILLIS = 480_000L * HOUR_MILLIS; // Some hour in 2024
+
+    private File dir;
+    private final AtomicLong clock = new AtomicLong(START_MILLIS);
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("metrics").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void sketchPercentilesAreWithinOneBucketAndMergeExactly() throws Exception {
+        Random random = new Random(42);
+        long[] values = new long[20000];
+        LatencySketch whole = new LatencySketch();
+        LatencySketch a = new LatencySketch();
+        LatencySketch b = new LatencySketch();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * Math.log(30_000_000)); // 1us to 30s
+            whole.record(values[i]);
+            (i % 2 == 0 ? a : b).record(values[i]);
+        }
+        Arrays.sort(values);
+        a.merge(b);
+        for (double q : new double[] {0.5, 0.9, 0.99}) {
+            long exact = values[(int) Math.ceil(q * values.length) - 1];
+            long estimate = whole.percentile(q);
+            assertTrue(q + ": " + estimate + " vs " + exact, Math.abs(estimate - exact) <= Math.max(1, exact / 8));
+            assertEquals(estimate, a.percentile(q));
+        }
+        assertEquals(-1, new LatencySketch().percentile(0.5));
+        assertEquals(LatencySketch.BUCKETS - 1, LatencySketch.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void samplesRollUpByHourAndIntentAndAreAppendedWhenTheHourChanges() throws Exception {
+        TurnMetrics metrics = newMetrics(TurnMetrics.DEFAULT_MAX_BYTES);
+        for (int i = 1; i <= 3; i++) {
+            metrics.record(sample("WHAT_TIME", i * 1_000_000L, -1, false, false));
+        }
+        metrics.record(sample("EXTERNAL_AI_QUERY", 2_000_000L, 800_000_000L, true, false));
+        metrics.record(sample(null, -1, -1, false, true)); // Recognizer error before routing
+        assertEquals(3, metrics.currentHour().size());
+        assertTrue(!new File(dir, TurnMetrics.METRICS_FILE).exists()); // Nothing written mid-hour
+
+        clock.addAndGet(HOUR_MILLIS);
+        metrics.record(sample("WHAT_TIME", 1_000_000L, -1, false, false)); // Closes the first hour
+        assertTrue(waitFor(() -> TurnMetricsFile.read(new File(dir, TurnMetrics.METRICS_FILE)).rollups.size() == 3));
+        metrics.flush();
+
+        TurnMetricsFile.Contents contents = TurnMetricsFile.read(new File(dir, TurnMetrics.METRICS_FILE));
+        assertEquals("test-device", contents.device);
+        assertEquals(4, contents.rollups.size());
+        TurnMetricsFile.Rollup time = contents.rollups.get(0);
+        assertEquals("WHAT_TIME", time.intent);
+        assertEquals(START_MILLIS / HOUR_MILLIS, time.hour);
+        assertEquals(7, time.appVersion);
+        assertEquals(3, time.turns);
+        assertEquals(3, time.sketch(TurnMetricsFile.Measure.STT_WAIT).count());
+        assertEquals(0, time.sketch(TurnMetricsFile.Measure.BACKEND).count());
+        assertEquals(2000, time.sketch(TurnMetricsFile.Measure.STT_WAIT).percentile(0.5), 2000 / 8);
+        TurnMetricsFile.Rollup ai = contents.rollups.get(1);
+        assertEquals(1, ai.cacheHits);
+        assertEquals(800_000, ai.sketch(TurnMetricsFile.Measure.BACKEND).percentile(0.5), 800_000 / 8);
+        TurnMetricsFile.Rollup none = contents.rollups.get(2);
+        assertEquals(TurnMetrics.NO_INTENT, none.intent);
+        assertEquals(1, none.errors);
+        assertEquals(START_MILLIS / HOUR_MILLIS + 1, contents.rollups.get(3).hour);
+    }
+
+    @Test
+    public void tornTailIsIgnoredAndCutBeforeTheNextAppend() throws Exception {
+        TurnMetrics metrics = newMetrics(TurnMetrics.DEFAULT_MAX_BYTES);
+        metrics.record(sample("TELL_JOKE", 1_000_000L, -1, false, false));
+        metrics.flush();
+        File file = new File(dir, TurnMetrics.METRICS_FILE);
+        long intact = file.length();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3}); // A record cut off mid-write
+        }
+        assertEquals(1, TurnMetricsFile.read(file).rollups.size());
+        assertEquals(intact, TurnMetricsFile.read(file).validBytes);
+
+        TurnMetrics restarted = newMetrics(TurnMetrics.DEFAULT_MAX_BYTES);
+        restarted.record(sample("TELL_JOKE", 1_000_000L, -1, false, false));
+        restarted.flush();
+        TurnMetricsFile.Contents contents = TurnMetricsFile.read(file);
+        assertEquals(2, contents.rollups.size());
+        assertEquals(file.length(), contents.validBytes);
+        assertEquals(2, TurnMetrics.mergeByKey(contents.rollups).get(0).turns);
+    }
+
+    @Test
+    public void fileStaysBoundedAndDropsHoursPastRetention() throws Exception {
+        long maxBytes = 4096;
+        TurnMetrics metrics = newMetrics(maxBytes);
+        for (int hour = 0; hour < 500; hour++) {
+            metrics.record(sample("WHAT_TIME", (hour + 1) * 1000L, -1, false, false));
+            metrics.record(sample("GET_WEATHER", (hour + 1) * 1000L, 300_000_000L, false, hour % 7 == 0));
+            metrics.flush();
+            assertTrue(new File(dir, TurnMetrics.METRICS_FILE).length() <= maxBytes);
+            clock.addAndGet(HOUR_MILLIS);
+        }
+        List<TurnMetricsFile.Rollup> rollups = TurnMetricsFile.read(new File(dir, TurnMetrics.METRICS_FILE)).rollups;
+        int newestHour = (int) (clock.get() / HOUR_MILLIS) - 1;
+        assertTrue(rollups.size() > 10);
+        for (TurnMetricsFile.Rollup rollup : rollups) {
+            assertTrue(rollup.hour >= newestHour - 48);
+        }
+        assertEquals(newestHour, rollups.get(rollups.size() - 1).hour);
+        assertTrue(metrics.describe(), !metrics.describe().endsWith("compactions=0"));
+    }
+
+    @Test
+    public void readerMergesFilesFromSeveralDevices() throws Exception {
+        File phone = writeDevice("phone", 1, 4);
+        File tablet = writeDevice("tablet", 2, 6);
+
+        Map<String, TurnMetricsFile.Rollup> byDevice = TurnMetricsReader.merge(Arrays.asList(phone, tablet),
+                TurnMetricsReader.GroupBy.DEVICE);
+        assertEquals(Arrays.asList("phone", "tablet"), Arrays.asList(byDevice.keySet().toArray()));
+        assertEquals(4, byDevice.get("phone").turns);
+        Map<String, TurnMetricsFile.Rollup> byIntent = TurnMetricsReader.merge(Arrays.asList(phone, tablet),
+                TurnMetricsReader.GroupBy.INTENT);
+        assertEquals(10, byIntent.get("WHAT_TIME").turns);
+        assertEquals(10, byIntent.get("WHAT_TIME").sketch(TurnMetricsFile.Measure.TTS_START).count());
+        assertEquals(2, TurnMetricsReader.merge(Arrays.asList(phone, tablet), TurnMetricsReader.GroupBy.VERSION).size());
+
+        StringWriter table = new StringWriter();
+        TurnMetricsReader.printTable(new PrintWriter(table), byIntent);
+        assertTrue(table.toString(), table.toString().contains("stt p50/p90/p99 ms"));
+        assertTrue(table.toString(), table.toString().matches("(?s).*WHAT_TIME\\s+10\\s+0\\s+0\\s+\\d+/\\d+/\\d+.*"));
+
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true, "UTF-8"));
+        try {
+            TurnMetricsReader.main(new String[] {"--by", "hour", phone.getPath(), tablet.getPath()});
+        } finally {
+            System.setOut(stdout);
+        }
+        assertTrue(printed.toString("UTF-8"), printed.toString("UTF-8").contains("2024-10-04 00:00Z"));
+    }
+
+    @Test
+    public void controllerRecordsEachTurnWhenListeningResumes() throws Exception {
+        ExecutorService main = Executors.newSingleThreadExecutor(r -> new Thread(r, "fake-main"));
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        try {
+            ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                    .then(ScriptedSpeech.Utterance.says("what time is it", 20))
+                    .then(ScriptedSpeech.Utterance.fails(TurnController.ERROR_NO_MATCH, 5));
+            ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+            ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")));
+            TurnController controller = new TurnController(manager, input, output, main, new TurnController.Host() {
+                @Override
+                public void showToast(String message) {
+                }
+
+                @Override
+                public void stopSelfDelayed(long delayMillis) {
+                }
+            });
+            TurnMetrics metrics = new TurnMetrics(dir, 7, "test-device");
+            controller.setMetrics(metrics);
+
+            main.execute(() -> controller.startConversation("I am listening."));
+            assertTrue(waitFor(() -> input.listenCount() >= 3 && metrics.currentHour().size() == 2));
+
+            Map<String, TurnMetricsFile.Rollup> byIntent = TurnMetricsReader.byIntent(metrics.currentHour());
+            TurnMetricsFile.Rollup time = byIntent.get("WHAT_TIME");
+            assertEquals(1, time.turns);
+            assertEquals(1, time.sketch(TurnMetricsFile.Measure.STT_WAIT).count());
+            assertTrue(time.sketch(TurnMetricsFile.Measure.STT_WAIT).percentile(0.5) >= 15_000); // The scripted 20ms
+            assertEquals(1, time.sketch(TurnMetricsFile.Measure.NLU).count());
+            assertEquals(1, time.sketch(TurnMetricsFile.Measure.TTS_START).count());
+            assertEquals(0, time.sketch(TurnMetricsFile.Measure.BACKEND).count());
+            assertEquals(1, byIntent.get(TurnMetrics.NO_INTENT).errors); // The no-match, re-prompt not counted
+        } finally {
+            main.shutdownNow();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void controllerCountsTheCacheHitsItsAnswersReport() throws Exception {
+        ExecutorService main = Executors.newSingleThreadExecutor(r -> new Thread(r, "fake-main"));
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        try {
+            ScriptedSpeech.Input input = new ScriptedSpeech.Input(scheduler, main)
+                    .then(ScriptedSpeech.Utterance.says("what is the capital of lesotho", 5))
+                    .then(ScriptedSpeech.Utterance.says("tell me about black holes", 5));
+            ScriptedSpeech.Output output = new ScriptedSpeech.Output(scheduler, 5);
+            // The first question was asked before and comes from the cache; the second is fetched
+            GeminiOutbox.Sender ai = (prompt, context, callback) -> scheduler.schedule(
+                    () -> callback.onGeminiResponse("An answer.", prompt.contains("lesotho")), 20, TimeUnit.MILLISECONDS);
+            ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")),
+                    BuiltInSkills.registerAll(new SkillRegistry.Builder(), null, ai).build());
+            TurnController controller = new TurnController(manager, input, output, main, new TurnController.Host() {
+                @Override
+                public void showToast(String message) {
+                }
+
+                @Override
+                public void stopSelfDelayed(long delayMillis) {
+                }
+            });
+            TurnMetrics metrics = new TurnMetrics(dir, 7, "test-device");
+            controller.setMetrics(metrics);
+
+            main.execute(() -> controller.startConversation("I am listening."));
+            assertTrue(waitFor(() -> {
+                TurnMetricsFile.Rollup rollup = TurnMetricsReader.byIntent(metrics.currentHour()).get("EXTERNAL_AI_QUERY");
+                return rollup != null && rollup.turns == 2;
+            }));
+            TurnMetricsFile.Rollup remote = TurnMetricsReader.byIntent(metrics.currentHour()).get("EXTERNAL_AI_QUERY");
+            assertEquals(1, remote.cacheHits);
+            assertEquals(2, remote.sketch(TurnMetricsFile.Measure.BACKEND).count());
+        } finally {
+            main.shutdownNow();
+            scheduler.shutdownNow();
+        }
+    }
+
+    // --- Helpers ---
+
+    private TurnMetrics newMetrics(long maxBytes) {
+        return new TurnMetrics(dir, 7, "test-device", maxBytes, 48, clock::get);
+    }
+
+    private static TurnMetrics.Sample sample(String intent, long sttNanos, long backendNanos, boolean cacheHit, boolean error) {
+        TurnMetrics.Sample sample = new TurnMetrics.Sample();
+        sample.intent = intent;
+        sample.sttWaitNanos = sttNanos;
+        sample.nluNanos = intent != null ? 50_000L : -1;
+        sample.backendNanos = backendNanos;
+        sample.ttsStartNanos = intent != null ? 30_000_000L : -1;
+        sample.cacheHit = cacheHit;
+        sample.error = error;
+        return sample;
+    }
+
+    private File writeDevice(String device, int appVersion, int turns) throws Exception {
+        File deviceDir = new File(dir, device);
+        TurnMetrics metrics = new TurnMetrics(deviceDir, appVersion, device, TurnMetrics.DEFAULT_MAX_BYTES, 48, clock::get);
+        for (int i = 0; i < turns; i++) {
+            metrics.record(sample("WHAT_TIME", 900_000_000L + i * 100_000_000L, -1, false, false));
+        }
+        metrics.flush();
+        File export = new File(dir, device + ".pnm");
+        assertTrue(metrics.export(export) > 0);
+        new File(deviceDir, TurnMetrics.METRICS_FILE).delete();
+        deviceDir.delete();
+        return export;
+    }
+
+    private interface Condition {
+        boolean met() throws Exception;
+    }
+
+    private static boolean waitFor(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.met()) {
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        return condition.met();
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class UserProfileStoreTest {
+
+    private static final ConversationManager.ExternalAiResponseCallback NO_ASYNC = (response, fromCache) -> { };
+
+    private File dir;
+    private UserProfileStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("profile").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void writesAreCoalescedAndSurviveRestart() throws Exception {
+        store = new UserProfileStore(dir, 100);
+        store.setName("thabo");
+        store.setLocaleTag("es-MX");
+        for (int i = 0; i < 100; i++) {
+            store.recordLocation(i % 3 == 0 ? "Maseru" : "london");
+        }
+        assertEquals("thabo", store.getName()); // Reads see writes before any flush
+        assertFalse(new File(dir, UserProfileStore.PROFILE_FILE).exists());
+
+        Thread.sleep(400);
+        assertTrue(new File(dir, UserProfileStore.PROFILE_FILE).exists());
+        assertTrue(store.describe(), store.describe().contains("flushes=1 "));
+        store.close();
+
+        store = new UserProfileStore(dir);
+        assertEquals("thabo", store.getName());
+        assertEquals("es-MX", store.getLocaleTag());
+        assertEquals(Arrays.asList("london", "maseru"), store.frequentLocations());
+    }
+
+    @Test
+    public void locationsKeepTheMostFrequent() {
+        store = new UserProfileStore(dir);
+        store.recordLocation("city0");
+        for (int i = 0; i < UserProfileStore.MAX_LOCATIONS + 3; i++) {
+            store.recordLocation("city" + i);
+        }
+        store.recordLocation("new york");
+        store.recordLocation("new york");
+        store.recordLocation("new york");
+        assertEquals(UserProfileStore.MAX_LOCATIONS, store.frequentLocations().size());
+        assertEquals("new york", store.frequentLocations().get(0));
+        assertEquals("city0", store.frequentLocations().get(1));
+    }
+
+    @Test
+    public void newLocationsDisplaceTheLeastRecentNotEachOther() {
+        store = new UserProfileStore(dir);
+        for (int i = 0; i < UserProfileStore.MAX_LOCATIONS; i++) {
+            store.recordLocation("city" + i);
+        }
+        store.recordLocation("paris");
+        store.recordLocation("rome");
+        List<String> kept = store.frequentLocations();
+        assertTrue(kept.toString(), kept.contains("paris") && kept.contains("rome"));
+        assertFalse(kept.toString(), kept.contains("city0") || kept.contains("city1"));
+
+        // Old favourites fade, so a place asked about often lately makes the list
+        for (int i = 0; i < 40; i++) {
+            for (int n = 0; n < UserProfileStore.MAX_LOCATIONS; n++) {
+                store.recordLocation("old" + n);
+            }
+        }
+        for (int i = 0; i < 30; i++) { // Fewer times than any of the old ones, all told
+            store.recordLocation("tokyo");
+        }
+        assertEquals("tokyo", store.frequentLocations().get(0));
+    }
+
+    @Test
+    public void failedFlushIsRetriedWithoutAnotherWrite() throws Exception {
+        File blocked = new File(dir, "profile");
+        assertTrue(blocked.createNewFile()); // A file where the directory should be: the write fails
+        store = new UserProfileStore(blocked, 10);
+        store.setName("thabo");
+        Thread.sleep(50);
+        assertTrue(blocked.delete());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!new File(blocked, UserProfileStore.PROFILE_FILE).exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(new File(blocked, UserProfileStore.PROFILE_FILE).exists());
+        store.close();
+        store = null;
+        assertTrue(new File(blocked, UserProfileStore.PROFILE_FILE).delete() && blocked.delete());
+    }
+
+    @Test
+    public void crashBeforeRenameKeepsThePreviousProfile() throws Exception {
+        store = new UserProfileStore(dir, 10_000);
+        store.setName("thabo");
+        store.flush();
+        store.setName("lerato"); // Never flushed: the process dies first
+        // A half-written temp file is what a crash mid-flush leaves behind
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "user.profile.tmp"))) {
+            out.write(new byte[]{0x50, 0x4E, 0x50, 0x31, 0, 0});
+        }
+
+        UserProfileStore restarted = new UserProfileStore(dir);
+        assertEquals("thabo", restarted.getName());
+        restarted.close();
+    }
+
+    @Test
+    public void tornOrCorruptProfileStartsFresh() throws Exception {
+        store = new UserProfileStore(dir);
+        store.setName("thabo");
+        store.recordLocation("maseru");
+        store.close();
+        store = null;
+        File file = new File(dir, UserProfileStore.PROFILE_FILE);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            raf.write(raf.read() ^ 0xFF); // Flip a payload byte
+        }
+        UserProfileStore corrupt = new UserProfileStore(dir);
+        assertNull(corrupt.getName());
+        assertTrue(corrupt.frequentLocations().isEmpty());
+        corrupt.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        UserProfileStore torn = new UserProfileStore(dir);
+        assertNull(torn.getName());
+        torn.setName("lerato"); // Still usable, and the next flush repairs the file
+        torn.close();
+        store = new UserProfileStore(dir);
+        assertEquals("lerato", store.getName());
+    }
+
+    @Test
+    public void newSessionsRememberTheUser() {
+        store = new UserProfileStore(dir);
+        ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")));
+        manager.attachProfile(store);
+        manager.processTurn("my name is thabo", NO_ASYNC);
+
+        manager.resetConversation(); // What every ACTION_START_CONVERSATION does
+        assertEquals("thabo", manager.getUserName());
+        String greeting = manager.processTurn("hello", NO_ASYNC).text.toString();
+        assertTrue(greeting, greeting.contains("thabo"));
+        assertFalse(greeting, greeting.contains("what name should I use"));
+
+        // A fresh service process picks the name up from the profile
+        ConversationManager next = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")));
+        next.attachProfile(store);
+        assertEquals("thabo", next.getUserName());
+    }
+}
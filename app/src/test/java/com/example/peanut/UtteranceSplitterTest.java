@@ -0,0 +1,50 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class UtteranceSplitterTest {
+
+    private final SkillRegistry skills = BuiltInSkills.createRegistry();
+    private final UtteranceSplitter splitter = new UtteranceSplitter();
+
+    @Test
+    public void splitsRequestsAtConjunctions() {
+        assertEquals(Arrays.asList("what time is it", "what's the weather in london", "tell me about black holes"),
+                splitter.split("What time is it and what's the weather in London, also tell me about black holes", skills));
+        assertEquals(Arrays.asList("tell me a joke", "goodbye"), splitter.split("tell me a joke and then goodbye", skills));
+        assertEquals(Arrays.asList("hello", "who wrote hamlet"), splitter.split("Hello. Who wrote Hamlet?", skills));
+    }
+
+    @Test
+    public void keepsSingleRequestsWhole() {
+        assertTrue(splitter.split("what time is it", skills).isEmpty());
+        assertTrue(splitter.split("tell me about salt and pepper", skills).isEmpty());
+        assertTrue(splitter.split("what's the weather in london and paris", skills).isEmpty());
+        assertTrue(splitter.split("why is the sky blue and the sea green", skills).isEmpty());
+    }
+
+    @Test
+    public void onlyTheFirstNameClauseCounts() {
+        assertTrue(splitter.split("my name is john and i'm tired", skills).isEmpty());
+        assertEquals(Arrays.asList("what time is it", "my name is john"), splitter.split("what time is it and my name is john", skills));
+
+        ConversationManager manager = new ConversationManager(ResponseBank.fromFile(new File("src/main/assets/responses.txt")));
+        manager.processTurn("my name is john and i'm tired", (response, fromCache) -> { });
+        assertEquals("john", manager.getUserName());
+    }
+
+    @Test
+    public void routesEachClauseToItsOwnIntent() {
+        List<String> clauses = splitter.split("What time is it and what's the weather in London, also tell me about black holes", skills);
+        assertEquals(ConversationManager.Intent.WHAT_TIME, skills.intentOf(skills.route(clauses.get(0))));
+        assertEquals(ConversationManager.Intent.GET_WEATHER, skills.intentOf(skills.route(clauses.get(1))));
+        assertEquals(SkillRegistry.NO_ROUTE, skills.route(clauses.get(2))); // Gemini
+    }
+}
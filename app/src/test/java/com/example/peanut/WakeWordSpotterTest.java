@@ -0,0 +1,206 @@
+package com.example.peanut;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class WakeWordSpotterTest {
+
+    private static final int TEMPLATES = 3;
+    private static final int POSITIVES = 40;
+    private static final int NEGATIVES = 40;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("wakeword").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void wavFilesRoundTrip() throws Exception {
+        short[] pcm = new SyntheticSpeech(1).say(SyntheticSpeech.HEY_PEANUT, SyntheticSpeech.Speaker.random(new Random(1))).pcm();
+        File file = new File(dir, "round.wav");
+        WavFile.write(file, pcm, WakeWordSpotter.SAMPLE_RATE);
+        assertEquals(44 + pcm.length * 2, file.length());
+        assertTrue(Arrays.equals(pcm, WavFile.read(file, WakeWordSpotter.SAMPLE_RATE)));
+        try {
+            WavFile.read(file, 8000);
+            throw new AssertionError("read at the wrong rate");
+        } catch (java.io.IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("16000 Hz"));
+        }
+    }
+
+    @Test
+    public void framesIgnoreGainButTellVowelsApart() {
+        SyntheticSpeech.Speaker speaker = new SyntheticSpeech.Speaker(1, 120, 2, 0.5, 0.002);
+        short[] loud = new SyntheticSpeech(2).say("aa", speaker).pcm();
+        short[] quiet = new short[loud.length];
+        for (int i = 0; i < loud.length; i++) {
+            quiet[i] = (short) (loud[i] / 16);
+        }
+        int[] loudFrame = lastFrame(loud);
+        int[] quietFrame = lastFrame(quiet);
+        int[] otherVowel = lastFrame(new SyntheticSpeech(2).say("ii", speaker).pcm());
+        int sameDistance = 0;
+        int otherDistance = 0;
+        for (int k = 0; k < WakeWordSpotter.CEPSTRA; k++) {
+            sameDistance += Math.abs(loudFrame[k] - quietFrame[k]);
+            otherDistance += Math.abs(loudFrame[k] - otherVowel[k]);
+        }
+        assertTrue(sameDistance + " vs " + otherDistance, sameDistance * 8 < otherDistance);
+        assertTrue(sameDistance + " at 1/16 the gain", sameDistance < WakeWordSpotter.CEPSTRA * 32);
+        assertEquals(13 * 256 + 128, WakeWordSpotter.log2Q8(3 << 12));
+    }
+
+    @Test
+    public void harnessMeasuresFalseRejectsFalseAcceptsAndCpu() throws Exception {
+        File templates = mkdir("templates");
+        File positives = mkdir("positives");
+        File negatives = mkdir("negatives");
+        Random random = new Random(42);
+        for (int i = 0; i < TEMPLATES; i++) {
+            // Enrollment: the owner, close to the microphone in a quiet room
+            SyntheticSpeech.Speaker owner = new SyntheticSpeech.Speaker(1.0 + i * 0.01, 120 + i * 5, 1.0, 0.4, 0.001);
+            write(new File(templates, "t" + i + ".wav"), new SyntheticSpeech(random.nextLong())
+                    .pause(300, owner).say(SyntheticSpeech.HEY_PEANUT, owner).pause(300, owner));
+        }
+        for (int i = 0; i < POSITIVES; i++) {
+            SyntheticSpeech.Speaker speaker = SyntheticSpeech.Speaker.random(random);
+            write(new File(positives, "p" + i + ".wav"), new SyntheticSpeech(random.nextLong())
+                    .pause(500 + random.nextInt(1000), speaker).say(SyntheticSpeech.HEY_PEANUT, speaker).pause(500, speaker));
+        }
+        for (int i = 0; i < NEGATIVES; i++) {
+            SyntheticSpeech.Speaker speaker = SyntheticSpeech.Speaker.random(random);
+            SyntheticSpeech speech = new SyntheticSpeech(random.nextLong()).pause(500, speaker);
+            for (int n = 0; n < 3; n++) {
+                if (random.nextInt(6) == 0) {
+                    speech.tone(400 + random.nextInt(800), 300 + random.nextInt(3000), 0.05 + random.nextDouble() * 0.3, speaker);
+                } else {
+                    speech.say(SyntheticSpeech.DISTRACTORS[random.nextInt(SyntheticSpeech.DISTRACTORS.length)], speaker);
+                }
+                speech.pause(300 + random.nextInt(1500), speaker);
+            }
+            write(new File(negatives, "n" + i + ".wav"), speech);
+        }
+
+        WakeWordHarness.Report report = WakeWordHarness.evaluate(WakeWordHarness.wavs(templates),
+                WakeWordHarness.wavs(positives), WakeWordHarness.wavs(negatives), WakeWordSpotter.DEFAULT_THRESHOLD);
+        StringWriter text = new StringWriter();
+        WakeWordHarness.print(new PrintWriter(text, true), report);
+
+        assertEquals(POSITIVES, report.positives);
+        assertEquals(NEGATIVES, report.negatives);
+        assertTrue(text.toString(), report.falseRejectRate() <= 0.1);
+        assertTrue(text.toString(), report.falseAcceptFiles <= NEGATIVES / 20);
+        assertTrue(text.toString(), report.matchedFrames < report.frames); // Pauses were skipped
+        assertTrue(text.toString(), report.cpuMillisPerAudioSecond() < 50); // Generous: shared CI machines
+    }
+
+    @Test
+    public void silenceKeepsMatchingDormant() {
+        WakeWordSpotter spotter = enrolledSpotter();
+        SyntheticSpeech.Speaker room = new SyntheticSpeech.Speaker(1, 100, 1, 0.3, 0.003);
+        short[] quiet = new SyntheticSpeech(3).pause(10_000, room).pcm();
+        feed(spotter, quiet);
+        assertEquals(quiet.length / WakeWordSpotter.HOP - 2, spotter.frames()); // The first window needs three hops
+        assertTrue(spotter.describe(), spotter.matchedFrames() == 0);
+
+        short[] wake = new SyntheticSpeech(4).say(SyntheticSpeech.HEY_PEANUT, room).pause(500, room).pcm();
+        assertTrue(spotter.describe(), feed(spotter, wake));
+        assertEquals(1, spotter.detections());
+        assertFalse(feed(spotter, quiet));
+    }
+
+    @Test
+    public void streamingAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return; // Nothing to measure on this JVM
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        WakeWordSpotter spotter = enrolledSpotter();
+        SyntheticSpeech.Speaker speaker = SyntheticSpeech.Speaker.random(new Random(5));
+        SyntheticSpeech speech = new SyntheticSpeech(5);
+        for (String phrase : SyntheticSpeech.DISTRACTORS) {
+            speech.say(phrase, speaker).pause(200, speaker);
+        }
+        short[] pcm = speech.pcm();
+        feed(spotter, pcm); // Warm up
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        feed(spotter, pcm);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(allocated + " bytes over " + spotter.frames() + " frames", allocated < 1024);
+    }
+
+    // --- Helpers ---
+
+    private static WakeWordSpotter enrolledSpotter() {
+        WakeWordSpotter spotter = new WakeWordSpotter();
+        SyntheticSpeech.Speaker owner = new SyntheticSpeech.Speaker(1, 120, 1, 0.4, 0.001);
+        assertTrue(spotter.addTemplate(new SyntheticSpeech(6).pause(200, owner).say(SyntheticSpeech.HEY_PEANUT, owner).pause(200, owner).pcm()));
+        assertFalse(spotter.addTemplate(new SyntheticSpeech(7).say("h ey", owner).pcm())); // Too short to be the wake word
+        assertEquals(1, spotter.templateCount());
+        return spotter;
+    }
+
+    // In 20 ms reads, as AndroidWakeWordSource delivers them
+    private static boolean feed(WakeWordSpotter spotter, short[] pcm) {
+        boolean detected = false;
+        for (int offset = 0; offset < pcm.length; offset += 320) {
+            detected |= spotter.process(pcm, offset, Math.min(320, pcm.length - offset));
+        }
+        return detected;
+    }
+
+    private static int[] lastFrame(short[] pcm) {
+        WakeWordSpotter.Features features = new WakeWordSpotter.Features();
+        int[] frame = new int[WakeWordSpotter.CEPSTRA];
+        for (int offset = 0; offset + WakeWordSpotter.HOP <= pcm.length; offset += WakeWordSpotter.HOP) {
+            if (features.push(pcm, offset)) {
+                features.frame(frame, 0);
+            }
+        }
+        return frame;
+    }
+
+    private File mkdir(String name) {
+        File child = new File(dir, name);
+        assertTrue(child.mkdir());
+        return child;
+    }
+
+    private static void write(File file, SyntheticSpeech speech) throws Exception {
+        WavFile.write(file, speech.pcm(), WakeWordSpotter.SAMPLE_RATE);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}